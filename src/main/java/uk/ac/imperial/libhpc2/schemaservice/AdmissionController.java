@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether conversion requests are admitted, so that one caller
+ * sending a large number of requests cannot starve the others.
+ *
+ * Each caller, an authenticated user or the address of an anonymous
+ * client, has a token bucket limiting the rate of its requests and a cap
+ * on the number of its requests in progress. A global cap limits the
+ * number of admitted requests in progress across all callers. A request
+ * that would exceed a limit is rejected immediately, along with the time
+ * after which the caller can expect to be admitted, rather than waiting
+ * for capacity.
+ *
+ * The limits are configured from the [admission] section of the
+ * configuration file and can be changed while the service is running.
+ *
+ * @author jhc02
+ */
+public class AdmissionController {
+
+    private static final Logger sLog = LoggerFactory.getLogger(AdmissionController.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the shared instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "admissionController";
+
+    /**
+     * Name of the configuration file section containing admission settings.
+     */
+    public static final String CONFIG_SECTION = "admission";
+
+    /**
+     * Default number of requests per second each caller's token bucket is
+     * refilled with.
+     */
+    public static final double DEFAULT_RATE_PER_SECOND = 5.0;
+
+    /**
+     * Default number of tokens each caller's bucket holds, the number of
+     * requests a caller can make at once after being idle.
+     */
+    public static final int DEFAULT_BURST = 20;
+
+    /**
+     * Default maximum number of requests in progress for each caller.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_PER_CALLER = 4;
+
+    /**
+     * Default maximum number of admitted requests in progress in total.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT = 64;
+
+    /**
+     * Default time a caller rejected for having too many requests in
+     * progress is asked to wait.
+     */
+    public static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+    // Idle callers are removed from the map when this many requests have
+    // been made since the last check.
+    private static final long SWEEP_INTERVAL_REQUESTS = 1024;
+
+    private volatile Limits _limits;
+
+    private final ConcurrentMap<String, Caller> _callers = new ConcurrentHashMap<String, Caller>();
+
+    // All access to the total number of requests in progress is
+    // synchronized on the controller.
+    private int _active = 0;
+
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _admitted = new AtomicLong();
+    private final AtomicLong _rateLimited = new AtomicLong();
+    private final AtomicLong _callerConcurrencyLimited = new AtomicLong();
+    private final AtomicLong _globalConcurrencyLimited = new AtomicLong();
+
+    /**
+     * Get the admission controller registered in the provided servlet
+     * context, creating and registering a new one if none exists yet.
+     *
+     * @param pContext the servlet context to look up the controller in.
+     * @return the shared admission controller.
+     */
+    public static AdmissionController getInstance(ServletContext pContext) {
+        synchronized(pContext) {
+            AdmissionController controller = (AdmissionController)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(controller == null) {
+                controller = new AdmissionController(TempssConfig.getInstance());
+                pContext.setAttribute(CONTEXT_ATTRIBUTE, controller);
+            }
+            return controller;
+        }
+    }
+
+    /**
+     * Create a controller using the limits in the provided configuration.
+     *
+     * @param pConfig the configuration.
+     */
+    public AdmissionController(TempssConfig pConfig) {
+        this._limits = new Limits(pConfig);
+    }
+
+    /**
+     * Apply the limits from the [admission] section of a reloaded
+     * configuration. Requests already admitted are not affected.
+     *
+     * @param pConfig the reloaded configuration.
+     */
+    public void reconfigure(TempssConfig pConfig) {
+        _limits = new Limits(pConfig);
+    }
+
+    /**
+     * Decide whether a request from a caller is admitted. A permit that is
+     * admitted must be released when the request has completed.
+     *
+     * @param pCaller identifies the caller, such as a user name or client
+     *        address.
+     * @return the permit recording the decision.
+     */
+    public Permit admit(String pCaller) {
+        Limits limits = _limits;
+        if(!limits.enabled) {
+            return new Permit(null, true, 0, null);
+        }
+        if(_requests.incrementAndGet() % SWEEP_INTERVAL_REQUESTS == 0) {
+            sweep(limits);
+        }
+
+        while(true) {
+            Caller caller = _callers.get(pCaller);
+            if(caller == null) {
+                Caller created = new Caller(limits.burst);
+                caller = _callers.putIfAbsent(pCaller, created);
+                if(caller == null) {
+                    caller = created;
+                }
+            }
+
+            synchronized(caller) {
+                if(caller._removed) {
+                    continue;
+                }
+                caller.refill(limits);
+                if(caller._tokens < 1.0) {
+                    _rateLimited.incrementAndGet();
+                    int retryAfter = (int)Math.ceil((1.0 - caller._tokens) / limits.ratePerSecond);
+                    return new Permit(null, false, Math.max(1, retryAfter),
+                                      "Too many requests, the request rate limit has been reached.");
+                }
+                if(caller._active >= limits.maxConcurrentPerCaller) {
+                    _callerConcurrencyLimited.incrementAndGet();
+                    return new Permit(null, false, limits.retryAfterSeconds,
+                                      "Too many requests, the limit on requests in progress has been reached.");
+                }
+                synchronized(this) {
+                    if(_active >= limits.maxConcurrent) {
+                        _globalConcurrencyLimited.incrementAndGet();
+                        return new Permit(null, false, limits.retryAfterSeconds,
+                                          "The service is busy, please try again later.");
+                    }
+                    _active++;
+                }
+                caller._tokens -= 1.0;
+                caller._active++;
+            }
+            _admitted.incrementAndGet();
+            return new Permit(caller, true, 0, null);
+        }
+    }
+
+    /**
+     * Get a snapshot of the admission statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Limits limits = _limits;
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("enabled", limits.enabled);
+        stats.put("ratePerSecond", limits.ratePerSecond);
+        stats.put("burst", limits.burst);
+        stats.put("maxConcurrentPerCaller", limits.maxConcurrentPerCaller);
+        stats.put("maxConcurrent", limits.maxConcurrent);
+        synchronized(this) {
+            stats.put("active", _active);
+        }
+        stats.put("callers", _callers.size());
+        stats.put("admitted", _admitted.get());
+        stats.put("rateLimited", _rateLimited.get());
+        stats.put("callerConcurrencyLimited", _callerConcurrencyLimited.get());
+        stats.put("globalConcurrencyLimited", _globalConcurrencyLimited.get());
+        return stats;
+    }
+
+    /**
+     * Remove the callers that have no requests in progress and whose token
+     * buckets have refilled, since a new bucket for them would be the same.
+     */
+    private void sweep(Limits pLimits) {
+        int removed = 0;
+        Iterator<Caller> it = _callers.values().iterator();
+        while(it.hasNext()) {
+            Caller caller = it.next();
+            synchronized(caller) {
+                caller.refill(pLimits);
+                if(caller._active == 0 && caller._tokens >= pLimits.burst) {
+                    // A caller that is removed may still be found by a
+                    // request that looked it up before it was removed, so
+                    // it is marked as no longer in use.
+                    caller._removed = true;
+                    it.remove();
+                    removed++;
+                }
+            }
+        }
+        sLog.debug("Removed <{}> idle callers from admission control.", removed);
+    }
+
+    private void release(Caller pCaller) {
+        synchronized(pCaller) {
+            pCaller._active--;
+        }
+        synchronized(this) {
+            _active--;
+        }
+    }
+
+    /**
+     * The outcome of an admission decision.
+     */
+    public final class Permit {
+
+        private final Caller _caller;
+        private final boolean _admitted;
+        private final int _retryAfterSeconds;
+        private final String _reason;
+        private final AtomicBoolean _released = new AtomicBoolean();
+
+        private Permit(Caller pCaller, boolean pAdmitted, int pRetryAfterSeconds, String pReason) {
+            this._caller = pCaller;
+            this._admitted = pAdmitted;
+            this._retryAfterSeconds = pRetryAfterSeconds;
+            this._reason = pReason;
+        }
+
+        public boolean isAdmitted() {
+            return _admitted;
+        }
+
+        /**
+         * @return the time a rejected caller is asked to wait before making
+         *         the request again.
+         */
+        public int getRetryAfterSeconds() {
+            return _retryAfterSeconds;
+        }
+
+        /**
+         * @return the reason the request was rejected.
+         */
+        public String getReason() {
+            return _reason;
+        }
+
+        /**
+         * Record that an admitted request has completed. Only the first
+         * call has any effect.
+         */
+        public void release() {
+            if(_caller != null && _released.compareAndSet(false, true)) {
+                AdmissionController.this.release(_caller);
+            }
+        }
+    }
+
+    /**
+     * The token bucket and number of requests in progress of a caller. All
+     * access is synchronized on the caller.
+     */
+    private static class Caller {
+
+        private double _tokens;
+        private long _lastRefill;
+        private int _active = 0;
+        private boolean _removed = false;
+
+        Caller(int pBurst) {
+            this._tokens = pBurst;
+            this._lastRefill = System.nanoTime();
+        }
+
+        void refill(Limits pLimits) {
+            long now = System.nanoTime();
+            _tokens = Math.min(pLimits.burst, _tokens + (now - _lastRefill) * pLimits.ratePerSecond / 1e9);
+            _lastRefill = now;
+        }
+    }
+
+    /**
+     * The limits read from the configuration.
+     */
+    private static class Limits {
+
+        final boolean enabled;
+        final double ratePerSecond;
+        final int burst;
+        final int maxConcurrentPerCaller;
+        final int maxConcurrent;
+        final int retryAfterSeconds;
+
+        Limits(TempssConfig pConfig) {
+            this.enabled = pConfig.getBooleanProperty(CONFIG_SECTION, "enabled", true);
+            double rate = DEFAULT_RATE_PER_SECOND;
+            String rateValue = pConfig.getProperty(CONFIG_SECTION, "ratePerSecond", null);
+            if(rateValue != null) {
+                try {
+                    rate = Double.parseDouble(rateValue);
+                } catch (NumberFormatException e) {
+                    sLog.error("Invalid value <{}> for setting <ratePerSecond> in section <{}>, using default.",
+                               rateValue, CONFIG_SECTION);
+                }
+            }
+            this.ratePerSecond = (rate > 0) ? rate : DEFAULT_RATE_PER_SECOND;
+            this.burst = Math.max(1, pConfig.getIntProperty(CONFIG_SECTION, "burst", DEFAULT_BURST));
+            this.maxConcurrentPerCaller = Math.max(1, pConfig.getIntProperty(CONFIG_SECTION,
+                    "maxConcurrentPerCaller", DEFAULT_MAX_CONCURRENT_PER_CALLER));
+            this.maxConcurrent = Math.max(1, pConfig.getIntProperty(CONFIG_SECTION,
+                    "maxConcurrent", DEFAULT_MAX_CONCURRENT));
+            this.retryAfterSeconds = Math.max(1, pConfig.getIntProperty(CONFIG_SECTION,
+                    "retryAfterSeconds", DEFAULT_RETRY_AFTER_SECONDS));
+        }
+    }
+}
@@ -0,0 +1,934 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.libhpc2.schemaservice.FileDownloader.DownloadSource;
+import uk.ac.imperial.libhpc2.schemaservice.FileDownloader.RangeReader;
+
+/**
+ * Content addressed store for the files generated by the service, such as
+ * the profiles and input data produced by profile conversions.
+ *
+ * Artifacts are identified by the SHA-256 hash of their content so
+ * identical artifacts are only stored once. Artifacts up to a configurable
+ * size are held in memory and the least recently used of these are
+ * spilled to disk once the memory tier is full. Larger artifacts are
+ * written directly to disk. Artifacts large enough to be worth compressing
+ * (see {@link CompressionUtils}) are compressed once when they are added
+ * and held compressed, both in memory and on disk, so that the compressed
+ * content can be sent as-is to clients that accept gzip encoding. The
+ * store root is a directory outside the web application, artifacts that
+ * are already on disk when the store is created are made available again.
+ *
+ * A background task evicts artifacts that have not been accessed within
+ * the configured time to live and, if the artifacts on disk exceed the
+ * configured quota, evicts the least recently accessed artifacts until
+ * they are within it.
+ *
+ * @author jhc02
+ */
+public class ArtifactStore {
+
+    private static final Logger sLog = LoggerFactory.getLogger(ArtifactStore.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the shared instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "artifactStore";
+
+    /**
+     * Name of the configuration file section containing store settings.
+     */
+    public static final String CONFIG_SECTION = "artifacts";
+
+    /**
+     * Default time in seconds after its last access that an artifact is
+     * evicted.
+     */
+    public static final long DEFAULT_TTL_SECONDS = 24L * 60L * 60L;
+
+    /**
+     * Default maximum total size in bytes of the artifacts on disk.
+     */
+    public static final long DEFAULT_MAX_DISK_BYTES = 1024L * 1024L * 1024L;
+
+    /**
+     * Default maximum total size in bytes of the artifacts held in memory.
+     */
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 16L * 1024L * 1024L;
+
+    /**
+     * Default size in bytes of the largest artifact held in memory.
+     */
+    public static final long DEFAULT_MEMORY_THRESHOLD_BYTES = 256L * 1024L;
+
+    /**
+     * Default interval in seconds between eviction sweeps.
+     */
+    public static final long DEFAULT_SWEEP_INTERVAL_SECONDS = 60L;
+
+    private static final String WORK_DIR_NAME = "work";
+
+    // Compressed artifacts are stored in files named with their ID and
+    // uncompressed size.
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("([0-9a-f]{64})(?:\\.([0-9]+)\\.gz)?");
+
+    private final File _root;
+    private final File _workDir;
+    private volatile long _ttlMillis;
+    private volatile long _maxDiskBytes;
+    private final long _maxMemoryBytes;
+    private final long _memoryThreshold;
+
+    // All access to the maps and byte counts is synchronized on the store.
+    // The memory tier is access ordered so that the least recently used
+    // artifacts are spilled to disk first.
+    private final Map<String, Artifact> _artifacts = new HashMap<String, Artifact>();
+    private final LinkedHashMap<String, Artifact> _memoryTier =
+            new LinkedHashMap<String, Artifact>(16, 0.75f, true);
+    private long _memoryBytes = 0;
+    private long _diskBytes = 0;
+
+    private final AtomicLong _puts = new AtomicLong();
+    private final AtomicLong _deduplicated = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _spills = new AtomicLong();
+    private final AtomicLong _ttlEvictions = new AtomicLong();
+    private final AtomicLong _quotaEvictions = new AtomicLong();
+
+    private ScheduledExecutorService _sweeper = null;
+
+    private final Runnable _sweepTask = new Runnable() {
+        public void run() {
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                sLog.error("Error evicting artifacts: {}", e.getMessage(), e);
+            }
+        }
+    };
+
+    /**
+     * Get the artifact store registered in the provided servlet context,
+     * creating and registering a new one if none exists yet. The store is
+     * configured from the [artifacts] section of the configuration file
+     * and its background eviction task is started when it is created.
+     *
+     * @param pContext the servlet context to look up the store in.
+     * @return the shared artifact store.
+     */
+    public static ArtifactStore getInstance(ServletContext pContext) {
+        synchronized(pContext) {
+            ArtifactStore store = (ArtifactStore)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(store == null) {
+                TempssConfig config = TempssConfig.getInstance();
+                String root = config.getProperty(CONFIG_SECTION, "root",
+                        new File(System.getProperty("java.io.tmpdir"), "tempss-artifacts").getPath());
+                store = new ArtifactStore(new File(root),
+                        config.getLongProperty(CONFIG_SECTION, "ttlSeconds", DEFAULT_TTL_SECONDS) * 1000L,
+                        config.getLongProperty(CONFIG_SECTION, "maxDiskBytes", DEFAULT_MAX_DISK_BYTES),
+                        config.getLongProperty(CONFIG_SECTION, "maxMemoryBytes", DEFAULT_MAX_MEMORY_BYTES),
+                        config.getLongProperty(CONFIG_SECTION, "memoryThresholdBytes", DEFAULT_MEMORY_THRESHOLD_BYTES));
+                store.start(config.getLongProperty(CONFIG_SECTION, "sweepIntervalSeconds",
+                        DEFAULT_SWEEP_INTERVAL_SECONDS));
+                pContext.setAttribute(CONTEXT_ATTRIBUTE, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Create a store using the specified root directory. Artifacts already
+     * in the root directory are added to the store.
+     *
+     * @param pRoot the directory to store artifacts in, created if required.
+     * @param pTtlMillis time after its last access that an artifact is evicted.
+     * @param pMaxDiskBytes maximum total size of the artifacts on disk.
+     * @param pMaxMemoryBytes maximum total size of the artifacts in memory.
+     * @param pMemoryThreshold size of the largest artifact held in memory.
+     */
+    public ArtifactStore(File pRoot, long pTtlMillis, long pMaxDiskBytes,
+                         long pMaxMemoryBytes, long pMemoryThreshold) {
+        this._root = pRoot;
+        this._workDir = new File(pRoot, WORK_DIR_NAME);
+        this._ttlMillis = pTtlMillis;
+        this._maxDiskBytes = pMaxDiskBytes;
+        this._maxMemoryBytes = pMaxMemoryBytes;
+        this._memoryThreshold = Math.min(pMemoryThreshold, pMaxMemoryBytes);
+        load();
+    }
+
+    /**
+     * Start the background eviction task.
+     *
+     * @param pIntervalSeconds the interval between eviction sweeps.
+     */
+    public synchronized void start(long pIntervalSeconds) {
+        if(_sweeper != null) {
+            return;
+        }
+        _sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable pRunnable) {
+                Thread t = new Thread(pRunnable, "tempss-artifact-sweeper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        _sweeper.scheduleWithFixedDelay(_sweepTask, pIntervalSeconds, pIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the background eviction task. Stored artifacts remain on disk.
+     */
+    public synchronized void shutdown() {
+        if(_sweeper != null) {
+            _sweeper.shutdownNow();
+            _sweeper = null;
+        }
+    }
+
+    /**
+     * Create an empty file that content can be written to before it is
+     * added to the store with {@link #put(File)}. The file is on the same
+     * file system as the store so it can be moved into the store without
+     * being copied.
+     *
+     * @param pPrefix prefix for the file name.
+     * @return the new file.
+     * @throws IOException if the file cannot be created.
+     */
+    public File createWorkFile(String pPrefix) throws IOException {
+        _workDir.mkdirs();
+        return File.createTempFile(pPrefix + "_", ".tmp", _workDir);
+    }
+
+    /**
+     * @return the directory holding work files, on the same file system
+     *         as the store.
+     */
+    public File getWorkDir() {
+        _workDir.mkdirs();
+        return _workDir;
+    }
+
+    /**
+     * Create a buffer that content can be written to before it is used or
+     * added to the store with {@link #put(DeferredFileOutputStream)}.
+     * Content up to the size of artifacts held in memory is kept in memory,
+     * larger content is written to a work file, created once the size is
+     * exceeded. The caller must delete any work file once the content is
+     * no longer needed.
+     *
+     * @param pPrefix prefix for the work file name.
+     * @return the new buffer.
+     */
+    public DeferredFileOutputStream createWorkBuffer(String pPrefix) {
+        _workDir.mkdirs();
+        return new DeferredFileOutputStream((int)_memoryThreshold, pPrefix + "_", ".tmp", _workDir);
+    }
+
+    /**
+     * Add the content written to a work buffer to the store. The buffer
+     * must have been closed. Any work file is moved into the store or
+     * deleted.
+     *
+     * @param pBuffer the buffer containing the artifact content.
+     * @return the stored artifact, which may be an existing artifact with
+     *         the same content.
+     * @throws IOException if the content cannot be read or stored.
+     */
+    public Artifact put(DeferredFileOutputStream pBuffer) throws IOException {
+        if(pBuffer.isInMemory()) {
+            return put(pBuffer.getData());
+        }
+        return put(pBuffer.getFile());
+    }
+
+    /**
+     * Add the content of a file to the store. The file is moved into the
+     * store or deleted, so it must not be used once this method returns.
+     *
+     * @param pFile the file containing the artifact content.
+     * @return the stored artifact, which may be an existing artifact with
+     *         the same content.
+     * @throws IOException if the file cannot be read or moved into the store.
+     */
+    public Artifact put(File pFile) throws IOException {
+        File gzipFile = null;
+        try {
+            String id;
+            InputStream in = new BufferedInputStream(new FileInputStream(pFile));
+            try {
+                id = digest(in);
+            } finally {
+                in.close();
+            }
+            Artifact existing = getExisting(id);
+            if(existing != null) {
+                return existing;
+            }
+
+            long size = pFile.length();
+            File storedFile = pFile;
+            boolean compressed = false;
+            if(CompressionUtils.shouldCompress(size)) {
+                gzipFile = createWorkFile("gzip");
+                CompressionUtils.gzip(pFile, gzipFile);
+                if(gzipFile.length() < size) {
+                    storedFile = gzipFile;
+                    compressed = true;
+                }
+            }
+            long storedSize = storedFile.length();
+            byte[] data = (storedSize <= _memoryThreshold) ? FileUtils.readFileToByteArray(storedFile) : null;
+            return register(id, size, compressed, storedSize, data, storedFile);
+        } finally {
+            FileUtils.deleteQuietly(pFile);
+            FileUtils.deleteQuietly(gzipFile);
+        }
+    }
+
+    /**
+     * Add content to the store.
+     *
+     * @param pData the artifact content.
+     * @return the stored artifact, which may be an existing artifact with
+     *         the same content.
+     * @throws IOException if the content cannot be written to disk.
+     */
+    public Artifact put(byte[] pData) throws IOException {
+        MessageDigest digest = SchemaProcessorUtils.newSha256Digest();
+        String id = SchemaProcessorUtils.toHex(digest.digest(pData));
+        Artifact existing = getExisting(id);
+        if(existing != null) {
+            return existing;
+        }
+
+        byte[] stored = CompressionUtils.gzipIfWorthwhile(pData);
+        boolean compressed = (stored != null);
+        if(!compressed) {
+            stored = pData;
+        }
+        if(stored.length <= _memoryThreshold) {
+            return register(id, pData.length, compressed, stored.length, stored, null);
+        }
+        File workFile = createWorkFile("artifact");
+        try {
+            FileUtils.writeByteArrayToFile(workFile, stored);
+            return register(id, pData.length, compressed, stored.length, null, workFile);
+        } finally {
+            FileUtils.deleteQuietly(workFile);
+        }
+    }
+
+    /**
+     * Get an artifact, recording that it has been accessed.
+     *
+     * @param pId the artifact ID.
+     * @return the artifact or null if there is no artifact with this ID.
+     */
+    public Artifact get(String pId) {
+        Artifact artifact;
+        synchronized(this) {
+            artifact = _artifacts.get(pId);
+            if(artifact != null) {
+                artifact._lastAccess = System.currentTimeMillis();
+                _memoryTier.get(pId);
+            }
+        }
+        if(artifact == null) {
+            _misses.incrementAndGet();
+        } else {
+            _hits.incrementAndGet();
+        }
+        return artifact;
+    }
+
+    /**
+     * Evict the artifacts that have not been accessed within the time to
+     * live and then, if the artifacts on disk exceed the quota, evict the
+     * least recently accessed artifacts on disk until they are within it.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        int overQuota = 0;
+        synchronized(this) {
+            Iterator<Artifact> it = _artifacts.values().iterator();
+            while(it.hasNext()) {
+                Artifact artifact = it.next();
+                if(now - artifact._lastAccess > _ttlMillis) {
+                    it.remove();
+                    evict(artifact);
+                    expired++;
+                }
+            }
+            if(_diskBytes > _maxDiskBytes) {
+                List<Artifact> onDisk = new ArrayList<Artifact>();
+                for(Artifact artifact : _artifacts.values()) {
+                    if(artifact._data == null) {
+                        onDisk.add(artifact);
+                    }
+                }
+                Collections.sort(onDisk, new Comparator<Artifact>() {
+                    public int compare(Artifact a1, Artifact a2) {
+                        return (a1._lastAccess < a2._lastAccess) ? -1 : ((a1._lastAccess == a2._lastAccess) ? 0 : 1);
+                    }
+                });
+                for(int i = 0; i < onDisk.size() && _diskBytes > _maxDiskBytes; i++) {
+                    Artifact artifact = onDisk.get(i);
+                    _artifacts.remove(artifact.getId());
+                    evict(artifact);
+                    overQuota++;
+                }
+            }
+        }
+        _ttlEvictions.addAndGet(expired);
+        _quotaEvictions.addAndGet(overQuota);
+        if(expired + overQuota > 0) {
+            sLog.debug("Evicted <{}> expired and <{}> artifacts over quota.", expired, overQuota);
+        }
+    }
+
+    /**
+     * Apply the time to live and disk quota from the [artifacts] section of
+     * the provided configuration, evicting artifacts immediately if they
+     * now exceed either. The memory limits and root directory are only
+     * read when the store is created.
+     *
+     * @param pConfig the reloaded configuration.
+     */
+    public void reconfigure(TempssConfig pConfig) {
+        long ttlMillis = pConfig.getLongProperty(CONFIG_SECTION, "ttlSeconds", DEFAULT_TTL_SECONDS) * 1000L;
+        long maxDiskBytes = pConfig.getLongProperty(CONFIG_SECTION, "maxDiskBytes", DEFAULT_MAX_DISK_BYTES);
+        if(ttlMillis == _ttlMillis && maxDiskBytes == _maxDiskBytes) {
+            return;
+        }
+        sLog.info("Changing artifact time to live to <{}> seconds and disk quota to <{}> bytes.",
+                  ttlMillis / 1000L, maxDiskBytes);
+        _ttlMillis = ttlMillis;
+        _maxDiskBytes = maxDiskBytes;
+        sweep();
+    }
+
+    /**
+     * Get a snapshot of the store statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("root", _root.getAbsolutePath());
+        synchronized(this) {
+            stats.put("artifacts", _artifacts.size());
+            stats.put("memoryArtifacts", _memoryTier.size());
+            stats.put("memoryBytes", _memoryBytes);
+            stats.put("diskBytes", _diskBytes);
+        }
+        stats.put("maxMemoryBytes", _maxMemoryBytes);
+        stats.put("maxDiskBytes", _maxDiskBytes);
+        stats.put("ttlSeconds", _ttlMillis / 1000L);
+        stats.put("puts", _puts.get());
+        stats.put("deduplicated", _deduplicated.get());
+        stats.put("hits", _hits.get());
+        stats.put("misses", _misses.get());
+        stats.put("spills", _spills.get());
+        stats.put("ttlEvictions", _ttlEvictions.get());
+        stats.put("quotaEvictions", _quotaEvictions.get());
+        return stats;
+    }
+
+    /**
+     * Get an existing artifact being stored again, recording that it has
+     * been accessed. This avoids compressing content that is already
+     * stored.
+     */
+    private Artifact getExisting(String pId) {
+        Artifact artifact;
+        synchronized(this) {
+            artifact = _artifacts.get(pId);
+            if(artifact == null) {
+                return null;
+            }
+            artifact._lastAccess = System.currentTimeMillis();
+            _memoryTier.get(pId);
+        }
+        _puts.incrementAndGet();
+        _deduplicated.incrementAndGet();
+        return artifact;
+    }
+
+    /**
+     * Add an artifact to the index unless an artifact with the same ID is
+     * already stored. The artifact is held in memory if its stored content
+     * is provided, otherwise the provided file is moved into the store.
+     */
+    private Artifact register(String pId, long pSize, boolean pCompressed, long pStoredSize,
+                              byte[] pData, File pFile) throws IOException {
+        _puts.incrementAndGet();
+        Artifact artifact;
+        List<Artifact> toSpill = null;
+        boolean overQuota = false;
+        synchronized(this) {
+            artifact = _artifacts.get(pId);
+            if(artifact != null) {
+                _deduplicated.incrementAndGet();
+                artifact._lastAccess = System.currentTimeMillis();
+                _memoryTier.get(pId);
+                return artifact;
+            }
+            if(pData != null) {
+                artifact = new Artifact(pId, pSize, pCompressed, pStoredSize,
+                                        System.currentTimeMillis(), pData, null);
+                _memoryTier.put(pId, artifact);
+                _memoryBytes += pStoredSize;
+                toSpill = selectForSpill();
+            }
+            else {
+                File target = getArtifactFile(pId, pCompressed, pSize);
+                target.getParentFile().mkdirs();
+                Files.move(pFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                artifact = new Artifact(pId, pSize, pCompressed, pStoredSize,
+                                        System.currentTimeMillis(), null, target);
+                _diskBytes += pStoredSize;
+                overQuota = _diskBytes > _maxDiskBytes;
+            }
+            _artifacts.put(pId, artifact);
+        }
+        if(toSpill != null) {
+            overQuota = spill(toSpill);
+        }
+        if(overQuota) {
+            requestSweep();
+        }
+        return artifact;
+    }
+
+    /**
+     * Remove the least recently used artifacts from the memory tier until
+     * the remaining artifacts are within the memory limit. The removed
+     * artifacts must then be written to disk by {@link #spill}.
+     */
+    private List<Artifact> selectForSpill() {
+        List<Artifact> toSpill = null;
+        long remaining = _memoryBytes;
+        Iterator<Artifact> it = _memoryTier.values().iterator();
+        while(remaining > _maxMemoryBytes && it.hasNext()) {
+            Artifact artifact = it.next();
+            it.remove();
+            remaining -= artifact.getStoredSize();
+            if(toSpill == null) {
+                toSpill = new ArrayList<Artifact>();
+            }
+            toSpill.add(artifact);
+        }
+        return toSpill;
+    }
+
+    /**
+     * Write artifacts removed from the memory tier to disk. The content is
+     * written outside the lock and the artifact is only switched to its
+     * file once the file is complete so readers always find a copy.
+     *
+     * @return true if the artifacts on disk now exceed the quota.
+     */
+    private boolean spill(List<Artifact> pArtifacts) {
+        for(Artifact artifact : pArtifacts) {
+            byte[] data = artifact._data;
+            if(data == null) {
+                continue;
+            }
+            File workFile = null;
+            try {
+                workFile = createWorkFile("spill");
+                FileUtils.writeByteArrayToFile(workFile, data);
+                synchronized(this) {
+                    // Skip artifacts evicted while they were being written
+                    if(_artifacts.get(artifact.getId()) != artifact) {
+                        continue;
+                    }
+                    File target = getArtifactFile(artifact.getId(), artifact.isCompressed(), artifact.getSize());
+                    target.getParentFile().mkdirs();
+                    Files.move(workFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    artifact._file = target;
+                    artifact._data = null;
+                    _memoryBytes -= artifact.getStoredSize();
+                    _diskBytes += artifact.getStoredSize();
+                }
+                _spills.incrementAndGet();
+            } catch (IOException e) {
+                // The artifact is lost rather than being kept in memory
+                // beyond the memory limit.
+                sLog.error("Unable to spill artifact <{}> to disk: {}", artifact.getId(), e.getMessage());
+                synchronized(this) {
+                    if(_artifacts.get(artifact.getId()) == artifact) {
+                        _artifacts.remove(artifact.getId());
+                        evict(artifact);
+                    }
+                }
+            } finally {
+                FileUtils.deleteQuietly(workFile);
+            }
+        }
+        synchronized(this) {
+            return _diskBytes > _maxDiskBytes;
+        }
+    }
+
+    /**
+     * Release the storage for an artifact that has been removed from the
+     * index. Must be called with the store locked so that a file is not
+     * deleted after the same content has been stored again.
+     */
+    private void evict(Artifact pArtifact) {
+        if(pArtifact._data != null) {
+            _memoryTier.remove(pArtifact.getId());
+            _memoryBytes -= pArtifact.getStoredSize();
+        }
+        else {
+            _diskBytes -= pArtifact.getStoredSize();
+            FileUtils.deleteQuietly(pArtifact._file);
+        }
+    }
+
+    /**
+     * Run an eviction sweep in the background as soon as possible.
+     */
+    private synchronized void requestSweep() {
+        if(_sweeper != null) {
+            _sweeper.execute(_sweepTask);
+        }
+    }
+
+    /**
+     * Artifacts are stored in subdirectories named using the first two
+     * characters of their ID to keep directory sizes manageable.
+     */
+    private File getArtifactFile(String pId, boolean pCompressed, long pSize) {
+        String name = pCompressed ? pId + "." + pSize + ".gz" : pId;
+        return new File(new File(_root, pId.substring(0, 2)), name);
+    }
+
+    /**
+     * Add artifacts left on disk by a previous instance of the store to the
+     * index and remove any incomplete work files.
+     */
+    private void load() {
+        _root.mkdirs();
+        try {
+            FileUtils.cleanDirectory(_workDir);
+        } catch (IOException e) {
+            // The work directory does not exist yet
+        } catch (IllegalArgumentException e) {
+            // The work directory does not exist yet
+        }
+        File[] dirs = _root.listFiles();
+        if(dirs == null) {
+            sLog.error("Unable to read artifact store directory <{}>.", _root.getAbsolutePath());
+            return;
+        }
+        for(File dir : dirs) {
+            File[] files;
+            if(dir.getName().length() != 2 || (files = dir.listFiles()) == null) {
+                continue;
+            }
+            for(File file : files) {
+                Matcher m = FILE_NAME_PATTERN.matcher(file.getName());
+                if(m.matches() && file.getName().startsWith(dir.getName())) {
+                    boolean compressed = (m.group(2) != null);
+                    long size = compressed ? Long.parseLong(m.group(2)) : file.length();
+                    Artifact artifact = new Artifact(m.group(1), size, compressed, file.length(),
+                                                     file.lastModified(), null, file);
+                    _artifacts.put(artifact.getId(), artifact);
+                    _diskBytes += artifact.getStoredSize();
+                }
+            }
+        }
+        sLog.info("Artifact store at <{}> contains <{}> existing artifacts.",
+                  _root.getAbsolutePath(), _artifacts.size());
+    }
+
+    private static String digest(InputStream pIn) throws IOException {
+        MessageDigest digest = SchemaProcessorUtils.newSha256Digest();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = pIn.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return SchemaProcessorUtils.toHex(digest.digest());
+    }
+
+    /**
+     * An artifact in the store. The stored content is held either in memory
+     * or in a file in the store directory and may be gzip compressed, in
+     * which case it is decompressed as it is read. Since the ID is the hash
+     * of the content, it is also used as the version of the artifact when
+     * it is downloaded.
+     */
+    public static final class Artifact implements DownloadSource {
+
+        private final String _id;
+        private final long _size;
+        private final boolean _compressed;
+        private final long _storedSize;
+        private final long _created;
+        private volatile long _lastAccess;
+        // The file is always set before the data is cleared when an
+        // artifact is spilled to disk.
+        private volatile byte[] _data;
+        private volatile File _file;
+
+        Artifact(String pId, long pSize, boolean pCompressed, long pStoredSize,
+                 long pCreated, byte[] pData, File pFile) {
+            this._id = pId;
+            this._size = pSize;
+            this._compressed = pCompressed;
+            this._storedSize = pStoredSize;
+            this._created = pCreated;
+            this._lastAccess = pCreated;
+            this._data = pData;
+            this._file = pFile;
+        }
+
+        /**
+         * @return the artifact ID, the hex encoded SHA-256 hash of its content.
+         */
+        public String getId() {
+            return _id;
+        }
+
+        /**
+         * @return the size of the artifact content in bytes.
+         */
+        public long getSize() {
+            return _size;
+        }
+
+        /**
+         * @return true if the artifact is stored gzip compressed.
+         */
+        public boolean isCompressed() {
+            return _compressed;
+        }
+
+        /**
+         * @return the size of the stored, possibly compressed, content in bytes.
+         */
+        public long getStoredSize() {
+            return _storedSize;
+        }
+
+        /**
+         * Open a stream to read the artifact content.
+         *
+         * @return the stream, which must be closed by the caller.
+         * @throws IOException if the artifact file cannot be opened.
+         */
+        public InputStream openStream() throws IOException {
+            InputStream stored = openStoredStream();
+            return _compressed ? new GZIPInputStream(stored) : stored;
+        }
+
+        public String getName() {
+            return _id;
+        }
+
+        public long getLength() {
+            return _size;
+        }
+
+        public long getLastModified() {
+            return _created;
+        }
+
+        public String getVersion() {
+            return _id;
+        }
+
+        public RangeReader openReader() throws IOException {
+            if(_compressed) {
+                return new StreamRangeReader();
+            }
+            return openStoredReader();
+        }
+
+        public DownloadSource getGzipVariant() {
+            if(!_compressed) {
+                return null;
+            }
+            return new DownloadSource() {
+                public String getName() {
+                    return _id;
+                }
+
+                public long getLength() {
+                    return _storedSize;
+                }
+
+                public long getLastModified() {
+                    return _created;
+                }
+
+                public String getVersion() {
+                    return _id + "-gzip";
+                }
+
+                public RangeReader openReader() throws IOException {
+                    return openStoredReader();
+                }
+
+                public DownloadSource getGzipVariant() {
+                    return null;
+                }
+            };
+        }
+
+        private InputStream openStoredStream() throws IOException {
+            byte[] data = _data;
+            if(data == null) {
+                return new BufferedInputStream(new FileInputStream(_file));
+            }
+            return new ByteArrayInputStream(data);
+        }
+
+        private RangeReader openStoredReader() throws IOException {
+            final byte[] data = _data;
+            if(data == null) {
+                return FileDownloader.openFileReader(_file);
+            }
+            return new RangeReader() {
+                public long transferTo(long pPosition, long pCount, OutputStream pOut) throws IOException {
+                    if(pPosition >= data.length) {
+                        return 0;
+                    }
+                    int count = (int)Math.min(pCount, data.length - pPosition);
+                    pOut.write(data, (int)pPosition, count);
+                    return count;
+                }
+
+                public void close() {
+                }
+            };
+        }
+
+        /**
+         * Reads ranges of the decompressed content of a compressed artifact.
+         * Ranges are requested in ascending order so the content is only
+         * decompressed once unless an earlier position is requested.
+         */
+        private final class StreamRangeReader implements RangeReader {
+
+            private InputStream _in = null;
+            private long _position = 0;
+            private final byte[] _buffer = new byte[8192];
+
+            public long transferTo(long pPosition, long pCount, OutputStream pOut) throws IOException {
+                if(_in == null || pPosition < _position) {
+                    close();
+                    _in = openStream();
+                    _position = 0;
+                }
+                if(pPosition > _position) {
+                    IOUtils.skipFully(_in, pPosition - _position);
+                    _position = pPosition;
+                }
+                long transferred = 0;
+                while(transferred < pCount) {
+                    int read = _in.read(_buffer, 0, (int)Math.min(_buffer.length, pCount - transferred));
+                    if(read == -1) {
+                        break;
+                    }
+                    pOut.write(_buffer, 0, read);
+                    transferred += read;
+                }
+                _position += transferred;
+                return transferred;
+            }
+
+            public void close() throws IOException {
+                if(_in != null) {
+                    _in.close();
+                    _in = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs batches of profile conversions. The profiles of a batch are
+ * converted in parallel on a shared fork-join pool, separate from the
+ * request executors, so that a batch running on the conversion executor
+ * never waits for a thread of that executor to convert its profiles.
+ *
+ * Each batch converts at most as many profiles at once as the pool has
+ * threads, so the work files held by a batch are bounded regardless of
+ * its size. The pool and the maximum number of profiles in a batch are
+ * configured from the [batch] section of the configuration file.
+ *
+ * @author jhc02
+ */
+public class BatchConverter {
+
+    private static final Logger sLog = LoggerFactory.getLogger(BatchConverter.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the shared instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "batchConverter";
+
+    /**
+     * Configuration section containing the batch conversion settings.
+     */
+    public static final String CONFIG_SECTION = "batch";
+
+    /**
+     * Default maximum number of profiles in a batch.
+     */
+    public static final int DEFAULT_MAX_PROFILES = 1000;
+
+    private final ServletContext _context;
+    private final ForkJoinPool _pool;
+    private volatile int _maxProfiles;
+
+    private final AtomicLong _batches = new AtomicLong();
+    private final AtomicLong _profiles = new AtomicLong();
+    private final AtomicLong _converted = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+
+    /**
+     * Get the batch converter registered in the provided servlet context,
+     * creating and registering a new one if none exists yet. The converter
+     * is configured from the [batch] section of the configuration file:
+     * parallelism (default the number of available processors) and
+     * maxProfiles (default 1000).
+     *
+     * @param pContext the servlet context to look up the converter in.
+     * @return the shared batch converter.
+     */
+    public static BatchConverter getInstance(ServletContext pContext) {
+        synchronized(pContext) {
+            BatchConverter converter = (BatchConverter)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(converter == null) {
+                TempssConfig config = TempssConfig.getInstance();
+                converter = new BatchConverter(pContext,
+                        Math.max(1, config.getIntProperty(CONFIG_SECTION, "parallelism",
+                                Runtime.getRuntime().availableProcessors())),
+                        Math.max(1, config.getIntProperty(CONFIG_SECTION, "maxProfiles", DEFAULT_MAX_PROFILES)));
+                pContext.setAttribute(CONTEXT_ATTRIBUTE, converter);
+            }
+            return converter;
+        }
+    }
+
+    /**
+     * Shut down the batch converter registered in the provided servlet
+     * context, if there is one.
+     *
+     * @param pContext the servlet context to look up the converter in.
+     */
+    public static void shutdown(ServletContext pContext) {
+        synchronized(pContext) {
+            BatchConverter converter = (BatchConverter)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(converter != null) {
+                converter._pool.shutdownNow();
+                try {
+                    converter._pool.awaitTermination(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                pContext.removeAttribute(CONTEXT_ATTRIBUTE);
+            }
+        }
+    }
+
+    /**
+     * @param pContext the servlet context of the service.
+     * @param pParallelism the number of threads converting profiles.
+     * @param pMaxProfiles the maximum number of profiles in a batch.
+     */
+    public BatchConverter(ServletContext pContext, int pParallelism, int pMaxProfiles) {
+        this._context = pContext;
+        this._maxProfiles = pMaxProfiles;
+        this._pool = new ForkJoinPool(pParallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pPool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pPool);
+                t.setName("tempss-batch-" + t.getPoolIndex());
+                return t;
+            }
+        }, null, false);
+        sLog.debug("Batch converter created with parallelism <{}>.", pParallelism);
+    }
+
+    /**
+     * Create a new, empty batch of profiles to be converted.
+     *
+     * @param pTemplateId the ID of the template the profiles are for.
+     * @param pPersist true if the documents produced are to be added to
+     *        the artifact store.
+     * @return the batch, which the caller must close.
+     */
+    public ConversionBatch newBatch(String pTemplateId, boolean pPersist) {
+        return new ConversionBatch(this, new SchemaProcessor(_context), ArtifactStore.getInstance(_context),
+                                   pTemplateId, pPersist);
+    }
+
+    /**
+     * @return the maximum number of profiles in a batch.
+     */
+    public int getMaxProfiles() {
+        return _maxProfiles;
+    }
+
+    /**
+     * Apply the maximum batch size from the [batch] section of the provided
+     * configuration. The parallelism is only read when the converter is
+     * created.
+     *
+     * @param pConfig the reloaded configuration.
+     */
+    public void reconfigure(TempssConfig pConfig) {
+        _maxProfiles = Math.max(1, pConfig.getIntProperty(CONFIG_SECTION, "maxProfiles", DEFAULT_MAX_PROFILES));
+    }
+
+    /**
+     * @return the number of profiles converted at once.
+     */
+    public int getParallelism() {
+        return _pool.getParallelism();
+    }
+
+    ForkJoinPool getPool() {
+        return _pool;
+    }
+
+    void recordBatch(int pProfiles) {
+        _batches.incrementAndGet();
+        _profiles.addAndGet(pProfiles);
+    }
+
+    void recordResult(boolean pConverted) {
+        (pConverted ? _converted : _failed).incrementAndGet();
+    }
+
+    /**
+     * Get a snapshot of the batch conversion statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("parallelism", _pool.getParallelism());
+        stats.put("maxProfiles", _maxProfiles);
+        stats.put("active", _pool.getActiveThreadCount());
+        stats.put("queued", _pool.getQueuedSubmissionCount());
+        stats.put("batches", _batches.get());
+        stats.put("profiles", _profiles.get());
+        stats.put("converted", _converted.get());
+        stats.put("failed", _failed.get());
+        return stats;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Utility methods for gzip compression of response content and of the
+ * content held by the service's caches.
+ *
+ * Compression is configured by the [compression] section of the
+ * configuration file. Content smaller than minBytes is not compressed
+ * since the saving does not justify the cost, and setting enabled to false
+ * disables compression entirely.
+ */
+public class CompressionUtils {
+
+    /**
+     * Name of the configuration file section containing compression settings.
+     */
+    public static final String CONFIG_SECTION = "compression";
+
+    /**
+     * Default size in bytes of the smallest content that is compressed.
+     */
+    public static final long DEFAULT_MIN_BYTES = 1024L;
+
+    /**
+     * @return true if compression is enabled.
+     */
+    public static boolean isEnabled() {
+        return TempssConfig.getInstance().getBooleanProperty(CONFIG_SECTION, "enabled", true);
+    }
+
+    /**
+     * @return the size in bytes of the smallest content that is compressed.
+     */
+    public static long getMinBytes() {
+        return TempssConfig.getInstance().getLongProperty(CONFIG_SECTION, "minBytes", DEFAULT_MIN_BYTES);
+    }
+
+    /**
+     * Check whether content of the specified size should be compressed.
+     *
+     * @param pSize the size of the content in bytes.
+     * @return true if compression is enabled and the content is at least
+     *         the minimum size.
+     */
+    public static boolean shouldCompress(long pSize) {
+        return pSize >= getMinBytes() && isEnabled();
+    }
+
+    /**
+     * Check whether a response should be gzip encoded given the request
+     * headers.
+     *
+     * @param pHeaders the request headers.
+     * @return true if compression is enabled and the client accepts gzip.
+     */
+    public static boolean useGzip(HttpHeaders pHeaders) {
+        return acceptsGzip(pHeaders.getRequestHeader(HttpHeaders.ACCEPT_ENCODING)) && isEnabled();
+    }
+
+    /**
+     * Check whether the client has indicated that it accepts gzip encoded
+     * content. An explicit quality value of zero is treated as a refusal.
+     *
+     * @param pAcceptEncoding the values of the Accept-Encoding header, may
+     *        be null.
+     * @return true if gzip is acceptable.
+     */
+    public static boolean acceptsGzip(List<String> pAcceptEncoding) {
+        if(pAcceptEncoding == null) {
+            return false;
+        }
+        for(String value : pAcceptEncoding) {
+            for(String coding : value.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if(!parts[0].trim().equalsIgnoreCase("gzip")) {
+                    continue;
+                }
+                for(int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if(param.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(param.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether content of the specified media type is text that
+     * benefits from compression.
+     *
+     * @param pMediaType the media type, may be null.
+     * @return true for text, JSON, XML and JavaScript content.
+     */
+    public static boolean isCompressible(MediaType pMediaType) {
+        if(pMediaType == null) {
+            return false;
+        }
+        String type = pMediaType.getType();
+        String subtype = pMediaType.getSubtype();
+        return type.equalsIgnoreCase("text")
+                || (type.equalsIgnoreCase("application")
+                    && (subtype.equalsIgnoreCase("json") || subtype.equalsIgnoreCase("xml")
+                        || subtype.equalsIgnoreCase("javascript")
+                        || subtype.endsWith("+json") || subtype.endsWith("+xml")));
+    }
+
+    /**
+     * Compress content if it is large enough to be worth compressing.
+     *
+     * @param pData the content to compress.
+     * @return the gzip compressed content, or null if compression is
+     *         disabled, the content is smaller than the minimum size or
+     *         compressing it does not reduce its size.
+     */
+    public static byte[] gzipIfWorthwhile(byte[] pData) {
+        if(!shouldCompress(pData.length)) {
+            return null;
+        }
+        byte[] compressed = gzip(pData);
+        return (compressed.length < pData.length) ? compressed : null;
+    }
+
+    /**
+     * Compress content.
+     *
+     * @param pData the content to compress.
+     * @return the gzip compressed content.
+     */
+    public static byte[] gzip(byte[] pData) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(pData.length / 4 + 64);
+        try {
+            OutputStream out = new GZIPOutputStream(bytes);
+            out.write(pData);
+            out.close();
+        } catch (IOException e) {
+            // Not possible when writing to a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Compress the content of a file into another file.
+     *
+     * @param pIn the file to compress.
+     * @param pOut the file to write the compressed content to.
+     * @throws IOException if either file cannot be accessed.
+     */
+    public static void gzip(File pIn, File pOut) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(pIn));
+        try {
+            OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(pOut)));
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decompress gzip compressed content.
+     *
+     * @param pData the compressed content.
+     * @return the decompressed content.
+     */
+    public static byte[] gunzip(byte[] pData) {
+        try {
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(pData));
+            try {
+                return IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to decompress cached content: " + e.getMessage(), e);
+        }
+    }
+}
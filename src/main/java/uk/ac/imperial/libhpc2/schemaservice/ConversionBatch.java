@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.transform.TransformerException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.libhpc2.schemaservice.ConversionOutput.Document;
+
+/**
+ * A batch of profiles for the same template that are converted in
+ * parallel, sharing a set of files to embed in the profiles.
+ *
+ * The profiles and shared files are buffered as they are added, in memory
+ * or in work files of the artifact store, so that each conversion reads
+ * its own copy of the shared files. When the batch is run, the results
+ * are passed to a handler in the order the conversions complete. A
+ * profile that cannot be converted produces a result reporting the error
+ * and does not affect the rest of the batch.
+ *
+ * @author jhc02
+ */
+public class ConversionBatch implements Closeable {
+
+    private static final Logger sLog = LoggerFactory.getLogger(ConversionBatch.class.getName());
+
+    /**
+     * Receives the results of a batch as the conversions complete.
+     */
+    public interface ResultHandler {
+        /**
+         * Called on the thread running the batch for each result. The
+         * conversion output of the result is closed once this returns.
+         *
+         * @param pResult the result of converting a profile.
+         * @throws IOException if the result cannot be handled, which stops
+         *         the batch.
+         */
+        void itemComplete(Result pResult) throws IOException;
+    }
+
+    /**
+     * The result of converting one profile of a batch.
+     */
+    public static final class Result {
+
+        private final int _index;
+        private final String _name;
+        private final Map<String, String> _parameters;
+        private final ConversionOutput _output;
+        private final String _error;
+
+        private Result(int pIndex, String pName, Map<String, String> pParameters,
+                       ConversionOutput pOutput, String pError) {
+            this._index = pIndex;
+            this._name = pName;
+            this._parameters = pParameters;
+            this._output = pOutput;
+            this._error = pError;
+        }
+
+        /**
+         * @return the position of the profile in the batch, from 0.
+         */
+        public int getIndex() {
+            return _index;
+        }
+
+        /**
+         * @return the name of the profile, unique within the batch.
+         */
+        public String getName() {
+            return _name;
+        }
+
+        /**
+         * @return the parameters recorded when the profile was added to
+         *         the batch, or null if there are none.
+         */
+        public Map<String, String> getParameters() {
+            return _parameters;
+        }
+
+        /**
+         * @return the conversion output, or null if the profile could not
+         *         be converted.
+         */
+        public ConversionOutput getOutput() {
+            return _output;
+        }
+
+        /**
+         * @return a description of the error that prevented the profile
+         *         being converted, or null if it was converted.
+         */
+        public String getError() {
+            return _error;
+        }
+
+        private void close() {
+            if(_output != null) {
+                _output.close();
+            }
+        }
+    }
+
+    private final BatchConverter _converter;
+    private final SchemaProcessor _processor;
+    private final ArtifactStore _store;
+    private final String _templateId;
+    private final boolean _persist;
+
+    private final List<String> _names = new ArrayList<String>();
+    private final List<Map<String, String>> _parameters = new ArrayList<Map<String, String>>();
+    private final List<Document> _profiles = new ArrayList<Document>();
+    private final Set<String> _usedNames = new HashSet<String>();
+    private final Map<String, Document> _attachments = new LinkedHashMap<String, Document>();
+
+    ConversionBatch(BatchConverter pConverter, SchemaProcessor pProcessor, ArtifactStore pStore,
+                    String pTemplateId, boolean pPersist) {
+        this._converter = pConverter;
+        this._processor = pProcessor;
+        this._store = pStore;
+        this._templateId = pTemplateId;
+        this._persist = pPersist;
+    }
+
+    /**
+     * Add a profile to the batch.
+     *
+     * @param pFileName the file name of the profile, from which the name
+     *        of its result is derived. May be null.
+     * @param pProfile stream containing the profile, which is read fully
+     *        but not closed.
+     * @return false if the batch already contains the maximum number of
+     *         profiles, in which case the profile is not added.
+     * @throws IOException if the profile cannot be read.
+     */
+    public boolean addProfile(String pFileName, InputStream pProfile) throws IOException {
+        return addProfile(pFileName, pProfile, null);
+    }
+
+    /**
+     * Add a profile to the batch, recording the parameters that identify
+     * it in its result, such as the values set in a parameter sweep.
+     *
+     * @param pFileName the file name of the profile, from which the name
+     *        of its result is derived. May be null.
+     * @param pProfile stream containing the profile, which is read fully
+     *        but not closed.
+     * @param pParameters the parameters to record, may be null.
+     * @return false if the batch already contains the maximum number of
+     *         profiles, in which case the profile is not added.
+     * @throws IOException if the profile cannot be read.
+     */
+    public boolean addProfile(String pFileName, InputStream pProfile, Map<String, String> pParameters)
+        throws IOException
+    {
+        if(_profiles.size() >= _converter.getMaxProfiles()) {
+            return false;
+        }
+        _profiles.add(buffer("batch_profile", pProfile));
+        _names.add(uniqueName(pFileName));
+        _parameters.add(pParameters);
+        return true;
+    }
+
+    /**
+     * Add each XML file in a zip archive to the batch as a profile. Other
+     * entries are ignored.
+     *
+     * @param pArchive stream containing the zip archive, which is read but
+     *        not closed.
+     * @return false if the archive contains more profiles than the batch
+     *         can hold, in which case the batch is not complete.
+     * @throws IOException if the archive cannot be read.
+     */
+    public boolean addArchive(InputStream pArchive) throws IOException {
+        ZipInputStream zip = new ZipInputStream(pArchive);
+        ZipEntry entry;
+        while((entry = zip.getNextEntry()) != null) {
+            if(!entry.isDirectory() && entry.getName().toLowerCase(Locale.ENGLISH).endsWith(".xml")) {
+                if(!addProfile(entry.getName(), zip)) {
+                    return false;
+                }
+            }
+            zip.closeEntry();
+        }
+        return true;
+    }
+
+    /**
+     * Add a file to be embedded in each profile of the batch in place of
+     * its name.
+     *
+     * @param pFileName the name of the file.
+     * @param pContent stream containing the file content, which is read
+     *        fully but not closed.
+     * @throws IOException if the file cannot be read.
+     */
+    public void addAttachment(String pFileName, InputStream pContent) throws IOException {
+        Document previous = _attachments.put(pFileName, buffer("batch_file", pContent));
+        if(previous != null) {
+            previous.delete();
+        }
+    }
+
+    /**
+     * @return the ID of the template the profiles are for.
+     */
+    public String getTemplateId() {
+        return _templateId;
+    }
+
+    /**
+     * @return the number of profiles in the batch.
+     */
+    public int size() {
+        return _profiles.size();
+    }
+
+    /**
+     * Compile the profile transform of the batch template so that the
+     * conversions share a single compiled stylesheet and a template that
+     * cannot be used is reported before any conversions are started.
+     *
+     * @throws UnknownTemplateException if the template is not found.
+     * @throws TransformerException if the transform cannot be compiled.
+     */
+    public void prepare() throws UnknownTemplateException, TransformerException {
+        _processor.prepareProfileTransform(_templateId);
+    }
+
+    /**
+     * Convert the profiles of the batch, passing each result to the
+     * handler as it completes. At most as many profiles as the batch
+     * converter's parallelism are converted at once. If the handler fails,
+     * no further conversions are started and the method returns once the
+     * conversions in progress are complete.
+     *
+     * @param pHandler the handler receiving the results.
+     * @throws IOException if the handler fails or the batch is interrupted.
+     */
+    public void run(ResultHandler pHandler) throws IOException {
+        _converter.recordBatch(_profiles.size());
+        CompletionService<Result> completion = new ExecutorCompletionService<Result>(_converter.getPool());
+        int parallelism = _converter.getParallelism();
+        int next = 0;
+        int inProgress = 0;
+        try {
+            while(next < _profiles.size() || inProgress > 0) {
+                while(next < _profiles.size() && inProgress < parallelism) {
+                    completion.submit(newTask(next++));
+                    inProgress++;
+                }
+                Result result = take(completion);
+                inProgress--;
+                try {
+                    pHandler.itemComplete(result);
+                } finally {
+                    result.close();
+                }
+            }
+        } finally {
+            // Wait for any conversions still in progress when the batch is
+            // stopped so that their work files are removed.
+            try {
+                for(; inProgress > 0; inProgress--) {
+                    take(completion).close();
+                }
+            } catch (IOException e) {
+                sLog.warn("Unable to release the results of a stopped batch: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Delete the buffered profiles and shared files.
+     */
+    public void close() {
+        for(Document profile : _profiles) {
+            if(profile != null) {
+                profile.delete();
+            }
+        }
+        for(Document attachment : _attachments.values()) {
+            attachment.delete();
+        }
+    }
+
+    private Callable<Result> newTask(final int pIndex) {
+        return new Callable<Result>() {
+            public Result call() {
+                Result result = convert(pIndex);
+                _converter.recordResult(result.getOutput() != null);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Convert a profile of the batch, embedding a fresh copy of each of
+     * the shared files. The buffered profile is deleted once converted.
+     */
+    private Result convert(int pIndex) {
+        String name = _names.get(pIndex);
+        Document profile = _profiles.get(pIndex);
+        Map<String, InputStream> attachments = new LinkedHashMap<String, InputStream>();
+        InputStream profileXml = null;
+        try {
+            profileXml = profile.openStream();
+            for(Map.Entry<String, Document> attachment : _attachments.entrySet()) {
+                attachments.put(attachment.getKey(), attachment.getValue().openStream());
+            }
+            ConversionOutput output = _processor.convertProfile(_templateId, profileXml, attachments, _persist);
+            return new Result(pIndex, name, _parameters.get(pIndex), output, null);
+        } catch (Exception e) {
+            sLog.warn("Unable to convert profile <" + name + "> of batch for template <"
+                      + _templateId + ">: " + e.getMessage());
+            return new Result(pIndex, name, _parameters.get(pIndex), null, (e.getMessage() != null) ? e.getMessage() : e.toString());
+        } finally {
+            IOUtils.closeQuietly(profileXml);
+            for(InputStream in : attachments.values()) {
+                IOUtils.closeQuietly(in);
+            }
+            profile.delete();
+        }
+    }
+
+    private static Result take(CompletionService<Result> pCompletion) throws IOException {
+        try {
+            return pCompletion.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for batch conversions.");
+        } catch (ExecutionException e) {
+            // Conversions report their errors in their results so this
+            // only occurs for errors such as running out of memory.
+            throw new IOException("Batch conversion failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private Document buffer(String pPrefix, InputStream pContent) throws IOException {
+        DeferredFileOutputStream buffer = _store.createWorkBuffer(pPrefix);
+        boolean complete = false;
+        try {
+            IOUtils.copyLarge(pContent, buffer);
+            complete = true;
+        } finally {
+            buffer.close();
+            if(!complete) {
+                Document.fromBuffer(null, buffer).delete();
+            }
+        }
+        return Document.fromBuffer(null, buffer);
+    }
+
+    /**
+     * Get a name for a profile from its file name that is unique within
+     * the batch and safe to use as a path component.
+     */
+    private String uniqueName(String pFileName) {
+        String name = (pFileName != null) ? pFileName : "";
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        if(name.toLowerCase(Locale.ENGLISH).endsWith(".xml")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        if(name.matches("\\.*")) {
+            name = "profile-" + (_profiles.size() - 1);
+        }
+        String unique = name;
+        for(int i = 2; !_usedNames.add(unique.toLowerCase(Locale.ENGLISH)); i++) {
+            unique = name + "-" + i;
+        }
+        return unique;
+    }
+}
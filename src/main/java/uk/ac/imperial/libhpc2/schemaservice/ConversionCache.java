@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded cache of profile conversion results.
+ *
+ * Results are keyed on a SHA-256 hash of the template ID, the content hash
+ * of the template's profile transform and a canonical form of the complete
+ * profile XML (with any embedded files already inserted). Resubmitting an
+ * identical profile for the same template therefore returns the previously
+ * transformed and formatted output without repeating the transform.
+ *
+ * The cache is bounded by the total size of the cached output and evicts
+ * the least recently used results first.
+ *
+ * Identical conversions that miss the cache at the same time are carried
+ * out once, see {@link #getOrConvert}.
+ *
+ * @author jhc02
+ */
+public class ConversionCache {
+
+    private static final Logger sLog = LoggerFactory.getLogger(ConversionCache.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the shared instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "conversionCache";
+
+    /**
+     * Name of the configuration file section containing cache settings.
+     */
+    public static final String CONFIG_SECTION = "conversion-cache";
+
+    /**
+     * Default maximum total size of the cached output in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024L * 1024L;
+
+    private volatile long _maxBytes;
+
+    // Access ordered so that the least recently used result is evicted
+    // first. All access to the map and the byte count is synchronized on
+    // the map.
+    private final LinkedHashMap<String, ConversionResult> _entries;
+    private long _bytes = 0;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    // Conversions in progress, keyed by cache key.
+    private final SingleFlight<String, ConversionResult> _conversions =
+            new SingleFlight<String, ConversionResult>();
+
+    /**
+     * Get the conversion cache registered in the provided servlet context,
+     * creating and registering a new one if none exists yet. The cache size
+     * is read from the maxBytes property of the [conversion-cache] section
+     * of the configuration file, a size of 0 disables caching.
+     *
+     * @param pContext the servlet context to look up the cache in.
+     * @return the shared conversion cache.
+     */
+    public static ConversionCache getInstance(ServletContext pContext) {
+        synchronized(pContext) {
+            ConversionCache cache = (ConversionCache)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(cache == null) {
+                long maxBytes = TempssConfig.getInstance().getLongProperty(
+                        CONFIG_SECTION, "maxBytes", DEFAULT_MAX_BYTES);
+                cache = new ConversionCache(maxBytes);
+                pContext.setAttribute(CONTEXT_ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    public ConversionCache(long pMaxBytes) {
+        this._maxBytes = pMaxBytes;
+        this._entries = new LinkedHashMap<String, ConversionResult>(16, 0.75f, true);
+    }
+
+    /**
+     * Compute the cache key for a conversion.
+     *
+     * @param pTemplateId the ID of the template the profile is for.
+     * @param pTransformHash the content hash of the profile transform.
+     * @param pCompleteXml the complete profile XML to be transformed.
+     * @return the hex encoded key.
+     */
+    public static String computeKey(String pTemplateId, String pTransformHash, String pCompleteXml) {
+        try {
+            return computeKey(pTemplateId, pTransformHash,
+                    new ByteArrayInputStream(pCompleteXml.getBytes(SchemaProcessorUtils.UTF8)));
+        } catch (IOException e) {
+            // Not possible when reading from a byte array
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compute the cache key for a conversion, reading the complete profile
+     * from a stream. The key is the same as that computed for the profile
+     * content as a string if the stream contains its UTF-8 encoding.
+     *
+     * @param pTemplateId the ID of the template the profile is for.
+     * @param pTransformHash the content hash of the profile transform.
+     * @param pCompleteXml stream containing the complete profile XML.
+     * @return the hex encoded key.
+     * @throws IOException if the profile cannot be read.
+     */
+    public static String computeKey(String pTemplateId, String pTransformHash, InputStream pCompleteXml)
+        throws IOException
+    {
+        MessageDigest digest = SchemaProcessorUtils.newSha256Digest();
+        digest.update((pTemplateId + "\n" + pTransformHash + "\n").getBytes(SchemaProcessorUtils.UTF8));
+        return SchemaProcessorUtils.toHex(
+                digestCanonical(new BufferedInputStream(pCompleteXml), digest));
+    }
+
+    /**
+     * Check whether a conversion result with output of the specified size
+     * would be cached.
+     *
+     * @param pOutputSize the size of the conversion output in bytes.
+     * @return true if a result of this size can be cached.
+     */
+    public boolean isCacheable(long pOutputSize) {
+        return pOutputSize <= _maxBytes;
+    }
+
+    /**
+     * Get the cached result for the specified key.
+     *
+     * @param pKey the key computed by {@link #computeKey}.
+     * @return the cached result or null if there is none.
+     */
+    public ConversionResult get(String pKey) {
+        ConversionResult result = null;
+        synchronized(_entries) {
+            result = _entries.get(pKey);
+        }
+        if(result == null) {
+            _misses.incrementAndGet();
+        } else {
+            _hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Get the cached result for the specified key or, if there is none,
+     * carry out the conversion and cache its result. Conversions with the
+     * same key requested while the conversion is in progress wait for it
+     * and receive its result, or the exception it threw, rather than
+     * converting the profile again.
+     *
+     * @param pKey the key computed by {@link #computeKey}.
+     * @param pConversion carries out the conversion, returning its result
+     *        or null if the result is too large to cache. It is called on
+     *        the calling thread.
+     * @return the result, or null if the conversion was carried out by
+     *         another request and its result is too large to share.
+     * @throws InterruptedException if the thread is interrupted while
+     *         waiting for a conversion by another request.
+     * @throws Exception if the conversion throws an exception.
+     */
+    public ConversionResult getOrConvert(final String pKey, final Callable<ConversionResult> pConversion)
+        throws Exception
+    {
+        ConversionResult result = get(pKey);
+        if(result != null) {
+            return result;
+        }
+        return _conversions.execute(pKey, new Callable<ConversionResult>() {
+            public ConversionResult call() throws Exception {
+                // The result may have been cached by a conversion that
+                // finished after the cache was last checked.
+                synchronized(_entries) {
+                    ConversionResult cached = _entries.get(pKey);
+                    if(cached != null) {
+                        return cached;
+                    }
+                }
+                ConversionResult converted = pConversion.call();
+                if(converted != null) {
+                    put(pKey, converted);
+                }
+                return converted;
+            }
+        });
+    }
+
+    /**
+     * Add a result to the cache, evicting the least recently used results
+     * if necessary to keep within the size limit. Results larger than the
+     * size limit are not cached.
+     *
+     * @param pKey the key computed by {@link #computeKey}.
+     * @param pResult the conversion result.
+     */
+    public void put(String pKey, ConversionResult pResult) {
+        long size = pResult.getSize();
+        if(size > _maxBytes) {
+            sLog.debug("Conversion result of <{}> bytes is too large to cache.", size);
+            return;
+        }
+        synchronized(_entries) {
+            ConversionResult previous = _entries.put(pKey, pResult);
+            if(previous != null) {
+                _bytes -= previous.getSize();
+            }
+            _bytes += size;
+            trim();
+        }
+    }
+
+    /**
+     * Apply the cache size from the [conversion-cache] section of the
+     * provided configuration, evicting the least recently used results if
+     * the cache is now over the limit.
+     *
+     * @param pConfig the reloaded configuration.
+     */
+    public void reconfigure(TempssConfig pConfig) {
+        long maxBytes = pConfig.getLongProperty(CONFIG_SECTION, "maxBytes", DEFAULT_MAX_BYTES);
+        if(maxBytes == _maxBytes) {
+            return;
+        }
+        sLog.info("Changing conversion cache size from <{}> to <{}> bytes.", _maxBytes, maxBytes);
+        synchronized(_entries) {
+            _maxBytes = maxBytes;
+            trim();
+        }
+    }
+
+    // Must be called with the lock on _entries held.
+    private void trim() {
+        Iterator<ConversionResult> it = _entries.values().iterator();
+        while(_bytes > _maxBytes && it.hasNext()) {
+            ConversionResult evicted = it.next();
+            it.remove();
+            _bytes -= evicted.getSize();
+            _evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove all cached results.
+     */
+    public void clear() {
+        synchronized(_entries) {
+            _entries.clear();
+            _bytes = 0;
+        }
+    }
+
+    /**
+     * Get a snapshot of the cache statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        synchronized(_entries) {
+            stats.put("entries", _entries.size());
+            stats.put("bytes", _bytes);
+        }
+        long hits = _hits.get();
+        long misses = _misses.get();
+        stats.put("maxBytes", _maxBytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", (hits + misses) == 0 ? 0.0 : (double)hits / (hits + misses));
+        stats.put("evictions", _evictions.get());
+        stats.put("coalescing", _conversions.getStatistics());
+        return stats;
+    }
+
+    /**
+     * Add the canonical form of a profile document to a digest and complete
+     * the digest. Any UTF-8 byte order mark and trailing whitespace are
+     * removed and line endings are normalised, so that profiles that differ
+     * only in these respects share a cache entry. None of these affect the
+     * result of the transform. The XML declaration is kept since its
+     * encoding determines the characters the document decodes to.
+     *
+     * @return the completed digest.
+     */
+    static byte[] digestCanonical(BufferedInputStream pIn, MessageDigest pDigest) throws IOException {
+        pIn.mark(3);
+        if(!(pIn.read() == 0xef && pIn.read() == 0xbb && pIn.read() == 0xbf)) {
+            pIn.reset();
+        }
+
+        // Whitespace is added to the digest as it is read. A copy of the
+        // digest taken at the start of each run of whitespace is completed
+        // instead if the run turns out to be trailing whitespace.
+        MessageDigest beforeWhitespace = null;
+        boolean cr = false;
+        int b;
+        while((b = pIn.read()) != -1) {
+            if(b == '\n' && cr) {
+                cr = false;
+                continue;
+            }
+            cr = (b == '\r');
+            if(cr) {
+                b = '\n';
+            }
+            if(!isWhitespace((byte)b)) {
+                beforeWhitespace = null;
+            }
+            else if(beforeWhitespace == null) {
+                try {
+                    beforeWhitespace = (MessageDigest)pDigest.clone();
+                } catch (CloneNotSupportedException e) {
+                    // The JDK SHA-256 implementation supports cloning
+                    throw new IllegalStateException(e);
+                }
+            }
+            pDigest.update((byte)b);
+        }
+        return (beforeWhitespace != null ? beforeWhitespace : pDigest).digest();
+    }
+
+    private static boolean isWhitespace(byte pByte) {
+        return pByte == ' ' || pByte == '\t' || pByte == '\n' || pByte == '\r';
+    }
+
+    /**
+     * The formatted output of a profile conversion and the status of the
+     * transform that produced it. The output is held gzip compressed if it
+     * is large enough to be worth compressing, and the ID of the artifact
+     * holding the output is recorded so that the output does not need to
+     * be stored again while that artifact is available.
+     */
+    public static class ConversionResult {
+
+        private final byte[] _output;
+        private final boolean _compressed;
+        private final boolean _transformFailed;
+        private final String _transformErrors;
+        private final String _outputId;
+
+        public ConversionResult(byte[] pOutput, boolean pTransformFailed, String pTransformErrors,
+                                String pOutputId) {
+            byte[] compressed = CompressionUtils.gzipIfWorthwhile(pOutput);
+            this._compressed = (compressed != null);
+            this._output = _compressed ? compressed : pOutput;
+            this._transformFailed = pTransformFailed;
+            this._transformErrors = pTransformErrors;
+            this._outputId = pOutputId;
+        }
+
+        /**
+         * @return the transform output. If the output is held uncompressed
+         *         the returned array is shared and must not be modified.
+         */
+        public byte[] getOutput() {
+            return _compressed ? CompressionUtils.gunzip(_output) : _output;
+        }
+
+        /**
+         * @return the ID of the artifact the output was stored as.
+         */
+        public String getOutputId() {
+            return _outputId;
+        }
+
+        public boolean isTransformFailed() {
+            return _transformFailed;
+        }
+
+        public String getTransformErrors() {
+            return _transformErrors;
+        }
+
+        /**
+         * @return the approximate memory used by the result in bytes.
+         */
+        long getSize() {
+            return _output.length + 2L * _transformErrors.length();
+        }
+    }
+}
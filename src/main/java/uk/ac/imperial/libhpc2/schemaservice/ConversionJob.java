@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A profile conversion submitted to the conversion job queue. The job's
+ * uploaded profile and files are held in its own directory together with
+ * a job.json file recording the job's state, so that jobs that have not
+ * finished when the service stops are run again when it restarts.
+ *
+ * The state and results of a job are updated by the queue. The getters
+ * may be called from any thread.
+ *
+ * @author jhc02
+ */
+public class ConversionJob {
+
+    /**
+     * The states of a job.
+     */
+    public enum State {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        CANCELLED;
+
+        /**
+         * @return true if a job in this state will not change state again.
+         */
+        public boolean isFinished() {
+            return this == COMPLETED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    /**
+     * Name of the file in the job directory that records the job.
+     */
+    static final String JOB_FILE_NAME = "job.json";
+
+    private static final String PROFILE_FILE_NAME = "profile.xml";
+    private static final String ATTACHMENT_FILE_PREFIX = "file-";
+
+    private final String _id;
+    private final String _templateId;
+    private final String _owner;
+    private final int _priority;
+    private final long _submitted;
+    private final File _dir;
+    private final List<String> _attachmentNames;
+
+    // Order of submission, used to run the jobs of an owner with the same
+    // priority in the order they were submitted.
+    long _sequence;
+
+    private volatile State _state = State.QUEUED;
+    private volatile long _started = 0;
+    private volatile long _finished = 0;
+    private volatile ConversionProgress _progress = null;
+    private volatile Map<String, String> _result = null;
+    private volatile String _message = null;
+
+    ConversionJob(String pId, String pTemplateId, String pOwner, int pPriority,
+                  long pSubmitted, File pDir, List<String> pAttachmentNames) {
+        this._id = pId;
+        this._templateId = pTemplateId;
+        this._owner = pOwner;
+        this._priority = pPriority;
+        this._submitted = pSubmitted;
+        this._dir = pDir;
+        this._attachmentNames = Collections.unmodifiableList(new ArrayList<String>(pAttachmentNames));
+    }
+
+    public String getId() {
+        return _id;
+    }
+
+    public String getTemplateId() {
+        return _templateId;
+    }
+
+    /**
+     * @return the user that submitted the job, or the address the job was
+     *         submitted from if the user was not authenticated.
+     */
+    public String getOwner() {
+        return _owner;
+    }
+
+    /**
+     * @return the priority of the job relative to the other jobs of its
+     *         owner. Jobs with a higher priority run first.
+     */
+    public int getPriority() {
+        return _priority;
+    }
+
+    public State getState() {
+        return _state;
+    }
+
+    /**
+     * @return the time the job was submitted, in milliseconds since the epoch.
+     */
+    public long getSubmitted() {
+        return _submitted;
+    }
+
+    /**
+     * @return the time the job started running, or 0 if it has not started.
+     */
+    public long getStarted() {
+        return _started;
+    }
+
+    /**
+     * @return the time the job finished, or 0 if it has not finished.
+     */
+    public long getFinished() {
+        return _finished;
+    }
+
+    /**
+     * @return the progress of the job while it is running, otherwise null.
+     */
+    public ConversionProgress getProgress() {
+        return _progress;
+    }
+
+    /**
+     * @return the artifact IDs of the documents produced by a completed
+     *         job and its transform status, under the keys BasicXmlId,
+     *         FullXmlId, TransformedDataId, TransformStatus and
+     *         TransformErrors, otherwise null.
+     */
+    public Map<String, String> getResult() {
+        return _result;
+    }
+
+    /**
+     * @return the reason a job failed or was cancelled, otherwise null.
+     */
+    public String getMessage() {
+        return _message;
+    }
+
+    File getDir() {
+        return _dir;
+    }
+
+    /**
+     * @return the placeholder names of the files uploaded with the
+     *         profile, in the order they are embedded.
+     */
+    List<String> getAttachmentNames() {
+        return _attachmentNames;
+    }
+
+    File getProfileFile() {
+        return new File(_dir, PROFILE_FILE_NAME);
+    }
+
+    File getAttachmentFile(int pIndex) {
+        return new File(_dir, ATTACHMENT_FILE_PREFIX + pIndex);
+    }
+
+    void setRunning(ConversionProgress pProgress) {
+        _progress = pProgress;
+        _started = System.currentTimeMillis();
+        _state = State.RUNNING;
+    }
+
+    void setQueued() {
+        _progress = null;
+        _started = 0;
+        _state = State.QUEUED;
+    }
+
+    void setFinished(State pState, Map<String, String> pResult, String pMessage) {
+        _result = pResult;
+        _message = pMessage;
+        _finished = System.currentTimeMillis();
+        _progress = null;
+        _state = pState;
+    }
+
+    /**
+     * Delete the uploaded profile and files once the job has finished.
+     */
+    void deleteInputs() {
+        getProfileFile().delete();
+        for(int i = 0; i < _attachmentNames.size(); i++) {
+            getAttachmentFile(i).delete();
+        }
+    }
+
+    /**
+     * Write the job record to the job directory. The record is written to
+     * a temporary file that then replaces the existing record so that a
+     * partially written record is never read.
+     *
+     * @throws IOException if the record cannot be written.
+     */
+    synchronized void save() throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("id", _id);
+            json.put("templateId", _templateId);
+            json.put("owner", _owner);
+            json.put("priority", _priority);
+            json.put("submitted", _submitted);
+            json.put("state", _state.name());
+            json.put("started", _started);
+            json.put("finished", _finished);
+            json.put("attachments", new JSONArray(_attachmentNames));
+            if(_result != null) {
+                json.put("result", new JSONObject(_result));
+            }
+            if(_message != null) {
+                json.put("message", _message);
+            }
+        } catch (JSONException e) {
+            throw new IOException("Unable to create record for job <" + _id + ">: " + e.getMessage(), e);
+        }
+        File tmpFile = new File(_dir, JOB_FILE_NAME + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8);
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+        Files.move(tmpFile.toPath(), new File(_dir, JOB_FILE_NAME).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a job record from a job directory.
+     *
+     * @param pDir the job directory.
+     * @return the job.
+     * @throws IOException if the record cannot be read or is invalid.
+     */
+    static ConversionJob load(File pDir) throws IOException {
+        InputStream in = new FileInputStream(new File(pDir, JOB_FILE_NAME));
+        String content;
+        try {
+            content = IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+        try {
+            JSONObject json = new JSONObject(content);
+            List<String> attachmentNames = new ArrayList<String>();
+            JSONArray attachments = json.getJSONArray("attachments");
+            for(int i = 0; i < attachments.length(); i++) {
+                attachmentNames.add(attachments.getString(i));
+            }
+            ConversionJob job = new ConversionJob(json.getString("id"), json.getString("templateId"),
+                    json.getString("owner"), json.getInt("priority"), json.getLong("submitted"),
+                    pDir, attachmentNames);
+            job._state = State.valueOf(json.getString("state"));
+            job._started = json.getLong("started");
+            job._finished = json.getLong("finished");
+            if(json.has("result")) {
+                JSONObject result = json.getJSONObject("result");
+                Map<String, String> resultMap = new LinkedHashMap<String, String>();
+                for(String key : JSONObject.getNames(result)) {
+                    resultMap.put(key, result.getString(key));
+                }
+                job._result = resultMap;
+            }
+            if(json.has("message")) {
+                job._message = json.getString("message");
+            }
+            return job;
+        } catch (JSONException e) {
+            throw new IOException("Invalid record for job in <" + pDir + ">: " + e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid record for job in <" + pDir + ">: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copy an uploaded document to a file in the job directory.
+     */
+    static void writeInput(InputStream pIn, File pFile) throws IOException {
+        OutputStream out = new FileOutputStream(pFile);
+        try {
+            IOUtils.copy(pIn, out);
+        } finally {
+            out.close();
+        }
+    }
+}
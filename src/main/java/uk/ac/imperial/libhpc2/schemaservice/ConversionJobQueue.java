@@ -0,0 +1,744 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+import javax.xml.transform.TransformerException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs profile conversions submitted as jobs in the background. A client
+ * submits a job and receives its ID immediately, then polls the job for
+ * its state and progress and downloads the result once it has completed.
+ *
+ * The queue is bounded: a job is rejected when the configured number of
+ * jobs are already waiting. Waiting jobs are taken from their owners in
+ * turn, so that a user submitting many jobs does not delay the jobs of
+ * other users, and the jobs of each owner are run in order of priority
+ * and then submission. Jobs are recorded on disk with their uploaded
+ * documents so that jobs that were waiting or running when the service
+ * stopped are run again when it restarts. Finished jobs are forgotten
+ * once their time to live has passed.
+ *
+ * The queue is configured from the [jobs] section of the configuration
+ * file.
+ *
+ * @author jhc02
+ */
+public class ConversionJobQueue {
+
+    private static final Logger sLog = LoggerFactory.getLogger(ConversionJobQueue.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the shared instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "conversionJobQueue";
+
+    /**
+     * Configuration section containing the job queue settings.
+     */
+    public static final String CONFIG_SECTION = "jobs";
+
+    /**
+     * Default maximum number of waiting jobs.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+
+    /**
+     * Default time that a finished job is kept.
+     */
+    public static final long DEFAULT_TTL_SECONDS = 24 * 60 * 60;
+
+    /**
+     * Default interval between checks for expired jobs.
+     */
+    public static final long DEFAULT_SWEEP_INTERVAL_SECONDS = 5 * 60;
+
+    /**
+     * Default value of the Retry-After header sent when a job is rejected.
+     */
+    public static final int DEFAULT_RETRY_AFTER_SECONDS = 30;
+
+    // Jobs with a higher priority run first, then jobs submitted earlier.
+    private static final Comparator<ConversionJob> JOB_ORDER = new Comparator<ConversionJob>() {
+        public int compare(ConversionJob j1, ConversionJob j2) {
+            if(j1.getPriority() != j2.getPriority()) {
+                return (j1.getPriority() > j2.getPriority()) ? -1 : 1;
+            }
+            return (j1._sequence < j2._sequence) ? -1 : ((j1._sequence == j2._sequence) ? 0 : 1);
+        }
+    };
+
+    private final ServletContext _context;
+    private final File _dir;
+    private final int _threads;
+    private int _queueSize;
+    private volatile long _ttlMillis;
+    private volatile int _retryAfterSeconds;
+
+    // All access to the jobs, the waiting queues and the counts is
+    // synchronized on the queue. Owners with waiting jobs are held in the
+    // order that they are next served.
+    private final Map<String, ConversionJob> _jobs = new HashMap<String, ConversionJob>();
+    private final Map<String, PriorityQueue<ConversionJob>> _waiting =
+            new HashMap<String, PriorityQueue<ConversionJob>>();
+    private final Deque<String> _owners = new ArrayDeque<String>();
+    private final Set<ConversionJob> _running = new HashSet<ConversionJob>();
+    private int _queued = 0;
+    private long _sequence = 0;
+    private boolean _shutdown = false;
+
+    private final AtomicLong _submitted = new AtomicLong();
+    private final AtomicLong _rejected = new AtomicLong();
+    private final AtomicLong _recovered = new AtomicLong();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _cancelled = new AtomicLong();
+
+    private ExecutorService _workers = null;
+    private ScheduledExecutorService _sweeper = null;
+
+    private final Runnable _workerTask = new Runnable() {
+        public void run() {
+            while(true) {
+                ConversionJob job;
+                try {
+                    job = take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(job == null) {
+                    return;
+                }
+                runJob(job);
+            }
+        }
+    };
+
+    private final Runnable _sweepTask = new Runnable() {
+        public void run() {
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                sLog.error("Error removing expired jobs: {}", e.getMessage(), e);
+            }
+        }
+    };
+
+    /**
+     * Get the job queue registered in the provided servlet context,
+     * creating and registering a new one if none exists yet. The queue is
+     * configured from the [jobs] section of the configuration file and
+     * jobs recorded in its directory that have not finished are queued
+     * again when it is created.
+     *
+     * @param pContext the servlet context to look up the queue in.
+     * @return the shared job queue.
+     */
+    public static ConversionJobQueue getInstance(ServletContext pContext) {
+        synchronized(pContext) {
+            ConversionJobQueue queue = (ConversionJobQueue)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(queue == null) {
+                TempssConfig config = TempssConfig.getInstance();
+                String dir = config.getProperty(CONFIG_SECTION, "dir",
+                        new File(System.getProperty("java.io.tmpdir"), "tempss-jobs").getPath());
+                queue = new ConversionJobQueue(pContext, new File(dir),
+                        Math.max(1, config.getIntProperty(CONFIG_SECTION, "threads",
+                                Math.max(1, Runtime.getRuntime().availableProcessors() / 2))),
+                        Math.max(1, config.getIntProperty(CONFIG_SECTION, "queueSize", DEFAULT_QUEUE_SIZE)),
+                        config.getLongProperty(CONFIG_SECTION, "ttlSeconds", DEFAULT_TTL_SECONDS) * 1000L,
+                        config.getIntProperty(CONFIG_SECTION, "retryAfterSeconds", DEFAULT_RETRY_AFTER_SECONDS));
+                queue.start(config.getLongProperty(CONFIG_SECTION, "sweepIntervalSeconds",
+                        DEFAULT_SWEEP_INTERVAL_SECONDS));
+                pContext.setAttribute(CONTEXT_ATTRIBUTE, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * Shut down the job queue registered in the provided servlet context,
+     * if there is one. Running jobs are stopped and remain recorded as
+     * running so that they are run again when the service restarts.
+     *
+     * @param pContext the servlet context to look up the queue in.
+     */
+    public static void shutdown(ServletContext pContext) {
+        synchronized(pContext) {
+            ConversionJobQueue queue = (ConversionJobQueue)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(queue != null) {
+                queue.stop();
+                pContext.removeAttribute(CONTEXT_ATTRIBUTE);
+            }
+        }
+    }
+
+    /**
+     * Create a queue recording its jobs in the specified directory. Jobs
+     * already recorded in the directory are added to the queue.
+     *
+     * @param pContext the servlet context of the service.
+     * @param pDir the directory to record jobs in, created if required.
+     * @param pThreads the number of jobs run at once.
+     * @param pQueueSize the maximum number of waiting jobs.
+     * @param pTtlMillis time after it finishes that a job is forgotten.
+     * @param pRetryAfterSeconds the time a client whose job is rejected
+     *        is asked to wait before submitting it again.
+     */
+    public ConversionJobQueue(ServletContext pContext, File pDir, int pThreads, int pQueueSize,
+                              long pTtlMillis, int pRetryAfterSeconds) {
+        this._context = pContext;
+        this._dir = pDir;
+        this._threads = pThreads;
+        this._queueSize = pQueueSize;
+        this._ttlMillis = pTtlMillis;
+        this._retryAfterSeconds = pRetryAfterSeconds;
+        recover();
+    }
+
+    /**
+     * Start the threads running jobs and the background task removing
+     * expired jobs.
+     *
+     * @param pSweepIntervalSeconds the interval between checks for
+     *        expired jobs.
+     */
+    public synchronized void start(long pSweepIntervalSeconds) {
+        if(_workers != null) {
+            return;
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        _workers = Executors.newFixedThreadPool(_threads, new ThreadFactory() {
+            public Thread newThread(Runnable pRunnable) {
+                Thread t = new Thread(pRunnable, "tempss-job-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for(int i = 0; i < _threads; i++) {
+            _workers.execute(_workerTask);
+        }
+        _sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable pRunnable) {
+                Thread t = new Thread(pRunnable, "tempss-job-sweeper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        _sweeper.scheduleWithFixedDelay(_sweepTask, pSweepIntervalSeconds, pSweepIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop running jobs. Waiting and running jobs remain recorded on disk.
+     */
+    public void stop() {
+        ExecutorService workers;
+        synchronized(this) {
+            _shutdown = true;
+            for(ConversionJob job : _running) {
+                job.getProgress().cancel();
+            }
+            notifyAll();
+            workers = _workers;
+            if(_sweeper != null) {
+                _sweeper.shutdownNow();
+            }
+        }
+        if(workers != null) {
+            workers.shutdownNow();
+            try {
+                workers.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Submit a profile conversion. The uploaded profile and files are
+     * copied to the job's directory before this method returns.
+     *
+     * @param pTemplateId the ID of the template the profile is for.
+     * @param pOwner the user submitting the job, used to share the queue
+     *        fairly between users.
+     * @param pPriority the priority of the job relative to the owner's
+     *        other jobs.
+     * @param pProfile stream containing the uploaded profile.
+     * @param pAttachments map of file name placeholder to a stream
+     *        containing the content of the file to embed in its place.
+     * @return the job, or null if the queue is full.
+     * @throws IOException if the uploaded documents cannot be recorded.
+     */
+    public ConversionJob submit(String pTemplateId, String pOwner, int pPriority,
+                                InputStream pProfile, Map<String, InputStream> pAttachments)
+        throws IOException
+    {
+        // Reserve a place in the queue before the uploads are read so that
+        // a full queue rejects the job without copying them.
+        synchronized(this) {
+            if(_shutdown || _queued >= _queueSize) {
+                _rejected.incrementAndGet();
+                return null;
+            }
+            _queued++;
+        }
+
+        String id = UUID.randomUUID().toString();
+        File dir = new File(_dir, id);
+        ConversionJob job = new ConversionJob(id, pTemplateId, pOwner, pPriority, System.currentTimeMillis(),
+                                              dir, new ArrayList<String>(pAttachments.keySet()));
+        boolean recorded = false;
+        try {
+            if(!dir.mkdirs()) {
+                throw new IOException("Unable to create job directory <" + dir + ">.");
+            }
+            ConversionJob.writeInput(pProfile, job.getProfileFile());
+            int index = 0;
+            for(InputStream attachment : pAttachments.values()) {
+                ConversionJob.writeInput(attachment, job.getAttachmentFile(index++));
+            }
+            job.save();
+            recorded = true;
+        } finally {
+            if(!recorded) {
+                synchronized(this) {
+                    _queued--;
+                }
+                FileUtils.deleteQuietly(dir);
+            }
+        }
+
+        _submitted.incrementAndGet();
+        synchronized(this) {
+            enqueue(job);
+        }
+        sLog.debug("Job <{}> for template <{}> submitted by <{}>.", id, pTemplateId, pOwner);
+        return job;
+    }
+
+    /**
+     * Get a job.
+     *
+     * @param pId the ID of the job.
+     * @return the job, or null if there is no job with this ID or it has
+     *         expired.
+     */
+    public synchronized ConversionJob get(String pId) {
+        return _jobs.get(pId);
+    }
+
+    /**
+     * Cancel a job. A waiting job is removed from the queue immediately. A
+     * running job is stopped the next time the conversion reads from the
+     * profile, so it may still complete if it is nearly finished.
+     *
+     * @param pId the ID of the job.
+     * @return the job, or null if there is no job with this ID.
+     */
+    public ConversionJob cancel(String pId) {
+        ConversionJob job;
+        synchronized(this) {
+            job = _jobs.get(pId);
+            if(job == null || job.getState().isFinished()) {
+                return job;
+            }
+            if(job.getState() == ConversionJob.State.RUNNING) {
+                job.getProgress().cancel();
+                return job;
+            }
+            PriorityQueue<ConversionJob> waiting = _waiting.get(job.getOwner());
+            waiting.remove(job);
+            if(waiting.isEmpty()) {
+                _waiting.remove(job.getOwner());
+                _owners.remove(job.getOwner());
+            }
+            _queued--;
+            job.setFinished(ConversionJob.State.CANCELLED, null, "The job was cancelled.");
+        }
+        finished(job);
+        return job;
+    }
+
+    /**
+     * Get the position of a waiting job in the queue, taking account of
+     * the jobs of other owners that will be run before it.
+     *
+     * @param pJob the job.
+     * @return the number of jobs that will be run before the job plus
+     *         one, or 0 if the job is not waiting.
+     */
+    public synchronized int getPosition(ConversionJob pJob) {
+        PriorityQueue<ConversionJob> waiting = _waiting.get(pJob.getOwner());
+        if(waiting == null || !waiting.contains(pJob)) {
+            return 0;
+        }
+        // The owners are served in turn, so each owner with a waiting job
+        // has a job run in each round until it has no more jobs waiting.
+        List<ConversionJob> ownerJobs = new ArrayList<ConversionJob>(waiting);
+        Collections.sort(ownerJobs, JOB_ORDER);
+        int round = ownerJobs.indexOf(pJob);
+        int position = 1;
+        for(String owner : _owners) {
+            int size = _waiting.get(owner).size();
+            if(owner.equals(pJob.getOwner())) {
+                position += round;
+                break;
+            }
+            position += Math.min(size, round + 1);
+        }
+        boolean after = false;
+        for(String owner : _owners) {
+            if(owner.equals(pJob.getOwner())) {
+                after = true;
+            }
+            else if(after) {
+                position += Math.min(_waiting.get(owner).size(), round);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return the time a client whose job is rejected is asked to wait
+     *         before submitting it again.
+     */
+    public int getRetryAfterSeconds() {
+        return _retryAfterSeconds;
+    }
+
+    /**
+     * Apply the queue size, time to live and retry interval from the [jobs]
+     * section of the provided configuration. Jobs already waiting are kept
+     * if the queue is now over its size. The directory and the number of
+     * threads are only read when the queue is created.
+     *
+     * @param pConfig the reloaded configuration.
+     */
+    public void reconfigure(TempssConfig pConfig) {
+        int queueSize = Math.max(1, pConfig.getIntProperty(CONFIG_SECTION, "queueSize", DEFAULT_QUEUE_SIZE));
+        synchronized(this) {
+            _queueSize = queueSize;
+        }
+        _ttlMillis = pConfig.getLongProperty(CONFIG_SECTION, "ttlSeconds", DEFAULT_TTL_SECONDS) * 1000L;
+        _retryAfterSeconds = pConfig.getIntProperty(CONFIG_SECTION, "retryAfterSeconds", DEFAULT_RETRY_AFTER_SECONDS);
+    }
+
+    /**
+     * Remove finished jobs whose time to live has passed and delete their
+     * records.
+     */
+    public void sweep() {
+        long expiry = System.currentTimeMillis() - _ttlMillis;
+        List<ConversionJob> expired = new ArrayList<ConversionJob>();
+        synchronized(this) {
+            for(ConversionJob job : _jobs.values()) {
+                if(job.getState().isFinished() && job.getFinished() < expiry) {
+                    expired.add(job);
+                }
+            }
+            for(ConversionJob job : expired) {
+                _jobs.remove(job.getId());
+            }
+        }
+        for(ConversionJob job : expired) {
+            FileUtils.deleteQuietly(job.getDir());
+        }
+        if(!expired.isEmpty()) {
+            sLog.debug("Removed <{}> expired jobs.", expired.size());
+        }
+    }
+
+    /**
+     * Get a snapshot of the job queue statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("threads", _threads);
+        stats.put("queueSize", _queueSize);
+        stats.put("queued", _queued);
+        stats.put("running", _running.size());
+        stats.put("owners", _owners.size());
+        stats.put("jobs", _jobs.size());
+        stats.put("submitted", _submitted.get());
+        stats.put("rejected", _rejected.get());
+        stats.put("recovered", _recovered.get());
+        stats.put("completed", _completed.get());
+        stats.put("failed", _failed.get());
+        stats.put("cancelled", _cancelled.get());
+        return stats;
+    }
+
+    /**
+     * Add a recorded job to the queue of its owner. Must be called while
+     * synchronized on the queue.
+     */
+    private void enqueue(ConversionJob pJob) {
+        pJob._sequence = _sequence++;
+        _jobs.put(pJob.getId(), pJob);
+        PriorityQueue<ConversionJob> waiting = _waiting.get(pJob.getOwner());
+        if(waiting == null) {
+            waiting = new PriorityQueue<ConversionJob>(11, JOB_ORDER);
+            _waiting.put(pJob.getOwner(), waiting);
+            _owners.add(pJob.getOwner());
+        }
+        waiting.add(pJob);
+        notify();
+    }
+
+    /**
+     * Wait for a job to run, taking the next job of the owner whose turn
+     * it is.
+     *
+     * @return the job, now running, or null if the queue has been stopped.
+     */
+    private synchronized ConversionJob take() throws InterruptedException {
+        while(!_shutdown && _owners.isEmpty()) {
+            wait();
+        }
+        if(_shutdown) {
+            return null;
+        }
+        String owner = _owners.poll();
+        PriorityQueue<ConversionJob> waiting = _waiting.get(owner);
+        ConversionJob job = waiting.poll();
+        if(waiting.isEmpty()) {
+            _waiting.remove(owner);
+        }
+        else {
+            _owners.add(owner);
+        }
+        _queued--;
+        job.setRunning(new ConversionProgress());
+        _running.add(job);
+        return job;
+    }
+
+    /**
+     * Run a job, converting its profile and adding the documents produced
+     * to the artifact store.
+     */
+    private void runJob(ConversionJob pJob) {
+        ConversionProgress progress = pJob.getProgress();
+        try {
+            pJob.save();
+        } catch (IOException e) {
+            sLog.warn("Unable to record start of job <{}>: {}", pJob.getId(), e.getMessage());
+        }
+
+        List<InputStream> inputs = new ArrayList<InputStream>();
+        ConversionJob.State state;
+        Map<String, String> result = null;
+        String message = null;
+        try {
+            InputStream profile = new FileInputStream(pJob.getProfileFile());
+            inputs.add(profile);
+            Map<String, InputStream> attachments = new LinkedHashMap<String, InputStream>();
+            List<String> names = pJob.getAttachmentNames();
+            for(int i = 0; i < names.size(); i++) {
+                InputStream attachment = new FileInputStream(pJob.getAttachmentFile(i));
+                inputs.add(attachment);
+                attachments.put(names.get(i), attachment);
+            }
+            ConversionOutput output = new SchemaProcessor(_context).convertProfile(
+                    pJob.getTemplateId(), profile, attachments, true, progress);
+            try {
+                result = new LinkedHashMap<String, String>();
+                result.put("BasicXmlId", output.getBasicXml().getArtifactId());
+                result.put("FullXmlId", output.getFullXml().getArtifactId());
+                result.put("TransformedDataId", output.getTransformedXml().getArtifactId());
+                result.put("TransformStatus", output.isTransformFailed() ? "true" : "false");
+                result.put("TransformErrors", output.getTransformErrors());
+            } finally {
+                output.close();
+            }
+            state = ConversionJob.State.COMPLETED;
+        } catch (UnknownTemplateException e) {
+            state = ConversionJob.State.FAILED;
+            message = "Template with ID <" + pJob.getTemplateId() + "> does not exist.";
+        } catch (TransformerException e) {
+            state = progress.isCancelled() ? ConversionJob.State.CANCELLED : ConversionJob.State.FAILED;
+            message = "XSLT transform error when trying to convert profile to application input file: " + e.getMessage();
+        } catch (IOException e) {
+            state = progress.isCancelled() ? ConversionJob.State.CANCELLED : ConversionJob.State.FAILED;
+            message = "IO error when trying to convert profile to application input file: " + e.getMessage();
+        } catch (RuntimeException e) {
+            sLog.error("Unexpected error running job <{}>: {}", pJob.getId(), e.getMessage(), e);
+            state = ConversionJob.State.FAILED;
+            message = "Unexpected error when trying to convert profile to application input file: " + e.getMessage();
+        } finally {
+            for(InputStream input : inputs) {
+                IOUtils.closeQuietly(input);
+            }
+        }
+
+        synchronized(this) {
+            _running.remove(pJob);
+            // A job stopped because the service is shutting down remains
+            // recorded as running so that it is run again on restart.
+            if(_shutdown && state != ConversionJob.State.COMPLETED) {
+                return;
+            }
+            if(state == ConversionJob.State.CANCELLED) {
+                message = "The job was cancelled.";
+            }
+            pJob.setFinished(state, result, message);
+        }
+        finished(pJob);
+    }
+
+    /**
+     * Record a job that has finished and delete its uploaded documents.
+     */
+    private void finished(ConversionJob pJob) {
+        switch(pJob.getState()) {
+        case COMPLETED:
+            _completed.incrementAndGet();
+            break;
+        case FAILED:
+            _failed.incrementAndGet();
+            sLog.debug("Job <{}> failed: {}", pJob.getId(), pJob.getMessage());
+            break;
+        default:
+            _cancelled.incrementAndGet();
+            break;
+        }
+        try {
+            pJob.save();
+        } catch (IOException e) {
+            sLog.warn("Unable to record end of job <{}>: {}", pJob.getId(), e.getMessage());
+        }
+        pJob.deleteInputs();
+    }
+
+    /**
+     * Load the jobs recorded in the queue directory, queueing jobs that
+     * had not finished in the order they were submitted. Directories of
+     * jobs whose submission was not completed are deleted.
+     */
+    private void recover() {
+        File[] dirs = _dir.listFiles();
+        if(dirs == null) {
+            return;
+        }
+        List<ConversionJob> unfinished = new ArrayList<ConversionJob>();
+        for(File dir : dirs) {
+            if(!dir.isDirectory()) {
+                continue;
+            }
+            if(!new File(dir, ConversionJob.JOB_FILE_NAME).isFile()) {
+                FileUtils.deleteQuietly(dir);
+                continue;
+            }
+            ConversionJob job;
+            try {
+                job = ConversionJob.load(dir);
+            } catch (IOException e) {
+                sLog.warn("Unable to load job from <{}>, removing it: {}", dir, e.getMessage());
+                FileUtils.deleteQuietly(dir);
+                continue;
+            }
+            if(job.getState().isFinished()) {
+                _jobs.put(job.getId(), job);
+            }
+            else {
+                unfinished.add(job);
+            }
+        }
+        Collections.sort(unfinished, new Comparator<ConversionJob>() {
+            public int compare(ConversionJob j1, ConversionJob j2) {
+                return (j1.getSubmitted() < j2.getSubmitted()) ? -1
+                        : ((j1.getSubmitted() == j2.getSubmitted()) ? 0 : 1);
+            }
+        });
+        synchronized(this) {
+            for(ConversionJob job : unfinished) {
+                job.setQueued();
+                try {
+                    job.save();
+                } catch (IOException e) {
+                    sLog.warn("Unable to record recovery of job <{}>: {}", job.getId(), e.getMessage());
+                }
+                _queued++;
+                enqueue(job);
+                _recovered.incrementAndGet();
+            }
+        }
+        if(!unfinished.isEmpty() || !_jobs.isEmpty()) {
+            sLog.info("Recovered <{}> unfinished and <{}> finished jobs from <{}>.",
+                      unfinished.size(), _jobs.size() - unfinished.size(), _dir);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import uk.ac.imperial.libhpc2.schemaservice.ArtifactStore.Artifact;
+
+/**
+ * The documents produced by converting a profile to the input data for its
+ * template: the profile as uploaded, the full profile with the content of
+ * any files embedded and the transform output, together with the status
+ * of the transform.
+ *
+ * Documents are held in memory unless they are large, when they are held
+ * in work files of the artifact store. If the conversion is persisted the
+ * documents are added to the artifact store and can be retrieved again by
+ * their artifact ID, otherwise they only exist until the output is closed.
+ *
+ * @author jhc02
+ */
+public class ConversionOutput implements Closeable {
+
+    private Document _basicXml;
+    private Document _fullXml;
+    private Document _transformedXml;
+    private boolean _transformFailed;
+    private String _transformErrors;
+
+    /**
+     * A document produced by a conversion.
+     */
+    public static final class Document {
+
+        private final String _name;
+        private final byte[] _data;
+        private final File _file;
+        private final Artifact _artifact;
+
+        private Document(String pName, byte[] pData, File pFile, Artifact pArtifact) {
+            this._name = pName;
+            this._data = pData;
+            this._file = pFile;
+            this._artifact = pArtifact;
+        }
+
+        /**
+         * Create a document from the content of a closed work buffer.
+         */
+        static Document fromBuffer(String pName, DeferredFileOutputStream pBuffer) {
+            if(pBuffer.isInMemory()) {
+                return new Document(pName, pBuffer.getData(), null, null);
+            }
+            return new Document(pName, null, pBuffer.getFile(), null);
+        }
+
+        static Document fromData(String pName, byte[] pData) {
+            return new Document(pName, pData, null, null);
+        }
+
+        static Document fromArtifact(String pName, Artifact pArtifact) {
+            return new Document(pName, null, null, pArtifact);
+        }
+
+        /**
+         * @return the file name used for the document when it is sent to
+         *         clients.
+         */
+        public String getName() {
+            return _name;
+        }
+
+        /**
+         * @return the length of the document content in bytes.
+         */
+        public long getLength() {
+            if(_artifact != null) {
+                return _artifact.getSize();
+            }
+            return (_data != null) ? _data.length : _file.length();
+        }
+
+        /**
+         * @return the artifact ID of the document or null if it has not
+         *         been added to the artifact store.
+         */
+        public String getArtifactId() {
+            return (_artifact != null) ? _artifact.getId() : null;
+        }
+
+        /**
+         * @return a stream reading the document content.
+         * @throws IOException if the content cannot be read.
+         */
+        public InputStream openStream() throws IOException {
+            if(_artifact != null) {
+                return _artifact.openStream();
+            }
+            return (_data != null) ? new ByteArrayInputStream(_data) : new FileInputStream(_file);
+        }
+
+        /**
+         * Write the document content to a stream.
+         *
+         * @param pOut the stream to write to.
+         * @throws IOException if the content cannot be read or written.
+         */
+        public void writeTo(OutputStream pOut) throws IOException {
+            if(_data != null) {
+                pOut.write(_data);
+                return;
+            }
+            InputStream in = openStream();
+            try {
+                IOUtils.copyLarge(in, pOut);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * @return the document content, which must be small enough to hold
+         *         in memory.
+         * @throws IOException if the content cannot be read.
+         */
+        byte[] toByteArray() throws IOException {
+            if(_data != null) {
+                return _data;
+            }
+            InputStream in = openStream();
+            try {
+                return IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Add the document to the artifact store. Any work file is moved
+         * into the store.
+         *
+         * @return the stored document.
+         */
+        Document persist(ArtifactStore pStore) throws IOException {
+            if(_artifact != null) {
+                return this;
+            }
+            Artifact artifact = (_data != null) ? pStore.put(_data) : pStore.put(_file);
+            return fromArtifact(_name, artifact);
+        }
+
+        void delete() {
+            if(_file != null) {
+                FileUtils.deleteQuietly(_file);
+            }
+        }
+    }
+
+    public Document getBasicXml() {
+        return _basicXml;
+    }
+
+    void setBasicXml(Document pBasicXml) {
+        this._basicXml = pBasicXml;
+    }
+
+    public Document getFullXml() {
+        return _fullXml;
+    }
+
+    void setFullXml(Document pFullXml) {
+        this._fullXml = pFullXml;
+    }
+
+    public Document getTransformedXml() {
+        return _transformedXml;
+    }
+
+    void setTransformedXml(Document pTransformedXml) {
+        this._transformedXml = pTransformedXml;
+    }
+
+    public boolean isTransformFailed() {
+        return _transformFailed;
+    }
+
+    public String getTransformErrors() {
+        return _transformErrors;
+    }
+
+    void setTransformStatus(boolean pTransformFailed, String pTransformErrors) {
+        this._transformFailed = pTransformFailed;
+        this._transformErrors = pTransformErrors;
+    }
+
+    /**
+     * @return true if the documents have been added to the artifact store.
+     */
+    public boolean isPersisted() {
+        return _transformedXml != null && _transformedXml.getArtifactId() != null;
+    }
+
+    /**
+     * Add the documents to the artifact store.
+     *
+     * @param pStore the artifact store.
+     * @throws IOException if a document cannot be stored.
+     */
+    void persist(ArtifactStore pStore) throws IOException {
+        _basicXml = _basicXml.persist(pStore);
+        _fullXml = _fullXml.persist(pStore);
+        _transformedXml = _transformedXml.persist(pStore);
+    }
+
+    /**
+     * Delete any work files holding documents that have not been added to
+     * the artifact store.
+     */
+    public void close() {
+        for(Document document : new Document[] { _basicXml, _fullXml, _transformedXml }) {
+            if(document != null) {
+                document.delete();
+            }
+        }
+    }
+}
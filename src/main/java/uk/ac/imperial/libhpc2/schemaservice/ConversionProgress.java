@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import org.apache.commons.io.input.ProxyInputStream;
+
+/**
+ * Tracks the progress of a profile conversion and allows it to be
+ * cancelled. The schema processor reports the stage of the conversion and
+ * counts the bytes read from the document being processed in that stage.
+ * A cancelled conversion, or one whose thread has been interrupted, fails
+ * with an InterruptedIOException the next time it reads from the document.
+ *
+ * @author jhc02
+ */
+public class ConversionProgress {
+
+    /**
+     * The stages of a conversion.
+     */
+    public enum Stage {
+        /** Embedding the uploaded files into the profile. */
+        ASSEMBLING,
+        /** Transforming the full profile into the output. */
+        TRANSFORMING,
+        /** Adding the documents to the artifact store. */
+        STORING
+    }
+
+    private volatile Stage _stage = Stage.ASSEMBLING;
+    private volatile long _bytesRead = 0;
+    private volatile long _bytesTotal = -1;
+    private volatile boolean _cancelled = false;
+
+    /**
+     * @return the current stage of the conversion.
+     */
+    public Stage getStage() {
+        return _stage;
+    }
+
+    /**
+     * @return the number of bytes of the document of the current stage
+     *         that have been read.
+     */
+    public long getBytesRead() {
+        return _bytesRead;
+    }
+
+    /**
+     * @return the length of the document of the current stage, or -1 if
+     *         it is not known.
+     */
+    public long getBytesTotal() {
+        return _bytesTotal;
+    }
+
+    /**
+     * Request that the conversion is stopped.
+     */
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+    /**
+     * Start a stage that does not read a document.
+     *
+     * @param pStage the stage.
+     * @throws InterruptedIOException if the conversion has been cancelled.
+     */
+    void startStage(Stage pStage) throws InterruptedIOException {
+        checkCancelled();
+        _stage = pStage;
+        _bytesRead = 0;
+        _bytesTotal = -1;
+    }
+
+    /**
+     * Start a stage that reads a document, returning a stream that counts
+     * the bytes read from the document and checks for cancellation.
+     *
+     * @param pStage the stage.
+     * @param pDocument stream reading the document.
+     * @param pLength the length of the document, or -1 if not known.
+     * @return the stream to read the document from.
+     * @throws InterruptedIOException if the conversion has been cancelled.
+     */
+    InputStream startStage(Stage pStage, InputStream pDocument, long pLength) throws InterruptedIOException {
+        startStage(pStage);
+        _bytesTotal = pLength;
+        return new ProxyInputStream(pDocument) {
+            @Override
+            protected void beforeRead(int pCount) throws IOException {
+                checkCancelled();
+            }
+
+            @Override
+            protected void afterRead(int pCount) {
+                if(pCount > 0) {
+                    _bytesRead += pCount;
+                }
+            }
+        };
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if(_cancelled || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("The conversion has been cancelled.");
+        }
+    }
+}
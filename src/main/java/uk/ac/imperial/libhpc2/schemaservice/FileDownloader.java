@@ -0,0 +1,586 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves files generated by the service for download.
+ *
+ * Responses include an accurate Content-Length along with Last-Modified
+ * and ETag headers, and conditional requests are supported. Single and
+ * multiple byte range requests (including If-Range) are supported so
+ * that interrupted downloads of large files can be resumed. File content
+ * is copied to the response using FileChannel.transferTo. Content that is
+ * not held in a file can be served by implementing {@link DownloadSource}.
+ * Content with a pre-compressed copy is sent gzip encoded to clients that
+ * accept it.
+ *
+ * The number of bytes served for each file is recorded and reported with
+ * the download statistics.
+ *
+ * @author jhc02
+ */
+public class FileDownloader {
+
+    private static final Logger sLog = LoggerFactory.getLogger(FileDownloader.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the shared instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "fileDownloader";
+
+    // Requests for more ranges than this are served as a single range
+    // covering all the requested ranges.
+    private static final int MAX_RANGES = 16;
+
+    // Number of files for which the bytes served are recorded.
+    private static final int MAX_TRACKED_FILES = 256;
+
+    private static final String CRLF = "\r\n";
+
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _fullResponses = new AtomicLong();
+    private final AtomicLong _gzipResponses = new AtomicLong();
+    private final AtomicLong _partialResponses = new AtomicLong();
+    private final AtomicLong _notModified = new AtomicLong();
+    private final AtomicLong _unsatisfiable = new AtomicLong();
+    private final AtomicLong _bytesServed = new AtomicLong();
+
+    // Bytes served for the most recently downloaded files. All access is
+    // synchronized on the map.
+    private final LinkedHashMap<String, AtomicLong> _fileBytes =
+            new LinkedHashMap<String, AtomicLong>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AtomicLong> pEldest) {
+            return size() > MAX_TRACKED_FILES;
+        }
+    };
+
+    /**
+     * Get the file downloader registered in the provided servlet context,
+     * creating and registering a new one if none exists yet.
+     *
+     * @param pContext the servlet context to look up the downloader in.
+     * @return the shared file downloader.
+     */
+    public static FileDownloader getInstance(ServletContext pContext) {
+        synchronized(pContext) {
+            FileDownloader downloader = (FileDownloader)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(downloader == null) {
+                downloader = new FileDownloader();
+                pContext.setAttribute(CONTEXT_ATTRIBUTE, downloader);
+            }
+            return downloader;
+        }
+    }
+
+    /**
+     * Content that can be downloaded.
+     */
+    public interface DownloadSource {
+
+        /**
+         * @return the name the bytes served for the content are recorded under.
+         */
+        String getName();
+
+        /**
+         * @return the length of the content in bytes.
+         */
+        long getLength();
+
+        /**
+         * @return the time the content was last modified in milliseconds.
+         */
+        long getLastModified();
+
+        /**
+         * @return a value identifying this version of the content, used as
+         *         the strong ETag of the response.
+         */
+        String getVersion();
+
+        /**
+         * Open the content for reading. The reader is closed once the
+         * response has been written.
+         */
+        RangeReader openReader() throws IOException;
+
+        /**
+         * @return a gzip compressed copy of the content that can be sent to
+         *         clients that accept gzip encoding, or null if there is
+         *         none. Range requests are always served from the
+         *         uncompressed content.
+         */
+        DownloadSource getGzipVariant();
+    }
+
+    /**
+     * Reads ranges of downloadable content.
+     */
+    public interface RangeReader extends Closeable {
+
+        /**
+         * Write up to the specified number of bytes starting at the
+         * specified position to the output stream.
+         *
+         * @return the number of bytes written, 0 or less if the content
+         *         has no more bytes at the specified position.
+         */
+        long transferTo(long pPosition, long pCount, OutputStream pOut) throws IOException;
+    }
+
+    /**
+     * Build the response for a request to download a file.
+     *
+     * @param pFile the file to download, this must exist.
+     * @param pMediaType the media type of the file.
+     * @param pRequest the request, used to evaluate preconditions.
+     * @param pHeaders the request headers, used to get any requested ranges.
+     * @return a response builder for the full file, the requested ranges
+     *         of the file or a status only response if the request is
+     *         conditional or the ranges cannot be satisfied. Further
+     *         headers may be added to the response by the caller.
+     */
+    public ResponseBuilder download(File pFile, String pMediaType, Request pRequest, HttpHeaders pHeaders) {
+        return download(new FileSource(pFile), pMediaType, pRequest, pHeaders);
+    }
+
+    /**
+     * Build the response for a request to download content.
+     *
+     * @see #download(File, String, Request, HttpHeaders)
+     */
+    public ResponseBuilder download(DownloadSource pSource, String pMediaType, Request pRequest, HttpHeaders pHeaders) {
+        _requests.incrementAndGet();
+
+        String rangeHeader = pHeaders.getHeaderString("Range");
+        DownloadSource gzipVariant = pSource.getGzipVariant();
+        boolean gzip = gzipVariant != null && rangeHeader == null && CompressionUtils.useGzip(pHeaders);
+        DownloadSource source = gzip ? gzipVariant : pSource;
+
+        final long length = source.getLength();
+        // HTTP dates have a resolution of one second
+        Date lastModified = new Date((source.getLastModified() / 1000) * 1000);
+        EntityTag etag = new EntityTag(source.getVersion());
+
+        ResponseBuilder rb = pRequest.evaluatePreconditions(lastModified, etag);
+        if(rb != null) {
+            _notModified.incrementAndGet();
+            if(gzipVariant != null) {
+                rb.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            }
+            return rb;
+        }
+
+        List<long[]> ranges = null;
+        if(rangeHeader != null && ifRangeMatches(pHeaders.getHeaderString("If-Range"), etag, lastModified)) {
+            ranges = parseRanges(rangeHeader, length);
+            if(ranges != null && ranges.isEmpty()) {
+                _unsatisfiable.incrementAndGet();
+                return Response.status(416).header("Content-Range", "bytes */" + length)
+                        .header("Accept-Ranges", "bytes");
+            }
+        }
+
+        if(ranges == null) {
+            _fullResponses.incrementAndGet();
+            rb = Response.ok(new FileRangeOutput(source, Collections.singletonList(new long[] {0, length - 1}),
+                                                 null, null, length), pMediaType)
+                    .header("Content-Length", length);
+            if(gzip) {
+                _gzipResponses.incrementAndGet();
+                rb.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+            }
+        }
+        else if(ranges.size() == 1) {
+            _partialResponses.incrementAndGet();
+            long[] range = ranges.get(0);
+            rb = Response.status(206)
+                    .entity(new FileRangeOutput(source, ranges, null, null, length))
+                    .type(pMediaType)
+                    .header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length)
+                    .header("Content-Length", range[1] - range[0] + 1);
+        }
+        else {
+            _partialResponses.incrementAndGet();
+            String boundary = UUID.randomUUID().toString();
+            FileRangeOutput output = new FileRangeOutput(source, ranges, boundary, pMediaType, length);
+            rb = Response.status(206)
+                    .entity(output)
+                    .type("multipart/byteranges; boundary=" + boundary)
+                    .header("Content-Length", output.getContentLength());
+        }
+        if(gzipVariant != null) {
+            rb.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        return rb.lastModified(lastModified).tag(etag).header("Accept-Ranges", "bytes");
+    }
+
+    /**
+     * Get a snapshot of the download statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("requests", _requests.get());
+        stats.put("fullResponses", _fullResponses.get());
+        stats.put("gzipResponses", _gzipResponses.get());
+        stats.put("partialResponses", _partialResponses.get());
+        stats.put("notModified", _notModified.get());
+        stats.put("unsatisfiable", _unsatisfiable.get());
+        stats.put("bytesServed", _bytesServed.get());
+        Map<String, Object> files = new LinkedHashMap<String, Object>();
+        synchronized(_fileBytes) {
+            for(Map.Entry<String, AtomicLong> entry : _fileBytes.entrySet()) {
+                files.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        stats.put("fileBytesServed", files);
+        return stats;
+    }
+
+    private void recordBytesServed(String pFileName, long pBytes) {
+        _bytesServed.addAndGet(pBytes);
+        AtomicLong fileBytes;
+        synchronized(_fileBytes) {
+            fileBytes = _fileBytes.get(pFileName);
+            if(fileBytes == null) {
+                fileBytes = new AtomicLong();
+                _fileBytes.put(pFileName, fileBytes);
+            }
+        }
+        fileBytes.addAndGet(pBytes);
+    }
+
+    /**
+     * Check whether the range request should be applied given the value of
+     * the If-Range header. Ranges are only applied if the representation
+     * is unchanged from that identified by the header.
+     */
+    private static boolean ifRangeMatches(String pIfRange, EntityTag pETag, Date pLastModified) {
+        if(pIfRange == null) {
+            return true;
+        }
+        String ifRange = pIfRange.trim();
+        if(ifRange.startsWith("\"")) {
+            return ifRange.equals("\"" + pETag.getValue() + "\"");
+        }
+        if(ifRange.startsWith("W/")) {
+            // Weak tags cannot be used with If-Range
+            return false;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(ifRange).getTime() == pLastModified.getTime();
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parse a Range header value.
+     *
+     * @return null if the header is not a valid byte range header, in which
+     *         case it is ignored, an empty list if none of the ranges can be
+     *         satisfied, otherwise the list of satisfiable ranges as
+     *         inclusive start and end offsets. Overlapping and adjacent
+     *         ranges are combined.
+     */
+    static List<long[]> parseRanges(String pHeader, long pLength) {
+        String header = pHeader.trim();
+        if(!header.startsWith("bytes=")) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>();
+        for(String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if(dash < 0) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try {
+                if(first.isEmpty()) {
+                    // Suffix range, the last n bytes of the file
+                    long suffix = Long.parseLong(last);
+                    if(suffix <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, pLength - suffix);
+                    end = pLength - 1;
+                }
+                else {
+                    start = Long.parseLong(first);
+                    end = pLength - 1;
+                    if(!last.isEmpty()) {
+                        long requestedEnd = Long.parseLong(last);
+                        if(requestedEnd < start) {
+                            return null;
+                        }
+                        end = Math.min(requestedEnd, end);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if(start < 0) {
+                return null;
+            }
+            if(start < pLength) {
+                ranges.add(new long[] {start, end});
+            }
+        }
+
+        if(ranges.size() > 1) {
+            ranges = coalesce(ranges);
+        }
+        if(ranges.size() > MAX_RANGES) {
+            sLog.debug("Serving <{}> requested ranges as a single range.", ranges.size());
+            long[] span = new long[] {ranges.get(0)[0], ranges.get(ranges.size() - 1)[1]};
+            ranges = Collections.singletonList(span);
+        }
+        return ranges;
+    }
+
+    private static List<long[]> coalesce(List<long[]> pRanges) {
+        List<long[]> sorted = new ArrayList<long[]>(pRanges);
+        Collections.sort(sorted, new Comparator<long[]>() {
+            public int compare(long[] r1, long[] r2) {
+                return (r1[0] < r2[0]) ? -1 : ((r1[0] == r2[0]) ? 0 : 1);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>();
+        long[] current = sorted.get(0).clone();
+        for(int i = 1; i < sorted.size(); i++) {
+            long[] next = sorted.get(i);
+            if(next[0] <= current[1] + 1) {
+                current[1] = Math.max(current[1], next[1]);
+            }
+            else {
+                merged.add(current);
+                current = next.clone();
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * Open a reader for ranges of a file.
+     */
+    static RangeReader openFileReader(final File pFile) throws IOException {
+        final FileInputStream in = new FileInputStream(pFile);
+        final FileChannel channel = in.getChannel();
+        return new RangeReader() {
+            public long transferTo(long pPosition, long pCount, OutputStream pOut) throws IOException {
+                return channel.transferTo(pPosition, pCount, Channels.newChannel(pOut));
+            }
+
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Download source for a file, versioned by its size and modification
+     * time.
+     */
+    private static class FileSource implements DownloadSource {
+
+        private final File _file;
+
+        FileSource(File pFile) {
+            this._file = pFile;
+        }
+
+        public String getName() {
+            return _file.getName();
+        }
+
+        public long getLength() {
+            return _file.length();
+        }
+
+        public long getLastModified() {
+            return _file.lastModified();
+        }
+
+        public String getVersion() {
+            return TransformCache.getVersion(_file);
+        }
+
+        public RangeReader openReader() throws IOException {
+            return openFileReader(_file);
+        }
+
+        public DownloadSource getGzipVariant() {
+            return null;
+        }
+    }
+
+    /**
+     * Writes ranges of content to the response. If a boundary is provided,
+     * the ranges are written as the parts of a multipart/byteranges body.
+     */
+    private class FileRangeOutput implements StreamingOutput {
+
+        private final DownloadSource _source;
+        private final List<long[]> _ranges;
+        private final String _boundary;
+        private final String _mediaType;
+        private final long _length;
+
+        FileRangeOutput(DownloadSource pSource, List<long[]> pRanges, String pBoundary,
+                        String pMediaType, long pLength) {
+            this._source = pSource;
+            this._ranges = pRanges;
+            this._boundary = pBoundary;
+            this._mediaType = pMediaType;
+            this._length = pLength;
+        }
+
+        private String partHeader(long[] pRange) {
+            return CRLF + "--" + _boundary + CRLF
+                    + "Content-Type: " + _mediaType + CRLF
+                    + "Content-Range: bytes " + pRange[0] + "-" + pRange[1] + "/" + _length + CRLF
+                    + CRLF;
+        }
+
+        private String closingBoundary() {
+            return CRLF + "--" + _boundary + "--" + CRLF;
+        }
+
+        /**
+         * @return the total length of the response body.
+         */
+        long getContentLength() {
+            long contentLength = 0;
+            for(long[] range : _ranges) {
+                if(_boundary != null) {
+                    contentLength += partHeader(range).getBytes(SchemaProcessorUtils.UTF8).length;
+                }
+                contentLength += range[1] - range[0] + 1;
+            }
+            if(_boundary != null) {
+                contentLength += closingBoundary().getBytes(SchemaProcessorUtils.UTF8).length;
+            }
+            return contentLength;
+        }
+
+        @Override
+        public void write(OutputStream pOut) throws IOException, WebApplicationException {
+            long served = 0;
+            RangeReader in = _source.openReader();
+            try {
+                for(long[] range : _ranges) {
+                    if(_boundary != null) {
+                        pOut.write(partHeader(range).getBytes(SchemaProcessorUtils.UTF8));
+                    }
+                    long position = range[0];
+                    long remaining = range[1] - range[0] + 1;
+                    while(remaining > 0) {
+                        long transferred = in.transferTo(position, remaining, pOut);
+                        if(transferred <= 0) {
+                            throw new IOException("Content <" + _source.getName() + "> was truncated during download.");
+                        }
+                        position += transferred;
+                        remaining -= transferred;
+                        served += transferred;
+                    }
+                }
+                if(_boundary != null) {
+                    pOut.write(closingBoundary().getBytes(SchemaProcessorUtils.UTF8));
+                }
+                pOut.flush();
+            } finally {
+                in.close();
+                recordBytesServed(_source.getName(), served);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches strings, such as template IDs, against a set of glob patterns.
+ * A * in a pattern matches any sequence of characters and a ? matches any
+ * single character, all other characters match themselves.
+ *
+ * The patterns are compiled once into a single regular expression so
+ * that a string is tested against all of the patterns in one pass rather
+ * than against each pattern in turn.
+ *
+ * @author jhc02
+ */
+public final class GlobMatcher {
+
+    /**
+     * A matcher without any patterns, which matches nothing.
+     */
+    public static final GlobMatcher NONE = new GlobMatcher(Collections.<String>emptyList());
+
+    private final List<String> _patterns;
+    private final Pattern _pattern;
+
+    /**
+     * @param pPatterns the glob patterns. Patterns that are empty or
+     *        contain only whitespace are ignored and other patterns are
+     *        trimmed.
+     */
+    public GlobMatcher(List<String> pPatterns) {
+        List<String> patterns = new ArrayList<String>();
+        StringBuilder regex = new StringBuilder();
+        for(String glob : pPatterns) {
+            if(glob == null || glob.trim().length() == 0) {
+                continue;
+            }
+            glob = glob.trim();
+            patterns.add(glob);
+            if(regex.length() > 0) {
+                regex.append('|');
+            }
+            int literalStart = 0;
+            for(int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if(c == '*' || c == '?') {
+                    if(i > literalStart) {
+                        regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                    }
+                    regex.append((c == '*') ? ".*" : ".");
+                    literalStart = i + 1;
+                }
+            }
+            if(literalStart < glob.length()) {
+                regex.append(Pattern.quote(glob.substring(literalStart)));
+            }
+        }
+        this._patterns = Collections.unmodifiableList(patterns);
+        this._pattern = patterns.isEmpty() ? null : Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * @param pValue the string to test.
+     * @return true if the string matches any of the patterns.
+     */
+    public boolean matches(String pValue) {
+        return _pattern != null && _pattern.matcher(pValue).matches();
+    }
+
+    /**
+     * @return true if the matcher has no patterns.
+     */
+    public boolean isEmpty() {
+        return _pattern == null;
+    }
+
+    /**
+     * @return the patterns of the matcher.
+     */
+    public List<String> getPatterns() {
+        return _patterns;
+    }
+
+    @Override
+    public boolean equals(Object pOther) {
+        return (pOther instanceof GlobMatcher) && _patterns.equals(((GlobMatcher)pOther)._patterns);
+    }
+
+    @Override
+    public int hashCode() {
+        return _patterns.hashCode();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.Result;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * SAX handler that serializes the events it receives as indented XML,
+ * writing the output as the events arrive. No document tree is built, so
+ * the memory used does not depend on the size of the document. It can be
+ * used as the target of a transform via a SAXResult or of a SAX parser to
+ * format an existing document.
+ *
+ * Each element starts on a new line, indented according to its depth.
+ * Whitespace-only text is treated as formatting and replaced. Elements
+ * containing other text are written without any added whitespace inside
+ * them so that their content is unchanged.
+ *
+ * @author jhc02
+ */
+public class IndentingXmlWriter extends DefaultHandler implements LexicalHandler {
+
+    private final Writer _out;
+    private final String _encoding;
+    private final CharsetEncoder _encoder;
+    private final boolean _omitDeclaration;
+    private final String _indent;
+
+    // Nesting depth and, for each open element, whether it contains text.
+    private int _depth = 0;
+    private boolean[] _hasText = new boolean[32];
+    private boolean[] _hasChildren = new boolean[32];
+
+    private boolean _startTagOpen = false;
+    private boolean _written = false;
+    private boolean _inCdata = false;
+    private boolean _inDtd = false;
+    private boolean _escaping = true;
+    private final StringBuilder _text = new StringBuilder();
+    private final List<String> _namespaceDeclarations = new ArrayList<String>();
+
+    /**
+     * Create a writer that writes to the specified stream.
+     *
+     * @param pOut the stream to write to. It is flushed but not closed
+     *        when the end of the document is reached.
+     * @param pEncoding the character encoding to write, UTF-8 if null.
+     *        Characters that cannot be represented in the encoding are
+     *        written as character references.
+     * @param pOmitDeclaration true if no XML declaration is to be written.
+     * @param pIndentAmount the number of spaces to indent each level by.
+     */
+    public IndentingXmlWriter(OutputStream pOut, String pEncoding,
+                              boolean pOmitDeclaration, int pIndentAmount) {
+        this._encoding = (pEncoding == null) ? "UTF-8" : pEncoding;
+        Charset charset = Charset.forName(_encoding);
+        this._out = new BufferedWriter(new OutputStreamWriter(pOut, charset));
+        this._encoder = charset.newEncoder();
+        this._omitDeclaration = pOmitDeclaration;
+        StringBuilder indent = new StringBuilder();
+        for(int i = 0; i < pIndentAmount; i++) {
+            indent.append(' ');
+        }
+        this._indent = indent.toString();
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        if(!_omitDeclaration) {
+            write("<?xml version=\"1.0\" encoding=\"" + _encoding + "\"?>");
+        }
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        flushText();
+        try {
+            if(_written) {
+                _out.write('\n');
+            }
+            _out.flush();
+        } catch (IOException e) {
+            throw new SAXException("Unable to write XML output: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(String pPrefix, String pUri) throws SAXException {
+        String name = (pPrefix == null || pPrefix.isEmpty()) ? "xmlns" : "xmlns:" + pPrefix;
+        _namespaceDeclarations.add(name);
+        _namespaceDeclarations.add(pUri);
+    }
+
+    @Override
+    public void startElement(String pUri, String pLocalName, String pQName, Attributes pAttributes)
+        throws SAXException
+    {
+        flushText();
+        closeStartTag();
+        markChild();
+        startLine();
+
+        String name = (pQName == null || pQName.isEmpty()) ? pLocalName : pQName;
+        StringBuilder tag = new StringBuilder("<").append(name);
+        for(int i = 0; i < _namespaceDeclarations.size(); i += 2) {
+            appendAttribute(tag, _namespaceDeclarations.get(i), _namespaceDeclarations.get(i + 1));
+        }
+        for(int i = 0; i < pAttributes.getLength(); i++) {
+            String attrName = pAttributes.getQName(i);
+            if(attrName == null || attrName.isEmpty()) {
+                attrName = pAttributes.getLocalName(i);
+            }
+            // Namespace declarations may also be reported as attributes
+            if(attrName.startsWith("xmlns") && _namespaceDeclarations.contains(attrName)) {
+                continue;
+            }
+            appendAttribute(tag, attrName, pAttributes.getValue(i));
+        }
+        _namespaceDeclarations.clear();
+        write(tag.toString());
+        _startTagOpen = true;
+
+        _depth++;
+        if(_depth >= _hasText.length) {
+            boolean[] hasText = new boolean[_hasText.length * 2];
+            System.arraycopy(_hasText, 0, hasText, 0, _hasText.length);
+            _hasText = hasText;
+            boolean[] hasChildren = new boolean[_hasChildren.length * 2];
+            System.arraycopy(_hasChildren, 0, hasChildren, 0, _hasChildren.length);
+            _hasChildren = hasChildren;
+        }
+        _hasText[_depth] = false;
+        _hasChildren[_depth] = false;
+    }
+
+    @Override
+    public void endElement(String pUri, String pLocalName, String pQName) throws SAXException {
+        flushText();
+        String name = (pQName == null || pQName.isEmpty()) ? pLocalName : pQName;
+        boolean indentEndTag = _hasChildren[_depth] && !_hasText[_depth];
+        _depth--;
+        if(_startTagOpen) {
+            write("/>");
+            _startTagOpen = false;
+        }
+        else {
+            if(indentEndTag) {
+                newLine();
+            }
+            write("</" + name + ">");
+        }
+    }
+
+    @Override
+    public void characters(char[] pCh, int pStart, int pLength) throws SAXException {
+        if(_inDtd) {
+            return;
+        }
+        if(_inCdata) {
+            write(new String(pCh, pStart, pLength).replace("]]>", "]]]]><![CDATA[>"));
+            return;
+        }
+        _text.append(pCh, pStart, pLength);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] pCh, int pStart, int pLength) {
+        // Formatting whitespace is replaced by the indentation
+    }
+
+    @Override
+    public void processingInstruction(String pTarget, String pData) throws SAXException {
+        // The transformer reports disable-output-escaping as instructions
+        if(Result.PI_DISABLE_OUTPUT_ESCAPING.equals(pTarget)) {
+            flushText();
+            _escaping = false;
+            return;
+        }
+        if(Result.PI_ENABLE_OUTPUT_ESCAPING.equals(pTarget)) {
+            flushText();
+            _escaping = true;
+            return;
+        }
+        flushText();
+        closeStartTag();
+        markChild();
+        startLine();
+        write("<?" + pTarget + ((pData == null || pData.isEmpty()) ? "" : " " + pData) + "?>");
+    }
+
+    public void comment(char[] pCh, int pStart, int pLength) throws SAXException {
+        if(_inDtd) {
+            return;
+        }
+        flushText();
+        closeStartTag();
+        markChild();
+        startLine();
+        write("<!--" + new String(pCh, pStart, pLength) + "-->");
+    }
+
+    public void startCDATA() throws SAXException {
+        flushText();
+        closeStartTag();
+        _hasText[_depth] = true;
+        write("<![CDATA[");
+        _inCdata = true;
+    }
+
+    public void endCDATA() throws SAXException {
+        _inCdata = false;
+        write("]]>");
+    }
+
+    public void startDTD(String pName, String pPublicId, String pSystemId) throws SAXException {
+        startLine();
+        StringBuilder doctype = new StringBuilder("<!DOCTYPE ").append(pName);
+        if(pPublicId != null) {
+            doctype.append(" PUBLIC \"").append(pPublicId).append("\" \"").append(pSystemId).append("\"");
+        }
+        else if(pSystemId != null) {
+            doctype.append(" SYSTEM \"").append(pSystemId).append("\"");
+        }
+        write(doctype.append(">").toString());
+        _inDtd = true;
+    }
+
+    public void endDTD() {
+        _inDtd = false;
+    }
+
+    public void startEntity(String pName) {
+    }
+
+    public void endEntity(String pName) {
+    }
+
+    /**
+     * Write any buffered text. Whitespace-only text is discarded since it
+     * is replaced by the indentation.
+     */
+    private void flushText() throws SAXException {
+        if(_text.length() == 0) {
+            return;
+        }
+        String text = _text.toString();
+        _text.setLength(0);
+        if(text.trim().isEmpty()) {
+            return;
+        }
+        closeStartTag();
+        _hasText[_depth] = true;
+        if(_escaping) {
+            StringBuilder escaped = new StringBuilder(text.length() + 16);
+            escape(escaped, text, false);
+            write(escaped.toString());
+        }
+        else {
+            write(text);
+        }
+    }
+
+    private void closeStartTag() throws SAXException {
+        if(_startTagOpen) {
+            write(">");
+            _startTagOpen = false;
+        }
+    }
+
+    private void markChild() {
+        _hasChildren[_depth] = true;
+    }
+
+    /**
+     * Start a new line for an element, comment or processing instruction
+     * unless the enclosing element contains text.
+     */
+    private void startLine() throws SAXException {
+        if(!_hasText[_depth]) {
+            newLine();
+        }
+    }
+
+    private void newLine() throws SAXException {
+        if(!_written) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(1 + _depth * _indent.length()).append('\n');
+        for(int i = 0; i < _depth; i++) {
+            line.append(_indent);
+        }
+        write(line.toString());
+    }
+
+    private void appendAttribute(StringBuilder pTag, String pName, String pValue) {
+        pTag.append(' ').append(pName).append("=\"");
+        escape(pTag, pValue, true);
+        pTag.append('"');
+    }
+
+    private void escape(StringBuilder pOut, String pText, boolean pAttribute) {
+        for(int i = 0; i < pText.length(); i++) {
+            char c = pText.charAt(i);
+            switch(c) {
+            case '&': pOut.append("&amp;"); break;
+            case '<': pOut.append("&lt;"); break;
+            case '>': pOut.append("&gt;"); break;
+            case '\r': pOut.append("&#13;"); break;
+            case '"': pOut.append(pAttribute ? "&quot;" : "\""); break;
+            case '\n': pOut.append(pAttribute ? "&#10;" : "\n"); break;
+            case '\t': pOut.append(pAttribute ? "&#9;" : "\t"); break;
+            default:
+                if(c < 0x80 || _encoder.canEncode(c)) {
+                    pOut.append(c);
+                }
+                else if(Character.isHighSurrogate(c) && i + 1 < pText.length()) {
+                    String pair = pText.substring(i, i + 2);
+                    if(_encoder.canEncode(pair)) {
+                        pOut.append(pair);
+                    }
+                    else {
+                        pOut.append("&#").append(pair.codePointAt(0)).append(';');
+                    }
+                    i++;
+                }
+                else {
+                    pOut.append("&#").append((int)c).append(';');
+                }
+            }
+        }
+    }
+
+    private void write(String pText) throws SAXException {
+        try {
+            _out.write(pText);
+            _written = true;
+        } catch (IOException e) {
+            throw new SAXException("Unable to write XML output: " + e.getMessage(), e);
+        }
+    }
+}
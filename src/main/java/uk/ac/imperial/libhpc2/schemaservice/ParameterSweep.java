@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Generates the variants of a profile for a parameter sweep. A sweep sets
+ * one or more parameters of a base profile, each addressed by an XPath
+ * expression, to each of a list of values. The variants are either every
+ * combination of the parameter values (cartesian) or the values at the
+ * same position in each list (zip).
+ *
+ * The base profile is parsed once and the nodes addressed by each
+ * parameter are located once. Each variant is then produced by setting
+ * the values of those nodes in the parsed profile and serializing it.
+ *
+ * A sweep is described in JSON:
+ * <pre>
+ * {
+ *   "combine": "cartesian",
+ *   "parameters": [
+ *     { "name": "order", "path": "//PolynomialOrder", "values": [4, 5, 6] },
+ *     { "path": "//TimeStep", "start": 0.001, "end": 0.004, "step": 0.001 }
+ *   ]
+ * }
+ * </pre>
+ * combine is "cartesian" (the default) or "zip". The name of a parameter
+ * defaults to its path and must be unique within the sweep. Values are given either as a list or as a range
+ * from start to end inclusive in increments of step.
+ *
+ * @author jhc02
+ */
+public class ParameterSweep {
+
+    /**
+     * Combination of parameter values generating every combination.
+     */
+    public static final String COMBINE_CARTESIAN = "cartesian";
+
+    /**
+     * Combination of parameter values pairing values by position.
+     */
+    public static final String COMBINE_ZIP = "zip";
+
+    /**
+     * Receives each variant of the profile as it is generated.
+     */
+    public interface VariantHandler {
+        /**
+         * @param pIndex the index of the variant, from 0.
+         * @param pParameters map of parameter name to the value set in
+         *        the variant, in the order the parameters were specified.
+         * @param pProfile the variant profile XML.
+         * @throws IOException if the variant cannot be handled, which
+         *         stops the generation.
+         */
+        void variant(int pIndex, Map<String, String> pParameters, byte[] pProfile) throws IOException;
+    }
+
+    /**
+     * A swept parameter.
+     */
+    public static final class Parameter {
+
+        private final String _name;
+        private final String _path;
+        private final List<String> _values;
+
+        public Parameter(String pName, String pPath, List<String> pValues) {
+            this._name = pName;
+            this._path = pPath;
+            this._values = Collections.unmodifiableList(new ArrayList<String>(pValues));
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public String getPath() {
+            return _path;
+        }
+
+        public List<String> getValues() {
+            return _values;
+        }
+    }
+
+    private final List<Parameter> _parameters;
+    private final boolean _zip;
+    private final long _variantCount;
+
+    /**
+     * @param pParameters the parameters to sweep, at least one.
+     * @param pZip true to pair values by position, false to generate every
+     *        combination of values.
+     * @throws IllegalArgumentException if no parameters are specified, two
+     *         parameters have the same name, a parameter has no values or,
+     *         when pairing values, the parameters have different numbers of
+     *         values.
+     */
+    public ParameterSweep(List<Parameter> pParameters, boolean pZip) {
+        if(pParameters.isEmpty()) {
+            throw new IllegalArgumentException("A sweep must have at least one parameter.");
+        }
+        long count = pZip ? pParameters.get(0).getValues().size() : 1L;
+        Set<String> names = new HashSet<String>();
+        for(Parameter parameter : pParameters) {
+            if(!names.add(parameter.getName())) {
+                throw new IllegalArgumentException("More than one parameter is named <" + parameter.getName()
+                                                   + ">, parameters with the same path must be given "
+                                                   + "different names.");
+            }
+            int size = parameter.getValues().size();
+            if(size == 0) {
+                throw new IllegalArgumentException("Parameter <" + parameter.getName() + "> has no values.");
+            }
+            if(pZip && size != count) {
+                throw new IllegalArgumentException("Parameters combined with zip must have the same number of "
+                                                   + "values, parameter <" + parameter.getName() + "> has <"
+                                                   + size + "> values rather than <" + count + ">.");
+            }
+            if(!pZip) {
+                // Limit the count so that it cannot overflow
+                count = Math.min(count * size, Integer.MAX_VALUE);
+            }
+        }
+        this._parameters = Collections.unmodifiableList(new ArrayList<Parameter>(pParameters));
+        this._zip = pZip;
+        this._variantCount = count;
+    }
+
+    /**
+     * Create a sweep from its JSON description.
+     *
+     * @param pJson the JSON description of the sweep.
+     * @param pMaxValues the maximum number of values a range may generate.
+     * @return the sweep.
+     * @throws IllegalArgumentException if the description is not valid.
+     */
+    public static ParameterSweep fromJson(String pJson, int pMaxValues) {
+        try {
+            JSONObject sweep = new JSONObject(pJson);
+            String combine = sweep.optString("combine", COMBINE_CARTESIAN);
+            if(!COMBINE_CARTESIAN.equals(combine) && !COMBINE_ZIP.equals(combine)) {
+                throw new IllegalArgumentException("Unknown combine value <" + combine
+                                                   + ">, combine must be cartesian or zip.");
+            }
+            JSONArray parameterList = sweep.getJSONArray("parameters");
+            List<Parameter> parameters = new ArrayList<Parameter>();
+            for(int i = 0; i < parameterList.length(); i++) {
+                JSONObject parameter = parameterList.getJSONObject(i);
+                String path = parameter.getString("path");
+                String name = parameter.optString("name", path);
+                List<String> values = new ArrayList<String>();
+                JSONArray valueList = parameter.optJSONArray("values");
+                if(valueList != null) {
+                    for(int j = 0; j < valueList.length(); j++) {
+                        values.add(valueList.getString(j));
+                    }
+                }
+                else {
+                    values = range(name, parameter.getString("start"), parameter.getString("end"),
+                                   parameter.getString("step"), pMaxValues);
+                }
+                parameters.add(new Parameter(name, path, values));
+            }
+            return new ParameterSweep(parameters, COMBINE_ZIP.equals(combine));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid sweep description: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the values of a range. Decimal arithmetic is used so that the
+     * values are exactly those a user would write.
+     */
+    private static List<String> range(String pName, String pStart, String pEnd, String pStep, int pMaxValues) {
+        BigDecimal start, end, step;
+        try {
+            start = new BigDecimal(pStart);
+            end = new BigDecimal(pEnd);
+            step = new BigDecimal(pStep);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The range of parameter <" + pName + "> is not numeric.");
+        }
+        if(step.signum() == 0 || step.signum() != end.subtract(start).signum() && end.compareTo(start) != 0) {
+            throw new IllegalArgumentException("The step of parameter <" + pName
+                                               + "> does not lead from start to end.");
+        }
+        List<String> values = new ArrayList<String>();
+        for(BigDecimal value = start;
+            (step.signum() > 0) ? value.compareTo(end) <= 0 : value.compareTo(end) >= 0;
+            value = value.add(step)) {
+            if(values.size() >= pMaxValues) {
+                throw new IllegalArgumentException("The range of parameter <" + pName + "> has more than <"
+                                                   + pMaxValues + "> values.");
+            }
+            values.add(value.toPlainString());
+        }
+        return values;
+    }
+
+    public List<Parameter> getParameters() {
+        return _parameters;
+    }
+
+    public boolean isZip() {
+        return _zip;
+    }
+
+    /**
+     * @return the number of variants the sweep generates, limited to
+     *         Integer.MAX_VALUE.
+     */
+    public long getVariantCount() {
+        return _variantCount;
+    }
+
+    /**
+     * Get the value of each parameter in a variant.
+     *
+     * @param pVariant the index of the variant.
+     * @return map of parameter name to value, in parameter order.
+     */
+    public Map<String, String> getValues(int pVariant) {
+        String[] selected = selectValues(pVariant);
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for(int i = 0; i < selected.length; i++) {
+            values.put(_parameters.get(i).getName(), selected[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Get the value of each parameter in a variant, indexed by the position
+     * of the parameter.
+     */
+    private String[] selectValues(int pVariant) {
+        // For cartesian sweeps the last parameter varies fastest
+        int remaining = pVariant;
+        String[] selected = new String[_parameters.size()];
+        for(int i = _parameters.size() - 1; i >= 0; i--) {
+            List<String> parameterValues = _parameters.get(i).getValues();
+            if(_zip) {
+                selected[i] = parameterValues.get(pVariant);
+            }
+            else {
+                selected[i] = parameterValues.get(remaining % parameterValues.size());
+                remaining /= parameterValues.size();
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Generate the variants of a profile.
+     *
+     * @param pBaseProfile stream containing the base profile, which is read
+     *        but not closed.
+     * @param pHandler the handler receiving the variants.
+     * @throws IllegalArgumentException if a parameter path is not a valid
+     *         XPath expression or does not match any nodes of the profile.
+     * @throws IOException if the profile cannot be parsed, a variant cannot
+     *         be serialized or the handler fails.
+     */
+    public void generate(InputStream pBaseProfile, VariantHandler pHandler) throws IOException {
+        Document profile = parse(pBaseProfile);
+
+        // Locate the nodes addressed by each parameter once
+        List<List<Node>> targets = new ArrayList<List<Node>>();
+        for(Parameter parameter : _parameters) {
+            NodeList nodes;
+            try {
+                nodes = (NodeList)XPathFactory.newInstance().newXPath()
+                        .evaluate(parameter.getPath(), profile, XPathConstants.NODESET);
+            } catch (XPathExpressionException e) {
+                throw new IllegalArgumentException("The path <" + parameter.getPath() + "> of parameter <"
+                                                   + parameter.getName() + "> is not a valid node set expression.");
+            }
+            if(nodes.getLength() == 0) {
+                throw new IllegalArgumentException("The path <" + parameter.getPath() + "> of parameter <"
+                                                   + parameter.getName() + "> does not match the profile.");
+            }
+            List<Node> parameterTargets = new ArrayList<Node>();
+            for(int i = 0; i < nodes.getLength(); i++) {
+                parameterTargets.add(nodes.item(i));
+            }
+            targets.add(parameterTargets);
+        }
+
+        Transformer serializer;
+        try {
+            serializer = TransformerFactory.newInstance().newTransformer();
+        } catch (TransformerException e) {
+            throw new IOException("Unable to create XML serializer for parameter sweep: " + e.getMessage(), e);
+        }
+        serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int variant = 0; variant < _variantCount; variant++) {
+            String[] selected = selectValues(variant);
+            for(int i = 0; i < selected.length; i++) {
+                for(Node node : targets.get(i)) {
+                    if(node.getNodeType() == Node.ELEMENT_NODE) {
+                        node.setTextContent(selected[i]);
+                    }
+                    else {
+                        node.setNodeValue(selected[i]);
+                    }
+                }
+            }
+            out.reset();
+            try {
+                serializer.transform(new DOMSource(profile), new StreamResult(out));
+            } catch (TransformerException e) {
+                throw new IOException("Unable to serialize profile variant: " + e.getMessage(), e);
+            }
+            pHandler.variant(variant, getValues(variant), out.toByteArray());
+        }
+    }
+
+    private static Document parse(InputStream pProfile) throws IOException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        try {
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            return builder.parse(pProfile);
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Unable to create XML parser for parameter sweep: " + e.getMessage(), e);
+        } catch (SAXException e) {
+            throw new IllegalArgumentException("Unable to parse the base profile: " + e.getMessage(), e);
+        }
+    }
+}
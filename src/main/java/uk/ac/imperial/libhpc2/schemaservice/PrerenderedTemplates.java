@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.libhpc2.schemaservice.TemplateTreeCache.RenderedTree;
+
+/**
+ * Provides access to the template trees rendered when the service was
+ * built by {@link TemplatePrerenderer}. These are packaged into the
+ * WEB-INF/prerendered directory of the web application.
+ *
+ * A prerendered tree is only returned if its recorded hash matches the
+ * hash computed for the currently deployed schema and transform files, if
+ * a schema has been changed on disk the tree is rendered at runtime instead.
+ *
+ * @author jhc02
+ */
+public class PrerenderedTemplates {
+
+    private static final Logger sLog = LoggerFactory.getLogger(PrerenderedTemplates.class.getName());
+
+    /**
+     * Location of the prerendered trees within the web application.
+     */
+    public static final String PRERENDERED_PATH = "/WEB-INF/prerendered";
+
+    /**
+     * Name of the manifest file containing the hash of each prerendered tree.
+     */
+    public static final String MANIFEST_NAME = "prerendered.properties";
+
+    private final File _directory;
+    private final Properties _manifest = new Properties();
+
+    private final AtomicLong _loaded = new AtomicLong();
+    private final AtomicLong _stale = new AtomicLong();
+
+    /**
+     * @param pDirectory the directory containing the prerendered trees. If
+     *        the directory or its manifest do not exist, no prerendered
+     *        trees are available.
+     */
+    public PrerenderedTemplates(File pDirectory) {
+        this._directory = pDirectory;
+        File manifestFile = new File(pDirectory, MANIFEST_NAME);
+        if(!manifestFile.exists()) {
+            sLog.debug("No prerendered template trees found at <{}>.", pDirectory);
+            return;
+        }
+        try {
+            InputStream in = new FileInputStream(manifestFile);
+            try {
+                _manifest.load(in);
+            } finally {
+                in.close();
+            }
+            sLog.info("Found <{}> prerendered template trees.", _manifest.size());
+        } catch (IOException e) {
+            sLog.error("Unable to read prerendered template manifest <{}>: {}", manifestFile, e.getMessage());
+            _manifest.clear();
+        }
+    }
+
+    /**
+     * Get the prerendered tree for a template if one is available and it
+     * was rendered from the same schema and transform content.
+     *
+     * @param pTemplateId the ID of the template.
+     * @param pHash the hash computed for the currently deployed template.
+     * @return the prerendered tree or null if there is no matching tree.
+     */
+    public RenderedTree getTree(String pTemplateId, String pHash) {
+        String prerenderedHash = _manifest.getProperty(pTemplateId);
+        if(prerenderedHash == null) {
+            return null;
+        }
+        if(!prerenderedHash.equals(pHash)) {
+            _stale.incrementAndGet();
+            sLog.debug("Prerendered tree for <{}> is out of date.", pTemplateId);
+            return null;
+        }
+        try {
+            byte[] html = FileUtils.readFileToByteArray(new File(_directory, pTemplateId + ".html"));
+            byte[] gzipHtml = null;
+            File gzipFile = new File(_directory, pTemplateId + ".html.gz");
+            if(gzipFile.exists()) {
+                gzipHtml = FileUtils.readFileToByteArray(gzipFile);
+            }
+            _loaded.incrementAndGet();
+            return new RenderedTree(pTemplateId, pHash, html, gzipHtml);
+        } catch (IOException e) {
+            sLog.error("Unable to read prerendered tree for <{}>: {}", pTemplateId, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get a snapshot of the prerendered tree statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("available", _manifest.size());
+        stats.put("loaded", _loaded.get());
+        stats.put("stale", _stale.get());
+        return stats;
+    }
+}
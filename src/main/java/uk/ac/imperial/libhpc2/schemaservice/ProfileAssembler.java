@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Assembles a complete profile from an uploaded profile and the files that
+ * are to be embedded in it, working entirely with streams so that memory
+ * use does not depend on the size of the profile or its embedded files.
+ *
+ * Files are embedded by replacing each occurrence of a file's name in the
+ * profile with the content of the file. File names are matched literally
+ * and case-insensitively (for ASCII characters) since browsers may change
+ * the case of names of uploaded files. All the file names are matched in a
+ * single pass over the profile using an Aho-Corasick automaton, so each
+ * byte of the profile is examined once regardless of the number of files.
+ * Where the names of two files overlap in the profile, the name that ends
+ * first is replaced. Content that has been embedded is not searched for
+ * further file names.
+ *
+ * The content of each file is copied directly from its upload stream into
+ * the profile the first time its name is found. Any byte order mark and XML
+ * declaration at the start of the file are removed as it is copied since an
+ * XML declaration cannot appear within the profile. The content is also
+ * spooled to a temporary file at this point so that it can be embedded
+ * again if its name appears more than once.
+ *
+ * @author jhc02
+ */
+public class ProfileAssembler {
+
+    private static final Logger sLog = LoggerFactory.getLogger(ProfileAssembler.class.getName());
+
+    private static final int BUFFER_SIZE = 65536;
+
+    // Maximum length of an XML declaration that will be removed from the
+    // start of an embedded file.
+    private static final int MAX_DECLARATION_LENGTH = 4096;
+
+    private final Attachment[] _attachments;
+
+    // The automaton matching the file names. _transitions[s][b] is the
+    // state reached from state s on reading byte b, _depth[s] is the length
+    // of the input matched by state s and _match[s] is the index of the
+    // attachment whose name has been matched on reaching state s, or -1.
+    private final int[][] _transitions;
+    private final int[] _depth;
+    private final int[] _match;
+    private final int _maxLength;
+
+    /**
+     * @param pAttachments map of file name to a stream containing the
+     *        content of the file to embed in place of that name. If two
+     *        names differ only in case, the first is used.
+     * @param pSpoolDir directory in which to create temporary files.
+     */
+    public ProfileAssembler(Map<String, InputStream> pAttachments, File pSpoolDir) {
+        List<Attachment> attachments = new ArrayList<Attachment>();
+        List<int[]> transitions = new ArrayList<int[]>();
+        List<Integer> depth = new ArrayList<Integer>();
+        List<Integer> match = new ArrayList<Integer>();
+        transitions.add(newTransitions());
+        depth.add(0);
+        match.add(-1);
+
+        // Build the trie of the (case folded) file names
+        int maxLength = 0;
+        for(Map.Entry<String, InputStream> entry : pAttachments.entrySet()) {
+            byte[] name = entry.getKey().getBytes(SchemaProcessorUtils.UTF8);
+            if(name.length == 0) {
+                continue;
+            }
+            int state = 0;
+            for(byte b : name) {
+                int c = foldCase(b) & 0xff;
+                if(transitions.get(state)[c] < 0) {
+                    transitions.get(state)[c] = transitions.size();
+                    transitions.add(newTransitions());
+                    depth.add(depth.get(state) + 1);
+                    match.add(-1);
+                }
+                state = transitions.get(state)[c];
+            }
+            if(match.get(state) < 0) {
+                match.set(state, attachments.size());
+                attachments.add(new Attachment(entry.getKey(), name.length, entry.getValue(), pSpoolDir));
+                maxLength = Math.max(maxLength, name.length);
+            }
+            else {
+                sLog.warn("Ignoring duplicate file name <{}> when assembling profile.", entry.getKey());
+            }
+        }
+
+        // Complete the transitions using the failure links of each state,
+        // processing states in breadth-first order so that the failure
+        // state of each state has been completed before it is needed.
+        int[] fail = new int[transitions.size()];
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        int[] root = transitions.get(0);
+        for(int c = 0; c < 256; c++) {
+            if(root[c] < 0) {
+                root[c] = 0;
+            }
+            else {
+                fail[root[c]] = 0;
+                queue.add(root[c]);
+            }
+        }
+        while(!queue.isEmpty()) {
+            int state = queue.remove();
+            int[] next = transitions.get(state);
+            for(int c = 0; c < 256; c++) {
+                int target = next[c];
+                if(target < 0) {
+                    next[c] = transitions.get(fail[state])[c];
+                }
+                else {
+                    fail[target] = transitions.get(fail[state])[c];
+                    // A state that does not itself complete a name matches
+                    // the longest name that is a suffix of its input.
+                    if(match.get(target) < 0) {
+                        match.set(target, match.get(fail[target]));
+                    }
+                    queue.add(target);
+                }
+            }
+        }
+
+        // Upper case ASCII bytes take the same transitions as lower case.
+        for(int[] next : transitions) {
+            for(int c = 'A'; c <= 'Z'; c++) {
+                next[c] = next[c + ('a' - 'A')];
+            }
+        }
+
+        this._attachments = attachments.toArray(new Attachment[attachments.size()]);
+        this._transitions = transitions.toArray(new int[transitions.size()][]);
+        this._depth = new int[depth.size()];
+        this._match = new int[match.size()];
+        for(int i = 0; i < _depth.length; i++) {
+            _depth[i] = depth.get(i);
+            _match[i] = match.get(i);
+        }
+        this._maxLength = maxLength;
+    }
+
+    /**
+     * Copy the basic profile to the output stream, embedding the content of
+     * the files in place of their names.
+     *
+     * @param pBasicXml stream containing the profile with file name
+     *        placeholders.
+     * @param pFullXml stream to write the complete profile to.
+     * @return the number of file names that were replaced.
+     * @throws IOException if reading or writing any of the data fails.
+     */
+    public int assemble(InputStream pBasicXml, OutputStream pFullXml) throws IOException {
+        // The bytes of the input matched by the current state, in their
+        // original case. These are written once they can no longer form part
+        // of a file name.
+        byte[] pending = new byte[_maxLength + 1];
+        int pendingLength = 0;
+        int state = 0;
+        int replaced = 0;
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while((read = pBasicXml.read(buffer)) != -1) {
+            for(int i = 0; i < read; i++) {
+                byte b = buffer[i];
+                state = _transitions[state][b & 0xff];
+                pending[pendingLength++] = b;
+                int match = _match[state];
+                if(match >= 0) {
+                    Attachment attachment = _attachments[match];
+                    pFullXml.write(pending, 0, pendingLength - attachment.nameLength);
+                    attachment.writeTo(pFullXml);
+                    replaced++;
+                    pendingLength = 0;
+                    state = 0;
+                }
+                else if(pendingLength > _depth[state]) {
+                    int flush = pendingLength - _depth[state];
+                    pFullXml.write(pending, 0, flush);
+                    System.arraycopy(pending, flush, pending, 0, _depth[state]);
+                    pendingLength = _depth[state];
+                }
+            }
+        }
+        pFullXml.write(pending, 0, pendingLength);
+        return replaced;
+    }
+
+    /**
+     * Delete any temporary files created while assembling the profile.
+     */
+    public void close() {
+        for(Attachment attachment : _attachments) {
+            if(attachment.spool != null) {
+                FileUtils.deleteQuietly(attachment.spool);
+            }
+        }
+    }
+
+    private static int[] newTransitions() {
+        int[] transitions = new int[256];
+        Arrays.fill(transitions, -1);
+        return transitions;
+    }
+
+    /**
+     * Skip over any byte order mark, XML declaration and whitespace
+     * following the declaration at the current position of the stream.
+     */
+    private static void skipXmlDeclaration(BufferedInputStream pIn) throws IOException {
+        pIn.mark(MAX_DECLARATION_LENGTH);
+        byte[] start = new byte[3];
+        int read = IOUtils.read(pIn, start);
+        boolean bom = read == 3 && (start[0] & 0xff) == 0xef
+                && (start[1] & 0xff) == 0xbb && (start[2] & 0xff) == 0xbf;
+        pIn.reset();
+        if(bom) {
+            IOUtils.skipFully(pIn, 3);
+        }
+
+        pIn.mark(MAX_DECLARATION_LENGTH);
+        byte[] prefix = new byte[6];
+        read = IOUtils.read(pIn, prefix);
+        if(read < 6 || !new String(prefix, 0, 5, SchemaProcessorUtils.UTF8).equalsIgnoreCase("<?xml")
+           || !isWhitespace(prefix[5])) {
+            pIn.reset();
+            return;
+        }
+
+        // Find the end of the declaration
+        int previous = -1;
+        int b;
+        int length = read;
+        while((b = pIn.read()) != -1 && !(previous == '?' && b == '>')) {
+            previous = b;
+            if(++length >= MAX_DECLARATION_LENGTH) {
+                sLog.debug("XML declaration in included content is too long, leaving content unchanged.");
+                pIn.reset();
+                return;
+            }
+        }
+        sLog.debug("XML declaration found in included content, removing");
+
+        pIn.mark(1);
+        while((b = pIn.read()) != -1 && isWhitespace((byte)b)) {
+            pIn.mark(1);
+        }
+        if(b != -1) {
+            pIn.reset();
+        }
+    }
+
+    private static boolean isWhitespace(byte pByte) {
+        return pByte == ' ' || pByte == '\t' || pByte == '\n' || pByte == '\r';
+    }
+
+    private static byte foldCase(byte pByte) {
+        return (pByte >= 'A' && pByte <= 'Z') ? (byte)(pByte + ('a' - 'A')) : pByte;
+    }
+
+    /**
+     * A file to be embedded in the profile.
+     */
+    private static class Attachment {
+        final String name;
+        final int nameLength;
+        final InputStream source;
+        final File spoolDir;
+        File spool = null;
+
+        Attachment(String pName, int pNameLength, InputStream pSource, File pSpoolDir) {
+            this.name = pName;
+            this.nameLength = pNameLength;
+            this.source = pSource;
+            this.spoolDir = pSpoolDir;
+        }
+
+        void writeTo(OutputStream pOut) throws IOException {
+            if(spool != null) {
+                FileUtils.copyFile(spool, pOut);
+                return;
+            }
+
+            sLog.debug("Embedding file <{}> in profile.", name);
+            spool = File.createTempFile("attachment", ".xml", spoolDir);
+            BufferedInputStream in = new BufferedInputStream(source, BUFFER_SIZE);
+            OutputStream spoolOut = new BufferedOutputStream(new FileOutputStream(spool), BUFFER_SIZE);
+            try {
+                skipXmlDeclaration(in);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while((read = in.read(buffer)) != -1) {
+                    pOut.write(buffer, 0, read);
+                    spoolOut.write(buffer, 0, read);
+                }
+            } finally {
+                spoolOut.close();
+            }
+        }
+    }
+}
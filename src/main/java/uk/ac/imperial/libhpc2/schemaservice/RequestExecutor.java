@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the work for expensive API requests, such as profile conversions
+ * and template tree renders, on a dedicated pool of threads so that they
+ * cannot occupy all of the servlet container's request threads and delay
+ * cheap requests.
+ *
+ * Each executor has a fixed number of threads and a bounded queue of
+ * waiting requests. Requests arriving when the queue is full receive a 429
+ * (too many requests) response and requests that are not complete within
+ * the configured timeout receive a 503 (service unavailable) response, both
+ * with a Retry-After header. A request that times out while it is still
+ * queued is removed from the queue, and a request that times out while it
+ * is running is interrupted so that it stops using its thread. The queue
+ * depth and the time requests wait in the queue are reported in the
+ * statistics.
+ *
+ * Executors are configured from the [&lt;name&gt;-executor] section of the
+ * configuration file and are shared through the servlet context.
+ *
+ * @author jhc02
+ */
+public class RequestExecutor {
+
+    private static final Logger sLog = LoggerFactory.getLogger(RequestExecutor.class.getName());
+
+    /**
+     * Name of the executor running profile conversions.
+     */
+    public static final String CONVERSION = "conversion";
+
+    /**
+     * Name of the executor rendering template trees.
+     */
+    public static final String RENDER = "render";
+
+    /**
+     * Prefix of the names of the servlet context attributes holding the
+     * executor instances.
+     */
+    public static final String CONTEXT_ATTRIBUTE_PREFIX = "requestExecutor.";
+
+    /**
+     * Default number of waiting requests per thread.
+     */
+    public static final int DEFAULT_QUEUE_PER_THREAD = 4;
+
+    /**
+     * Default time in seconds after which a request that is not complete
+     * receives a 503 response.
+     */
+    public static final long DEFAULT_TIMEOUT_SECONDS = 120L;
+
+    /**
+     * Default value of the Retry-After header sent with 429 and 503
+     * responses.
+     */
+    public static final int DEFAULT_RETRY_AFTER_SECONDS = 5;
+
+    /**
+     * HTTP status code of responses to requests rejected because the queue
+     * is full.
+     */
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    private final String _name;
+    private final ThreadPoolExecutor _executor;
+    private final int _queueCapacity;
+    private volatile long _timeoutMillis;
+    private volatile int _retryAfterSeconds;
+
+    private final AtomicLong _submitted = new AtomicLong();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _rejected = new AtomicLong();
+    private final AtomicLong _timedOut = new AtomicLong();
+    private final AtomicLong _abandoned = new AtomicLong();
+    private final AtomicLong _interrupted = new AtomicLong();
+    private final AtomicLong _started = new AtomicLong();
+    private final AtomicLong _totalWaitNanos = new AtomicLong();
+    private final AtomicLong _maxWaitNanos = new AtomicLong();
+
+    /**
+     * Get the executor with the specified name registered in the provided
+     * servlet context, creating and registering a new one if none exists
+     * yet. The executor is configured from the [&lt;name&gt;-executor]
+     * section of the configuration file: threads (default the number of
+     * available processors), queueSize (default four per thread),
+     * timeoutSeconds (default 120) and retryAfterSeconds (default 5).
+     *
+     * @param pContext the servlet context to look up the executor in.
+     * @param pName the executor name, e.g. {@link #CONVERSION}.
+     * @return the shared executor.
+     */
+    public static RequestExecutor getInstance(ServletContext pContext, String pName) {
+        synchronized(pContext) {
+            RequestExecutor executor = (RequestExecutor)pContext.getAttribute(CONTEXT_ATTRIBUTE_PREFIX + pName);
+            if(executor == null) {
+                TempssConfig config = TempssConfig.getInstance();
+                String section = pName + "-executor";
+                int threads = Math.max(1, config.getIntProperty(section, "threads",
+                        Runtime.getRuntime().availableProcessors()));
+                executor = new RequestExecutor(pName, threads,
+                        Math.max(0, config.getIntProperty(section, "queueSize", threads * DEFAULT_QUEUE_PER_THREAD)),
+                        config.getLongProperty(section, "timeoutSeconds", DEFAULT_TIMEOUT_SECONDS) * 1000L,
+                        config.getIntProperty(section, "retryAfterSeconds", DEFAULT_RETRY_AFTER_SECONDS));
+                pContext.setAttribute(CONTEXT_ATTRIBUTE_PREFIX + pName, executor);
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Shut down the executor with the specified name registered in the
+     * provided servlet context, if there is one.
+     *
+     * @param pContext the servlet context to look up the executor in.
+     * @param pName the executor name.
+     */
+    public static void shutdown(ServletContext pContext, String pName) {
+        synchronized(pContext) {
+            RequestExecutor executor = (RequestExecutor)pContext.getAttribute(CONTEXT_ATTRIBUTE_PREFIX + pName);
+            if(executor != null) {
+                executor.shutdown();
+                pContext.removeAttribute(CONTEXT_ATTRIBUTE_PREFIX + pName);
+            }
+        }
+    }
+
+    /**
+     * @param pName the executor name, used to name its threads.
+     * @param pThreads the number of threads running requests.
+     * @param pQueueCapacity the maximum number of requests waiting for a
+     *        thread. A value of 0 rejects requests when all threads are busy.
+     * @param pTimeoutMillis time after which a request that is not complete
+     *        receives a 503 response, 0 for no timeout.
+     * @param pRetryAfterSeconds the value of the Retry-After header sent
+     *        with 429 and 503 responses.
+     */
+    public RequestExecutor(String pName, int pThreads, int pQueueCapacity,
+                           long pTimeoutMillis, int pRetryAfterSeconds) {
+        this._name = pName;
+        this._queueCapacity = pQueueCapacity;
+        this._timeoutMillis = pTimeoutMillis;
+        this._retryAfterSeconds = pRetryAfterSeconds;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this._executor = new ThreadPoolExecutor(pThreads, pThreads, 0L, TimeUnit.MILLISECONDS,
+                (pQueueCapacity > 0) ? new ArrayBlockingQueue<Runnable>(pQueueCapacity)
+                                     : new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable pRunnable) {
+                        Thread t = new Thread(pRunnable, "tempss-" + _name + "-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Apply the settings of the [&lt;name&gt;-executor] section of a
+     * reloaded configuration. The number of threads, the timeout and the
+     * Retry-After value take effect immediately, the queue size is fixed
+     * when the executor is created.
+     *
+     * @param pConfig the reloaded configuration.
+     */
+    public void reconfigure(TempssConfig pConfig) {
+        String section = _name + "-executor";
+        int threads = Math.max(1, pConfig.getIntProperty(section, "threads",
+                Runtime.getRuntime().availableProcessors()));
+        // The core size cannot exceed the maximum size, so the sizes are
+        // changed in the order that keeps this true.
+        synchronized(_executor) {
+            if(threads > _executor.getMaximumPoolSize()) {
+                _executor.setMaximumPoolSize(threads);
+                _executor.setCorePoolSize(threads);
+            }
+            else if(threads < _executor.getMaximumPoolSize()) {
+                _executor.setCorePoolSize(threads);
+                _executor.setMaximumPoolSize(threads);
+            }
+        }
+        _timeoutMillis = pConfig.getLongProperty(section, "timeoutSeconds", DEFAULT_TIMEOUT_SECONDS) * 1000L;
+        _retryAfterSeconds = pConfig.getIntProperty(section, "retryAfterSeconds", DEFAULT_RETRY_AFTER_SECONDS);
+    }
+
+    /**
+     * Run a request on the executor and resume the suspended response with
+     * the response it returns. If the executor's queue is full the response
+     * is resumed with a 429 response instead, and if the request is not
+     * complete within the timeout it is resumed with a 503 response. An
+     * exception thrown by the request results in a 500 response.
+     *
+     * A request that times out before it starts is not run. A request that
+     * times out while running is interrupted, so requests that can take
+     * long should stop when their thread is interrupted, for example by
+     * tracking their progress with a {@link ConversionProgress}.
+     *
+     * If a response cannot be sent because the request has already timed
+     * out and its entity is Closeable, the entity is closed so that any
+     * resources it holds are released.
+     *
+     * @param pResponse the suspended response of the request.
+     * @param pTask the request to run, returning its response.
+     */
+    public void submit(final AsyncResponse pResponse, final Callable<Response> pTask) {
+        _submitted.incrementAndGet();
+        final long queued = System.nanoTime();
+        final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            public void run() {
+                recordWait(System.nanoTime() - queued);
+                if(pResponse.isDone()) {
+                    _abandoned.incrementAndGet();
+                    return;
+                }
+                _started.incrementAndGet();
+                Response response;
+                try {
+                    response = pTask.call();
+                    _completed.incrementAndGet();
+                } catch (Exception e) {
+                    if(pResponse.isDone()) {
+                        // Interrupted after the request timed out
+                        sLog.debug("Request on executor <{}> stopped after timing out: {}", _name, e.getMessage());
+                        return;
+                    }
+                    _failed.incrementAndGet();
+                    sLog.error("Error processing request on executor <" + _name + ">: " + e.getMessage(), e);
+                    response = Response.status(Status.INTERNAL_SERVER_ERROR)
+                            .entity("Error processing request: " + e.getMessage()).build();
+                }
+                if(!pResponse.resume(response)) {
+                    release(response);
+                }
+            }
+        }, null);
+
+        final long timeoutMillis = _timeoutMillis;
+        if(timeoutMillis > 0) {
+            pResponse.setTimeoutHandler(new TimeoutHandler() {
+                public void handleTimeout(AsyncResponse pTimedOut) {
+                    _timedOut.incrementAndGet();
+                    sLog.warn("Request on executor <{}> did not complete within <{}>ms.", _name, timeoutMillis);
+                    pTimedOut.resume(unavailable("The request did not complete within the time allowed."));
+                    // Free the request's place in the queue or stop it
+                    // running, the client no longer receives its response.
+                    if(_executor.remove(task)) {
+                        recordWait(System.nanoTime() - queued);
+                        _abandoned.incrementAndGet();
+                    }
+                    else if(task.cancel(true)) {
+                        _interrupted.incrementAndGet();
+                    }
+                }
+            });
+            pResponse.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            _executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            _rejected.incrementAndGet();
+            sLog.warn("Request rejected by executor <{}>, <{}> requests are queued.", _name,
+                      _executor.getQueue().size());
+            pResponse.resume(rejected("The service is busy, please try again later."));
+        }
+    }
+
+    /**
+     * Stop the executor. Queued requests are not run.
+     */
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Get a snapshot of the executor statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        long started = _started.get() + _abandoned.get();
+        stats.put("threads", _executor.getMaximumPoolSize());
+        stats.put("queueCapacity", _queueCapacity);
+        stats.put("queueDepth", _executor.getQueue().size());
+        stats.put("active", _executor.getActiveCount());
+        stats.put("submitted", _submitted.get());
+        stats.put("completed", _completed.get());
+        stats.put("failed", _failed.get());
+        stats.put("rejected", _rejected.get());
+        stats.put("timedOut", _timedOut.get());
+        stats.put("abandoned", _abandoned.get());
+        stats.put("interrupted", _interrupted.get());
+        stats.put("meanWaitMillis", (started > 0) ? (_totalWaitNanos.get() / started) / 1000000L : 0L);
+        stats.put("maxWaitMillis", _maxWaitNanos.get() / 1000000L);
+        return stats;
+    }
+
+    private void recordWait(long pWaitNanos) {
+        _totalWaitNanos.addAndGet(pWaitNanos);
+        long max = _maxWaitNanos.get();
+        while(pWaitNanos > max && !_maxWaitNanos.compareAndSet(max, pWaitNanos)) {
+            max = _maxWaitNanos.get();
+        }
+    }
+
+    private Response unavailable(String pMessage) {
+        return Response.status(Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", _retryAfterSeconds)
+                .type(MediaType.TEXT_PLAIN)
+                .entity(pMessage).build();
+    }
+
+    private Response rejected(String pMessage) {
+        return Response.status(TOO_MANY_REQUESTS)
+                .header("Retry-After", _retryAfterSeconds)
+                .type(MediaType.TEXT_PLAIN)
+                .entity(pMessage).build();
+    }
+
+    private static void release(Response pResponse) {
+        Object entity = pResponse.getEntity();
+        if(entity instanceof Closeable) {
+            try {
+                ((Closeable)entity).close();
+            } catch (IOException e) {
+                sLog.warn("Unable to release the entity of an abandoned response: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Resolves XML schema includes, producing a single schema document with the
+ * content of all included schemas inlined in place of their include
+ * statements.
+ *
+ * Each schema file is parsed once and the parsed document is cached until
+ * the file changes, so shared base schemas (e.g. NektarCommon.xsd) are only
+ * parsed once regardless of how many templates include them. Includes are
+ * resolved recursively and each schema is inlined at most once. The fully
+ * resolved result for each schema is memoised along with the versions of
+ * all the files in its include graph and is reused until any of these files
+ * change.
+ *
+ * Included schema locations are resolved against the resource directory
+ * containing the template schemas, falling back to the directory of the
+ * including schema.
+ *
+ * @author jhc02
+ */
+public class SchemaIncludeResolver {
+
+    private static final Logger sLog = LoggerFactory.getLogger(SchemaIncludeResolver.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the shared instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "schemaIncludeResolver";
+
+    private final File _resourceDir;
+
+    // Parsed schema files keyed by absolute path
+    private final ConcurrentMap<String, ParsedSchema> _parsed =
+            new ConcurrentHashMap<String, ParsedSchema>();
+
+    // Fully resolved schemas keyed by absolute path of the root schema
+    private final ConcurrentMap<String, ResolvedSchema> _resolved =
+            new ConcurrentHashMap<String, ResolvedSchema>();
+
+    private final AtomicLong _parses = new AtomicLong();
+    private final AtomicLong _resolutions = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+
+    /**
+     * Get the resolver registered in the provided servlet context, creating
+     * and registering a new one if none exists yet.
+     *
+     * @param pContext the servlet context to look up the resolver in.
+     * @return the shared resolver.
+     */
+    public static SchemaIncludeResolver getInstance(ServletContext pContext) {
+        synchronized(pContext) {
+            SchemaIncludeResolver resolver = (SchemaIncludeResolver)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(resolver == null) {
+                resolver = new SchemaIncludeResolver(new File(pContext.getRealPath("/WEB-INF/classes")));
+                pContext.setAttribute(CONTEXT_ATTRIBUTE, resolver);
+            }
+            return resolver;
+        }
+    }
+
+    /**
+     * @param pResourceDir the directory that schema locations are resolved
+     *        against.
+     */
+    public SchemaIncludeResolver(File pResourceDir) {
+        this._resourceDir = pResourceDir;
+    }
+
+    public File getResourceDir() {
+        return _resourceDir;
+    }
+
+    /**
+     * Get the resolved form of the specified schema.
+     *
+     * @param pSchemaFile the schema file to resolve.
+     * @return the resolved schema.
+     * @throws FileNotFoundException if the schema or one of the schemas that
+     *         it includes cannot be found.
+     * @throws IOException if a schema cannot be read.
+     * @throws ParseException if a schema cannot be parsed or is not an XML
+     *         schema document.
+     */
+    public ResolvedSchema resolve(File pSchemaFile)
+        throws FileNotFoundException, IOException, ParseException {
+
+        String key = pSchemaFile.getAbsolutePath();
+        ResolvedSchema resolved = _resolved.get(key);
+        if(resolved != null && resolved.isCurrent()) {
+            _hits.incrementAndGet();
+            return resolved;
+        }
+
+        if(!pSchemaFile.exists()) {
+            throw new FileNotFoundException("Could not find component schema file on server.");
+        }
+
+        _resolutions.incrementAndGet();
+        Map<File, String> dependencies = new LinkedHashMap<File, String>();
+        Document result = newDocumentBuilder().newDocument();
+        ParsedSchema root = getParsedSchema(pSchemaFile);
+        dependencies.put(pSchemaFile, root.version);
+        Element schemaElement = null;
+        synchronized(root.document) {
+            schemaElement = (Element)result.importNode(root.document.getDocumentElement(), true);
+        }
+        result.appendChild(schemaElement);
+
+        Set<String> inlined = new HashSet<String>();
+        inlined.add(key);
+        inlineIncludes(schemaElement, pSchemaFile, inlined, dependencies);
+
+        resolved = new ResolvedSchema(serialize(result), dependencies);
+        _resolved.put(key, resolved);
+        sLog.debug("Resolved schema <{}> with <{}> file(s) in its include graph.",
+                pSchemaFile, dependencies.size());
+        return resolved;
+    }
+
+    /**
+     * Remove all parsed and resolved schemas from the cache.
+     */
+    public void clear() {
+        _parsed.clear();
+        _resolved.clear();
+    }
+
+    /**
+     * Get a snapshot of the resolver statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("parsedFiles", _parsed.size());
+        stats.put("resolvedSchemas", _resolved.size());
+        stats.put("parses", _parses.get());
+        stats.put("resolutions", _resolutions.get());
+        stats.put("hits", _hits.get());
+        return stats;
+    }
+
+    /**
+     * Replace each include statement that is a child of the provided schema
+     * element with the content of the included schema, resolving includes
+     * within the included schemas recursively.
+     */
+    private void inlineIncludes(Element pSchemaElement, File pSchemaFile,
+            Set<String> pInlined, Map<File, String> pDependencies)
+        throws FileNotFoundException, IOException, ParseException {
+
+        Document ownerDoc = pSchemaElement.getOwnerDocument();
+        List<Element> includes = new ArrayList<Element>();
+        for(Node child = pSchemaElement.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if(isSchemaElement(child, "include")) {
+                includes.add((Element)child);
+            }
+        }
+
+        for(Element include : includes) {
+            String location = include.getAttribute("schemaLocation");
+            File includedFile = locate(location, pSchemaFile);
+            String includedKey = includedFile.getAbsolutePath();
+
+            // A schema that has already been inlined is not included again,
+            // this also prevents circular includes from looping.
+            if(!pInlined.add(includedKey)) {
+                sLog.debug("Schema <{}> already included, skipping include in <{}>.",
+                        location, pSchemaFile);
+                pSchemaElement.removeChild(include);
+                continue;
+            }
+
+            ParsedSchema included = getParsedSchema(includedFile);
+            pDependencies.put(includedFile, included.version);
+
+            // Import the content of the included schema into a temporary
+            // schema element so that its own includes can be resolved before
+            // it is moved into place.
+            Element imported = null;
+            synchronized(included.document) {
+                imported = (Element)ownerDoc.importNode(included.document.getDocumentElement(), true);
+            }
+            inlineIncludes(imported, includedFile, pInlined, pDependencies);
+
+            Node parent = include.getParentNode();
+            while(imported.getFirstChild() != null) {
+                parent.insertBefore(imported.getFirstChild(), include);
+            }
+            parent.removeChild(include);
+        }
+    }
+
+    private File locate(String pLocation, File pIncludingFile) throws FileNotFoundException {
+        if(pLocation == null || pLocation.length() == 0) {
+            throw new FileNotFoundException("Found include with no schemaLocation in <" + pIncludingFile + ">.");
+        }
+        File candidate = new File(_resourceDir, pLocation);
+        if(!candidate.exists()) {
+            candidate = new File(pIncludingFile.getParentFile(), pLocation);
+        }
+        if(!candidate.exists()) {
+            throw new FileNotFoundException("Could not find included component schema file on server: " + pLocation);
+        }
+        return candidate;
+    }
+
+    private ParsedSchema getParsedSchema(File pFile) throws IOException, ParseException {
+        String key = pFile.getAbsolutePath();
+        String version = TransformCache.getVersion(pFile);
+        ParsedSchema parsed = _parsed.get(key);
+        if(parsed != null && parsed.version.equals(version)) {
+            return parsed;
+        }
+
+        Document doc = null;
+        try {
+            doc = newDocumentBuilder().parse(pFile);
+        } catch (SAXException e) {
+            throw new ParseException("Unable to parse schema <" + pFile.getName() + ">: " + e.getMessage(), 0);
+        }
+        if(!isSchemaElement(doc.getDocumentElement(), "schema")) {
+            throw new ParseException("Could not find schema namespace identifier.", 0);
+        }
+        _parses.incrementAndGet();
+        parsed = new ParsedSchema(doc, version);
+        _parsed.put(key, parsed);
+        return parsed;
+    }
+
+    private static boolean isSchemaElement(Node pNode, String pLocalName) {
+        return pNode != null && pNode.getNodeType() == Node.ELEMENT_NODE
+                && XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(pNode.getNamespaceURI())
+                && pLocalName.equals(pNode.getLocalName());
+    }
+
+    private static DocumentBuilder newDocumentBuilder() throws IOException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            // Cached documents are read concurrently so we don't want the
+            // parser to defer building parts of the tree until they're read.
+            factory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+        } catch (ParserConfigurationException e) {
+            sLog.debug("Parser does not support disabling deferred node expansion.");
+        }
+        try {
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Unable to create XML parser for schema processing: " + e.getMessage(), e);
+        }
+    }
+
+    private static String serialize(Document pDocument) throws IOException {
+        try {
+            Transformer serializer = TransformerFactory.newInstance().newTransformer();
+            serializer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            StringWriter writer = new StringWriter();
+            serializer.transform(new DOMSource(pDocument), new StreamResult(writer));
+            return writer.toString();
+        } catch (TransformerException e) {
+            throw new IOException("Unable to serialize resolved schema: " + e.getMessage(), e);
+        }
+    }
+
+    private static class ParsedSchema {
+        final Document document;
+        final String version;
+
+        ParsedSchema(Document pDocument, String pVersion) {
+            this.document = pDocument;
+            this.version = pVersion;
+        }
+    }
+
+    /**
+     * A schema with all its includes resolved.
+     */
+    public static class ResolvedSchema {
+
+        private final String _content;
+        private final String _hash;
+        private final Map<File, String> _dependencies;
+
+        ResolvedSchema(String pContent, Map<File, String> pDependencies) {
+            this._content = pContent;
+            this._hash = SchemaProcessorUtils.sha256Hex(pContent);
+            this._dependencies = Collections.unmodifiableMap(pDependencies);
+        }
+
+        /**
+         * @return the resolved schema document as a string.
+         */
+        public String getContent() {
+            return _content;
+        }
+
+        /**
+         * @return the hex encoded SHA-256 hash of the resolved content.
+         */
+        public String getHash() {
+            return _hash;
+        }
+
+        /**
+         * @return the files in the include graph of this schema.
+         */
+        public Set<File> getDependencies() {
+            return _dependencies.keySet();
+        }
+
+        /**
+         * Check whether any file in the include graph of this schema has
+         * changed since it was resolved.
+         *
+         * @return true if none of the files have changed.
+         */
+        public boolean isCurrent() {
+            for(Map.Entry<File, String> dependency : _dependencies.entrySet()) {
+                if(!dependency.getValue().equals(TransformCache.getVersion(dependency.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -45,11 +45,13 @@
 
 package uk.ac.imperial.libhpc2.schemaservice;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -58,28 +60,31 @@ import java.text.ParseException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import javax.ws.rs.core.Context;
+import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
+import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.io.FileUtils;
-import org.dom4j.DocumentException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.json.JSONObject;
 
+import uk.ac.imperial.libhpc2.schemaservice.ArtifactStore.Artifact;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionCache.ConversionResult;
+import uk.ac.imperial.libhpc2.schemaservice.SchemaIncludeResolver.ResolvedSchema;
+
 public class SchemaProcessor {
     /**
      * Logger
@@ -91,8 +96,57 @@ public class SchemaProcessor {
      */
     ServletContext _context;
 
+    /**
+     * Directory containing the template schemas and transforms
+     */
+    File _resourceDir;
+
+    SchemaIncludeResolver _resolver;
+
+    TransformCache _transformCache;
+
+    /**
+     * Configuration section containing the profile conversion settings
+     */
+    public static final String CONVERSION_CONFIG_SECTION = "conversion";
+
+    /**
+     * Number of spaces each level of formatted XML output is indented by
+     */
+    private static final int INDENT_AMOUNT = 2;
+
+    /**
+     * File names of the documents produced by a profile conversion
+     */
+    public static final String BASIC_XML_NAME = "basic.xml";
+    public static final String FULL_XML_NAME = "full.xml";
+    public static final String TRANSFORMED_XML_NAME = "transformed.xml";
+
     public SchemaProcessor(ServletContext pContext) {
         this._context = pContext;
+        this._resourceDir = new File(pContext.getRealPath("/WEB-INF/classes"));
+        this._resolver = SchemaIncludeResolver.getInstance(pContext);
+        this._transformCache = TransformCache.getInstance(pContext);
+    }
+
+    /**
+     * Create a schema processor that works directly with the schemas and
+     * transforms in the specified directory, without a servlet context.
+     * Only the schema resolution and tree rendering functions are available
+     * from a processor created in this way.
+     *
+     * @param pResourceDir the directory containing the template schemas and
+     *        transforms.
+     */
+    public SchemaProcessor(File pResourceDir) {
+        this._context = null;
+        this._resourceDir = pResourceDir;
+        this._resolver = new SchemaIncludeResolver(pResourceDir);
+        this._transformCache = new TransformCache();
+    }
+
+    public TransformCache getTransformCache() {
+        return _transformCache;
     }
 
     /**
@@ -111,129 +165,88 @@ public class SchemaProcessor {
     public String processComponentSelector(TempssObject pComponentMetadata)
         throws FileNotFoundException, IOException, ParseException, TransformerException {
 
-        sLog.fine("ServletContext: " + _context);
-        String schemaPath = _context.getRealPath("/WEB-INF/classes") + File.separator;
-        String verboseName = pComponentMetadata.getName();
-        String schemaName = pComponentMetadata.getSchema();
-
-        // Construct full path to file
-        String schemaPathAndName = schemaPath + schemaName;
-
-        // Get the contents of the schema.
-        File schemaFile = new File(schemaPathAndName);
-        if (!schemaFile.exists()) {
-            throw new FileNotFoundException("Could not find component schema file on server.");
-        }
-
-        // I am going to hack around with the schema to include any included
-        // schemas.  Therefore need to get the schema as a string rather than
-        // work directly with the StreamSource.
-
-        //Source schemaSource = new StreamSource(schemaFile);
-        String schemaString = null;
-        try {
-            schemaString = FileUtils.readFileToString(schemaFile, "utf-8");
-        } catch (IOException e) {
-            throw new IOException("Unable to read the schema file as a string...", e);
-        }
-
-        // Use regex to find and include files. First find the identifier
-        // assigned to the schema namespace. Usually it's xs or xsd Need to
-        // match pattern like: xmlns:xs="http://www.w3.org/2001/XMLSchema"
-        String namespaceIdentifier = "";
-        Pattern pattern0 = Pattern.compile("xmlns:(.*?)=\"http://www.w3.org/2001/XMLSchema\"");
-        Matcher matcher0 = pattern0.matcher(schemaString);
-
-        // There should be only one, but use while loop anyway
-        while (matcher0.find()) {
-            namespaceIdentifier = matcher0.group(1);
-        }
-
-        if (namespaceIdentifier.length()==0) {
-            throw new ParseException("Could not find schema namespace identifier.", 0);
-        }
+        String schemaString = resolveSchema(pComponentMetadata);
+        return renderSchemaHtml(pComponentMetadata, schemaString);
+    }
 
-        // Want to find filename.xsd in schemaLocation="LibhpcCommon.xsd"
-        Pattern pattern = Pattern.compile("include schemaLocation=\"(.*?)\"");
-        Matcher matcher = pattern.matcher(schemaString);
+    /**
+     * Get the content of the schema for the specified component with the
+     * content of any included schemas inlined in place of the include
+     * statements.
+     *
+     * @param pComponentMetadata the metadata of the component to get the
+     *        schema for.
+     * @return the resolved schema as a string.
+     * @throws FileNotFoundException if the schema or an included schema
+     *         cannot be found.
+     * @throws IOException if the schema cannot be read.
+     * @throws ParseException if the schema cannot be parsed.
+     */
+    public String resolveSchema(TempssObject pComponentMetadata)
+        throws FileNotFoundException, IOException, ParseException {
 
-        // For each included file, process it:
-        while (matcher.find()) {
-            String includedSchemaName = matcher.group(1);
-            String includedSchemaPathAndName = schemaPath + includedSchemaName;
-            File includedSchemaFile = new File(includedSchemaPathAndName);
+        return resolveSchemaDocument(pComponentMetadata).getContent();
+    }
 
-            if (!includedSchemaFile.exists()) {
-                throw new FileNotFoundException("Could not find included component schema file on server: " + includedSchemaName);
-            }
+    /**
+     * Get the resolved schema for the specified component. Included schemas
+     * are resolved recursively by the shared {@link SchemaIncludeResolver}
+     * which caches the result until any file in the include graph changes.
+     *
+     * @param pComponentMetadata the metadata of the component to get the
+     *        schema for.
+     * @return the resolved schema.
+     * @throws FileNotFoundException if the schema or an included schema
+     *         cannot be found.
+     * @throws IOException if the schema cannot be read.
+     * @throws ParseException if the schema cannot be parsed.
+     */
+    public ResolvedSchema resolveSchemaDocument(TempssObject pComponentMetadata)
+        throws FileNotFoundException, IOException, ParseException {
 
-            String includedSchemaString = FileUtils.readFileToString(includedSchemaFile, "utf-8");
-
-            // Need to find the part of the included schema that's within the
-            // <schema> <\schema> tabs. Another regex...
-            String internalSchema = "";
-
-            // NB [\\S\\s] matches anything that's a space or not a space. Use
-            // this instead of . because . excludes new lines
-            String regex = "<"+namespaceIdentifier+":schema([\\S\\s]*?)>([\\S\\s]*?)</"+namespaceIdentifier+":schema>";
-            Pattern pattern2 = Pattern.compile(regex);
-            Matcher matcher2 = pattern2.matcher(includedSchemaString);
-
-            // The result should be in the second group. The first group will
-            // contain all the attributes in the xs:schema tag.  Not sure what
-            // happens if there are no attributes. If you are seeing an error
-            // thrown here, check that...
-            while (matcher2.find()) {
-                //String test1 = matcher2.group(1);
-                String test2 = matcher2.group(2);
-                internalSchema = test2;
-            }
+        sLog.fine("ServletContext: " + _context);
+        File schemaFile = new File(_resourceDir, pComponentMetadata.getSchema());
+        return _resolver.resolve(schemaFile);
+    }
 
-            // Next we need to replace the include statement with the included
-            // text.  We need to find the text to replace. Another regex
-            String textToReplace = "";
-            String regex3 = "<"+namespaceIdentifier+":include(.*?)"+includedSchemaName+"(.*?)>";
-            Pattern pattern3 = Pattern.compile(regex3);
-            Matcher matcher3 = pattern3.matcher(schemaString);
-
-            // The result should be in the second group. The first group will
-            // contain all the attributes in the xs:schema tag.  Not sure what
-            // happens if there are no attributes. If you are seeing an error
-            // thrown here, check that...
-            while (matcher3.find()) {
-                String test1 = matcher3.group(1);
-                String test2 = matcher3.group(2);
-                textToReplace = "<"+namespaceIdentifier+":include" + test1 + includedSchemaName+test2+">";
-            }
+    /**
+     * Get the schema to HTML XSLT transform used to render template trees.
+     *
+     * @return the transform file.
+     */
+    public File getSchemaHtmlTransform() {
+        return new File(_resourceDir, "XsdToHtmlTransform.xsl");
+    }
 
-            // Make the replacement
-            schemaString = schemaString.replace(textToReplace, internalSchema);
-        }
+    /**
+     * Transform a resolved component schema into the HTML representation of
+     * its parameter tree.
+     *
+     * @param pComponentMetadata the metadata of the component being rendered.
+     * @param pSchemaString the resolved schema, as returned by
+     *        {@link #resolveSchema(TempssObject)}.
+     * @return the HTML tree.
+     * @throws TransformerException if an error occurs carrying out the
+     *         transform.
+     */
+    public String renderSchemaHtml(TempssObject pComponentMetadata, String pSchemaString)
+        throws TransformerException {
 
         // Get the schema -> HTML transform
-        String transformPath = _context.getRealPath("/WEB-INF/classes") + File.separator + "XsdToHtmlTransform.xsl";
-        File xslFile = new File(transformPath);
-        Source xsl = new StreamSource(xslFile);
+        File xslFile = getSchemaHtmlTransform();
 
         //String xslName = xslFile.toString();
         //String xslContent = new Scanner( xslFile ).useDelimiter("\\A").next();
 
         // Convert the schema into an HTML form
         String outputHTML = "";
-        Transformer transformer = null;
-        try {
-            transformer = TransformerFactory.newInstance().newTransformer(xsl);
-        } catch (TransformerConfigurationException e) {
-            throw new TransformerException("Error creating transformer for the specified XSLT document <" + transformPath + ">", e);
-        } catch (TransformerFactoryConfigurationError e) {
-            throw new TransformerException("Configuration error creating transformer for the specified XSLT document <" + transformPath + ">", e);
-        }
+        Transformer transformer = _transformCache.newTransformer(xslFile);
 
         LibhpcErrorListener errorHandler = new LibhpcErrorListener();
         transformer.setErrorListener(errorHandler);
 
         try {
-            StringReader reader = new StringReader(schemaString);
+            StringReader reader = new StringReader(pSchemaString);
             Source schemaSource = new StreamSource(reader);
             StreamResult htmlOutput = new StreamResult(new StringWriter());
             transformer.transform(schemaSource, htmlOutput);
@@ -251,102 +264,382 @@ public class SchemaProcessor {
         return htmlToReturn;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Convert a profile to the input data for its template. The basic and
+     * full profiles and the transform output are added to the artifact
+     * store.
+     *
+     * @param pComponentName the ID of the template the profile is for.
+     * @param pBasicXml the profile as entered by the user.
+     * @param pXml the profile with the content of any files embedded.
+     * @return map containing the artifact IDs of the output and the
+     *         transform status.
+     */
     public Map<String,String> convertProfileToInputData(
         String pComponentName,
         String pBasicXml,
-        String pXml,
-        String pSessionId)
+        String pXml)
+        throws UnknownTemplateException, TransformerException, IOException
+    {
+        File xslFile = getProfileTransform(pComponentName);
+        ConversionOutput output = new ConversionOutput();
+        try {
+            output.setBasicXml(ConversionOutput.Document.fromData(
+                    BASIC_XML_NAME, pBasicXml.getBytes(SchemaProcessorUtils.UTF8)));
+            output.setFullXml(ConversionOutput.Document.fromData(
+                    FULL_XML_NAME, pXml.getBytes(SchemaProcessorUtils.UTF8)));
+            transformProfileDocuments(pComponentName, xslFile, output, true, null);
+            return getArtifactIds(output);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Convert an uploaded profile to the input data for its template and
+     * add the basic and full profiles and the transform output to the
+     * artifact store.
+     *
+     * @param pComponentName the ID of the template the profile is for.
+     * @param pBasicXml stream containing the uploaded profile.
+     * @param pAttachments map of file name placeholder to a stream
+     *        containing the content of the file to embed in its place. Files
+     *        are embedded in the iteration order of the map.
+     * @return map containing the artifact IDs of the output and the
+     *         transform status.
+     * @see #convertProfile(String, InputStream, Map, boolean)
+     */
+    public Map<String,String> convertProfileToInputData(
+        String pComponentName,
+        InputStream pBasicXml,
+        Map<String, InputStream> pAttachments)
+        throws UnknownTemplateException, TransformerException, IOException
+    {
+        ConversionOutput output = convertProfile(pComponentName, pBasicXml, pAttachments, true);
+        try {
+            return getArtifactIds(output);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Convert an uploaded profile to the input data for its template,
+     * working with streams throughout. The uploaded profile is copied to
+     * the basic profile as it is read, the files to be embedded in the
+     * profile are copied into it to create the full profile and the full
+     * profile is then transformed directly into the output. Each document
+     * is held in memory unless it is large, when it is written to a work
+     * file of the artifact store.
+     *
+     * @param pComponentName the ID of the template the profile is for.
+     * @param pBasicXml stream containing the uploaded profile.
+     * @param pAttachments map of file name placeholder to a stream
+     *        containing the content of the file to embed in its place. Files
+     *        are embedded in the iteration order of the map.
+     * @param pPersist true if the documents are to be added to the artifact
+     *        store so that they can be retrieved again later.
+     * @return the conversion output, which the caller must close once the
+     *         documents are no longer needed.
+     */
+    public ConversionOutput convertProfile(
+        String pComponentName,
+        InputStream pBasicXml,
+        Map<String, InputStream> pAttachments,
+        boolean pPersist)
         throws UnknownTemplateException, TransformerException, IOException
     {
+        return convertProfile(pComponentName, pBasicXml, pAttachments, pPersist, null);
+    }
+
+    /**
+     * Convert an uploaded profile to the input data for its template,
+     * reporting the progress of the conversion.
+     *
+     * @param pProgress the progress of the conversion, or null if progress
+     *        is not tracked. If the conversion is cancelled through the
+     *        progress, it fails with an InterruptedIOException, which may
+     *        be wrapped in a TransformerException.
+     * @see #convertProfile(String, InputStream, Map, boolean)
+     */
+    public ConversionOutput convertProfile(
+        String pComponentName,
+        InputStream pBasicXml,
+        Map<String, InputStream> pAttachments,
+        boolean pPersist,
+        ConversionProgress pProgress)
+        throws UnknownTemplateException, TransformerException, IOException
+    {
+        File xslFile = getProfileTransform(pComponentName);
+        ArtifactStore store = ArtifactStore.getInstance(_context);
+        ConversionOutput output = new ConversionOutput();
+        boolean complete = false;
+        try {
+            // The uploaded profile is written to the basic profile as it
+            // is read to create the full profile.
+            DeferredFileOutputStream basicBuffer = store.createWorkBuffer("basic_input_xml");
+            DeferredFileOutputStream fullBuffer = store.createWorkBuffer("full_input_xml");
+            ProfileAssembler assembler = new ProfileAssembler(pAttachments, store.getWorkDir());
+            OutputStream basicOut = new BufferedOutputStream(basicBuffer);
+            OutputStream fullOut = new BufferedOutputStream(fullBuffer);
+            InputStream basicIn = (pProgress != null)
+                    ? pProgress.startStage(ConversionProgress.Stage.ASSEMBLING, pBasicXml, -1)
+                    : pBasicXml;
+            try {
+                assembler.assemble(new TeeInputStream(basicIn, basicOut), fullOut);
+                basicOut.close();
+                fullOut.close();
+            } catch (IOException e) {
+                throw new IOException("IO error when writing temporary output files: " + e.getMessage(), e);
+            } finally {
+                IOUtils.closeQuietly(basicOut);
+                IOUtils.closeQuietly(fullOut);
+                assembler.close();
+                output.setBasicXml(ConversionOutput.Document.fromBuffer(BASIC_XML_NAME, basicBuffer));
+                output.setFullXml(ConversionOutput.Document.fromBuffer(FULL_XML_NAME, fullBuffer));
+            }
+            transformProfileDocuments(pComponentName, xslFile, output, pPersist, pProgress);
+            complete = true;
+            return output;
+        } finally {
+            if(!complete) {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * Compile the profile transform for a template, if it is not already
+     * compiled, so that conversions for the template share the compiled
+     * stylesheet held by the transform cache.
+     *
+     * @param pComponentName the ID of the template.
+     * @throws UnknownTemplateException if the template is not found.
+     * @throws TransformerException if the transform cannot be compiled.
+     */
+    public void prepareProfileTransform(String pComponentName)
+        throws UnknownTemplateException, TransformerException
+    {
+        _transformCache.getTemplates(getProfileTransform(pComponentName));
+    }
+
+    /**
+     * Get the profile transform for a template.
+     */
+    @SuppressWarnings("unchecked")
+    private File getProfileTransform(String pComponentName) throws UnknownTemplateException {
         // Now we need to convert the completed xml profile into form that is
         // expected as input by the component. Look up the component metadata to
         // get the path to the XSLT transform for this component.
         Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
-        String transformPath = "";
         if(components.containsKey(pComponentName)) {
             TempssObject componentMetadata = components.get(pComponentName);
-            transformPath = _context.getRealPath("/WEB-INF/classes") + File.separator + componentMetadata.getTransform();
-        } else {
-            throw new UnknownTemplateException("Unhandled component name while transforming xml:" + pComponentName);
+            return new File(_resourceDir, componentMetadata.getTransform());
         }
+        throw new UnknownTemplateException("Unhandled component name while transforming xml:" + pComponentName);
+    }
 
-        // Now we use the transform to get the result.
-        File xslFile = new File(transformPath);
-        Source xsl = new StreamSource(xslFile);
-        StringReader reader = new StringReader(pXml);
-        Source xmlInput = new StreamSource(reader);
-        StreamResult xmlOutput = new StreamResult(new StringWriter());
-        String outputXml = "";
-        Transformer transformer;
+    /**
+     * Get the artifact IDs of the documents of a persisted conversion and
+     * the transform status.
+     */
+    private static Map<String,String> getArtifactIds(ConversionOutput pOutput) {
+        Map<String,String> transformOutputMap = new HashMap<String, String>();
 
-        try {
-            transformer = TransformerFactory.newInstance().newTransformer(xsl);
-        } catch (TransformerConfigurationException e) {
-            throw new TransformerException("Error creating transformer for the specified XSLT document <" + xslFile + ">", e);
-        } catch (TransformerFactoryConfigurationError e) {
-            throw new TransformerException("Configuration error creating transformer for the specified XSLT document <" + xslFile + ">", e);
-        }
+        transformOutputMap.put("BasicXmlId", pOutput.getBasicXml().getArtifactId());
+        transformOutputMap.put("FullXmlId", pOutput.getFullXml().getArtifactId());
+        transformOutputMap.put("TransformStatus", pOutput.isTransformFailed() ? "true" : "false");
+        transformOutputMap.put("TransformErrors", pOutput.getTransformErrors());
+        transformOutputMap.put("TransformedDataId", pOutput.getTransformedXml().getArtifactId());
 
-        LibhpcErrorListener errorHandler = new LibhpcErrorListener();
-        transformer.setErrorListener(errorHandler);
+        return transformOutputMap;
+    }
 
+    /**
+     * Transform the full profile of a conversion into its output, using a
+     * cached result if this profile has already been converted, and add
+     * the documents to the artifact store if the conversion is persisted.
+     * If an identical profile is being converted by another request, its
+     * result is shared rather than transforming the profile again.
+     */
+    private void transformProfileDocuments(
+        final String pComponentName,
+        final File pXslFile,
+        final ConversionOutput pOutput,
+        final boolean pPersist,
+        final ConversionProgress pProgress)
+        throws TransformerException, IOException
+    {
+        ArtifactStore store = ArtifactStore.getInstance(_context);
+
+        // Identical profiles are frequently resubmitted so check whether
+        // this profile has already been converted with the current version
+        // of the transform before carrying out the transform. The transform
+        // hash is qualified when output formatting is disabled since the
+        // output then differs for the same transform.
+        final boolean format = isOutputFormatted();
+        ConversionCache conversionCache = ConversionCache.getInstance(_context);
+        String cacheKey = null;
+        InputStream fullXml = pOutput.getFullXml().openStream();
         try {
-            transformer.transform(xmlInput, xmlOutput);
-        } catch (TransformerException e) {
-            throw new TransformerException("Error carrying out XSLT transform: " + errorHandler.getErrorMessages().toString(), e);
+            String transformHash = _transformCache.getContentHash(pXslFile);
+            cacheKey = ConversionCache.computeKey(pComponentName,
+                    format ? transformHash : transformHash + "-unformatted", fullXml);
+        } finally {
+            fullXml.close();
         }
-        outputXml = xmlOutput.getWriter().toString();
+
+        // The transform is carried out by this request if the flag is set
+        // by the conversion callback, otherwise the result was cached or
+        // was shared by another request.
+        final boolean[] transformed = {false};
+        ConversionResult result = null;
         try {
-            outputXml = SchemaProcessorUtils.prettyPrintXml(outputXml);
-        } catch (DocumentException e) {
-            throw new IOException("Document error formatting XML output data: " + e.getMessage(), e);
+            result = conversionCache.getOrConvert(cacheKey, new Callable<ConversionResult>() {
+                public ConversionResult call() throws TransformerException, IOException {
+                    transformed[0] = true;
+                    return transformAndStore(pXslFile, pOutput, pPersist, pProgress, format);
+                }
+            });
+        } catch (TransformerException e) {
+            throw e;
+        } catch (InterruptedIOException e) {
+            if(transformed[0]) {
+                throw e;
+            }
+            // The conversion this request was waiting for was cancelled.
+            transformAndStore(pXslFile, pOutput, pPersist, pProgress, format);
+            return;
         } catch (IOException e) {
-            throw new IOException("IO error formatting XML output data: " + e.getMessage(), e);
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an identical conversion.");
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        if(transformed[0]) {
+            return;
+        }
+        if(result == null) {
+            // The shared result was too large to cache.
+            transformAndStore(pXslFile, pOutput, pPersist, pProgress, format);
+            return;
         }
 
-        // Save the xml as files
-        String basicXmlFileName = "basic_input_xml_" + pSessionId + ".xml";
-        String fullXmlFileName = "full_input_xml_" + pSessionId + ".xml";
-        String outputXmlFileName = "output_xml_" + pSessionId + ".xml";
-
-        // TODO: Fix this:
-        // Get temporary directory for storing output files
-        // File tempDir = (File) getServletContext().getAttribute("javax.servlet.context.tmpdir");
-
-        // Get path to web-inf folder
-        String filePath = _context.getRealPath("/temp");
-        File tempDir = new File(filePath);
-        boolean isSuccess = tempDir.mkdirs();
+        Artifact output = pPersist ? store.get(result.getOutputId()) : null;
+        pOutput.setTransformedXml((output != null)
+                ? ConversionOutput.Document.fromArtifact(TRANSFORMED_XML_NAME, output)
+                : ConversionOutput.Document.fromData(TRANSFORMED_XML_NAME, result.getOutput()));
+        pOutput.setTransformStatus(result.isTransformFailed(), result.getTransformErrors());
+        if(pProgress != null) {
+            pProgress.startStage(ConversionProgress.Stage.STORING);
+        }
+        if(pPersist) {
+            pOutput.persist(store);
+        }
+    }
 
+    /**
+     * Transform the full profile of a conversion into its output and add
+     * the documents to the artifact store if the conversion is persisted.
+     *
+     * @return the result to cache, or null if it is too large to cache.
+     */
+    private ConversionResult transformAndStore(File pXslFile, ConversionOutput pOutput, boolean pPersist,
+                                               ConversionProgress pProgress, boolean pFormat)
+        throws TransformerException, IOException
+    {
+        ArtifactStore store = ArtifactStore.getInstance(_context);
+        DeferredFileOutputStream outputBuffer = store.createWorkBuffer("output_xml");
+        LibhpcErrorListener errorHandler;
+        InputStream fullXml = pOutput.getFullXml().openStream();
         try {
-            File file = new File(tempDir, basicXmlFileName);
-            BufferedWriter output;
-            output = new BufferedWriter(new FileWriter(file));
-            output.write(pBasicXml);
-            output.close();
-
-            File file2 = new File(tempDir, fullXmlFileName);
-            BufferedWriter output2 = new BufferedWriter(new FileWriter(file2));
-            output2.write(pXml);
-            output2.close();
+            InputStream transformIn = (pProgress != null)
+                    ? pProgress.startStage(ConversionProgress.Stage.TRANSFORMING, fullXml,
+                            pOutput.getFullXml().getLength())
+                    : fullXml;
+            errorHandler = transformProfile(pXslFile, transformIn, outputBuffer, pFormat);
+        } finally {
+            fullXml.close();
+            pOutput.setTransformedXml(ConversionOutput.Document.fromBuffer(TRANSFORMED_XML_NAME, outputBuffer));
+        }
+        pOutput.setTransformStatus(errorHandler.errorsEncounteredDuringTransform(),
+                errorHandler.getErrorMessages().toString());
 
-            File file3 = new File(tempDir, outputXmlFileName);
-            BufferedWriter output3 = new BufferedWriter(new FileWriter(file3));
-            output3.write(outputXml);
-            output3.close();
-        } catch (IOException e) {
-            throw new IOException("IO error when writing temporary output files: " + e.getMessage(), e);
+        if(pProgress != null) {
+            pProgress.startStage(ConversionProgress.Stage.STORING);
+        }
+        if(pPersist) {
+            pOutput.persist(store);
+        }
+        if(!ConversionCache.getInstance(_context).isCacheable(pOutput.getTransformedXml().getLength())) {
+            return null;
         }
+        return new ConversionResult(
+                pOutput.getTransformedXml().toByteArray(), pOutput.isTransformFailed(),
+                pOutput.getTransformErrors(), pOutput.getTransformedXml().getArtifactId());
+    }
 
-        Map<String,String> transformOutputMap = new HashMap<String, String>();
+    /**
+     * Check whether the XML output of profile conversions is formatted.
+     * Formatting is enabled unless the format setting in the conversion
+     * section of the configuration is false.
+     *
+     * @return true if conversion output is to be indented.
+     */
+    public static boolean isOutputFormatted() {
+        return TempssConfig.getInstance().getBooleanProperty(CONVERSION_CONFIG_SECTION, "format", true);
+    }
+
+    /**
+     * Transform a complete profile into the input data for its template
+     * using the specified transform. The transform reads the profile from
+     * the input stream and its output is serialized directly to the output
+     * stream. When formatting is requested, XML output is indented by an
+     * IndentingXmlWriter as the transform generates it, otherwise it is
+     * written exactly as the transform's serializer produces it.
+     *
+     * @param pXslFile the profile transform for the template.
+     * @param pInput stream containing the complete profile XML.
+     * @param pOutput the stream to write the transform output to. The
+     *        stream is closed once the transform is complete.
+     * @param pFormat true if XML output is to be indented.
+     * @return the error listener containing the status of the transform.
+     * @throws TransformerException if the transform fails.
+     * @throws IOException if the output cannot be written.
+     */
+    private LibhpcErrorListener transformProfile(File pXslFile, InputStream pInput, OutputStream pOutput,
+                                                 boolean pFormat)
+        throws TransformerException, IOException
+    {
+        Transformer transformer = _transformCache.newTransformer(pXslFile);
 
-        transformOutputMap.put("BasicXmlFile", basicXmlFileName);
-        transformOutputMap.put("FullXmlFile", fullXmlFileName);
-        transformOutputMap.put("TransformStatus", (errorHandler.errorsEncounteredDuringTransform() == true) ? "true" : "false");
-        transformOutputMap.put("TransformErrors", errorHandler.getErrorMessages().toString());
-        transformOutputMap.put("TransformedDataFile", outputXmlFileName);
+        LibhpcErrorListener errorHandler = new LibhpcErrorListener();
+        transformer.setErrorListener(errorHandler);
 
-        return transformOutputMap;
+        OutputStream out = new BufferedOutputStream(pOutput);
+        try {
+            String method = transformer.getOutputProperty(OutputKeys.METHOD);
+            if(pFormat && (method == null || method.equals("xml"))) {
+                IndentingXmlWriter writer = new IndentingXmlWriter(out,
+                        transformer.getOutputProperty(OutputKeys.ENCODING),
+                        "yes".equals(transformer.getOutputProperty(OutputKeys.OMIT_XML_DECLARATION)),
+                        INDENT_AMOUNT);
+                SAXResult result = new SAXResult(writer);
+                result.setLexicalHandler(writer);
+                transformer.transform(new StreamSource(pInput), result);
+            }
+            else {
+                transformer.transform(new StreamSource(pInput), new StreamResult(out));
+            }
+        } catch (TransformerException e) {
+            throw new TransformerException("Error carrying out XSLT transform: " + errorHandler.getErrorMessages().toString(), e);
+        } finally {
+            out.close();
+        }
+        return errorHandler;
     }
 }
@@ -73,7 +73,6 @@ import javax.servlet.http.HttpSession;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
@@ -81,7 +80,6 @@ import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.dom4j.DocumentException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -262,12 +260,11 @@ public class SchemaProcessorServlet extends HttpServlet {
                             + File.separator
                             + "XsdToHtmlTransform.xsl";
                 File xslFile = new File(xslFilePath);
-                Source xslSource = new StreamSource(xslFile);
 
                 // Setup the outputs
                 String htmlOutputString = "";
                 Transformer transformer =
-                        TransformerFactory.newInstance().newTransformer(xslSource);
+                        TransformCache.getInstance(getServletContext()).newTransformer(xslFile);
                 LibhpcErrorListener errorHandler = new LibhpcErrorListener();
                 transformer.setErrorListener(errorHandler);
                 try {
@@ -350,18 +347,18 @@ public class SchemaProcessorServlet extends HttpServlet {
             }
         }
         // Format the xml nicely
-        try {
-            sFullXml = SchemaProcessorUtils.prettyPrintXml(sFullXml);
-        } catch (DocumentException e) {
-            throw new IOException("Document error when formatting complete XML prior to transform: " + e.getMessage(), e);
+        if(SchemaProcessor.isOutputFormatted()) {
+            try {
+                sFullXml = SchemaProcessorUtils.prettyPrintXml(sFullXml);
+            } catch (IOException e) {
+                throw new IOException("Document error when formatting complete XML prior to transform: " + e.getMessage(), e);
+            }
         }
 
-        String sessionId = session.getId();
-
         SchemaProcessor proc = new SchemaProcessor(getServletContext());
         Map<String, String> transformOutput;
         try {
-            transformOutput = proc.convertProfileToInputData(sComponentName, sBasicXml, sFullXml, sessionId);
+            transformOutput = proc.convertProfileToInputData(sComponentName, sBasicXml, sFullXml);
         } catch (TransformerException e) {
             throw new IOException("Error transforming profile to input data file: " + e.getMessage(), e);
         } catch (IOException e) {
@@ -369,16 +366,14 @@ public class SchemaProcessorServlet extends HttpServlet {
         }
 
         URL servletUrl = new URL(req.getScheme(), req.getServerName(), req.getServerPort(), req.getContextPath());
-        String servletBaseURL = servletUrl.toString();
+        String artifactBaseURL = servletUrl.toString() + "/api/artifact/";
         JSONObject json = new JSONObject();
-        // TODO: Change to separate streaming servlet. This assumes temp is temporary
-        // servlet directory used above
         try {
-            json.put("BasicXmlInputs", servletBaseURL + "/temp/" + transformOutput.get("BasicXmlFile"));
-            json.put("FullXmlInputs", servletBaseURL + "/temp/" + transformOutput.get("FullXmlFile"));
+            json.put("BasicXmlInputs", artifactBaseURL + transformOutput.get("BasicXmlId"));
+            json.put("FullXmlInputs", artifactBaseURL + transformOutput.get("FullXmlId"));
             json.put("TransformFailed", transformOutput.get("TransformStatus"));
             json.put("TransformErrorMessages", transformOutput.get("TransformErrors"));
-            json.put("TransformedXml", servletBaseURL + "/temp/" + transformOutput.get("TransformedDataFile"));
+            json.put("TransformedXml", artifactBaseURL + transformOutput.get("TransformedDataId"));
         } catch (JSONException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -45,19 +45,32 @@
 
 package uk.ac.imperial.libhpc2.schemaservice;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Scanner;
 
-import org.dom4j.Document;
-import org.dom4j.DocumentException;
-import org.dom4j.DocumentHelper;
-import org.dom4j.io.OutputFormat;
-import org.dom4j.io.XMLWriter;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 public class SchemaProcessorUtils {
 
+    /**
+     * UTF-8 charset used when encoding content for hashing and caching.
+     */
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Utility method to convert a Stream to a String.
      *
@@ -80,16 +93,78 @@ public class SchemaProcessorUtils {
      *
      * @param xml String containing XML to format.
      * @return String containing formatted XML
-     * @throws DocumentException
-     * @throws IOException
+     * @throws IOException if the XML cannot be parsed.
      */
-    public static String prettyPrintXml(String xml) throws DocumentException, IOException {
-        Document doc = DocumentHelper.parseText(xml);
-        StringWriter sw = new StringWriter();
-        OutputFormat format = OutputFormat.createPrettyPrint();
-        XMLWriter xw = new XMLWriter(sw, format);
-        xw.write(doc);
-        String result = sw.toString();
-        return result;
+    public static String prettyPrintXml(String xml) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length() + xml.length() / 4);
+        prettyPrintXml(new InputSource(new StringReader(xml)), out);
+        return new String(out.toByteArray(), UTF8);
+    }
+
+    /**
+     * Utility method to format XML from a source, writing the indented
+     * UTF-8 encoded result to a stream. The document is formatted as it
+     * is parsed so no tree of the document is held in memory.
+     *
+     * @param pSource the source of the XML to format.
+     * @param pOut the stream to write the formatted XML to.
+     * @throws IOException if the XML cannot be parsed or written.
+     */
+    public static void prettyPrintXml(InputSource pSource, OutputStream pOut) throws IOException {
+        IndentingXmlWriter writer = new IndentingXmlWriter(pOut, "UTF-8", false, 2);
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            SAXParser parser = factory.newSAXParser();
+            parser.setProperty("http://xml.org/sax/properties/lexical-handler", writer);
+            parser.parse(pSource, writer);
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Unable to create XML parser: " + e.getMessage(), e);
+        } catch (SAXException e) {
+            throw new IOException("Unable to format XML: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get a new SHA-256 message digest instance.
+     *
+     * @return the message digest.
+     */
+    public static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // All Java platform implementations are required to support SHA-256
+            throw new IllegalStateException("SHA-256 message digest is not available.", e);
+        }
+    }
+
+    /**
+     * Utility method to get the hex-encoded SHA-256 hash of a string's
+     * UTF-8 encoded content.
+     *
+     * @param pContent the string to hash.
+     * @return the lower case hex encoded hash.
+     */
+    public static String sha256Hex(String pContent) {
+        return toHex(newSha256Digest().digest(pContent.getBytes(UTF8)));
+    }
+
+    /**
+     * Utility method to hex-encode a byte array.
+     *
+     * @param pBytes the bytes to encode.
+     * @return the lower case hex encoded string.
+     */
+    public static String toHex(byte[] pBytes) {
+        char[] hex = new char[pBytes.length * 2];
+        for(int i = 0; i < pBytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(pBytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[pBytes[i] & 0xf];
+        }
+        return new String(hex);
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent computations of the same value. While a value is
+ * being computed for a key, further requests for the same key wait for
+ * that computation to finish and receive its result, or the exception it
+ * threw, rather than computing the value again.
+ *
+ * Nothing is retained once a computation finishes, so requests for a key
+ * made after the value has been computed compute it again. This is
+ * intended to be used behind a cache, to stop a cold or invalidated cache
+ * entry being computed by every request that misses it at once.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the computed values.
+ *
+ * @author jhc02
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> _inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    private final AtomicLong _calls = new AtomicLong();
+    private final AtomicLong _executions = new AtomicLong();
+    private final AtomicLong _coalesced = new AtomicLong();
+
+    /**
+     * Compute the value for a key, or wait for the computation of the value
+     * that is already in progress. The computation is run on the thread of
+     * the first caller.
+     *
+     * @param pKey the key identifying the value.
+     * @param pTask computes the value.
+     * @return the computed value.
+     * @throws InterruptedException if the thread is interrupted while
+     *         waiting for another thread to compute the value.
+     * @throws Exception if the computation throws an exception.
+     */
+    public V execute(K pKey, Callable<V> pTask) throws Exception {
+        _calls.incrementAndGet();
+        FutureTask<V> task = new FutureTask<V>(pTask);
+        FutureTask<V> running = _inFlight.putIfAbsent(pKey, task);
+        if(running != null) {
+            _coalesced.incrementAndGet();
+            return getResult(running);
+        }
+        _executions.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            _inFlight.remove(pKey, task);
+        }
+        return getResult(task);
+    }
+
+    /**
+     * Get a snapshot of the statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("calls", _calls.get());
+        stats.put("executions", _executions.get());
+        stats.put("coalesced", _coalesced.get());
+        stats.put("inFlight", _inFlight.size());
+        return stats;
+    }
+
+    private static <V> V getResult(FutureTask<V> pTask) throws Exception {
+        try {
+            return pTask.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Exception) {
+                throw (Exception)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw e;
+        }
+    }
+}
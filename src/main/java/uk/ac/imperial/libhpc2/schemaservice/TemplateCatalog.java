@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable snapshot of the registered templates.
+ *
+ * The snapshot holds the template metadata along with pre-serialized
+ * bodies for each of the template listing representations provided by
+ * the template REST API, each with its own entity tag. A catalog is built
+ * once when the component map is published to the servlet context so
+ * that listing requests do not need to rebuild their responses. Since a
+ * catalog is never modified, a new set of templates can be made available
+ * by publishing a replacement catalog.
+ *
+ * @author jhc02
+ */
+public class TemplateCatalog {
+
+    private static final Logger sLog = LoggerFactory.getLogger(TemplateCatalog.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the current catalog.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "templateCatalog";
+
+    /**
+     * Name of the servlet context attribute holding the component map.
+     */
+    public static final String COMPONENTS_ATTRIBUTE = "components";
+
+    private final Map<String, TempssObject> _components;
+
+    private final Representation _listJson;
+    private final Representation _listText;
+    private final Representation _namesText;
+    private final Representation _namesJson;
+    private final Representation _idsText;
+    private final Representation _idsJson;
+
+    /**
+     * Publish a new catalog for the specified components to the servlet
+     * context. The component map is also published, as an unmodifiable
+     * copy, in the components attribute.
+     *
+     * @param pContext the servlet context to publish the catalog to.
+     * @param pComponents the registered templates, keyed by template ID.
+     * @return the published catalog.
+     */
+    public static TemplateCatalog publish(ServletContext pContext, Map<String, TempssObject> pComponents) {
+        TemplateCatalog catalog = new TemplateCatalog(pComponents);
+        synchronized(pContext) {
+            pContext.setAttribute(COMPONENTS_ATTRIBUTE, catalog.getComponents());
+            pContext.setAttribute(CONTEXT_ATTRIBUTE, catalog);
+        }
+        sLog.debug("Published template catalog with <{}> templates.", catalog.getComponents().size());
+        return catalog;
+    }
+
+    /**
+     * Get the catalog published in the servlet context. If no catalog has
+     * been published, one is built from the current component map.
+     *
+     * @param pContext the servlet context to look up the catalog in.
+     * @return the current catalog.
+     */
+    @SuppressWarnings("unchecked")
+    public static TemplateCatalog getInstance(ServletContext pContext) {
+        TemplateCatalog catalog = (TemplateCatalog)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+        if(catalog != null) {
+            return catalog;
+        }
+        synchronized(pContext) {
+            catalog = (TemplateCatalog)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(catalog == null) {
+                Map<String, TempssObject> components =
+                        (Map<String, TempssObject>)pContext.getAttribute(COMPONENTS_ATTRIBUTE);
+                if(components == null) {
+                    components = Collections.emptyMap();
+                }
+                catalog = publish(pContext, components);
+            }
+            return catalog;
+        }
+    }
+
+    public TemplateCatalog(Map<String, TempssObject> pComponents) {
+        this._components = Collections.unmodifiableMap(
+                new LinkedHashMap<String, TempssObject>(pComponents));
+
+        JSONArray componentList = new JSONArray();
+        JSONArray componentNames = new JSONArray();
+        JSONArray componentIds = new JSONArray();
+        StringBuilder listText = new StringBuilder();
+        StringBuilder namesText = new StringBuilder();
+        StringBuilder idsText = new StringBuilder();
+        JSONObject componentArray = new JSONObject();
+        try {
+            for(TempssObject component : _components.values()) {
+                JSONObject componentObj = new JSONObject();
+                componentObj.put("id", component.getId());
+                componentObj.put("name", component.getName());
+                componentObj.put("schema", component.getSchema());
+                componentObj.put("transform", component.getTransform());
+                componentList.put(componentObj);
+                componentNames.put(component.getName());
+                componentIds.put(component.getId());
+
+                listText.append("[" + component.getId() + ", "
+                                + component.getName() + ", "
+                                + component.getSchema() + ", "
+                                + component.getTransform() + "]\n");
+                namesText.append(component.getName() + "\n");
+                idsText.append(component.getId() + "\n");
+            }
+            componentArray.put("components", componentList);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Unable to add component data to JSON object: " + e.getMessage(), e);
+        }
+
+        this._listJson = new Representation(componentArray.toString());
+        this._listText = new Representation(listText.toString());
+        this._namesText = new Representation(namesText.toString());
+        this._namesJson = new Representation(componentNames.toString());
+        this._idsText = new Representation(idsText.toString());
+        this._idsJson = new Representation(componentIds.toString());
+    }
+
+    /**
+     * @return an unmodifiable map of the templates in the catalog, keyed
+     *         by template ID.
+     */
+    public Map<String, TempssObject> getComponents() {
+        return _components;
+    }
+
+    public Representation getListJson() {
+        return _listJson;
+    }
+
+    public Representation getListText() {
+        return _listText;
+    }
+
+    public Representation getNamesText() {
+        return _namesText;
+    }
+
+    public Representation getNamesJson() {
+        return _namesJson;
+    }
+
+    public Representation getIdsText() {
+        return _idsText;
+    }
+
+    public Representation getIdsJson() {
+        return _idsJson;
+    }
+
+    /**
+     * A pre-serialized listing body and its entity tag, along with a gzip
+     * compressed copy of the body if it is large enough to be compressed.
+     */
+    public static class Representation {
+
+        private final byte[] _body;
+        private final byte[] _gzipBody;
+        private final String _etag;
+
+        Representation(String pContent) {
+            this._body = pContent.getBytes(SchemaProcessorUtils.UTF8);
+            this._gzipBody = CompressionUtils.gzipIfWorthwhile(_body);
+            this._etag = SchemaProcessorUtils.toHex(SchemaProcessorUtils.newSha256Digest().digest(_body));
+        }
+
+        /**
+         * @return the UTF-8 encoded body. The returned array is shared and
+         *         must not be modified.
+         */
+        public byte[] getBody() {
+            return _body;
+        }
+
+        /**
+         * @return the gzip compressed body, or null if the body was not
+         *         compressed. The returned array is shared and must not be
+         *         modified.
+         */
+        public byte[] getGzipBody() {
+            return _gzipBody;
+        }
+
+        /**
+         * @return the hex encoded hash of the body, suitable for use as a
+         *         strong entity tag.
+         */
+        public String getETag() {
+            return _etag;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.libhpc2.schemaservice.SchemaIncludeResolver.ResolvedSchema;
+
+/**
+ * Build-time tool that renders the HTML trees for all the templates
+ * described by the template properties files so that they can be packaged
+ * into the service and served without carrying out the XSLT transform at
+ * runtime. This is run during the Maven prepare-package phase.
+ *
+ * For each template, the rendered tree is written to &lt;id&gt;.html along
+ * with a gzip compressed copy in &lt;id&gt;.html.gz. The hash of each tree,
+ * as computed by {@link TemplateTreeCache#computeHash}, is recorded in a
+ * manifest file. At runtime, {@link PrerenderedTemplates} only uses a
+ * prerendered tree if the hash computed for the deployed schema and
+ * transform files still matches.
+ *
+ * Usage: TemplatePrerenderer &lt;resource directory&gt; &lt;output directory&gt;
+ *
+ * @author jhc02
+ */
+public class TemplatePrerenderer {
+
+    private static final Logger sLog = LoggerFactory.getLogger(TemplatePrerenderer.class.getName());
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2) {
+            System.err.println("Usage: TemplatePrerenderer <resource directory> <output directory>");
+            System.exit(1);
+        }
+        File resourceDir = new File(args[0]);
+        File outputDir = new File(args[1]);
+        int rendered = new TemplatePrerenderer().prerender(resourceDir, outputDir);
+        sLog.info("Prerendered <{}> template tree(s) into <{}>.", rendered, outputDir);
+    }
+
+    /**
+     * Render the trees for all templates described by the properties files
+     * in the META-INF/Template directory of the resource directory. Templates
+     * that fail to render are logged and skipped, they will be rendered on
+     * demand at runtime.
+     *
+     * @param pResourceDir the directory containing the template metadata,
+     *        schemas and transforms.
+     * @param pOutputDir the directory to write the rendered trees to.
+     * @return the number of trees rendered.
+     * @throws IOException if the output files cannot be written.
+     */
+    public int prerender(File pResourceDir, File pOutputDir) throws IOException {
+        File templateDir = new File(pResourceDir, "META-INF" + File.separator + "Template");
+        File[] templateMetadataFiles = templateDir.listFiles(new FilenameFilter() {
+            public boolean accept(File f, String name) {
+                return name.endsWith(".properties");
+            }
+        });
+        if(templateMetadataFiles == null) {
+            sLog.warn("No template metadata directory found at <{}>.", templateDir);
+            return 0;
+        }
+
+        FileUtils.forceMkdir(pOutputDir);
+        SchemaProcessor proc = new SchemaProcessor(pResourceDir);
+        Properties manifest = new Properties();
+        for(File f : templateMetadataFiles) {
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(f);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            for(TempssObject component : TempssObject.fromProperties(props)) {
+                String templateId = component.getId();
+                try {
+                    ResolvedSchema schema = proc.resolveSchemaDocument(component);
+                    String hash = TemplateTreeCache.computeHash(component, schema, proc);
+                    byte[] html = proc.renderSchemaHtml(component, schema.getContent())
+                            .getBytes(SchemaProcessorUtils.UTF8);
+                    FileUtils.writeByteArrayToFile(new File(pOutputDir, templateId + ".html"), html);
+                    writeGzipped(html, new File(pOutputDir, templateId + ".html.gz"));
+                    manifest.setProperty(templateId, hash);
+                    sLog.info("Prerendered template tree for <{}>.", templateId);
+                } catch (Exception e) {
+                    sLog.warn("Unable to prerender template tree for <{}>, it will be rendered " +
+                              "at runtime: {}", templateId, e.getMessage());
+                }
+            }
+        }
+
+        OutputStream out = new FileOutputStream(new File(pOutputDir, PrerenderedTemplates.MANIFEST_NAME));
+        try {
+            manifest.store(out, "Hashes of the prerendered TemPSS template trees");
+        } finally {
+            out.close();
+        }
+        return manifest.size();
+    }
+
+    private static void writeGzipped(byte[] pData, File pFile) throws IOException {
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(pFile));
+        try {
+            IOUtils.write(pData, out);
+        } finally {
+            out.close();
+        }
+    }
+}
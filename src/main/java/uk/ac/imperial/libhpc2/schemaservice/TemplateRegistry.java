@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.libhpc2.schemaservice.SchemaIncludeResolver.ResolvedSchema;
+
+/**
+ * Loads the templates registered in the template properties directory
+ * and publishes them as a {@link TemplateCatalog}, then optionally watches
+ * the properties directory and the directories holding the templates'
+ * schemas and transforms for changes.
+ *
+ * When files change, only the properties files that changed are loaded
+ * again and only the templates that use a changed file are warmed again,
+ * in the background on the watcher thread. A new catalog is published in
+ * a single step once the changed properties have been loaded, so requests
+ * always see either the previous or the new set of templates and never
+ * wait for a reload. The caches already check the versions of the files
+ * they were built from, so warming affected templates moves the cost of
+ * recompiling them from the next request to the watcher.
+ *
+ * The templates are also published again when the ignore patterns in the
+ * configuration change, whether or not the files are being watched.
+ *
+ * @author jhc02
+ */
+public class TemplateRegistry {
+
+    private static final Logger sLog = LoggerFactory.getLogger(TemplateRegistry.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the registry.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "templateRegistry";
+
+    /**
+     * Configuration section containing the template registry settings.
+     */
+    public static final String CONFIG_SECTION = "templates";
+
+    /**
+     * Default time to wait for changes to stop before reloading.
+     */
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+
+    private static final String PROPERTIES_SUFFIX = ".properties";
+
+    private final ServletContext _context;
+    private final File _templateDir;
+    private final File _resourceDir;
+
+    // Held while templates are loaded or published, which happens on the
+    // watcher thread and on the configuration reload thread. It guards the
+    // definitions, dependencies and ignore patterns.
+    private final Object _reloadLock = new Object();
+
+    // Templates defined by each properties file, keyed by file name.
+    private final Map<String, List<TempssObject>> _definitions = new TreeMap<String, List<TempssObject>>();
+
+    // Files each template was built from, used to find the templates
+    // affected by a changed file.
+    private final Map<String, Set<File>> _dependencies = new HashMap<String, Set<File>>();
+
+    // The ignore patterns the published templates were filtered with.
+    private GlobMatcher _ignoreMatcher = GlobMatcher.NONE;
+
+    private final Map<String, String> _errors = new TreeMap<String, String>();
+    private final AtomicLong _reloads = new AtomicLong();
+    private final AtomicLong _templatesReloaded = new AtomicLong();
+    private volatile long _lastReload = 0;
+
+    private volatile WatchService _watchService = null;
+    private Thread _watcher = null;
+    private final Map<WatchKey, File> _watchedDirs = new HashMap<WatchKey, File>();
+
+    /**
+     * @param pContext the servlet context to publish the templates to.
+     * @param pTemplateDir the directory containing the template properties
+     *        files.
+     */
+    public TemplateRegistry(ServletContext pContext, File pTemplateDir) {
+        this._context = pContext;
+        this._templateDir = pTemplateDir;
+        this._resourceDir = new File(pContext.getRealPath("/WEB-INF/classes"));
+    }
+
+    /**
+     * Load all of the template properties files and publish the templates.
+     *
+     * @return the published templates, keyed by template ID.
+     */
+    public Map<String, TempssObject> load() {
+        synchronized(_reloadLock) {
+            _definitions.clear();
+            File[] templateMetadataFiles = _templateDir.listFiles(new FilenameFilter() {
+                public boolean accept(File f, String name) {
+                    return name.endsWith(PROPERTIES_SUFFIX);
+                }
+            });
+            if(templateMetadataFiles != null) {
+                for(File f : templateMetadataFiles) {
+                    List<TempssObject> templates = loadDefinitions(f);
+                    if(templates != null) {
+                        _definitions.put(f.getName(), templates);
+                    }
+                }
+            }
+            return publish().getComponents();
+        }
+    }
+
+    /**
+     * Publish the templates again if the ignore patterns in the provided
+     * configuration differ from those the published templates were
+     * filtered with. Templates that are no longer ignored are warmed.
+     *
+     * @param pConfig the reloaded configuration.
+     */
+    public void reconfigure(TempssConfig pConfig) {
+        synchronized(_reloadLock) {
+            if(pConfig.getIgnoreMatcher().equals(_ignoreMatcher)) {
+                return;
+            }
+            sLog.info("Template ignore patterns changed to <{}>.", pConfig.getIgnorePatterns());
+            reload(Collections.<File>emptySet(), false, true);
+        }
+    }
+
+    /**
+     * Start watching the template files for changes. The registry is
+     * registered in the servlet context while it is watching.
+     *
+     * @param pDebounceMillis time to wait for changes to stop before
+     *        reloading, so that a set of files being updated together is
+     *        reloaded once.
+     * @throws IOException if the watch service cannot be created.
+     */
+    public synchronized void start(final long pDebounceMillis) throws IOException {
+        if(_watcher != null) {
+            return;
+        }
+        _watchService = FileSystems.getDefault().newWatchService();
+        _watcher = new Thread(new Runnable() {
+            public void run() {
+                watch(pDebounceMillis);
+            }
+        }, "tempss-template-watcher");
+        _watcher.setDaemon(true);
+        _context.setAttribute(CONTEXT_ATTRIBUTE, this);
+        _watcher.start();
+        sLog.info("Watching template directory <{}> for changes.", _templateDir);
+    }
+
+    /**
+     * Stop watching the template files.
+     */
+    public synchronized void shutdown() {
+        if(_watcher == null) {
+            return;
+        }
+        try {
+            _watchService.close();
+        } catch (IOException e) {
+            sLog.warn("Error closing template watch service: {}", e.getMessage());
+        }
+        _watcher.interrupt();
+        _watcher = null;
+        _context.removeAttribute(CONTEXT_ATTRIBUTE);
+    }
+
+    /**
+     * Get a snapshot of the registry status.
+     *
+     * @return a map of status name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        synchronized(this) {
+            stats.put("watching", _watcher != null);
+        }
+        synchronized(_watchedDirs) {
+            stats.put("directories", _watchedDirs.size());
+        }
+        stats.put("reloads", _reloads.get());
+        stats.put("templatesReloaded", _templatesReloaded.get());
+        stats.put("lastReload", _lastReload);
+        synchronized(_errors) {
+            stats.put("errors", new LinkedHashMap<String, String>(_errors));
+        }
+        return stats;
+    }
+
+    /**
+     * Watch for changes until the watch service is closed.
+     */
+    private void watch(long pDebounceMillis) {
+        try {
+            // The directories of the schemas and transforms are watched
+            // before the schemas are resolved to find the files they
+            // include, which can take some time if the templates have not
+            // yet been warmed.
+            watchDirectory(_templateDir);
+            Map<String, TempssObject> components = TemplateCatalog.getInstance(_context).getComponents();
+            for(TempssObject component : components.values()) {
+                watchDirectory(new File(_resourceDir, component.getSchema()).getAbsoluteFile().getParentFile());
+                watchDirectory(new File(_resourceDir, component.getTransform()).getAbsoluteFile().getParentFile());
+            }
+            for(TempssObject component : components.values()) {
+                synchronized(_reloadLock) {
+                    updateDependencies(component);
+                }
+            }
+            while(true) {
+                WatchKey key = _watchService.take();
+                Set<File> changed = new HashSet<File>();
+                boolean overflow = false;
+                // Collect further changes until none arrive for the debounce
+                // period.
+                while(key != null) {
+                    overflow |= collectChanges(key, changed);
+                    key = _watchService.poll(pDebounceMillis, TimeUnit.MILLISECONDS);
+                }
+                try {
+                    synchronized(_reloadLock) {
+                        reload(changed, overflow, false);
+                    }
+                } catch (RuntimeException e) {
+                    sLog.error("Error reloading templates: {}", e.getMessage(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // The registry has been shut down
+        } catch (ClosedWatchServiceException e) {
+            // The registry has been shut down
+        }
+    }
+
+    /**
+     * Add the files changed in a watched directory to the set of changed
+     * files and reset the key so that further changes are reported.
+     *
+     * @return true if changes were lost because too many occurred.
+     */
+    private boolean collectChanges(WatchKey pKey, Set<File> pChanged) {
+        File dir;
+        synchronized(_watchedDirs) {
+            dir = _watchedDirs.get(pKey);
+        }
+        boolean overflow = false;
+        for(WatchEvent<?> event : pKey.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            }
+            else if(dir != null) {
+                pChanged.add(new File(dir, ((Path)event.context()).toString()));
+            }
+        }
+        if(!pKey.reset()) {
+            synchronized(_watchedDirs) {
+                _watchedDirs.remove(pKey);
+            }
+        }
+        return overflow;
+    }
+
+    /**
+     * Reload the templates affected by a set of changed files, publishing
+     * the new set of templates before warming the affected templates.
+     * Must be called with the reload lock held.
+     *
+     * @param pChanged the changed files.
+     * @param pAll true if all templates are to be reloaded because the
+     *        changes are not known.
+     * @param pRepublish true if the templates are to be published again
+     *        even if no properties file has changed.
+     */
+    private void reload(Set<File> pChanged, boolean pAll, boolean pRepublish) {
+        long start = System.currentTimeMillis();
+        Map<String, TempssObject> previous = TemplateCatalog.getInstance(_context).getComponents();
+
+        // Load the properties files that have changed. A file that has been
+        // removed, or cannot be loaded, no longer defines any templates.
+        boolean propertiesChanged = pRepublish;
+        if(pAll) {
+            load();
+            propertiesChanged = true;
+        }
+        else {
+            for(File file : pChanged) {
+                if(file.getParentFile().equals(_templateDir) && file.getName().endsWith(PROPERTIES_SUFFIX)) {
+                    List<TempssObject> templates = file.isFile() ? loadDefinitions(file) : null;
+                    if(templates != null) {
+                        _definitions.put(file.getName(), templates);
+                    }
+                    else {
+                        _definitions.remove(file.getName());
+                    }
+                    propertiesChanged = true;
+                }
+            }
+        }
+        Map<String, TempssObject> current = propertiesChanged ? publish().getComponents() : previous;
+
+        // Templates are affected if they are new or have changed, or if
+        // they were built from a changed file. A changed stylesheet or
+        // schema that no template is known to use, such as a stylesheet
+        // included by a transform, affects the templates using files in
+        // its directory.
+        Set<String> affected = new HashSet<String>();
+        for(TempssObject component : current.values()) {
+            TempssObject old = previous.get(component.getId());
+            if(pAll || old == null || !sameDefinition(old, component)) {
+                affected.add(component.getId());
+            }
+        }
+        for(File file : pChanged) {
+            Set<String> users = new HashSet<String>();
+            for(Map.Entry<String, Set<File>> dependency : _dependencies.entrySet()) {
+                if(dependency.getValue().contains(file)) {
+                    users.add(dependency.getKey());
+                }
+            }
+            if(users.isEmpty() && isStylesheetOrSchema(file)) {
+                for(Map.Entry<String, Set<File>> dependency : _dependencies.entrySet()) {
+                    for(File used : dependency.getValue()) {
+                        if(used.getParentFile().equals(file.getParentFile())) {
+                            users.add(dependency.getKey());
+                        }
+                    }
+                }
+                // Converted profiles are cached by the content of the
+                // transform file, which does not change when an included
+                // stylesheet does.
+                if(!users.isEmpty()) {
+                    ConversionCache.getInstance(_context).clear();
+                }
+            }
+            affected.addAll(users);
+        }
+
+        // Remove the cached state of templates that no longer exist.
+        TemplateTreeCache treeCache = TemplateTreeCache.getInstance(_context);
+        for(String templateId : previous.keySet()) {
+            if(!current.containsKey(templateId)) {
+                treeCache.invalidate(templateId);
+                _dependencies.remove(templateId);
+                synchronized(_errors) {
+                    _errors.remove(templateId);
+                }
+            }
+        }
+
+        // Warm the affected templates so that they are recompiled here
+        // rather than by the next request to use them.
+        TransformCache transformCache = TransformCache.getInstance(_context);
+        for(String templateId : affected) {
+            TempssObject component = current.get(templateId);
+            if(component == null) {
+                continue;
+            }
+            transformCache.invalidate(new File(_resourceDir, component.getTransform()));
+            String result = TemplateWarmer.warmTemplate(_context, component);
+            synchronized(_errors) {
+                if("OK".equals(result)) {
+                    _errors.remove(templateId);
+                }
+                else {
+                    _errors.put(templateId, result);
+                }
+            }
+            updateDependencies(component);
+        }
+
+        _reloads.incrementAndGet();
+        _templatesReloaded.addAndGet(affected.size());
+        _lastReload = System.currentTimeMillis();
+        sLog.info("Reloaded <{}> template(s) after changes to <{}> file(s) in {}ms.",
+                  affected.size(), pChanged.size(), _lastReload - start);
+    }
+
+    /**
+     * Publish the templates currently defined by the properties files,
+     * excluding the templates matching the ignore patterns in the
+     * configuration.
+     */
+    private TemplateCatalog publish() {
+        GlobMatcher ignoreMatcher = TempssConfig.getInstance().getIgnoreMatcher();
+        Map<String, TempssObject> componentMap = new HashMap<String, TempssObject>();
+        for(List<TempssObject> templates : _definitions.values()) {
+            for(TempssObject obj : templates) {
+                if(ignoreMatcher.matches(obj.getId())) {
+                    sLog.debug("Ignoring template <{}>", obj.getId());
+                    continue;
+                }
+                componentMap.put(obj.getId(), obj);
+            }
+        }
+        _ignoreMatcher = ignoreMatcher;
+        return TemplateCatalog.publish(_context, componentMap);
+    }
+
+    /**
+     * Load the templates defined by a properties file.
+     *
+     * @return the templates, or null if the file cannot be read.
+     */
+    private List<TempssObject> loadDefinitions(File pFile) {
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(pFile);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            sLog.error("Unable to load resource metadata for <" + pFile + ">");
+            return null;
+        }
+        List<TempssObject> templates = TempssObject.fromProperties(props);
+        for(TempssObject obj : templates) {
+            sLog.info("Found and registered new template object: \n" + obj.toString());
+        }
+        return templates;
+    }
+
+    /**
+     * Record the files a template was built from and watch the directories
+     * containing them.
+     */
+    private void updateDependencies(TempssObject pComponent) {
+        Set<File> files = new HashSet<File>();
+        File schemaFile = new File(_resourceDir, pComponent.getSchema());
+        files.add(schemaFile);
+        files.add(new File(_resourceDir, pComponent.getTransform()));
+        try {
+            ResolvedSchema schema = SchemaIncludeResolver.getInstance(_context).resolve(schemaFile);
+            files.addAll(schema.getDependencies());
+        } catch (Exception e) {
+            // The schema cannot be resolved until it is fixed, which is
+            // detected by watching the schema itself.
+            sLog.debug("Unable to resolve schema dependencies of template <{}>: {}",
+                       pComponent.getId(), e.getMessage());
+        }
+        Set<File> absoluteFiles = new HashSet<File>();
+        for(File file : files) {
+            absoluteFiles.add(file.getAbsoluteFile());
+            watchDirectory(file.getAbsoluteFile().getParentFile());
+        }
+        _dependencies.put(pComponent.getId(), absoluteFiles);
+    }
+
+    private void watchDirectory(File pDir) {
+        WatchService watchService = _watchService;
+        if(watchService == null) {
+            return;
+        }
+        synchronized(_watchedDirs) {
+            if(pDir == null || _watchedDirs.containsValue(pDir) || !pDir.isDirectory()) {
+                return;
+            }
+            try {
+                WatchKey key = pDir.toPath().register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                _watchedDirs.put(key, pDir);
+            } catch (IOException e) {
+                sLog.warn("Unable to watch directory <{}> for template changes: {}", pDir, e.getMessage());
+            } catch (ClosedWatchServiceException e) {
+                // The registry has been shut down
+            }
+        }
+    }
+
+    private static boolean isStylesheetOrSchema(File pFile) {
+        String name = pFile.getName();
+        return name.endsWith(".xsl") || name.endsWith(".xslt") || name.endsWith(".xsd");
+    }
+
+    private static boolean sameDefinition(TempssObject pA, TempssObject pB) {
+        return equal(pA.getName(), pB.getName()) && equal(pA.getSchema(), pB.getSchema())
+                && equal(pA.getTransform(), pB.getTransform());
+    }
+
+    private static boolean equal(String pA, String pB) {
+        return (pA == null) ? pB == null : pA.equals(pB);
+    }
+}
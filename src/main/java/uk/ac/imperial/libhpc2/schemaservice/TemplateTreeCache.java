@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+import javax.xml.transform.TransformerException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.libhpc2.schemaservice.SchemaIncludeResolver.ResolvedSchema;
+
+/**
+ * A bounded cache of rendered template HTML trees.
+ *
+ * Rendered trees are stored as pre-encoded UTF-8 bytes together with a
+ * SHA-256 hash of the resolved template schema and the content of the
+ * schema to HTML transform used to render them. A cached tree is only
+ * returned if the hash computed for the current schema still matches, so
+ * changes to a schema or to the transform result in the tree being
+ * re-rendered. The hash is also suitable for use as a strong entity tag.
+ *
+ * Failed renders are cached for a short period so that repeated requests
+ * for a broken template do not each carry out the full transform.
+ *
+ * Requests that miss the cache while the same tree is already being
+ * rendered, such as the requests for a popular template arriving just
+ * after a deployment, wait for that render rather than each rendering the
+ * tree.
+ *
+ * @author jhc02
+ */
+public class TemplateTreeCache {
+
+    private static final Logger sLog = LoggerFactory.getLogger(TemplateTreeCache.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the shared instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "templateTreeCache";
+
+    /**
+     * Default maximum number of rendered trees to hold.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    /**
+     * Default time for which a failed render is cached.
+     */
+    public static final long DEFAULT_FAILURE_TTL_MILLIS = 30000L;
+
+    private final int _maxEntries;
+    private final long _failureTtlMillis;
+
+    // Access ordered so that the least recently used tree is evicted first.
+    // All access to the map is synchronized on the map itself.
+    private final LinkedHashMap<String, RenderedTree> _entries;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _failureHits = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final AtomicLong _prerenderedHits = new AtomicLong();
+
+    // Renders in progress, keyed by tree hash.
+    private final SingleFlight<String, RenderedTree> _renders = new SingleFlight<String, RenderedTree>();
+
+    // Trees rendered when the service was built, may be null.
+    private volatile PrerenderedTemplates _prerendered;
+
+    /**
+     * Get the tree cache registered in the provided servlet context,
+     * creating and registering a new one if none exists yet.
+     *
+     * @param pContext the servlet context to look up the cache in.
+     * @return the shared tree cache.
+     */
+    public static TemplateTreeCache getInstance(ServletContext pContext) {
+        synchronized(pContext) {
+            TemplateTreeCache cache = (TemplateTreeCache)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(cache == null) {
+                cache = new TemplateTreeCache(DEFAULT_MAX_ENTRIES, DEFAULT_FAILURE_TTL_MILLIS);
+                String prerenderedPath = pContext.getRealPath(PrerenderedTemplates.PRERENDERED_PATH);
+                if(prerenderedPath != null) {
+                    cache.setPrerendered(new PrerenderedTemplates(new File(prerenderedPath)));
+                }
+                pContext.setAttribute(CONTEXT_ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    public TemplateTreeCache(int pMaxEntries, long pFailureTtlMillis) {
+        this._maxEntries = pMaxEntries;
+        this._failureTtlMillis = pFailureTtlMillis;
+        this._entries = new LinkedHashMap<String, RenderedTree>(16, 0.75f, true);
+    }
+
+    /**
+     * Set the source of trees rendered at build time. These are used in
+     * preference to rendering a tree when their hash matches.
+     *
+     * @param pPrerendered the prerendered trees, or null to disable their use.
+     */
+    public void setPrerendered(PrerenderedTemplates pPrerendered) {
+        this._prerendered = pPrerendered;
+    }
+
+    public PrerenderedTemplates getPrerendered() {
+        return _prerendered;
+    }
+
+    /**
+     * Get the rendered HTML tree for the specified template, rendering it
+     * using the provided schema processor if there is no valid cached tree.
+     *
+     * @param pComponentMetadata the template to get the tree for.
+     * @param pProcessor the schema processor used to resolve the template
+     *        schema and render the tree.
+     * @return the rendered tree. If rendering failed, the returned object
+     *         contains the error message in place of the HTML content.
+     */
+    public RenderedTree getTree(final TempssObject pComponentMetadata, final SchemaProcessor pProcessor) {
+        final String templateId = pComponentMetadata.getId();
+
+        RenderedTree cached = null;
+        synchronized(_entries) {
+            cached = _entries.get(templateId);
+        }
+        if(cached != null && cached.isFailed()) {
+            if(cached.getExpiry() > System.currentTimeMillis()) {
+                _failureHits.incrementAndGet();
+                return cached;
+            }
+            cached = null;
+        }
+
+        // Resolving the schema is considerably cheaper than rendering it, and
+        // is required to check that a cached tree is still valid.
+        final ResolvedSchema schema;
+        try {
+            schema = pProcessor.resolveSchemaDocument(pComponentMetadata);
+        } catch (FileNotFoundException e) {
+            return cacheFailure(templateId, "File not found when trying to generate HTML tree: " + e.getMessage());
+        } catch (IOException e) {
+            return cacheFailure(templateId, "IO error when trying to generate HTML tree: " + e.getMessage());
+        } catch (ParseException e) {
+            return cacheFailure(templateId, "XML parse error when trying to generate HTML tree: " + e.getMessage());
+        }
+
+        final String hash;
+        try {
+            hash = computeHash(pComponentMetadata, schema, pProcessor);
+        } catch (IOException e) {
+            return cacheFailure(templateId, "IO error when trying to generate HTML tree: " + e.getMessage());
+        }
+        if(cached != null && hash.equals(cached.getHash())) {
+            _hits.incrementAndGet();
+            return cached;
+        }
+
+        try {
+            return _renders.execute(hash, new Callable<RenderedTree>() {
+                public RenderedTree call() {
+                    return render(pComponentMetadata, schema, hash, pProcessor);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new RenderedTree(templateId, null, null, null,
+                    "Interrupted while waiting for the HTML tree to be rendered.", 0L);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // Rendering reports failures in the returned tree.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Render the tree for a template and add it to the cache.
+     */
+    private RenderedTree render(TempssObject pComponentMetadata, ResolvedSchema pSchema, String pHash,
+                                SchemaProcessor pProcessor) {
+        String templateId = pComponentMetadata.getId();
+
+        // The tree may have been cached by a render that finished after
+        // this request last checked the cache.
+        synchronized(_entries) {
+            RenderedTree cached = _entries.get(templateId);
+            if(cached != null && pHash.equals(cached.getHash())) {
+                _hits.incrementAndGet();
+                return cached;
+            }
+        }
+
+        _misses.incrementAndGet();
+        PrerenderedTemplates prerendered = _prerendered;
+        if(prerendered != null) {
+            RenderedTree tree = prerendered.getTree(templateId, pHash);
+            if(tree != null) {
+                _prerenderedHits.incrementAndGet();
+                put(tree);
+                return tree;
+            }
+        }
+
+        String html = null;
+        try {
+            html = pProcessor.renderSchemaHtml(pComponentMetadata, pSchema.getContent());
+        } catch (TransformerException e) {
+            return cacheFailure(templateId, "XSLT transform error when trying to generate HTML tree: " + e.getMessage());
+        }
+
+        // The tree is compressed once here so that compressed responses
+        // can be sent without compressing the tree on every request.
+        byte[] htmlBytes = html.getBytes(SchemaProcessorUtils.UTF8);
+        RenderedTree tree = new RenderedTree(templateId, pHash, htmlBytes,
+                CompressionUtils.gzipIfWorthwhile(htmlBytes));
+        put(tree);
+        return tree;
+    }
+
+    /**
+     * Remove any cached tree for the specified template.
+     *
+     * @param pTemplateId the ID of the template to remove.
+     */
+    public void invalidate(String pTemplateId) {
+        synchronized(_entries) {
+            _entries.remove(pTemplateId);
+        }
+    }
+
+    /**
+     * Remove all cached trees.
+     */
+    public void clear() {
+        synchronized(_entries) {
+            _entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized(_entries) {
+            return _entries.size();
+        }
+    }
+
+    /**
+     * Get a snapshot of the cache statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        long bytes = 0;
+        int entries = 0;
+        synchronized(_entries) {
+            entries = _entries.size();
+            for(RenderedTree tree : _entries.values()) {
+                if(!tree.isFailed()) {
+                    bytes += tree.getHtml().length;
+                }
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("entries", entries);
+        stats.put("maxEntries", _maxEntries);
+        stats.put("bytes", bytes);
+        stats.put("hits", _hits.get());
+        stats.put("misses", _misses.get());
+        stats.put("failureHits", _failureHits.get());
+        stats.put("evictions", _evictions.get());
+        stats.put("prerenderedHits", _prerenderedHits.get());
+        stats.put("coalescing", _renders.getStatistics());
+        PrerenderedTemplates prerendered = _prerendered;
+        if(prerendered != null) {
+            stats.put("prerendered", prerendered.getStatistics());
+        }
+        return stats;
+    }
+
+    /**
+     * Compute the hash identifying the rendered tree for a template. This is
+     * based only on file content so that the hash of a tree is the same
+     * across deployments and can be compared with the hashes of trees
+     * rendered when the service was built.
+     *
+     * @param pComponentMetadata the template being rendered.
+     * @param pSchema the resolved schema for the template.
+     * @param pProcessor the processor used to render the template.
+     * @return the hex encoded hash.
+     * @throws IOException if the schema to HTML transform cannot be read.
+     */
+    public static String computeHash(TempssObject pComponentMetadata, ResolvedSchema pSchema,
+                                     SchemaProcessor pProcessor) throws IOException {
+        // The template ID is included since it is embedded in the rendered
+        // output.
+        String hashInput = pComponentMetadata.getId() + "\n"
+                + pProcessor.getTransformCache().getContentHash(pProcessor.getSchemaHtmlTransform()) + "\n"
+                + pSchema.getHash();
+        return SchemaProcessorUtils.sha256Hex(hashInput);
+    }
+
+    private RenderedTree cacheFailure(String pTemplateId, String pErrorMessage) {
+        sLog.error(pErrorMessage);
+        RenderedTree failure = new RenderedTree(pTemplateId, null, null, null, pErrorMessage,
+                System.currentTimeMillis() + _failureTtlMillis);
+        put(failure);
+        return failure;
+    }
+
+    private void put(RenderedTree pTree) {
+        synchronized(_entries) {
+            _entries.put(pTree.getTemplateId(), pTree);
+            Iterator<String> it = _entries.keySet().iterator();
+            while(_entries.size() > _maxEntries && it.hasNext()) {
+                String evicted = it.next();
+                it.remove();
+                _evictions.incrementAndGet();
+                sLog.debug("Evicted rendered tree for template <{}> from cache.", evicted);
+            }
+        }
+    }
+
+    /**
+     * A rendered template tree, or the details of a failure to render one.
+     */
+    public static class RenderedTree {
+
+        private final String _templateId;
+        private final String _hash;
+        private final byte[] _html;
+        private final byte[] _gzipHtml;
+        private final String _errorMessage;
+        private final long _expiry;
+
+        RenderedTree(String pTemplateId, String pHash, byte[] pHtml, byte[] pGzipHtml) {
+            this(pTemplateId, pHash, pHtml, pGzipHtml, null, 0L);
+        }
+
+        private RenderedTree(String pTemplateId, String pHash, byte[] pHtml, byte[] pGzipHtml,
+                             String pErrorMessage, long pExpiry) {
+            this._templateId = pTemplateId;
+            this._hash = pHash;
+            this._html = pHtml;
+            this._gzipHtml = pGzipHtml;
+            this._errorMessage = pErrorMessage;
+            this._expiry = pExpiry;
+        }
+
+        public String getTemplateId() {
+            return _templateId;
+        }
+
+        /**
+         * @return the hex encoded content hash of the tree, suitable for use
+         *         as a strong entity tag, or null if rendering failed.
+         */
+        public String getHash() {
+            return _hash;
+        }
+
+        /**
+         * @return the UTF-8 encoded HTML tree. The returned array is shared
+         *         and must not be modified.
+         */
+        public byte[] getHtml() {
+            return _html;
+        }
+
+        /**
+         * @return the gzip compressed HTML tree, or null if the tree was not
+         *         compressed. The returned array is shared and must not be
+         *         modified.
+         */
+        public byte[] getGzipHtml() {
+            return _gzipHtml;
+        }
+
+        public boolean isFailed() {
+            return _errorMessage != null;
+        }
+
+        public String getErrorMessage() {
+            return _errorMessage;
+        }
+
+        long getExpiry() {
+            return _expiry;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+import javax.xml.transform.TransformerException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.libhpc2.schemaservice.TemplateTreeCache.RenderedTree;
+
+/**
+ * Pre-warms the caches used to serve templates so that the first requests
+ * after the service starts don't pay the cost of resolving schemas,
+ * compiling stylesheets and rendering template trees.
+ *
+ * Warming runs in the background on a pool of threads sized to the number
+ * of available processors. Progress and the outcome for each template are
+ * published in the servlet context under {@link #CONTEXT_ATTRIBUTE} and the
+ * {@link #READY_ATTRIBUTE} attribute is set to true once all templates
+ * have been processed. Templates that fail to warm are logged as errors
+ * so that broken templates are reported when the service starts.
+ *
+ * @author jhc02
+ */
+public class TemplateWarmer {
+
+    private static final Logger sLog = LoggerFactory.getLogger(TemplateWarmer.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the warmer instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "templateWarmer";
+
+    /**
+     * Name of the servlet context attribute set to true when warming has
+     * completed.
+     */
+    public static final String READY_ATTRIBUTE = "templatesReady";
+
+    private final ServletContext _context;
+    private final ExecutorService _executor;
+    private final AtomicInteger _remaining = new AtomicInteger();
+    private final Map<String, String> _results =
+            Collections.synchronizedMap(new LinkedHashMap<String, String>());
+    private volatile long _startTime;
+    private volatile long _elapsedMillis = -1;
+
+    public TemplateWarmer(ServletContext pContext, int pThreads) {
+        this._context = pContext;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this._executor = Executors.newFixedThreadPool(pThreads, new ThreadFactory() {
+            public Thread newThread(Runnable pRunnable) {
+                Thread t = new Thread(pRunnable, "tempss-warmup-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start warming the specified templates in the background. Returns
+     * immediately.
+     *
+     * @param pComponents the templates to warm.
+     */
+    public void start(Map<String, TempssObject> pComponents) {
+        _context.setAttribute(READY_ATTRIBUTE, Boolean.FALSE);
+        _context.setAttribute(CONTEXT_ATTRIBUTE, this);
+        _startTime = System.currentTimeMillis();
+        _remaining.set(pComponents.size());
+        if(pComponents.isEmpty()) {
+            complete();
+            return;
+        }
+        sLog.info("Warming <{}> templates in the background...", pComponents.size());
+        for(final TempssObject component : pComponents.values()) {
+            _executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        warm(component);
+                    } finally {
+                        if(_remaining.decrementAndGet() == 0) {
+                            complete();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop any warming that is still in progress.
+     */
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+
+    public boolean isReady() {
+        return _elapsedMillis >= 0;
+    }
+
+    /**
+     * Get a snapshot of the warming status, including the outcome for each
+     * template that has been processed so far.
+     *
+     * @return a map of status name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("ready", isReady());
+        stats.put("remaining", _remaining.get());
+        stats.put("elapsedMillis", isReady() ? _elapsedMillis : System.currentTimeMillis() - _startTime);
+        synchronized(_results) {
+            stats.put("templates", new LinkedHashMap<String, String>(_results));
+        }
+        return stats;
+    }
+
+    private void warm(TempssObject pComponent) {
+        _results.put(pComponent.getId(), warmTemplate(_context, pComponent));
+    }
+
+    /**
+     * Resolve the schema, render the tree and compile the profile transform
+     * of a template so that they are held by the shared caches.
+     *
+     * @param pContext the servlet context holding the caches.
+     * @param pComponent the template to warm.
+     * @return "OK" if the template was warmed, otherwise "ERROR: " followed
+     *         by the reason it could not be.
+     */
+    static String warmTemplate(ServletContext pContext, TempssObject pComponent) {
+        String templateId = pComponent.getId();
+        long start = System.currentTimeMillis();
+        SchemaProcessor proc = new SchemaProcessor(pContext);
+
+        // Resolving the schema and compiling the schema to HTML transform
+        // are carried out as part of rendering the tree.
+        RenderedTree tree = TemplateTreeCache.getInstance(pContext).getTree(pComponent, proc);
+        if(tree.isFailed()) {
+            sLog.error("Template <{}> could not be rendered: {}", templateId, tree.getErrorMessage());
+            return "ERROR: " + tree.getErrorMessage();
+        }
+
+        File transform = new File(pContext.getRealPath("/WEB-INF/classes"), pComponent.getTransform());
+        try {
+            TransformCache.getInstance(pContext).getTemplates(transform);
+        } catch (TransformerException e) {
+            sLog.error("Profile transform for template <{}> could not be compiled: {}", templateId, e.getMessage());
+            return "ERROR: Unable to compile profile transform: " + e.getMessage();
+        }
+
+        sLog.debug("Warmed template <{}> in {}ms", templateId, System.currentTimeMillis() - start);
+        return "OK";
+    }
+
+    private void complete() {
+        _elapsedMillis = System.currentTimeMillis() - _startTime;
+        int failures = 0;
+        synchronized(_results) {
+            for(String result : _results.values()) {
+                if(!"OK".equals(result)) {
+                    failures++;
+                }
+            }
+        }
+        _context.setAttribute(READY_ATTRIBUTE, Boolean.TRUE);
+        _executor.shutdown();
+        if(failures > 0) {
+            sLog.error("Template warm-up completed in {}ms, <{}> template(s) failed.", _elapsedMillis, failures);
+        }
+        else {
+            sLog.info("Template warm-up completed in {}ms.", _elapsedMillis);
+        }
+    }
+}
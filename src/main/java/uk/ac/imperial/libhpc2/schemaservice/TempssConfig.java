@@ -3,7 +3,17 @@ package uk.ac.imperial.libhpc2.schemaservice;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.ini4j.InvalidFileFormatException;
 import org.ini4j.Wini;
@@ -15,71 +25,409 @@ import org.slf4j.LoggerFactory;
  * from a tempss.conf config file that is placed in either /etc or ~/.libhpc
  * A tempss.conf file placed in ~/.libhpc takes precedence over one placed in
  * /etc.
+ * 
+ * The settings are held in an immutable snapshot that is replaced when the
+ * configuration is reloaded, so settings can be read from any thread
+ * without locking. Once {@link #start(long)} has been called, the
+ * configuration files are checked periodically and the configuration is
+ * reloaded when the file in use changes, is removed or is superseded.
+ * Registered listeners are notified after a reload so that services can
+ * apply settings they hold themselves.
  * @author jhc02
  *
  */
 public class TempssConfig {
 
-	private static TempssConfig _instance = null;
+	/**
+	 * Configuration section containing the settings for reloading the
+	 * configuration.
+	 */
+	public static final String CONFIG_SECTION = "config";
+	
+	/**
+	 * Default interval between checks for a changed configuration file.
+	 */
+	public static final long DEFAULT_RELOAD_INTERVAL_SECONDS = 10;
+	
+	/**
+	 * Receives notification that the configuration has been reloaded.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the configuration reload thread after the
+		 * configuration has been reloaded.
+		 * 
+		 * @param pConfig the configuration.
+		 */
+		void configChanged(TempssConfig pConfig);
+	}
 	
-	// A list of patterns for templates to ignore
-	private List<String> _ignorePatterns = new ArrayList<String>();
+	private static volatile TempssConfig _instance = null;
 	
 	private static final Logger sLog = 
 			LoggerFactory.getLogger(TempssConfig.class.getName());
 	
+	private volatile Snapshot _snapshot;
+	
+	private final List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+	
+	private ScheduledExecutorService _reloader = null;
+	
+	private final AtomicLong _reloads = new AtomicLong();
+	
+	private final AtomicLong _failedReloads = new AtomicLong();
+	
+	// The version of the configuration file that last failed to load, so
+	// that the file is not loaded again until it changes.
+	private Snapshot _failed = null;
+	
+	private volatile long _lastReload = 0;
+	
 	public static TempssConfig getInstance() {
-		if(_instance == null) {
-			_instance = new TempssConfig();
+		TempssConfig instance = _instance;
+		if(instance == null) {
+			synchronized(TempssConfig.class) {
+				instance = _instance;
+				if(instance == null) {
+					instance = new TempssConfig();
+					_instance = instance;
+				}
+			}
 		}
-		return _instance;
+		return instance;
 	}
 	
 	/**
-	 * The constructor looks for and loads the 
+	 * The constructor looks for and loads the configuration file.
 	 */
 	protected TempssConfig() {
+		File configFile = findConfigFile();
+		String version = getVersion(configFile);
+		try {
+			_snapshot = load(configFile, version);
+		} catch (IOException e) {
+			// Start with the default settings. The snapshot records the
+			// version of the file so that it is loaded once it is fixed.
+			logLoadError(e);
+			_snapshot = new Snapshot(configFile, version,
+					new HashMap<String, Map<String, String>>(), GlobMatcher.NONE);
+		}
+	}
+	
+	/**
+	 * Start checking the configuration files for changes.
+	 * 
+	 * @param pIntervalSeconds the interval between checks.
+	 */
+	public synchronized void start(long pIntervalSeconds) {
+		if(_reloader != null || pIntervalSeconds <= 0) {
+			return;
+		}
+		_reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable pRunnable) {
+				Thread t = new Thread(pRunnable, "tempss-config-reloader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		_reloader.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					reloadIfChanged();
+				} catch (RuntimeException e) {
+					sLog.error("Error reloading the tempss configuration: {}", e.getMessage(), e);
+				}
+			}
+		}, pIntervalSeconds, pIntervalSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Stop checking the configuration files for changes.
+	 */
+	public synchronized void shutdown() {
+		if(_reloader != null) {
+			_reloader.shutdownNow();
+			_reloader = null;
+		}
+	}
+	
+	public void addListener(Listener pListener) {
+		_listeners.add(pListener);
+	}
+	
+	public void removeListener(Listener pListener) {
+		_listeners.remove(pListener);
+	}
+	
+	/**
+	 * Reload the configuration if the configuration file has changed since
+	 * it was loaded, and notify the listeners. If the changed file cannot
+	 * be read or is not valid, for example because it is only partly
+	 * written, the current configuration is kept and the file is loaded
+	 * again once it next changes.
+	 * 
+	 * @return true if the configuration was reloaded.
+	 */
+	public synchronized boolean reloadIfChanged() {
+		File configFile = findConfigFile();
+		if(_snapshot.isCurrent(configFile)
+				|| (_failed != null && _failed.isCurrent(configFile))) {
+			return false;
+		}
+		// The version is read before the file so that a file that changes
+		// while it is being read is loaded again.
+		String version = getVersion(configFile);
+		Snapshot snapshot;
+		try {
+			snapshot = load(configFile, version);
+		} catch (IOException e) {
+			logLoadError(e);
+			sLog.error("Keeping the current tempss configuration, the file is " +
+					"loaded again once it changes.");
+			_failed = new Snapshot(configFile, version,
+					new HashMap<String, Map<String, String>>(), GlobMatcher.NONE);
+			_failedReloads.incrementAndGet();
+			return false;
+		}
+		_failed = null;
+		if(snapshot.sections.equals(_snapshot.sections)) {
+			// The file was touched or replaced without changing any
+			// settings, so there is nothing for the listeners to do.
+			_snapshot = snapshot;
+			return false;
+		}
+		_snapshot = snapshot;
+		_reloads.incrementAndGet();
+		_lastReload = System.currentTimeMillis();
+		sLog.info("Reloaded the tempss configuration from <{}>.",
+				(configFile != null) ? configFile : "defaults");
+		for(Listener listener : _listeners) {
+			try {
+				listener.configChanged(this);
+			} catch (RuntimeException e) {
+				sLog.error("Error applying the reloaded tempss configuration: {}",
+						e.getMessage(), e);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the configuration file in use, or null if there is none.
+	 */
+	public File getConfigFile() {
+		return _snapshot.file;
+	}
+	
+	/**
+	 * Get a snapshot of the configuration status.
+	 * 
+	 * @return a map of status name to value.
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		File configFile = _snapshot.file;
+		if(configFile != null) {
+			stats.put("file", configFile.getPath());
+		}
+		synchronized(this) {
+			stats.put("watching", _reloader != null);
+		}
+		stats.put("reloads", _reloads.get());
+		stats.put("failedReloads", _failedReloads.get());
+		stats.put("lastReload", _lastReload);
+		return stats;
+	}
+	
+	public List<String> getIgnorePatterns() {
+		return _snapshot.ignoreMatcher.getPatterns();
+	}
+	
+	/**
+	 * @return a matcher for the IDs of templates that are to be ignored.
+	 */
+	public GlobMatcher getIgnoreMatcher() {
+		return _snapshot.ignoreMatcher;
+	}
+	
+	/**
+	 * Get the value of a setting from the configuration file.
+	 * 
+	 * @param pSection the name of the section containing the setting.
+	 * @param pKey the name of the setting.
+	 * @param pDefault the value to return if the setting is not present.
+	 * @return the value of the setting or the default value.
+	 */
+	public String getProperty(String pSection, String pKey, String pDefault) {
+		Map<String, String> section = _snapshot.sections.get(pSection);
+		if(section == null) {
+			return pDefault;
+		}
+		String value = section.get(pKey);
+		if(value == null || value.trim().length() == 0) {
+			return pDefault;
+		}
+		return value.trim();
+	}
+	
+	/**
+	 * Get the value of a boolean setting from the configuration file.
+	 * Values of true, yes, on or 1 are treated as true.
+	 */
+	public boolean getBooleanProperty(String pSection, String pKey, 
+			boolean pDefault) {
+		String value = getProperty(pSection, pKey, null);
+		if(value == null) {
+			return pDefault;
+		}
+		return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes")
+				|| value.equalsIgnoreCase("on") || value.equals("1");
+	}
+	
+	/**
+	 * Get the value of an integer setting from the configuration file. If 
+	 * the setting is not a valid integer, the default value is returned.
+	 */
+	public int getIntProperty(String pSection, String pKey, int pDefault) {
+		String value = getProperty(pSection, pKey, null);
+		if(value == null) {
+			return pDefault;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch(NumberFormatException e) {
+			sLog.error("Invalid integer value <{}> for setting <{}> in " +
+					"section <{}>, using default.", value, pKey, pSection);
+			return pDefault;
+		}
+	}
+	
+	/**
+	 * Get the value of a long integer setting from the configuration file.
+	 * If the setting is not a valid integer, the default value is returned.
+	 */
+	public long getLongProperty(String pSection, String pKey, long pDefault) {
+		String value = getProperty(pSection, pKey, null);
+		if(value == null) {
+			return pDefault;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch(NumberFormatException e) {
+			sLog.error("Invalid integer value <{}> for setting <{}> in " +
+					"section <{}>, using default.", value, pKey, pSection);
+			return pDefault;
+		}
+	}
+	
+	/**
+	 * Find the configuration file to use.
+	 * 
+	 * @return the file, or null if there is no configuration file.
+	 */
+	private static File findConfigFile() {
 		// See if we have a ~/.libhpc/tempss.conf config file.
 		File userHome = new File(System.getProperty("user.home"));
 		File libhpcDir = new File(userHome, ".libhpc");
 		File configFileObj = new File(libhpcDir, "tempss.conf");
 		if(configFileObj.exists()) {
-			sLog.debug("Found a tempss configuration file at " +
-					"~/.libhpc/tempss.conf");
+			return configFileObj;
 		}
-		else {
-			// Try /etc/tempss.conf
-			configFileObj = new File("/etc/tempss.conf");
-			if(configFileObj.exists()) {
-				sLog.debug("Found a tempss configuration file at " +
-					"/etc/tempss.conf");
-			}
-			else {
-				sLog.debug("No tempss configuration file found...");
-				return;
-			}
+		// Try /etc/tempss.conf
+		configFileObj = new File("/etc/tempss.conf");
+		if(configFileObj.exists()) {
+			return configFileObj;
 		}
+		return null;
+	}
+	
+	/**
+	 * @return the version of a configuration file, or null if there is no
+	 *         configuration file.
+	 */
+	private static String getVersion(File pConfigFile) {
+		return (pConfigFile != null) ? TransformCache.getVersion(pConfigFile) : null;
+	}
+	
+	/**
+	 * Load the settings from a configuration file.
+	 * 
+	 * @param pConfigFile the file, or null if there is no configuration file.
+	 * @param pVersion the version of the file, read before it is loaded.
+	 * @return the settings.
+	 * @throws IOException if the file cannot be read or is not a valid ini
+	 *         file.
+	 */
+	private static Snapshot load(File pConfigFile, String pVersion) throws IOException {
+		if(pConfigFile == null) {
+			sLog.debug("No tempss configuration file found...");
+			return new Snapshot(null, null, new HashMap<String, Map<String, String>>(),
+					GlobMatcher.NONE);
+		}
+		sLog.debug("Found a tempss configuration file at " + pConfigFile);
+		
 		// Now read the ini-style configuration file
-		// Now read the ini-style configuration file
-		try {
-			Wini configFile = new Wini(configFileObj);
-			// If we have a template ignore section, process it
-			if(configFile.keySet().contains("template-ignore")) {
-				for(String ignorePattern : configFile.get("template-ignore").keySet()) {
-					sLog.debug("Got template ignore pattern: " + ignorePattern);
-					_ignorePatterns.add(ignorePattern);
-				}
+		Map<String, Map<String, String>> sections = 
+				new HashMap<String, Map<String, String>>();
+		List<String> ignorePatterns = new ArrayList<String>();
+		Wini configFile = new Wini(pConfigFile);
+		// If we have a template ignore section, process it
+		if(configFile.keySet().contains("template-ignore")) {
+			for(String ignorePattern : configFile.get("template-ignore").keySet()) {
+				sLog.debug("Got template ignore pattern: " + ignorePattern);
+				ignorePatterns.add(ignorePattern);
 			}
-		} catch (InvalidFileFormatException e) {
-			sLog.error("The format of the tempss.conf ini configuration file" +
-					"is invalid: {}", e.getMessage());
-		} catch (IOException e) {
+		}
+		// Store the settings from all sections for lookup by name
+		for(String sectionName : configFile.keySet()) {
+			Map<String, String> section = new HashMap<String, String>();
+			for(Map.Entry<String, String> entry : 
+					configFile.get(sectionName).entrySet()) {
+				section.put(entry.getKey(), entry.getValue());
+			}
+			sections.put(sectionName, Collections.unmodifiableMap(section));
+		}
+		return new Snapshot(pConfigFile, pVersion, sections, new GlobMatcher(ignorePatterns));
+	}
+	
+	private static void logLoadError(IOException pError) {
+		if(pError instanceof InvalidFileFormatException) {
+			sLog.error("The format of the tempss.conf ini configuration file " +
+					"is invalid: {}", pError.getMessage());
+		}
+		else {
 			sLog.error("Error reading the tempss.conf ini configuration " +
-					"file: {}", e.getMessage());		
+					"file: {}", pError.getMessage());
 		}
-    }
+	}
 	
-	public List<String> getIgnorePatterns() {
-		return _ignorePatterns;
+	/**
+	 * The settings loaded from a configuration file, along with the
+	 * version of the file they were loaded from.
+	 */
+	private static final class Snapshot {
+		final File file;
+		final String version;
+		final Map<String, Map<String, String>> sections;
+		final GlobMatcher ignoreMatcher;
+		
+		Snapshot(File pFile, String pVersion, Map<String, Map<String, String>> pSections,
+				GlobMatcher pIgnoreMatcher) {
+			this.file = pFile;
+			this.version = pVersion;
+			this.sections = Collections.unmodifiableMap(pSections);
+			this.ignoreMatcher = pIgnoreMatcher;
+		}
+		
+		/**
+		 * Check whether this snapshot was loaded from the current version
+		 * of the specified configuration file.
+		 */
+		boolean isCurrent(File pFile) {
+			if(pFile == null || file == null) {
+				return pFile == file;
+			}
+			return pFile.equals(file) && TransformCache.getVersion(pFile).equals(version);
+		}
 	}
-}
\ No newline at end of file
+}
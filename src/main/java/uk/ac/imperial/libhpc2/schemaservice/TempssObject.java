@@ -45,6 +45,10 @@
 
 package uk.ac.imperial.libhpc2.schemaservice;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
 /**
  * A metadata object containing details of a component for which
  * a template and associated profile mappings have been made.
@@ -95,6 +99,32 @@ public class TempssObject {
         this._transform = transform;
     }
 
+    /**
+     * Create the template metadata objects described by a template properties
+     * file. The component.id property contains a comma-separated list of
+     * template IDs and the name, schema and transform for each template are
+     * given by the &lt;id&gt;.name, &lt;id&gt;.schema and &lt;id&gt;.transform
+     * properties.
+     *
+     * @param pProps the loaded template properties.
+     * @return a list of metadata objects, one for each template.
+     */
+    public static List<TempssObject> fromProperties(Properties pProps) {
+        List<TempssObject> objects = new ArrayList<TempssObject>();
+        String ids = pProps.getProperty("component.id");
+        if(ids == null) {
+            return objects;
+        }
+        for(String comp : ids.split(",")) {
+            comp = comp.trim();
+            String name = pProps.getProperty(comp+".name");
+            String schema = pProps.getProperty(comp+".schema");
+            String transform = pProps.getProperty(comp+".transform");
+            objects.add(new TempssObject(comp, name, schema, transform));
+        }
+        return objects;
+    }
+
     @Override
     public String toString() {
         StringBuilder s = new StringBuilder();
@@ -46,22 +46,15 @@
 package uk.ac.imperial.libhpc2.schemaservice;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Properties;
-import java.util.Set;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
@@ -82,6 +75,8 @@ public class TempssServletContextListener implements ServletContextListener {
 
     private static final Logger sLog = LoggerFactory.getLogger(TempssServletContextListener.class.getName());
 
+    private TempssConfig.Listener _configListener = null;
+
     /**
      * Search for all the properties files in the "Template" directory
      * and read in the details from them, creating a TempssObject instance
@@ -106,7 +101,7 @@ public class TempssServletContextListener implements ServletContextListener {
             path = new URL(clazz.getResource(className).toString());
         } catch (MalformedURLException e1) {
             sLog.error("Unable to get class URL to search for component property files.");
-            pContext.getServletContext().setAttribute("components", componentMap);
+            TemplateCatalog.publish(pContext.getServletContext(), componentMap);
             return;
         }
 
@@ -118,88 +113,127 @@ public class TempssServletContextListener implements ServletContextListener {
             templatePathURI = new URI(templatePath);
         } catch (URISyntaxException e1) {
             sLog.error("Unable to construct URI for template path to search for property files.");
-            pContext.getServletContext().setAttribute("components", componentMap);
+            TemplateCatalog.publish(pContext.getServletContext(), componentMap);
             return;
         }
 
-        File[] templateMetadataFiles = new File(templatePathURI).listFiles(new FilenameFilter() {
-            public boolean accept(File f, String name) {
-                return name.endsWith(".properties");
-            }
-        });
-
-        // We now need to check if there's a configuration file present that
-        // specifies some templates that are to be ignored
+        // Load the templates, removing any that are to be ignored as
+        // specified in the tempss configuration, and publish them.
         TempssConfig config = TempssConfig.getInstance();
-        List<String> ignorePatterns = config.getIgnorePatterns();
-        
-        // Now process the template metadata files to generate instances
-        // of TemplateObject that can be stored in the application context
-        for (File f : templateMetadataFiles) {
-            Properties props = new Properties();
-            String absolutePath = f.getAbsolutePath();
-            sLog.debug("Template absolute path: " + absolutePath);
-            String resourcePath = absolutePath.substring(absolutePath.indexOf("META-INF" + File.separator + "Template"));
-            sLog.debug("Template file: " + absolutePath + "\nGetting resource: " + resourcePath);
-            InputStream resourceStream = getClass().getClassLoader().getResourceAsStream(resourcePath);
-            if(resourceStream != null) {
-                try {
-                    props.load(resourceStream);
-                } catch (IOException e) {
-                    sLog.error("Unable to load resource metadata for <" + resourcePath + ">");
-                    continue;
-                }
-            }
-            else {
-                sLog.error("Input stream for resource <" + resourcePath + "> is null.");
-                continue;
-            }
+        TemplateRegistry registry = new TemplateRegistry(pContext.getServletContext(), new File(templatePathURI));
+        componentMap = registry.load();
 
-            String[] components = props.getProperty("component.id").split(",");            
-            for(String comp : components) {
-                comp = comp.trim();
-                String name = props.getProperty(comp+".name");
-                String schema = props.getProperty(comp+".schema");
-                String transform = props.getProperty(comp+".transform");
-                TempssObject obj = new TempssObject(comp, name, schema, transform);
-                sLog.info("Found and registered new template object: \n" + obj.toString());
-                componentMap.put(comp, obj);
+        // Optionally pre-warm the schema, transform and tree caches for all
+        // the registered templates in the background.
+        if(config.getBooleanProperty("warmup", "enabled", true)) {
+            int threads = config.getIntProperty("warmup", "threads",
+                    Runtime.getRuntime().availableProcessors());
+            TemplateWarmer warmer = new TemplateWarmer(
+                    pContext.getServletContext(), Math.max(1, threads));
+            warmer.start(componentMap);
+        }
+        else {
+            pContext.getServletContext().setAttribute(
+                    TemplateWarmer.READY_ATTRIBUTE, Boolean.TRUE);
+        }
+
+        // Optionally watch the template files so that changed templates
+        // are reloaded without redeploying the service.
+        if(config.getBooleanProperty(TemplateRegistry.CONFIG_SECTION, "watch", true)) {
+            try {
+                registry.start(config.getLongProperty(TemplateRegistry.CONFIG_SECTION, "debounceMillis",
+                        TemplateRegistry.DEFAULT_DEBOUNCE_MILLIS));
+            } catch (IOException e) {
+                sLog.error("Unable to watch template files for changes: " + e.getMessage());
             }
         }
-        
-        // Now compare the IDs to the ignore patterns obtained from the 
-        // tempss configuration and remove any components to be ignored.
-		_updateComponentMap(componentMap.keySet(), ignorePatterns);
-        pContext.getServletContext().setAttribute("components", componentMap);
-        
+
+        // Create the conversion job queue now so that jobs that had not
+        // finished when the service stopped are run again.
+        ConversionJobQueue.getInstance(pContext.getServletContext());
+
+        // Apply changes to the configuration file while the service is
+        // running. Services that have not been created yet read the
+        // current configuration when they are.
+        _configListener = new ConfigListener(pContext.getServletContext(), registry);
+        config.addListener(_configListener);
+        config.start(config.getLongProperty(TempssConfig.CONFIG_SECTION, "reloadIntervalSeconds",
+                TempssConfig.DEFAULT_RELOAD_INTERVAL_SECONDS));
     }
 
     public void contextDestroyed(ServletContextEvent pContext) {
+        if(_configListener != null) {
+            TempssConfig.getInstance().removeListener(_configListener);
+            TempssConfig.getInstance().shutdown();
+            _configListener = null;
+        }
+        TemplateRegistry registry = (TemplateRegistry)pContext.getServletContext()
+                .getAttribute(TemplateRegistry.CONTEXT_ATTRIBUTE);
+        if(registry != null) {
+            registry.shutdown();
+        }
+        TemplateWarmer warmer = (TemplateWarmer)pContext.getServletContext()
+                .getAttribute(TemplateWarmer.CONTEXT_ATTRIBUTE);
+        if(warmer != null) {
+            warmer.shutdown();
+        }
+        ArtifactStore store = (ArtifactStore)pContext.getServletContext()
+                .getAttribute(ArtifactStore.CONTEXT_ATTRIBUTE);
+        if(store != null) {
+            store.shutdown();
+        }
+        RequestExecutor.shutdown(pContext.getServletContext(), RequestExecutor.CONVERSION);
+        RequestExecutor.shutdown(pContext.getServletContext(), RequestExecutor.RENDER);
+        BatchConverter.shutdown(pContext.getServletContext());
+        ConversionJobQueue.shutdown(pContext.getServletContext());
         pContext.getServletContext().setAttribute("components", null);
+        pContext.getServletContext().setAttribute(TemplateCatalog.CONTEXT_ATTRIBUTE, null);
     }
-    
-    private void _updateComponentMap(
-    			Set<String> pComponents, List<String> pIgnorePatterns) {
-    	
-    	Set<String> removeSet = new HashSet<String>();
-    	for(String pattern : pIgnorePatterns) {
-    		sLog.debug("Processing ignore pattern: <{}>", pattern);
-    		if(pattern.endsWith("*")) {
-    			String searchValue = pattern.substring(0, pattern.length()-1);
-    			sLog.debug("Ignoring components beginning with <{}>", searchValue);
-    			for(String id : pComponents) {
-    				if(id.startsWith(searchValue)) {
-    					removeSet.add(id);
-    				}
-    			}
-    		}
-    		else {
-    			removeSet.add(pattern);
-    		}
-    	}
-    	// The component IDs are a keySet obtained from the component Map. They
-    	// maintain a two-way binding with the component map so calling
-    	// removeAll on the keySet removes 
-    	pComponents.removeAll(removeSet);
+
+    /**
+     * Applies a reloaded configuration to the services that hold settings
+     * themselves.
+     */
+    private static class ConfigListener implements TempssConfig.Listener {
+
+        private final ServletContext _context;
+        private final TemplateRegistry _registry;
+
+        ConfigListener(ServletContext pContext, TemplateRegistry pRegistry) {
+            this._context = pContext;
+            this._registry = pRegistry;
+        }
+
+        public void configChanged(TempssConfig pConfig) {
+            _registry.reconfigure(pConfig);
+            ConversionCache cache = (ConversionCache)_context.getAttribute(ConversionCache.CONTEXT_ATTRIBUTE);
+            if(cache != null) {
+                cache.reconfigure(pConfig);
+            }
+            ArtifactStore store = (ArtifactStore)_context.getAttribute(ArtifactStore.CONTEXT_ATTRIBUTE);
+            if(store != null) {
+                store.reconfigure(pConfig);
+            }
+            for(String name : new String[] {RequestExecutor.CONVERSION, RequestExecutor.RENDER}) {
+                RequestExecutor executor = (RequestExecutor)_context.getAttribute(
+                        RequestExecutor.CONTEXT_ATTRIBUTE_PREFIX + name);
+                if(executor != null) {
+                    executor.reconfigure(pConfig);
+                }
+            }
+            BatchConverter converter = (BatchConverter)_context.getAttribute(BatchConverter.CONTEXT_ATTRIBUTE);
+            if(converter != null) {
+                converter.reconfigure(pConfig);
+            }
+            ConversionJobQueue queue = (ConversionJobQueue)_context.getAttribute(ConversionJobQueue.CONTEXT_ATTRIBUTE);
+            if(queue != null) {
+                queue.reconfigure(pConfig);
+            }
+            AdmissionController admission = (AdmissionController)_context.getAttribute(
+                    AdmissionController.CONTEXT_ATTRIBUTE);
+            if(admission != null) {
+                admission.reconfigure(pConfig);
+            }
+        }
     }
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.TransformerFactoryConfigurationError;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A shared registry of compiled XSLT stylesheets.
+ *
+ * Compiling a stylesheet is considerably more expensive than running it so
+ * each stylesheet is compiled once into a thread-safe {@link Templates}
+ * object which is then used to create a cheap {@link Transformer} for each
+ * request. Entries are keyed by the absolute path of the stylesheet and are
+ * recompiled if the file's version (modification time and size) changes.
+ *
+ * A single instance is shared via the servlet context, use
+ * {@link #getInstance(ServletContext)} to obtain it.
+ *
+ * @author jhc02
+ */
+public class TransformCache {
+
+    private static final Logger sLog = LoggerFactory.getLogger(TransformCache.class.getName());
+
+    /**
+     * Name of the servlet context attribute holding the shared instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "transformCache";
+
+    private final ConcurrentMap<String, CacheEntry> _entries =
+            new ConcurrentHashMap<String, CacheEntry>();
+
+    // Content hashes of stylesheets keyed by path, each value holds the file
+    // version and the hash of that version
+    private final ConcurrentMap<String, String[]> _contentHashes =
+            new ConcurrentHashMap<String, String[]>();
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _compilations = new AtomicLong();
+    private final AtomicLong _compileTimeNanos = new AtomicLong();
+
+    /**
+     * Get the transform cache registered in the provided servlet context,
+     * creating and registering a new one if none exists yet.
+     *
+     * @param pContext the servlet context to look up the cache in.
+     * @return the shared transform cache.
+     */
+    public static TransformCache getInstance(ServletContext pContext) {
+        synchronized(pContext) {
+            TransformCache cache = (TransformCache)pContext.getAttribute(CONTEXT_ATTRIBUTE);
+            if(cache == null) {
+                cache = new TransformCache();
+                pContext.setAttribute(CONTEXT_ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Get the compiled form of the specified stylesheet, compiling it if it
+     * is not yet cached or the file has changed since it was compiled.
+     *
+     * @param pXslFile the XSLT stylesheet file.
+     * @return the compiled stylesheet.
+     * @throws TransformerException if the stylesheet cannot be compiled.
+     */
+    public Templates getTemplates(File pXslFile) throws TransformerException {
+        String key = pXslFile.getAbsolutePath();
+        String version = getVersion(pXslFile);
+
+        CacheEntry entry = _entries.get(key);
+        if(entry == null) {
+            CacheEntry newEntry = new CacheEntry();
+            entry = _entries.putIfAbsent(key, newEntry);
+            if(entry == null) {
+                entry = newEntry;
+            }
+        }
+
+        // Compilation is carried out while holding the entry lock so that
+        // concurrent requests for the same stylesheet wait for a single
+        // compilation rather than each compiling their own copy.
+        synchronized(entry) {
+            if(entry.templates != null && version.equals(entry.version)) {
+                _hits.incrementAndGet();
+                return entry.templates;
+            }
+            _misses.incrementAndGet();
+            entry.templates = compile(pXslFile);
+            entry.version = version;
+            return entry.templates;
+        }
+    }
+
+    /**
+     * Create a new transformer for the specified stylesheet using the cached
+     * compiled form where possible.
+     *
+     * @param pXslFile the XSLT stylesheet file.
+     * @return a new transformer instance for use by a single thread.
+     * @throws TransformerException if the stylesheet cannot be compiled or
+     *         the transformer cannot be created.
+     */
+    public Transformer newTransformer(File pXslFile) throws TransformerException {
+        try {
+            return getTemplates(pXslFile).newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new TransformerException("Error creating transformer for the specified XSLT document <" + pXslFile + ">", e);
+        }
+    }
+
+    /**
+     * Get a version string for a stylesheet file. Transforms that are
+     * cached elsewhere can use this to detect that the stylesheet used to
+     * generate them has changed.
+     *
+     * @param pXslFile the XSLT stylesheet file.
+     * @return a string identifying the current version of the file.
+     */
+    public static String getVersion(File pXslFile) {
+        return pXslFile.lastModified() + "-" + pXslFile.length();
+    }
+
+    /**
+     * Get the hex encoded SHA-256 hash of the content of a stylesheet file.
+     * Unlike {@link #getVersion(File)}, the hash is independent of the
+     * file's modification time so it can be compared across deployments.
+     * The hash is computed once for each version of the file.
+     *
+     * @param pXslFile the XSLT stylesheet file.
+     * @return the hash of the file content.
+     * @throws IOException if the file cannot be read.
+     */
+    public String getContentHash(File pXslFile) throws IOException {
+        String key = pXslFile.getAbsolutePath();
+        String version = getVersion(pXslFile);
+        String[] cached = _contentHashes.get(key);
+        if(cached != null && cached[0].equals(version)) {
+            return cached[1];
+        }
+        String hash = SchemaProcessorUtils.toHex(
+                SchemaProcessorUtils.newSha256Digest().digest(FileUtils.readFileToByteArray(pXslFile)));
+        _contentHashes.put(key, new String[] {version, hash});
+        return hash;
+    }
+
+    /**
+     * Remove the compiled form of a stylesheet from the cache so that it is
+     * compiled again when it is next used. This is required when a file
+     * that the stylesheet includes or imports changes, since only the
+     * version of the stylesheet file itself is checked.
+     *
+     * @param pXslFile the XSLT stylesheet file.
+     */
+    public void invalidate(File pXslFile) {
+        String key = pXslFile.getAbsolutePath();
+        _entries.remove(key);
+        _contentHashes.remove(key);
+    }
+
+    /**
+     * Remove all compiled stylesheets from the cache.
+     */
+    public void clear() {
+        _entries.clear();
+        _contentHashes.clear();
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getCompilations() {
+        return _compilations.get();
+    }
+
+    public long getCompileTimeMillis() {
+        return _compileTimeNanos.get() / 1000000L;
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Get a snapshot of the cache statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("entries", size());
+        stats.put("hits", getHits());
+        stats.put("misses", getMisses());
+        stats.put("compilations", getCompilations());
+        stats.put("compileTimeMillis", getCompileTimeMillis());
+        return stats;
+    }
+
+    private Templates compile(File pXslFile) throws TransformerException {
+        if(!pXslFile.exists()) {
+            throw new TransformerException("The XSLT document <" + pXslFile + "> does not exist.");
+        }
+        long start = System.nanoTime();
+        Templates templates = null;
+        try {
+            // TransformerFactory instances are not thread-safe so we use a
+            // new factory for each compilation.
+            TransformerFactory factory = TransformerFactory.newInstance();
+            LibhpcErrorListener errorHandler = new LibhpcErrorListener();
+            factory.setErrorListener(errorHandler);
+            templates = factory.newTemplates(new StreamSource(pXslFile));
+        } catch (TransformerConfigurationException e) {
+            throw new TransformerException("Error compiling the specified XSLT document <" + pXslFile + ">", e);
+        } catch (TransformerFactoryConfigurationError e) {
+            throw new TransformerException("Configuration error compiling the specified XSLT document <" + pXslFile + ">", e);
+        }
+        long elapsed = System.nanoTime() - start;
+        _compilations.incrementAndGet();
+        _compileTimeNanos.addAndGet(elapsed);
+        sLog.info("Compiled XSLT document <{}> in {}ms", pXslFile, elapsed / 1000000L);
+        return templates;
+    }
+
+    private static class CacheEntry {
+        Templates templates;
+        String version;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Support for the optional virtual thread mode, in which I/O bound request
+ * handling, such as reading uploads, downloading files and database access,
+ * runs on virtual threads rather than on the servlet container's threads.
+ * CPU intensive work such as XSLT transforms continues to run on the
+ * bounded pools of platform threads provided by {@link RequestExecutor}.
+ *
+ * The mode is selected with mode = virtual in the [threading] section of
+ * the configuration file. Virtual threads are available from Java 21 and
+ * are created reflectively so that the service can still be built and run
+ * on earlier versions, where the default platform thread mode is used.
+ *
+ * @author jhc02
+ */
+public class VirtualThreads {
+
+    private static final Logger sLog = LoggerFactory.getLogger(VirtualThreads.class.getName());
+
+    /**
+     * Configuration section selecting the threading mode.
+     */
+    public static final String CONFIG_SECTION = "threading";
+
+    /**
+     * Value of the mode setting selecting virtual threads.
+     */
+    public static final String MODE_VIRTUAL = "virtual";
+
+    /**
+     * Value of the mode setting selecting platform threads, the default.
+     */
+    public static final String MODE_PLATFORM = "platform";
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if virtual threads are selected in the configuration.
+     */
+    public static boolean isEnabled() {
+        return MODE_VIRTUAL.equalsIgnoreCase(TempssConfig.getInstance()
+                .getProperty(CONFIG_SECTION, "mode", MODE_PLATFORM).trim());
+    }
+
+    /**
+     * @return true if the Java runtime supports virtual threads.
+     */
+    public static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create an executor that runs each task on a new virtual thread.
+     *
+     * @param pNamePrefix prefix of the names of the threads, which are
+     *        numbered from 0.
+     * @return the executor, or null if the Java runtime does not support
+     *         virtual threads.
+     */
+    public static ExecutorService newExecutor(String pNamePrefix) {
+        if(!isSupported()) {
+            return null;
+        }
+        try {
+            // Thread.ofVirtual().name(prefix, 0).factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, pNamePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService)newExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            sLog.error("Unable to create virtual thread executor: " + e.getMessage(), e);
+            return null;
+        }
+    }
+}
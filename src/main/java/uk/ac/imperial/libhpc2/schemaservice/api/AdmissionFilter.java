@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice.api;
+
+import java.io.IOException;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.libhpc2.schemaservice.AdmissionController;
+import uk.ac.imperial.libhpc2.schemaservice.AdmissionController.Permit;
+
+/**
+ * Jersey filter applying admission control to the resource methods
+ * annotated with {@link AdmissionControlled}. Requests are identified by
+ * the authenticated user making them or, for anonymous requests, by the
+ * client address (see {@link Callers}). Requests that are not admitted
+ * receive a 429 (too many requests) response with a Retry-After header.
+ *
+ * The filter runs once the request has been matched to a resource method
+ * but before the request body is read, so a rejected upload is not
+ * buffered. The permit of an admitted request is held until its response
+ * has been written. Batch and sweep conversions are carried out as their
+ * response entity is written, so the permit is released by the filter's
+ * writer interceptor once the entity has been written, or by the response
+ * filter if the response has no entity.
+ *
+ * @author jhc02
+ */
+@AdmissionControlled
+public class AdmissionFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+    private static final Logger sLog = LoggerFactory.getLogger(AdmissionFilter.class.getName());
+
+    /**
+     * HTTP status code of responses to requests that are not admitted.
+     */
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    // Request property holding the permit of an admitted request.
+    private static final String PERMIT_PROPERTY = AdmissionFilter.class.getName() + ".permit";
+
+    @Context
+    private ServletContext _context;
+
+    @Context
+    private HttpServletRequest _request;
+
+    @Override
+    public void filter(ContainerRequestContext pRequest) {
+        String caller = Callers.getCaller(_request);
+        Permit permit = AdmissionController.getInstance(_context).admit(caller);
+        if(!permit.isAdmitted()) {
+            sLog.debug("Request from <{}> to <{}> not admitted: {}",
+                       caller, pRequest.getUriInfo().getPath(), permit.getReason());
+            pRequest.abortWith(Response.status(TOO_MANY_REQUESTS)
+                    .header("Retry-After", permit.getRetryAfterSeconds())
+                    .type(MediaType.TEXT_PLAIN)
+                    .entity(permit.getReason()).build());
+            return;
+        }
+        pRequest.setProperty(PERMIT_PROPERTY, permit);
+    }
+
+    @Override
+    public void filter(ContainerRequestContext pRequest, ContainerResponseContext pResponse) {
+        // Responses with an entity are written after the response filters
+        // have run, the permit is then released by aroundWriteTo.
+        if(!pResponse.hasEntity()) {
+            release(pRequest.getProperty(PERMIT_PROPERTY));
+            pRequest.removeProperty(PERMIT_PROPERTY);
+        }
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext pContext) throws IOException, WebApplicationException {
+        try {
+            pContext.proceed();
+        } finally {
+            release(pContext.getProperty(PERMIT_PROPERTY));
+            pContext.removeProperty(PERMIT_PROPERTY);
+        }
+    }
+
+    private static void release(Object pPermit) {
+        if(pPermit != null) {
+            ((Permit)pPermit).release();
+        }
+    }
+}
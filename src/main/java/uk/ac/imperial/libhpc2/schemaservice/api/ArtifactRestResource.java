@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice.api;
+
+import javax.servlet.ServletContext;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.glassfish.jersey.server.ManagedAsync;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import uk.ac.imperial.libhpc2.schemaservice.ArtifactStore;
+import uk.ac.imperial.libhpc2.schemaservice.ArtifactStore.Artifact;
+import uk.ac.imperial.libhpc2.schemaservice.FileDownloader;
+
+/**
+ * Jersey REST class serving the artifacts generated by the service, such
+ * as the profiles and input files produced by profile conversions.
+ * @author jhc02
+ *
+ */
+@Component
+@Path("artifact")
+public class ArtifactRestResource {
+
+    /**
+     * Logger
+     */
+    private static final Logger sLog = LoggerFactory.getLogger(ArtifactRestResource.class.getName());
+
+    /**
+     * ServletContext object used to access the artifact store
+     * Injected via @Context annotation
+     */
+    ServletContext _context;
+
+    @Context
+    public void setServletContext(ServletContext pContext) {
+        this._context = pContext;
+        sLog.debug("Servlet context injected: " + pContext);
+    }
+
+    /**
+     * Get an artifact. Conditional and range requests are supported.
+     *
+     * @param pArtifactId the ID of the artifact, as obtained from the
+     *                    response to the request that created it.
+     * @return the artifact content or 404 if the artifact does not exist
+     *         or has been evicted from the store.
+     */
+    @GET
+    @ManagedAsync
+    @Path("{artifactId}")
+    public Response getArtifact(
+        @PathParam("artifactId") String pArtifactId,
+        @Context Request pRequest,
+        @Context HttpHeaders pHeaders) {
+
+        Artifact artifact = ArtifactStore.getInstance(_context).get(pArtifactId);
+        if(artifact == null) {
+            sLog.debug("Requested artifact <{}> not found.", pArtifactId);
+            return Response.status(Status.NOT_FOUND).entity("The requested artifact could not be found.").build();
+        }
+        return FileDownloader.getInstance(_context)
+                .download(artifact, "application/xml", pRequest, pHeaders).build();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.libhpc2.schemaservice.ConversionBatch;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionBatch.Result;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionOutput;
+import uk.ac.imperial.libhpc2.schemaservice.SchemaProcessor;
+import uk.ac.imperial.libhpc2.schemaservice.SchemaProcessorUtils;
+
+/**
+ * Runs a batch of profile conversions as the response body is written,
+ * writing the result of each conversion as soon as it completes. Results
+ * are written as a zip archive containing a directory for each profile,
+ * or as newline delimited JSON with a line for each profile. Both end with
+ * a summary of the batch. The batch is closed once it has been written, or
+ * when the output is closed if the response is never sent.
+ */
+class BatchStreamingOutput implements StreamingOutput, Closeable {
+
+    private static final Logger sLog = LoggerFactory.getLogger(BatchStreamingOutput.class.getName());
+
+    /**
+     * Name of the status entry for each profile and of the summary entry
+     * in zip output
+     */
+    static final String STATUS_NAME = "status.json";
+    static final String SUMMARY_NAME = "batch.json";
+
+    enum Format { ZIP, NDJSON }
+
+    private final ConversionBatch _batch;
+    private final Format _format;
+    private final String _artifactBaseURL;
+
+    private int _converted = 0;
+    private int _failed = 0;
+
+    /**
+     * @param pBatch the batch to run.
+     * @param pFormat the format of the response body.
+     * @param pArtifactBaseURL the URL that artifact IDs are appended to
+     *        when the batch output is persisted.
+     */
+    BatchStreamingOutput(ConversionBatch pBatch, Format pFormat, String pArtifactBaseURL) {
+        this._batch = pBatch;
+        this._format = pFormat;
+        this._artifactBaseURL = pArtifactBaseURL;
+    }
+
+    @Override
+    public void write(OutputStream pOut) throws IOException, WebApplicationException {
+        try {
+            if(_format == Format.ZIP) {
+                writeZip(pOut);
+            }
+            else {
+                writeNdjson(pOut);
+            }
+            pOut.flush();
+        } finally {
+            _batch.close();
+        }
+    }
+
+    /**
+     * Release the batch without running it.
+     */
+    public void close() {
+        _batch.close();
+    }
+
+    private void writeZip(OutputStream pOut) throws IOException {
+        final ZipOutputStream zip = new ZipOutputStream(pOut);
+        _batch.run(new ConversionBatch.ResultHandler() {
+            public void itemComplete(Result pResult) throws IOException {
+                String prefix = pResult.getName() + "/";
+                zip.putNextEntry(new ZipEntry(prefix + STATUS_NAME));
+                zip.write(getStatus(pResult).toString().getBytes(SchemaProcessorUtils.UTF8));
+                zip.closeEntry();
+                if(pResult.getOutput() != null) {
+                    zip.putNextEntry(new ZipEntry(prefix + SchemaProcessor.TRANSFORMED_XML_NAME));
+                    pResult.getOutput().getTransformedXml().writeTo(zip);
+                    zip.closeEntry();
+                }
+                zip.flush();
+            }
+        });
+        zip.putNextEntry(new ZipEntry(SUMMARY_NAME));
+        zip.write(getSummary().toString().getBytes(SchemaProcessorUtils.UTF8));
+        zip.closeEntry();
+        zip.finish();
+    }
+
+    private void writeNdjson(OutputStream pOut) throws IOException {
+        final Writer writer = new OutputStreamWriter(pOut, SchemaProcessorUtils.UTF8);
+        _batch.run(new ConversionBatch.ResultHandler() {
+            public void itemComplete(Result pResult) throws IOException {
+                String status = getStatus(pResult).toString();
+                ConversionOutput output = pResult.getOutput();
+                if(output != null && !output.isPersisted()) {
+                    // The transformed XML is written into the line as it is
+                    // read rather than being added to the JSON object.
+                    writer.write(status, 0, status.length() - 1);
+                    writer.write(",\"TransformedXmlContent\":\"");
+                    InputStream in = output.getTransformedXml().openStream();
+                    try {
+                        writeJsonString(new InputStreamReader(in, SchemaProcessorUtils.UTF8), writer);
+                    } finally {
+                        in.close();
+                    }
+                    writer.write("\"}");
+                }
+                else {
+                    writer.write(status);
+                }
+                writer.write('\n');
+                writer.flush();
+            }
+        });
+        writer.write(getSummary().toString());
+        writer.write('\n');
+        writer.flush();
+    }
+
+    /**
+     * Get the status of a profile conversion, using the keys of the
+     * single profile convert response.
+     */
+    private JSONObject getStatus(Result pResult) throws IOException {
+        ConversionOutput output = pResult.getOutput();
+        JSONObject status = new JSONObject();
+        try {
+            status.put("index", pResult.getIndex());
+            status.put("name", pResult.getName());
+            if(pResult.getParameters() != null) {
+                status.put("parameters", new JSONObject(pResult.getParameters()));
+            }
+            if(output == null) {
+                _failed++;
+                status.put("status", "ERROR");
+                status.put("message", pResult.getError());
+                return status;
+            }
+            _converted++;
+            status.put("status", "OK");
+            status.put("TransformFailed", output.isTransformFailed() ? "true" : "false");
+            status.put("TransformErrorMessages", output.getTransformErrors());
+            if(output.isPersisted()) {
+                status.put("TransformedXml", _artifactBaseURL + output.getTransformedXml().getArtifactId());
+                status.put("TransformedXmlId", output.getTransformedXml().getArtifactId());
+            }
+        } catch (JSONException e) {
+            sLog.error("Error preparing JSON status for batch result: " + e.getMessage());
+            throw new IOException("Error preparing JSON status for batch result: " + e.getMessage(), e);
+        }
+        return status;
+    }
+
+    private JSONObject getSummary() throws IOException {
+        JSONObject summary = new JSONObject();
+        try {
+            summary.put("status", "COMPLETE");
+            summary.put("profiles", _batch.size());
+            summary.put("converted", _converted);
+            summary.put("failed", _failed);
+        } catch (JSONException e) {
+            throw new IOException("Error preparing JSON batch summary: " + e.getMessage(), e);
+        }
+        return summary;
+    }
+
+    /**
+     * Write the content read from a reader as the content of a JSON string,
+     * escaping it as it is copied.
+     */
+    private static void writeJsonString(Reader pIn, Writer pOut) throws IOException {
+        char[] buffer = new char[8192];
+        int read;
+        while((read = pIn.read(buffer)) != -1) {
+            for(int i = 0; i < read; i++) {
+                char c = buffer[i];
+                switch(c) {
+                case '"':
+                    pOut.write("\\\"");
+                    break;
+                case '\\':
+                    pOut.write("\\\\");
+                    break;
+                case '\n':
+                    pOut.write("\\n");
+                    break;
+                case '\r':
+                    pOut.write("\\r");
+                    break;
+                case '\t':
+                    pOut.write("\\t");
+                    break;
+                default:
+                    if(c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        pOut.write(String.format("\\u%04x", (int)c));
+                    }
+                    else {
+                        pOut.write(c);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice.api;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import uk.ac.imperial.libhpc2.schemaservice.web.service.TempssUserDetails;
+
+/**
+ * Identifies the caller making an API request, for admission control and
+ * for the ownership of conversion jobs.
+ *
+ * Anonymous callers are identified by the client address reported by the
+ * servlet container. When the service runs behind a reverse proxy, that
+ * address is the proxy's unless the container is configured to report the
+ * original client address, for example with Tomcat's RemoteIpValve, and
+ * all anonymous clients are then treated as one caller. Forwarding headers
+ * are deliberately not read here since any client can set them.
+ *
+ * @author jhc02
+ */
+public final class Callers {
+
+    private Callers() {
+    }
+
+    /**
+     * Identify the caller making a request.
+     *
+     * @param pRequest the request.
+     * @return "user:" followed by the name of the authenticated user, or
+     *         "address:" followed by the client address for anonymous
+     *         requests.
+     */
+    public static String getCaller(HttpServletRequest pRequest) {
+        Authentication authToken = SecurityContextHolder.getContext().getAuthentication();
+        if((authToken != null) && !(authToken instanceof AnonymousAuthenticationToken)
+           && (authToken.getPrincipal() instanceof TempssUserDetails)) {
+            return "user:" + ((TempssUserDetails)authToken.getPrincipal()).getUser().getUsername();
+        }
+        return "address:" + pRequest.getRemoteAddr();
+    }
+}
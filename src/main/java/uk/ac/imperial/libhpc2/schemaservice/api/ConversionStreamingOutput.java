@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import uk.ac.imperial.libhpc2.schemaservice.ConversionOutput;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionOutput.Document;
+import uk.ac.imperial.libhpc2.schemaservice.SchemaProcessorUtils;
+
+/**
+ * Writes the documents produced by a profile conversion directly to the
+ * response body, either the transform output alone or the conversion
+ * status and all of the documents as a zip archive or multipart/mixed
+ * body. The conversion output is closed once it has been written, or when
+ * the output is closed if the response is never sent.
+ */
+class ConversionStreamingOutput implements StreamingOutput, Closeable {
+
+    /**
+     * Name of the entry or part containing the conversion status
+     */
+    static final String STATUS_NAME = "status.json";
+
+    private static final String CRLF = "\r\n";
+
+    enum Format { INLINE, ZIP, MULTIPART }
+
+    private final ConversionOutput _output;
+    private final Format _format;
+    private final String _status;
+    private final String _boundary;
+
+    /**
+     * @param pOutput the conversion output to write.
+     * @param pFormat the format of the response body.
+     * @param pStatus the JSON conversion status, not used for inline output.
+     * @param pBoundary the multipart boundary, only used for multipart
+     *        output.
+     */
+    ConversionStreamingOutput(ConversionOutput pOutput, Format pFormat, String pStatus, String pBoundary) {
+        this._output = pOutput;
+        this._format = pFormat;
+        this._status = pStatus;
+        this._boundary = pBoundary;
+    }
+
+    @Override
+    public void write(OutputStream pOut) throws IOException, WebApplicationException {
+        try {
+            switch(_format) {
+            case INLINE:
+                _output.getTransformedXml().writeTo(pOut);
+                break;
+            case ZIP:
+                writeZip(pOut);
+                break;
+            case MULTIPART:
+                writeMultipart(pOut);
+                break;
+            }
+            pOut.flush();
+        } finally {
+            _output.close();
+        }
+    }
+
+    /**
+     * Release the conversion output without writing it.
+     */
+    public void close() {
+        _output.close();
+    }
+
+    private void writeZip(OutputStream pOut) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(pOut);
+        zip.putNextEntry(new ZipEntry(STATUS_NAME));
+        zip.write(_status.getBytes(SchemaProcessorUtils.UTF8));
+        zip.closeEntry();
+        for(Document document : getDocuments()) {
+            zip.putNextEntry(new ZipEntry(document.getName()));
+            document.writeTo(zip);
+            zip.closeEntry();
+        }
+        zip.finish();
+    }
+
+    private void writeMultipart(OutputStream pOut) throws IOException {
+        byte[] status = _status.getBytes(SchemaProcessorUtils.UTF8);
+        pOut.write(partHeader(STATUS_NAME, "application/json", status.length));
+        pOut.write(status);
+        for(Document document : getDocuments()) {
+            pOut.write(partHeader(document.getName(), "application/xml", document.getLength()));
+            document.writeTo(pOut);
+        }
+        pOut.write((CRLF + "--" + _boundary + "--" + CRLF).getBytes(SchemaProcessorUtils.UTF8));
+    }
+
+    private byte[] partHeader(String pName, String pMediaType, long pLength) {
+        return (CRLF + "--" + _boundary + CRLF
+                + "Content-Type: " + pMediaType + CRLF
+                + "Content-Disposition: attachment; filename=\"" + pName + "\"" + CRLF
+                + "Content-Length: " + pLength + CRLF
+                + CRLF).getBytes(SchemaProcessorUtils.UTF8);
+    }
+
+    private Document[] getDocuments() {
+        return new Document[] { _output.getBasicXml(), _output.getFullXml(), _output.getTransformedXml() };
+    }
+}
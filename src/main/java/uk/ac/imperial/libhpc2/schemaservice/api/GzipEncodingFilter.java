@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import uk.ac.imperial.libhpc2.schemaservice.CompressionUtils;
+
+/**
+ * Jersey filter that gzip encodes API responses for clients that accept
+ * it. Only successful responses containing text, JSON or XML are encoded,
+ * and responses smaller than the minimum size set in the [compression]
+ * section of the configuration file are sent as they are. Responses that
+ * already have a content encoding, such as the pre-compressed template
+ * trees and listings, are left unchanged.
+ *
+ * Strong entity tags on encoded responses are made weak since the encoded
+ * body is not byte-identical to the representation the tag was computed
+ * for. Weak tags still match for conditional GET requests.
+ *
+ * @author jhc02
+ */
+public class GzipEncodingFilter implements ContainerResponseFilter, WriterInterceptor {
+
+    // Request property set when the response entity is to be encoded.
+    private static final String ENCODE_PROPERTY = GzipEncodingFilter.class.getName() + ".encode";
+
+    private static final AtomicLong sEncodedResponses = new AtomicLong();
+    private static final AtomicLong sSkippedSmall = new AtomicLong();
+    private static final AtomicLong sBytesIn = new AtomicLong();
+    private static final AtomicLong sBytesOut = new AtomicLong();
+
+    @Override
+    public void filter(ContainerRequestContext pRequest, ContainerResponseContext pResponse) {
+        if(!pResponse.hasEntity() || !CompressionUtils.isCompressible(pResponse.getMediaType())) {
+            return;
+        }
+        MultivaluedMap<String, Object> headers = pResponse.getHeaders();
+        if(!headers.containsKey(HttpHeaders.VARY)) {
+            headers.putSingle(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        // Partial content is always sent as ranges of the unencoded content
+        if(pResponse.getStatus() != 200 || headers.containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            return;
+        }
+        List<String> acceptEncoding = pRequest.getHeaders().get(HttpHeaders.ACCEPT_ENCODING);
+        if(!CompressionUtils.acceptsGzip(acceptEncoding) || !CompressionUtils.isEnabled()) {
+            return;
+        }
+        long size = getEntitySize(pResponse);
+        if(size >= 0 && size < CompressionUtils.getMinBytes()) {
+            sSkippedSmall.incrementAndGet();
+            return;
+        }
+
+        headers.putSingle(HttpHeaders.CONTENT_ENCODING, "gzip");
+        headers.remove(HttpHeaders.CONTENT_LENGTH);
+        EntityTag etag = pResponse.getEntityTag();
+        if(etag != null && !etag.isWeak()) {
+            headers.putSingle(HttpHeaders.ETAG, new EntityTag(etag.getValue(), true));
+        }
+        pRequest.setProperty(ENCODE_PROPERTY, Boolean.TRUE);
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext pContext) throws IOException, WebApplicationException {
+        if(!Boolean.TRUE.equals(pContext.getProperty(ENCODE_PROPERTY))) {
+            pContext.proceed();
+            return;
+        }
+        CountingOutputStream encoded = new CountingOutputStream(pContext.getOutputStream());
+        GZIPOutputStream gzip = new GZIPOutputStream(encoded, 8192);
+        CountingOutputStream content = new CountingOutputStream(gzip);
+        pContext.setOutputStream(content);
+        pContext.proceed();
+        gzip.finish();
+        sEncodedResponses.incrementAndGet();
+        sBytesIn.addAndGet(content.getByteCount());
+        sBytesOut.addAndGet(encoded.getByteCount());
+    }
+
+    /**
+     * Get a snapshot of the response encoding statistics.
+     *
+     * @return a map of statistic name to value.
+     */
+    public static Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("enabled", CompressionUtils.isEnabled());
+        stats.put("minBytes", CompressionUtils.getMinBytes());
+        stats.put("encodedResponses", sEncodedResponses.get());
+        stats.put("skippedSmall", sSkippedSmall.get());
+        long bytesIn = sBytesIn.get();
+        long bytesOut = sBytesOut.get();
+        stats.put("bytesIn", bytesIn);
+        stats.put("bytesOut", bytesOut);
+        stats.put("ratio", bytesIn == 0 ? 0.0 : (double)bytesOut / bytesIn);
+        return stats;
+    }
+
+    /**
+     * Get the size of the response entity if it can be determined without
+     * writing it.
+     *
+     * @return the size in bytes, or -1 if it is not known.
+     */
+    private static long getEntitySize(ContainerResponseContext pResponse) {
+        Object entity = pResponse.getEntity();
+        if(entity instanceof byte[]) {
+            return ((byte[])entity).length;
+        }
+        if(entity instanceof String) {
+            // A lower bound on the encoded size
+            return ((String)entity).length();
+        }
+        return pResponse.getLength();
+    }
+}
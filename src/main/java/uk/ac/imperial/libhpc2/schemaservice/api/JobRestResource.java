@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.glassfish.jersey.media.multipart.FormDataBodyPart;
+import org.glassfish.jersey.media.multipart.FormDataMultiPart;
+import org.glassfish.jersey.server.ManagedAsync;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import uk.ac.imperial.libhpc2.schemaservice.ArtifactStore;
+import uk.ac.imperial.libhpc2.schemaservice.ArtifactStore.Artifact;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionJob;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionJobQueue;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionProgress;
+import uk.ac.imperial.libhpc2.schemaservice.FileDownloader;
+import uk.ac.imperial.libhpc2.schemaservice.TempssObject;
+
+/**
+ * Jersey REST class representing the conversion job endpoint. Profiles
+ * submitted here are converted in the background by the conversion job
+ * queue. The client polls the job for its state and downloads the
+ * transformed output once the job has completed.
+ *
+ * A job can only be seen or cancelled by its owner, the user that
+ * submitted it or, for jobs submitted anonymously, the address it was
+ * submitted from. Other callers receive a 404 response, as if the job did
+ * not exist.
+ * @author jhc02
+ *
+ */
+@Component
+@Path("job")
+public class JobRestResource {
+
+    /**
+     * Logger
+     */
+    private static final Logger sLog = LoggerFactory.getLogger(JobRestResource.class.getName());
+
+    /**
+     * ServletContext object used to access the job queue
+     * Injected via @Context annotation
+     */
+    ServletContext _context;
+
+    @Context
+    public void setServletContext(ServletContext pContext) {
+        this._context = pContext;
+        sLog.debug("Servlet context injected: " + pContext);
+    }
+
+    /**
+     * Submit a profile to be converted to an input file in the
+     * background. The profile and files to embed in it are uploaded as for
+     * a profile conversion, as xmlupload and xmlupload_file parts.
+     *
+     * @param templateId the ID of the template the profile is for.
+     * @param priority the priority of the job relative to the other jobs
+     *        submitted by the same user. Jobs with a higher priority run
+     *        first.
+     * @return 202 with the job status and the URL of the job in the
+     *         Location header, or 503 if the queue is full.
+     */
+    @SuppressWarnings("unchecked")
+    @POST
+    @ManagedAsync
+    @AdmissionControlled
+    @Path("convert/{templateId}")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces("application/json")
+    public Response submitConversion(
+        @PathParam("templateId") String templateId,
+        @QueryParam("priority") @DefaultValue("0") int priority,
+        @Context HttpServletRequest pRequest,
+        FormDataMultiPart multipartData) {
+
+        String servletURL = getServletURL(pRequest);
+        if(servletURL == null) {
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Unable to get servlet URL to prepare response.").build();
+        }
+
+        Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
+        if(!components.containsKey(templateId)) {
+            return jsonError(Status.NOT_FOUND, "Template with ID <" + templateId + "> does not exist.");
+        }
+
+        List<FormDataBodyPart> profileField = multipartData.getFields("xmlupload");
+        List<FormDataBodyPart> fileFields = multipartData.getFields("xmlupload_file");
+        if(profileField == null || profileField.size() == 0) {
+            return jsonError(Status.BAD_REQUEST, "No profile data stream provided with this request.");
+        }
+        InputStream profileXmlStream = profileField.get(0).getValueAs(InputStream.class);
+        Map<String, InputStream> attachments = new LinkedHashMap<String, InputStream>();
+        if(fileFields != null) {
+            for(FormDataBodyPart fileData : fileFields) {
+                attachments.put(fileData.getContentDisposition().getFileName(),
+                                fileData.getValueAs(InputStream.class));
+            }
+        }
+
+        ConversionJobQueue queue = ConversionJobQueue.getInstance(_context);
+        ConversionJob job;
+        try {
+            job = queue.submit(templateId, Callers.getCaller(pRequest), priority, profileXmlStream, attachments);
+        } catch (IOException e) {
+            sLog.error("IO error when trying to record conversion job: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("IO error when trying to record conversion job: " + e.getMessage()).build();
+        }
+        if(job == null) {
+            return Response.status(Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", queue.getRetryAfterSeconds())
+                    .type(MediaType.TEXT_PLAIN)
+                    .entity("The conversion job queue is full, please try again later.").build();
+        }
+
+        try {
+            return Response.status(Status.ACCEPTED)
+                    .location(URI.create(servletURL + "/api/job/" + job.getId()))
+                    .type(MediaType.APPLICATION_JSON)
+                    .entity(jobStatus(queue, job, servletURL).toString()).build();
+        } catch (JSONException e) {
+            sLog.error("Error preparing JSON response data: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Error preparing JSON response data: " + e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Get the status of a conversion job.
+     *
+     * @param pJobId the ID of the job, as returned when it was submitted.
+     * @return a JSON object containing the job state. The position of a
+     *         queued job, the progress of a running job, the result URLs
+     *         of a completed job or the reason a job failed is included.
+     *         404 if the job does not exist, has expired or is owned by
+     *         another caller.
+     */
+    @GET
+    @ManagedAsync
+    @Path("{jobId}")
+    @Produces("application/json")
+    public Response getJobStatus(
+        @PathParam("jobId") String pJobId,
+        @Context HttpServletRequest pRequest) {
+
+        String servletURL = getServletURL(pRequest);
+        if(servletURL == null) {
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Unable to get servlet URL to prepare response.").build();
+        }
+        ConversionJobQueue queue = ConversionJobQueue.getInstance(_context);
+        ConversionJob job = getOwnedJob(queue, pJobId, pRequest);
+        if(job == null) {
+            return jsonError(Status.NOT_FOUND, "Job with ID <" + pJobId + "> does not exist.");
+        }
+        try {
+            return Response.ok(jobStatus(queue, job, servletURL).toString(), MediaType.APPLICATION_JSON).build();
+        } catch (JSONException e) {
+            sLog.error("Error preparing JSON response data: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Error preparing JSON response data: " + e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Get the transformed output of a completed conversion job.
+     * Conditional and range requests are supported.
+     *
+     * @param pJobId the ID of the job.
+     * @return the transformed XML, 409 if the job has not completed or
+     *         404 if the job does not exist, is owned by another caller or
+     *         its output has been evicted from the artifact store.
+     */
+    @GET
+    @ManagedAsync
+    @Path("{jobId}/result")
+    public Response getJobResult(
+        @PathParam("jobId") String pJobId,
+        @Context Request pRequest,
+        @Context HttpHeaders pHeaders,
+        @Context HttpServletRequest pServletRequest) {
+
+        ConversionJob job = getOwnedJob(ConversionJobQueue.getInstance(_context), pJobId, pServletRequest);
+        if(job == null) {
+            return jsonError(Status.NOT_FOUND, "Job with ID <" + pJobId + "> does not exist.");
+        }
+        if(job.getState() != ConversionJob.State.COMPLETED) {
+            return jsonError(Status.CONFLICT, "Job with ID <" + pJobId + "> has not completed, its state is "
+                             + job.getState() + ".");
+        }
+        Artifact artifact = ArtifactStore.getInstance(_context).get(job.getResult().get("TransformedDataId"));
+        if(artifact == null) {
+            return jsonError(Status.NOT_FOUND, "The output of job <" + pJobId + "> is no longer available.");
+        }
+        return FileDownloader.getInstance(_context)
+                .download(artifact, "application/xml", pRequest, pHeaders).build();
+    }
+
+    /**
+     * Cancel a conversion job. A queued job is cancelled immediately. A
+     * running job is stopped as soon as possible, so the response contains
+     * its current state and the client polls the job to confirm that it
+     * has been cancelled.
+     *
+     * @param pJobId the ID of the job.
+     * @return the job status, 409 if the job has already finished or 404
+     *         if the job does not exist or is owned by another caller.
+     */
+    @DELETE
+    @ManagedAsync
+    @Path("{jobId}")
+    @Produces("application/json")
+    public Response cancelJob(
+        @PathParam("jobId") String pJobId,
+        @Context HttpServletRequest pRequest) {
+
+        String servletURL = getServletURL(pRequest);
+        if(servletURL == null) {
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Unable to get servlet URL to prepare response.").build();
+        }
+        ConversionJobQueue queue = ConversionJobQueue.getInstance(_context);
+        ConversionJob job = getOwnedJob(queue, pJobId, pRequest);
+        if(job == null) {
+            return jsonError(Status.NOT_FOUND, "Job with ID <" + pJobId + "> does not exist.");
+        }
+        if(job.getState().isFinished()) {
+            return jsonError(Status.CONFLICT, "Job with ID <" + pJobId + "> has already finished, its state is "
+                             + job.getState() + ".");
+        }
+        queue.cancel(pJobId);
+        try {
+            return Response.status(job.getState().isFinished() ? Status.OK : Status.ACCEPTED)
+                    .type(MediaType.APPLICATION_JSON)
+                    .entity(jobStatus(queue, job, servletURL).toString()).build();
+        } catch (JSONException e) {
+            sLog.error("Error preparing JSON response data: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Error preparing JSON response data: " + e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Create the JSON status of a job.
+     */
+    private static JSONObject jobStatus(ConversionJobQueue pQueue, ConversionJob pJob, String pServletURL)
+        throws JSONException
+    {
+        JSONObject status = new JSONObject();
+        status.put("status", "OK");
+        status.put("jobId", pJob.getId());
+        status.put("templateId", pJob.getTemplateId());
+        status.put("priority", pJob.getPriority());
+        status.put("submitted", formatTime(pJob.getSubmitted()));
+        if(pJob.getStarted() > 0) {
+            status.put("started", formatTime(pJob.getStarted()));
+        }
+        if(pJob.getFinished() > 0) {
+            status.put("finished", formatTime(pJob.getFinished()));
+        }
+
+        // The state is read once since the job may change state while its
+        // status is being prepared.
+        ConversionJob.State state = pJob.getState();
+        status.put("state", state.name());
+        switch(state) {
+        case QUEUED:
+            int position = pQueue.getPosition(pJob);
+            if(position > 0) {
+                status.put("position", position);
+            }
+            break;
+        case RUNNING:
+            ConversionProgress progress = pJob.getProgress();
+            if(progress != null) {
+                JSONObject progressJson = new JSONObject();
+                progressJson.put("stage", progress.getStage().name());
+                progressJson.put("bytesRead", progress.getBytesRead());
+                if(progress.getBytesTotal() >= 0) {
+                    progressJson.put("bytesTotal", progress.getBytesTotal());
+                    progressJson.put("percent", (progress.getBytesTotal() > 0)
+                            ? Math.min(100, progress.getBytesRead() * 100 / progress.getBytesTotal()) : 100);
+                }
+                progressJson.put("cancelRequested", progress.isCancelled());
+                status.put("progress", progressJson);
+            }
+            break;
+        case COMPLETED:
+            Map<String, String> result = pJob.getResult();
+            String artifactBaseURL = pServletURL + "/api/artifact/";
+            status.put("TransformFailed", result.get("TransformStatus"));
+            status.put("TransformErrorMessages", result.get("TransformErrors"));
+            status.put("BasicXmlInputs", artifactBaseURL + result.get("BasicXmlId"));
+            status.put("FullXmlInputs", artifactBaseURL + result.get("FullXmlId"));
+            status.put("TransformedXml", artifactBaseURL + result.get("TransformedDataId"));
+            status.put("TransformedXmlId", result.get("TransformedDataId"));
+            status.put("result", pServletURL + "/api/job/" + pJob.getId() + "/result");
+            break;
+        default:
+            status.put("message", pJob.getMessage());
+            break;
+        }
+        return status;
+    }
+
+    /**
+     * Format a time as an ISO 8601 UTC timestamp.
+     */
+    private static String formatTime(long pTime) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(pTime));
+    }
+
+    /**
+     * Get the base URL of the service from the request, or null if it
+     * cannot be determined.
+     */
+    private static String getServletURL(HttpServletRequest pRequest) {
+        try {
+            return new URL(pRequest.getScheme(), pRequest.getServerName(), pRequest.getServerPort(),
+                           pRequest.getContextPath()).toString();
+        } catch (MalformedURLException e) {
+            sLog.error("Unable to get servlet URL to prepare response: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get a job if it is owned by the caller making a request.
+     *
+     * @return the job, or null if there is no job with the ID or it is
+     *         owned by another caller.
+     */
+    private static ConversionJob getOwnedJob(ConversionJobQueue pQueue, String pJobId,
+                                             HttpServletRequest pRequest) {
+        ConversionJob job = pQueue.get(pJobId);
+        if(job == null) {
+            return null;
+        }
+        if(!job.getOwner().equals(Callers.getCaller(pRequest))) {
+            sLog.debug("Job <{}> requested by a caller other than its owner.", pJobId);
+            return null;
+        }
+        return job;
+    }
+
+    /**
+     * Create a JSON error response with the specified status and message.
+     */
+    private static Response jsonError(Status pStatus, String pMessage) {
+        JSONObject jsonResponse = new JSONObject();
+        try {
+            jsonResponse.put("status", "ERROR");
+            jsonResponse.put("message", pMessage);
+        } catch (JSONException e) {
+            sLog.error("Error creating " + pStatus.getStatusCode() + " response: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("{\"status\":\"ERROR\"}").build();
+        }
+        return Response.status(pStatus).type(MediaType.APPLICATION_JSON).entity(jsonResponse.toString()).build();
+    }
+}
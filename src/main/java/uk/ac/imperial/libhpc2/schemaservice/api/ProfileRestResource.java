@@ -45,44 +45,50 @@
 
 package uk.ac.imperial.libhpc2.schemaservice.api;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipException;
 
 import javax.annotation.security.RolesAllowed;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
-import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.StreamingOutput;
 import javax.xml.transform.TransformerException;
 
-import org.apache.commons.io.IOUtils;
 import org.glassfish.jersey.media.multipart.ContentDisposition;
 import org.glassfish.jersey.media.multipart.FormDataBodyPart;
 import org.glassfish.jersey.media.multipart.FormDataMultiPart;
+import org.glassfish.jersey.server.ManagedAsync;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -96,6 +102,15 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.bind.annotation.RequestBody;
 
+import uk.ac.imperial.libhpc2.schemaservice.ArtifactStore;
+import uk.ac.imperial.libhpc2.schemaservice.ArtifactStore.Artifact;
+import uk.ac.imperial.libhpc2.schemaservice.BatchConverter;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionBatch;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionOutput;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionProgress;
+import uk.ac.imperial.libhpc2.schemaservice.FileDownloader;
+import uk.ac.imperial.libhpc2.schemaservice.ParameterSweep;
+import uk.ac.imperial.libhpc2.schemaservice.RequestExecutor;
 import uk.ac.imperial.libhpc2.schemaservice.SchemaProcessor;
 import uk.ac.imperial.libhpc2.schemaservice.TempssObject;
 import uk.ac.imperial.libhpc2.schemaservice.UnknownTemplateException;
@@ -115,6 +130,21 @@ public class ProfileRestResource {
      * Logger
      */
     private static final Logger sLog = LoggerFactory.getLogger(ProfileRestResource.class.getName());
+
+    /**
+     * Convert response mode returning the URLs of the stored documents
+     */
+    private static final String MODE_URLS = "urls";
+
+    /**
+     * Header reporting the transform status of inline conversion output
+     */
+    private static final String TRANSFORM_FAILED_HEADER = "X-TemPSS-Transform-Failed";
+
+    /**
+     * Media type of newline delimited JSON batch conversion results
+     */
+    private static final String BATCH_NDJSON_TYPE = "application/x-ndjson";
 	
     /**
      * Profile data access object for accessing the profile database
@@ -140,26 +170,90 @@ public class ProfileRestResource {
     /**
      * Convert the provided profile data to an input file using
      * the transform stored in the template metadata. 
-     * @param templateId
-     * @return
+     * 
+     * By default the documents produced are added to the artifact store
+     * and a JSON object containing their URLs is returned. The mode
+     * parameter selects a response containing the documents themselves:
+     * "inline" returns the transformed XML as the response body, "zip"
+     * and "multipart" return the conversion status and the basic, full
+     * and transformed documents as a zip archive or multipart/mixed body.
+     * These are only added to the artifact store if persist is true.
+     * 
+     * @param templateId the ID of the template the profile is for.
+     * @param mode the response mode, "urls", "inline", "zip" or "multipart".
+     * @param persist true if the documents are to be stored when they are
+     *        returned in the response.
+     * @param pResponse the suspended response, resumed with the conversion
+     *        response once the conversion has been run on the conversion
+     *        executor, or with a 429 response if the executor is busy.
      */
     @POST
+    @ManagedAsync
+    @AdmissionControlled
     @Path("{templateId}/convert")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
-    @Produces("application/json")
-    @SuppressWarnings("unchecked")
-    public Response convertProfileToInputData(
-        @PathParam("templateId") String templateId,
+    @Produces({"application/json", "application/xml", "application/zip", "multipart/mixed"})
+    public void convertProfileToInputData(
+        @PathParam("templateId") final String templateId,
+        @QueryParam("mode") @DefaultValue(MODE_URLS) final String mode,
+        @QueryParam("persist") @DefaultValue("false") final boolean persist,
         @Context HttpServletRequest pRequest,
-        FormDataMultiPart multipartData) {
+        final FormDataMultiPart multipartData,
+        @Suspended AsyncResponse pResponse) {
+
+        // The URL of the stored documents is determined here since the
+        // request is not used once the conversion has been queued.
+        URL servletUrl;
+        try {
+            servletUrl = new URL(pRequest.getScheme(), pRequest.getServerName(), pRequest.getServerPort(), pRequest.getContextPath());
+        } catch (MalformedURLException e) {
+            sLog.error("Unable to get servlet URL to prepare response: " + e.getMessage());
+            pResponse.resume(Response.status(Status.INTERNAL_SERVER_ERROR).entity("Unable to get servlet URL to prepare response: " + e.getMessage()).build());
+            return;
+        }
+        final String artifactBaseURL = servletUrl.toString() + "/api/artifact/";
+
+        // Conversions are run on a dedicated executor so that a burst of
+        // large conversions cannot hold all of the container's threads.
+        RequestExecutor.getInstance(_context, RequestExecutor.CONVERSION).submit(pResponse, new Callable<Response>() {
+            public Response call() {
+                return convertProfile(templateId, mode, persist, artifactBaseURL, multipartData);
+            }
+        });
+    }
+
+    /**
+     * Carry out a conversion for {@link #convertProfileToInputData}.
+     */
+    @SuppressWarnings("unchecked")
+    private Response convertProfile(String templateId, String mode, boolean persist,
+                                    String artifactBaseURL, FormDataMultiPart multipartData) {
 		
-        HttpSession session = pRequest.getSession();
         SchemaProcessor proc = new SchemaProcessor(_context);
 		
         // Get the component metadata from the servletcontext and check the name is valid
         Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
 
         JSONObject jsonResponse = new JSONObject();
+
+        // A null format indicates the default response containing URLs
+        ConversionStreamingOutput.Format responseFormat = null;
+        if(!MODE_URLS.equalsIgnoreCase(mode)) {
+            try {
+                responseFormat = ConversionStreamingOutput.Format.valueOf(mode.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                try {
+                    jsonResponse.put("status", "ERROR");
+                    jsonResponse.put("message", "Unknown response mode <" + mode + ">, the mode must be one of "
+                                     + "urls, inline, zip or multipart.");
+                    return Response.status(Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON)
+                        .entity(jsonResponse.toString()).build();
+                } catch (JSONException ex) {
+                    sLog.error("Error creating 400 response for unknown response mode");
+                    return Response.status(Status.INTERNAL_SERVER_ERROR).entity("{\"status\":\"ERROR\"}").build();
+                }
+            }
+        }
 		
         // If we don't have a template of this name then throw an error
         if(!components.containsKey(templateId)) {
@@ -196,50 +290,31 @@ public class ProfileRestResource {
         // Now process any files to be inserted into the profile.
         // The profile XML is the data that we're going to transform to 
         // an input file based on the template specified by template ID.
-        // Get the profile as a String and then insert any additional XML
-        // content into it.
+        // If the profile contains filename placeholders for other files
+        // that have been uploaded, then the content of these files is
+        // embedded in place of the filename to create the complete profile.
+        // The profile and files are streamed to disk by the schema processor
+        // rather than being read into memory since they may be very large.
         sLog.info("Handling uploaded profile from file with name: " + profileField.get(0).getContentDisposition().getFileName());
         InputStream profileXmlStream = profileField.get(0).getValueAs(InputStream.class);
-        String profileXml = "";
-        try {
-            profileXml = IOUtils.toString(profileXmlStream);
-        } catch (IOException e) {
-            sLog.error("Error converting profile stream to string for processing.");
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("{\"status\":\"ERROR\",\"message\":\"Error converting profile stream to string for processing.\"}").build();
-        }
-        String completeXml = profileXml;
-        // If the base XML contains filename placeholders for other
-        // files that have been uploaded, then we need to get these files
-        // from the multipart request and put their content into the baseXml
-        // in place of the filename to create the completeXml.
-        if((fileFields != null) && (fileFields.size() > 0)) {
-            for(int i = 0; i < fileFields.size(); i++) {
-                try {
-                    FormDataBodyPart fileData = fileFields.get(i);
-                    sLog.info("Handling additional uploaded file with name: " + fileData.getContentDisposition().getFileName());
-                    String fileName = fileData.getContentDisposition().getFileName();
-                    InputStream fileXmlStream = fileFields.get(i).getValueAs(InputStream.class);
-                    String fileXml = IOUtils.toString(fileXmlStream);
-
-                    // To prevent an error caused by embedding an XML header within XML, check
-                    // if fileXml begins with an XML header (e.g. <? xml ... ?>) and remove it.
-                    fileXml = removeXMLDeclaration(fileXml);
-
-                    // Embed file in profile. File name appears in lower case 
-                    // so do case-insensitive string replace using (?i)
-                    String tempXml = completeXml.replaceAll("(?i)" + fileName, fileXml);
-                    completeXml = tempXml;
-                } catch (IOException e) {
-                    sLog.error("Error converting file for embedding in profile to string.");
-                    return Response.status(Status.INTERNAL_SERVER_ERROR).entity("{\"status\":\"ERROR\",\"message\":\"Error converting file for embedding in profile to string.\"}").build();
-                }
+        Map<String, InputStream> attachments = new LinkedHashMap<String, InputStream>();
+        if(fileFields != null) {
+            for(FormDataBodyPart fileData : fileFields) {
+                String fileName = fileData.getContentDisposition().getFileName();
+                sLog.info("Handling additional uploaded file with name: " + fileName);
+                attachments.put(fileName, fileData.getValueAs(InputStream.class));
             }
         }
-		
-        // Now call to the schema processor to carry out the transform
-        Map<String,String> transformOutput = null;
+
+        // Now call to the schema processor to carry out the transform.
+        // The documents are only added to the artifact store if the client
+        // is going to retrieve them by URL or has asked for them to be kept.
+        // The conversion's progress is tracked so that it stops if the
+        // request times out and the executor interrupts it.
+        ConversionOutput transformOutput = null;
         try {
-            transformOutput = proc.convertProfileToInputData(templateId, profileXml, completeXml, session.getId());
+            transformOutput = proc.convertProfile(templateId, profileXmlStream, attachments,
+                    responseFormat == null || persist, new ConversionProgress());
         } catch (UnknownTemplateException e) {
             sLog.error("The template with ID <" + templateId + "> is not found: " + e.getMessage());
             return Response.status(Status.INTERNAL_SERVER_ERROR).entity("The template with ID <" + templateId + "> is not found: " + e.getMessage()).build();
@@ -250,34 +325,365 @@ public class ProfileRestResource {
             sLog.error("IO error when trying to convert profile to application input file: " + e.getMessage());
             return Response.status(Status.INTERNAL_SERVER_ERROR).entity("IO error when trying to convert profile to application input file: " + e.getMessage()).build();
         }
-		
-        // Prepare the JSON repsonse and send it back to the client
+
+        // Prepare the response and send it back to the client. The
+        // conversion output is closed once it has been written.
+        boolean outputOwned = true;
+        try {
+            try {
+                jsonResponse.put("TransformFailed", transformOutput.isTransformFailed() ? "true" : "false");
+                jsonResponse.put("TransformErrorMessages", transformOutput.getTransformErrors());
+                if(transformOutput.isPersisted()) {
+                    jsonResponse.put("BasicXmlInputs", artifactBaseURL + transformOutput.getBasicXml().getArtifactId());
+                    jsonResponse.put("FullXmlInputs", artifactBaseURL + transformOutput.getFullXml().getArtifactId());
+                    jsonResponse.put("TransformedXml", artifactBaseURL + transformOutput.getTransformedXml().getArtifactId());
+                    jsonResponse.put("TransformedXmlId", transformOutput.getTransformedXml().getArtifactId());
+                }
+                jsonResponse.put("status","OK");
+            } catch (JSONException e) {
+                sLog.error("Error preparing JSON response data: " + e.getMessage());
+                return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Error preparing JSON response data: " + e.getMessage()).build(); 
+            }
+
+            if(responseFormat == null) {
+                return Response.ok(jsonResponse.toString(), MediaType.APPLICATION_JSON).build();
+            }
+
+            ResponseBuilder response;
+            switch(responseFormat) {
+            case INLINE:
+                response = Response.ok(new ConversionStreamingOutput(transformOutput, responseFormat, null, null),
+                                       MediaType.APPLICATION_XML_TYPE)
+                        .header(HttpHeaders.CONTENT_LENGTH, transformOutput.getTransformedXml().getLength())
+                        .header(TRANSFORM_FAILED_HEADER, transformOutput.isTransformFailed() ? "true" : "false");
+                if(transformOutput.isPersisted()) {
+                    response.header(HttpHeaders.CONTENT_LOCATION,
+                            artifactBaseURL + transformOutput.getTransformedXml().getArtifactId());
+                }
+                break;
+            case ZIP:
+                response = Response.ok(new ConversionStreamingOutput(transformOutput, responseFormat,
+                                                                     jsonResponse.toString(), null),
+                                       "application/zip")
+                        .header("Content-Disposition", "attachment; filename=\"" + templateId + "-conversion.zip\"");
+                break;
+            default:
+                String boundary = UUID.randomUUID().toString();
+                response = Response.ok(new ConversionStreamingOutput(transformOutput, responseFormat,
+                                                                     jsonResponse.toString(), boundary),
+                                       "multipart/mixed; boundary=" + boundary);
+                break;
+            }
+            outputOwned = false;
+            return response.build();
+        } finally {
+            if(outputOwned) {
+                transformOutput.close();
+            }
+        }
+    }
+    
+    /**
+     * Convert a batch of profiles for the same template to input files.
+     *
+     * Profiles are uploaded as xmlupload parts and/or as zip archives of
+     * profile XML files in archive parts. Files uploaded as xmlupload_file
+     * parts are embedded in every profile of the batch that refers to them.
+     * The profiles are converted in parallel and the result of each
+     * conversion is written to the response as soon as it is complete, so
+     * results are not in upload order. A profile that cannot be converted
+     * is reported in its result and does not fail the batch.
+     *
+     * The "zip" format returns an archive containing a directory for each
+     * profile with its status.json and transformed.xml, and a batch.json
+     * summary. The "ndjson" format returns a line of JSON for each profile
+     * followed by the summary. Transformed XML is included in each line
+     * unless persist is true, in which case the output is added to the
+     * artifact store and the line contains its URL.
+     *
+     * @param templateId the ID of the template the profiles are for.
+     * @param format the response format, "zip" or "ndjson".
+     * @param persist true if the conversion output is to be stored.
+     * @param pResponse the suspended response, resumed with the streamed
+     *        batch results once the uploads have been read on the
+     *        conversion executor, or with a 429 response if the executor
+     *        is busy.
+     */
+    @POST
+    @ManagedAsync
+    @AdmissionControlled
+    @Path("{templateId}/convert/batch")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces({"application/zip", BATCH_NDJSON_TYPE, "application/json"})
+    public void convertProfileBatch(
+        @PathParam("templateId") final String templateId,
+        @QueryParam("format") @DefaultValue("zip") final String format,
+        @QueryParam("persist") @DefaultValue("false") final boolean persist,
+        @Context HttpServletRequest pRequest,
+        final FormDataMultiPart multipartData,
+        @Suspended AsyncResponse pResponse) {
+
         URL servletUrl;
         try {
             servletUrl = new URL(pRequest.getScheme(), pRequest.getServerName(), pRequest.getServerPort(), pRequest.getContextPath());
         } catch (MalformedURLException e) {
             sLog.error("Unable to get servlet URL to prepare response: " + e.getMessage());
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Unable to get servlet URL to prepare response: " + e.getMessage()).build();
+            pResponse.resume(Response.status(Status.INTERNAL_SERVER_ERROR).entity("Unable to get servlet URL to prepare response: " + e.getMessage()).build());
+            return;
+        }
+        final String artifactBaseURL = servletUrl.toString() + "/api/artifact/";
+
+        // The uploads are read on the conversion executor, the profiles
+        // themselves are converted on the batch converter's pool as the
+        // response is written.
+        RequestExecutor.getInstance(_context, RequestExecutor.CONVERSION).submit(pResponse, new Callable<Response>() {
+            public Response call() {
+                return convertBatch(templateId, format, persist, artifactBaseURL, multipartData);
+            }
+        });
+    }
+
+    /**
+     * Prepare a batch conversion for {@link #convertProfileBatch}.
+     */
+    @SuppressWarnings("unchecked")
+    private Response convertBatch(String templateId, String format, boolean persist,
+                                  String artifactBaseURL, FormDataMultiPart multipartData) {
+
+        BatchStreamingOutput.Format responseFormat;
+        try {
+            responseFormat = BatchStreamingOutput.Format.valueOf(format.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return jsonError(Status.BAD_REQUEST, "Unknown batch format <" + format
+                             + ">, the format must be zip or ndjson.");
+        }
+
+        Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
+        if(!components.containsKey(templateId)) {
+            return jsonError(Status.NOT_FOUND, "Template with ID <" + templateId + "> does not exist.");
         }
-        String servletBaseURL = servletUrl.toString();
-        // TODO: Change to separate streaming servlet. This assumes temp is temporary
-        // servlet directory used above
+
+        BatchConverter converter = BatchConverter.getInstance(_context);
+        ConversionBatch batch = converter.newBatch(templateId, persist);
+        boolean batchOwned = true;
         try {
-        	
-            jsonResponse.put("BasicXmlInputs", servletBaseURL + "/temp/" + transformOutput.get("BasicXmlFile"));
-            jsonResponse.put("FullXmlInputs", servletBaseURL + "/temp/" + transformOutput.get("FullXmlFile"));
-            jsonResponse.put("TransformFailed", transformOutput.get("TransformStatus"));
-            jsonResponse.put("TransformErrorMessages", transformOutput.get("TransformErrors"));
-            jsonResponse.put("TransformedXml", servletBaseURL + "/temp/" + transformOutput.get("TransformedDataFile"));
-            jsonResponse.put("status","OK");
+            // Buffer the profiles and the shared files. The profiles can
+            // then be converted in any order and each conversion reads its
+            // own copy of the shared files.
+            List<FormDataBodyPart> profileFields = multipartData.getFields("xmlupload");
+            List<FormDataBodyPart> archiveFields = multipartData.getFields("archive");
+            List<FormDataBodyPart> fileFields = multipartData.getFields("xmlupload_file");
+            try {
+                boolean complete = true;
+                if(profileFields != null) {
+                    for(FormDataBodyPart profileData : profileFields) {
+                        complete = complete && batch.addProfile(profileData.getContentDisposition().getFileName(),
+                                                                profileData.getValueAs(InputStream.class));
+                    }
+                }
+                if(archiveFields != null) {
+                    for(FormDataBodyPart archiveData : archiveFields) {
+                        complete = complete && batch.addArchive(archiveData.getValueAs(InputStream.class));
+                    }
+                }
+                if(!complete) {
+                    return jsonError(Status.REQUEST_ENTITY_TOO_LARGE, "A batch can contain at most <"
+                                     + converter.getMaxProfiles() + "> profiles.");
+                }
+                if(fileFields != null) {
+                    for(FormDataBodyPart fileData : fileFields) {
+                        batch.addAttachment(fileData.getContentDisposition().getFileName(),
+                                            fileData.getValueAs(InputStream.class));
+                    }
+                }
+            } catch (ZipException e) {
+                sLog.error("Invalid profile archive uploaded for batch conversion: " + e.getMessage());
+                return jsonError(Status.BAD_REQUEST, "Invalid profile archive: " + e.getMessage());
+            } catch (IOException e) {
+                sLog.error("IO error when reading profiles for batch conversion: " + e.getMessage());
+                return Response.status(Status.INTERNAL_SERVER_ERROR).entity("IO error when reading profiles for batch conversion: " + e.getMessage()).build();
+            }
+            if(batch.size() == 0) {
+                return jsonError(Status.BAD_REQUEST, "No profiles have been provided with this request.");
+            }
+            sLog.info("Converting batch of <" + batch.size() + "> profiles for template <" + templateId + ">.");
+
+            Response response = batchResponse(batch, templateId + "-batch", responseFormat, artifactBaseURL);
+            batchOwned = !(response.getEntity() instanceof BatchStreamingOutput);
+            return response;
+        } finally {
+            if(batchOwned) {
+                batch.close();
+            }
+        }
+    }
+
+    /**
+     * Generate the variants of a profile for a parameter sweep and convert
+     * them to input files.
+     *
+     * The base profile is uploaded as the xmlupload part and the sweep is
+     * described by the JSON sweep part (see {@link ParameterSweep}). Files
+     * uploaded as xmlupload_file parts are embedded in every variant. The
+     * variants are converted in parallel as a batch and the results are
+     * returned as for {@link #convertProfileBatch}, with the parameter
+     * values of each variant included in its status.
+     *
+     * @param templateId the ID of the template the profile is for.
+     * @param format the response format, "zip" or "ndjson".
+     * @param persist true if the conversion output is to be stored.
+     * @param pResponse the suspended response, resumed with the streamed
+     *        results once the variants have been generated on the
+     *        conversion executor, or with a 429 response if the executor
+     *        is busy.
+     */
+    @POST
+    @ManagedAsync
+    @AdmissionControlled
+    @Path("{templateId}/convert/sweep")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces({"application/zip", BATCH_NDJSON_TYPE, "application/json"})
+    public void convertProfileSweep(
+        @PathParam("templateId") final String templateId,
+        @QueryParam("format") @DefaultValue("zip") final String format,
+        @QueryParam("persist") @DefaultValue("false") final boolean persist,
+        @Context HttpServletRequest pRequest,
+        final FormDataMultiPart multipartData,
+        @Suspended AsyncResponse pResponse) {
+
+        URL servletUrl;
+        try {
+            servletUrl = new URL(pRequest.getScheme(), pRequest.getServerName(), pRequest.getServerPort(), pRequest.getContextPath());
+        } catch (MalformedURLException e) {
+            sLog.error("Unable to get servlet URL to prepare response: " + e.getMessage());
+            pResponse.resume(Response.status(Status.INTERNAL_SERVER_ERROR).entity("Unable to get servlet URL to prepare response: " + e.getMessage()).build());
+            return;
+        }
+        final String artifactBaseURL = servletUrl.toString() + "/api/artifact/";
+
+        RequestExecutor.getInstance(_context, RequestExecutor.CONVERSION).submit(pResponse, new Callable<Response>() {
+            public Response call() {
+                return convertSweep(templateId, format, persist, artifactBaseURL, multipartData);
+            }
+        });
+    }
+
+    /**
+     * Prepare a parameter sweep for {@link #convertProfileSweep}.
+     */
+    @SuppressWarnings("unchecked")
+    private Response convertSweep(String templateId, String format, boolean persist,
+                                  String artifactBaseURL, FormDataMultiPart multipartData) {
+
+        BatchStreamingOutput.Format responseFormat;
+        try {
+            responseFormat = BatchStreamingOutput.Format.valueOf(format.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return jsonError(Status.BAD_REQUEST, "Unknown batch format <" + format
+                             + ">, the format must be zip or ndjson.");
+        }
+
+        Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
+        if(!components.containsKey(templateId)) {
+            return jsonError(Status.NOT_FOUND, "Template with ID <" + templateId + "> does not exist.");
+        }
+
+        FormDataBodyPart profileField = multipartData.getField("xmlupload");
+        FormDataBodyPart sweepField = multipartData.getField("sweep");
+        if(profileField == null || sweepField == null) {
+            return jsonError(Status.BAD_REQUEST, "A sweep requires a base profile (xmlupload) "
+                             + "and a sweep description (sweep).");
+        }
+
+        BatchConverter converter = BatchConverter.getInstance(_context);
+        ParameterSweep sweep;
+        try {
+            sweep = ParameterSweep.fromJson(sweepField.getValue(), converter.getMaxProfiles());
+        } catch (IllegalArgumentException e) {
+            return jsonError(Status.BAD_REQUEST, e.getMessage());
+        }
+        if(sweep.getVariantCount() > converter.getMaxProfiles()) {
+            return jsonError(Status.REQUEST_ENTITY_TOO_LARGE, "The sweep generates <" + sweep.getVariantCount()
+                             + "> variants, a batch can contain at most <" + converter.getMaxProfiles()
+                             + "> profiles.");
+        }
+
+        final ConversionBatch batch = converter.newBatch(templateId, persist);
+        boolean batchOwned = true;
+        try {
+            final String namePattern = "variant-%0" + String.valueOf(sweep.getVariantCount() - 1).length() + "d";
+            try {
+                sweep.generate(profileField.getValueAs(InputStream.class), new ParameterSweep.VariantHandler() {
+                    public void variant(int pIndex, Map<String, String> pParameters, byte[] pProfile)
+                        throws IOException {
+                        batch.addProfile(String.format(namePattern, pIndex),
+                                         new ByteArrayInputStream(pProfile), pParameters);
+                    }
+                });
+                List<FormDataBodyPart> fileFields = multipartData.getFields("xmlupload_file");
+                if(fileFields != null) {
+                    for(FormDataBodyPart fileData : fileFields) {
+                        batch.addAttachment(fileData.getContentDisposition().getFileName(),
+                                            fileData.getValueAs(InputStream.class));
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                return jsonError(Status.BAD_REQUEST, e.getMessage());
+            } catch (IOException e) {
+                sLog.error("IO error when generating profiles for parameter sweep: " + e.getMessage());
+                return Response.status(Status.INTERNAL_SERVER_ERROR).entity("IO error when generating profiles for parameter sweep: " + e.getMessage()).build();
+            }
+            sLog.info("Converting sweep of <" + batch.size() + "> variants for template <" + templateId + ">.");
+
+            Response response = batchResponse(batch, templateId + "-sweep", responseFormat, artifactBaseURL);
+            batchOwned = !(response.getEntity() instanceof BatchStreamingOutput);
+            return response;
+        } finally {
+            if(batchOwned) {
+                batch.close();
+            }
+        }
+    }
+
+    /**
+     * Create the response running a batch of conversions once the batch
+     * template's transform has been compiled. The batch is owned by the
+     * response if it has a BatchStreamingOutput entity.
+     */
+    private static Response batchResponse(ConversionBatch batch, String fileName,
+                                          BatchStreamingOutput.Format responseFormat, String artifactBaseURL) {
+        try {
+            batch.prepare();
+        } catch (UnknownTemplateException e) {
+            return jsonError(Status.NOT_FOUND, "Template with ID <" + batch.getTemplateId() + "> does not exist.");
+        } catch (TransformerException e) {
+            sLog.error("Unable to compile transform for batch conversion: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Unable to compile transform for batch conversion: " + e.getMessage()).build();
+        }
+
+        StreamingOutput output = new BatchStreamingOutput(batch, responseFormat, artifactBaseURL);
+        if(responseFormat == BatchStreamingOutput.Format.ZIP) {
+            return Response.ok(output, "application/zip")
+                    .header("Content-Disposition", "attachment; filename=\"" + fileName + ".zip\"").build();
+        }
+        return Response.ok(output, BATCH_NDJSON_TYPE).build();
+    }
+
+    /**
+     * Create a JSON error response with the specified status and message.
+     */
+    private static Response jsonError(Status pStatus, String pMessage) {
+        JSONObject jsonResponse = new JSONObject();
+        try {
+            jsonResponse.put("status", "ERROR");
+            jsonResponse.put("message", pMessage);
         } catch (JSONException e) {
-            sLog.error("Error preparing JSON response data: " + e.getMessage());
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Error preparing JSON response data: " + e.getMessage()).build(); 
+            sLog.error("Error creating " + pStatus.getStatusCode() + " response: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("{\"status\":\"ERROR\"}").build();
         }
-				
-        return Response.ok(jsonResponse.toString(), MediaType.APPLICATION_JSON).build();
+        return Response.status(pStatus).type(MediaType.APPLICATION_JSON).entity(jsonResponse.toString()).build();
     }
-    
+
     /**
      * Get the profile identified by "profileName" that is based
      * on the template identified by "templateId".
@@ -293,6 +699,7 @@ public class ProfileRestResource {
      */
     @SuppressWarnings("unchecked")
     @GET
+    @ManagedAsync
     @Path("{templateId}/{profileName}")
     @Produces("application/json")
     public Response loadProfile(
@@ -348,6 +755,7 @@ public class ProfileRestResource {
      *         and any additional description of the error under the key 'message'.
      */
     @POST
+    @ManagedAsync
     @RolesAllowed("ROLE_USER")
     @Path("{templateId}/{profileName}")
     @Consumes(MediaType.APPLICATION_JSON)
@@ -448,6 +856,7 @@ public class ProfileRestResource {
      */
     @SuppressWarnings("unchecked")
     @DELETE
+    @ManagedAsync
     @Path("{templateId}/{profileName}")
     @Produces("application/json")
     public Response deleteProfile(
@@ -523,6 +932,7 @@ public class ProfileRestResource {
      * @return a response object containing the JSON name data or an error response.
      */
     @GET
+    @ManagedAsync
     @Path("{templateId}/names")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces("application/json")
@@ -573,6 +983,7 @@ public class ProfileRestResource {
      *  or an error response.
      */
     @GET
+    @ManagedAsync
     @Path("{templateId}/names")
     @Produces("text/plain")
     public Response getProfileNamesText(
@@ -596,50 +1007,37 @@ public class ProfileRestResource {
     }
     
     /**
-     * Convert the provided profile data to an input file using
-     * the transform stored in the template metadata. 
-     * @param pFileId the ID of the file to convert, as obtained from the
-     *               response to the convert call.
+     * Download an application input file created by a profile conversion.
+     * @param pFileId the artifact ID of the input file, as obtained from the
+     *               TransformedXmlId value in the response to the convert call.
      * @return the application input file specified by the fileId
      */
     @GET
+    @ManagedAsync
     @Path("inputFile/{fileId}")
     public Response getApplicationInputFile(
         @PathParam("fileId") String pFileId,
-        @Context HttpServletRequest pRequest) {
+        @Context HttpServletRequest pRequest,
+        @Context Request pJaxRsRequest,
+        @Context HttpHeaders pHeaders) {
     	
     	sLog.debug("Request to get application input file with ID: " + pFileId);
     	
-    	String fileDirPath = _context.getRealPath("temp");
-    	final File dataFile = new File(fileDirPath + File.separator + "output_xml_" + pFileId + ".xml");
-    	if(!dataFile.exists()) {
+    	Artifact dataFile = ArtifactStore.getInstance(_context).get(pFileId);
+    	if(dataFile == null) {
     		return Response.status(Status.NOT_FOUND).entity("Request app input data file could not be found.").build();
     	}
     	
-    	StreamingOutput so = new StreamingOutput() {
-			@Override
-			public void write(OutputStream pOut) throws IOException,
-					WebApplicationException {
-
-				FileInputStream in = new FileInputStream(dataFile);
-				byte[] data = new byte[1024];
-				int dataRead = -1;
-				while((dataRead = in.read(data)) != -1) {
-					pOut.write(data, 0, dataRead);
-				}
-				pOut.close();
-				in.close();
-			}
-		};
+		// The downloader handles conditional and range requests and sets
+		// the content length, type and validators for the response.
+		ResponseBuilder rb = FileDownloader.getInstance(_context).download(
+				dataFile, "application/xml", pJaxRsRequest, pHeaders);
 		
 		// Create the content disposition object for the file download
 		ContentDisposition cd = ContentDisposition.type("attachment").creationDate(new Date()).fileName("tempss_input_file_" + pFileId + ".xml").build();
 		
 		NewCookie c = new NewCookie("fileDownload","true", "/",null, null, NewCookie.DEFAULT_MAX_AGE, false);
-		return Response.status(Status.OK).
-				header("Content-Disposition", cd).
-				header("Content-Type", "application/xml").
-				cookie(c).entity(so).build();
+		return rb.header("Content-Disposition", cd).cookie(c).build();
     }
     
     /**
@@ -662,34 +1060,5 @@ public class ProfileRestResource {
 		return user;
     }
 
-    /**
-     * Check the provided string to see if it begins with an XML declaration.
-     * If it does, remove the declaration and return the modified string.
-     * 
-     * This is used when embedding one block of XML content within another.
-     * If the content being embedded begins with an XML declaration, parsers
-     * will reject the updated XML because the occurrence of another
-     * declaration.
-     * 
-     * @param pXml The string containing XML to check for a declaration
-     * @return The original string, unchanged, if no declaration found
-     *         at the start or a modified string with the declaration removed.
-     */
-    private String removeXMLDeclaration(String pXml) {
-        // Compile the regex for finding an XML declaration at start of string
-        Pattern p = Pattern.compile("^<\\?xml .*\\?>\\s*\\v+", Pattern.CASE_INSENSITIVE);
-        Matcher m = p.matcher(pXml);
-        boolean found = m.find(0);
-
-        if(found) {
-            // Get a new string with the declaration removed
-            sLog.debug("XML declaration found in included content, removing");
-            String newString = m.replaceFirst("");
-            return newString;
-        }
-        
-        sLog.debug("No XML declaration found in included content.");
-        return pXml;
-    }
     
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+package uk.ac.imperial.libhpc2.schemaservice.api;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.jersey.spi.RequestExecutorProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+
+import uk.ac.imperial.libhpc2.schemaservice.VirtualThreads;
+
+/**
+ * Provides the executor that Jersey uses to run resource methods annotated
+ * with {@link org.glassfish.jersey.server.ManagedAsync}. These are the I/O
+ * bound API methods.
+ *
+ * When virtual threads are enabled (see {@link VirtualThreads}) each
+ * method runs on a new virtual thread so that slow clients and database
+ * access don't hold the servlet container's threads. Otherwise methods run
+ * directly on the container thread handling the request, as they would
+ * without the annotation. The security context of the request is made
+ * available to the thread running the method.
+ */
+public class ResourceExecutorProvider implements RequestExecutorProvider {
+
+    private static final Logger sLog = LoggerFactory.getLogger(ResourceExecutorProvider.class.getName());
+
+    @Override
+    public ExecutorService getRequestingExecutor() {
+        ExecutorService executor = null;
+        if(VirtualThreads.isEnabled()) {
+            executor = VirtualThreads.newExecutor("tempss-resource-");
+            if(executor == null) {
+                sLog.warn("Virtual threads are enabled but are not supported by this Java runtime, "
+                          + "API requests will be handled on platform threads.");
+            }
+            else {
+                sLog.info("API requests will be handled on virtual threads.");
+            }
+        }
+        if(executor == null) {
+            executor = new CallerRunsExecutorService();
+        }
+        return new DelegatingSecurityContextExecutorService(executor);
+    }
+
+    @Override
+    public void releaseRequestingExecutor(ExecutorService pExecutor) {
+        pExecutor.shutdown();
+    }
+
+    /**
+     * Executor that runs tasks on the thread that submits them.
+     */
+    private static class CallerRunsExecutorService extends AbstractExecutorService {
+
+        private volatile boolean _shutdown = false;
+
+        public void execute(Runnable pCommand) {
+            pCommand.run();
+        }
+
+        public void shutdown() {
+            _shutdown = true;
+        }
+
+        public List<Runnable> shutdownNow() {
+            _shutdown = true;
+            return Collections.emptyList();
+        }
+
+        public boolean isShutdown() {
+            return _shutdown;
+        }
+
+        public boolean isTerminated() {
+            return _shutdown;
+        }
+
+        public boolean awaitTermination(long pTimeout, TimeUnit pUnit) {
+            return _shutdown;
+        }
+    }
+}
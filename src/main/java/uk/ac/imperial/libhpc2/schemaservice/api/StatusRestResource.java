@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice.api;
+
+import java.util.List;
+
+import javax.servlet.ServletContext;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import uk.ac.imperial.libhpc2.schemaservice.AdmissionController;
+import uk.ac.imperial.libhpc2.schemaservice.ArtifactStore;
+import uk.ac.imperial.libhpc2.schemaservice.BatchConverter;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionCache;
+import uk.ac.imperial.libhpc2.schemaservice.ConversionJobQueue;
+import uk.ac.imperial.libhpc2.schemaservice.FileDownloader;
+import uk.ac.imperial.libhpc2.schemaservice.RequestExecutor;
+import uk.ac.imperial.libhpc2.schemaservice.SchemaIncludeResolver;
+import uk.ac.imperial.libhpc2.schemaservice.TemplateRegistry;
+import uk.ac.imperial.libhpc2.schemaservice.TemplateTreeCache;
+import uk.ac.imperial.libhpc2.schemaservice.TemplateWarmer;
+import uk.ac.imperial.libhpc2.schemaservice.TempssConfig;
+import uk.ac.imperial.libhpc2.schemaservice.TransformCache;
+import uk.ac.imperial.libhpc2.schemaservice.web.dao.ProfileDao;
+import uk.ac.imperial.libhpc2.schemaservice.web.dao.impl.CachingProfileDao;
+import uk.ac.imperial.libhpc2.schemaservice.web.db.MeteredDataSource;
+
+/**
+ * Jersey REST class providing status and statistics information about
+ * the running service, e.g. the state of its internal caches.
+ */
+@Component
+@Path("status")
+public class StatusRestResource {
+
+    /**
+     * Logger
+     */
+    private static final Logger sLog = LoggerFactory.getLogger(StatusRestResource.class.getName());
+
+    /**
+     * ServletContext object used to access the shared service components
+     * Injected via @Context annotation
+     */
+    ServletContext _context;
+
+    /**
+     * Profile data access object, statistics are reported if it is cached
+     */
+    @Autowired
+    ProfileDao profileDao;
+
+    /**
+     * Database connection pools, statistics are reported for each
+     */
+    @Autowired(required = false)
+    List<MeteredDataSource> dataSources;
+
+    @Context
+    public void setServletContext(ServletContext pContext) {
+        this._context = pContext;
+        sLog.debug("Servlet context injected: " + pContext);
+    }
+
+    @GET
+    @Produces("application/json")
+    public Response getStatus() {
+        JSONObject status = new JSONObject();
+        try {
+            Boolean ready = (Boolean)_context.getAttribute(TemplateWarmer.READY_ATTRIBUTE);
+            status.put("ready", ready == null || ready.booleanValue());
+            TemplateWarmer warmer = (TemplateWarmer)_context.getAttribute(TemplateWarmer.CONTEXT_ATTRIBUTE);
+            if(warmer != null) {
+                status.put("warmup", new JSONObject(warmer.getStatistics()));
+            }
+            TemplateRegistry registry = (TemplateRegistry)_context.getAttribute(TemplateRegistry.CONTEXT_ATTRIBUTE);
+            if(registry != null) {
+                status.put("templates", new JSONObject(registry.getStatistics()));
+            }
+            status.put("config", new JSONObject(TempssConfig.getInstance().getStatistics()));
+            status.put("transformCache", new JSONObject(TransformCache.getInstance(_context).getStatistics()));
+            status.put("schemaIncludeResolver", new JSONObject(SchemaIncludeResolver.getInstance(_context).getStatistics()));
+            status.put("templateTreeCache", new JSONObject(TemplateTreeCache.getInstance(_context).getStatistics()));
+            status.put("conversionCache", new JSONObject(ConversionCache.getInstance(_context).getStatistics()));
+            status.put("artifacts", new JSONObject(ArtifactStore.getInstance(_context).getStatistics()));
+            status.put("compression", new JSONObject(GzipEncodingFilter.getStatistics()));
+            status.put("downloads", new JSONObject(FileDownloader.getInstance(_context).getStatistics()));
+            JSONObject executors = new JSONObject();
+            for(String name : new String[] { RequestExecutor.CONVERSION, RequestExecutor.RENDER }) {
+                executors.put(name, new JSONObject(RequestExecutor.getInstance(_context, name).getStatistics()));
+            }
+            status.put("executors", executors);
+            status.put("batch", new JSONObject(BatchConverter.getInstance(_context).getStatistics()));
+            status.put("jobs", new JSONObject(ConversionJobQueue.getInstance(_context).getStatistics()));
+            status.put("admission", new JSONObject(AdmissionController.getInstance(_context).getStatistics()));
+            if(profileDao instanceof CachingProfileDao) {
+                status.put("profileCache", new JSONObject(((CachingProfileDao)profileDao).getStatistics()));
+            }
+            if(dataSources != null) {
+                JSONObject database = new JSONObject();
+                for(MeteredDataSource dataSource : dataSources) {
+                    database.put(dataSource.getName(), new JSONObject(dataSource.getStatistics()));
+                }
+                status.put("database", database);
+            }
+        } catch (JSONException e) {
+            sLog.error("Unable to add statistics to status object: " + e.getMessage());
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("{\"status\":\"ERROR\"}").build();
+        }
+        return Response.ok(status.toString(), MediaType.APPLICATION_JSON).build();
+    }
+}
@@ -55,5 +55,8 @@ public class TemPSSMultipartConfig extends ResourceConfig {
 
 	public TemPSSMultipartConfig() {
 		super(MultiPartFeature.class);
+		register(GzipEncodingFilter.class);
+		register(AdmissionFilter.class);
+		register(ResourceExecutorProvider.class);
 	}
 }
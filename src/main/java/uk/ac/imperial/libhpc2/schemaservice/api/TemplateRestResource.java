@@ -47,35 +47,42 @@ package uk.ac.imperial.libhpc2.schemaservice.api;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.IOException;
-import java.text.ParseException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.servlet.ServletContext;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
-import javax.xml.transform.TransformerException;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import uk.ac.imperial.libhpc2.schemaservice.CompressionUtils;
+import uk.ac.imperial.libhpc2.schemaservice.RequestExecutor;
 import uk.ac.imperial.libhpc2.schemaservice.SchemaProcessor;
 import uk.ac.imperial.libhpc2.schemaservice.TempssObject;
+import uk.ac.imperial.libhpc2.schemaservice.TemplateCatalog;
+import uk.ac.imperial.libhpc2.schemaservice.TemplateCatalog.Representation;
+import uk.ac.imperial.libhpc2.schemaservice.TemplateTreeCache;
+import uk.ac.imperial.libhpc2.schemaservice.TemplateTreeCache.RenderedTree;
 
 /**
  * Jersey REST class representing the template endpoint
@@ -103,146 +110,145 @@ public class TemplateRestResource {
         sLog.debug("Servlet context injected: " + pContext);
     }
 
+    // The template listings are served from the pre-serialized bodies held
+    // in the current template catalog.
+
     @GET
     @Produces("application/json")
-    @SuppressWarnings("unchecked")
-    public Response listTemplatesJson() {
-    	Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
-
-    	JSONArray componentList = new JSONArray();
-        for(TempssObject component : components.values()) {
-            JSONObject componentObj = new JSONObject();
-            try {
-                componentObj.put("id", component.getId());
-                componentObj.put("name", component.getName());
-                componentObj.put("schema", component.getSchema());
-                componentObj.put("transform", component.getTransform());
-            } catch (JSONException e) {
-                sLog.error("Unable to add component data <" + component.toString() + "> to JSON object: " + e.getMessage());
-                return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Unable to add component data <" + component.toString() + "> to JSON object: " + e.getMessage()).build();
-            }
-
-            componentList.put(componentObj);
-        }
-        JSONObject componentArray = new JSONObject();
-        try {
-            componentArray.put("components", componentList);
-        } catch (JSONException e) {
-            sLog.error("Unable to add component array to component object: " + e.getMessage());
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Unable to add component array to component object: " + e.getMessage()).build();
-        }
-
-        return Response.ok(componentArray.toString(), MediaType.APPLICATION_JSON).build();
+    public Response listTemplatesJson(@Context Request pRequest,
+                                      @Context HttpHeaders pHeaders) {
+        return listingResponse(TemplateCatalog.getInstance(_context).getListJson(),
+                               MediaType.APPLICATION_JSON, pRequest, pHeaders);
     }
 
     @GET
     @Produces("text/plain")
-    @SuppressWarnings("unchecked")
-    public Response listTemplatesText() {
-        Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
-
-        StringBuilder sb = new StringBuilder();
-        for(TempssObject component : components.values()) {
-            sb.append("[" + component.getId() + ", "
-                      + component.getName() + ", "
-                      + component.getSchema() + ", "
-                      + component.getTransform() + "]\n");
-        }
-        return Response.ok(sb.toString(), MediaType.TEXT_PLAIN).build();
+    public Response listTemplatesText(@Context Request pRequest,
+                                      @Context HttpHeaders pHeaders) {
+        return listingResponse(TemplateCatalog.getInstance(_context).getListText(),
+                               MediaType.TEXT_PLAIN, pRequest, pHeaders);
     }
 
     @GET
     @Produces("text/plain")
     @Path("names")
-    @SuppressWarnings("unchecked")
-    public String listTemplatesNames() {
-        Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
-
-        StringBuilder sb = new StringBuilder();
-        for(TempssObject component : components.values()) {
-            sb.append(component.getName() + "\n");
-        }
-        return sb.toString();
+    public Response listTemplatesNames(@Context Request pRequest,
+                                       @Context HttpHeaders pHeaders) {
+        return listingResponse(TemplateCatalog.getInstance(_context).getNamesText(),
+                               MediaType.TEXT_PLAIN, pRequest, pHeaders);
     }
 
     @GET
     @Produces("application/json")
     @Path("names")
-    @SuppressWarnings("unchecked")
-    public String listTemplatesNamesJson() {
-        Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
-
-        JSONArray componentNames = new JSONArray();
-        for(TempssObject component : components.values()) {
-            componentNames.put(component.getName());
-        }
-        return componentNames.toString();
+    public Response listTemplatesNamesJson(@Context Request pRequest,
+                                           @Context HttpHeaders pHeaders) {
+        return listingResponse(TemplateCatalog.getInstance(_context).getNamesJson(),
+                               MediaType.APPLICATION_JSON, pRequest, pHeaders);
     }
 
     @GET
     @Produces("text/plain")
     @Path("ids")
-    @SuppressWarnings("unchecked")
-    public String listTemplatesIds() {
-        Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
-
-        StringBuilder sb = new StringBuilder();
-        for(TempssObject component : components.values()) {
-            sb.append(component.getId() + "\n");
-        }
-        return sb.toString();
+    public Response listTemplatesIds(@Context Request pRequest,
+                                     @Context HttpHeaders pHeaders) {
+        return listingResponse(TemplateCatalog.getInstance(_context).getIdsText(),
+                               MediaType.TEXT_PLAIN, pRequest, pHeaders);
     }
 
     @GET
     @Produces("application/json")
     @Path("ids")
-    @SuppressWarnings("unchecked")
-    public String listTemplatesIdsJson() {
-        Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
-
-        JSONArray componentNames = new JSONArray();
-        for(TempssObject component : components.values()) {
-            componentNames.put(component.getId());
-        }
-        return componentNames.toString();
+    public Response listTemplatesIdsJson(@Context Request pRequest,
+                                         @Context HttpHeaders pHeaders) {
+        return listingResponse(TemplateCatalog.getInstance(_context).getIdsJson(),
+                               MediaType.APPLICATION_JSON, pRequest, pHeaders);
     }
 
     @GET
     @Produces("text/html")
     @Path("id/{templateId}")
-    @SuppressWarnings("unchecked")
-    public Response getTemplatesHtmlTree(@PathParam("templateId") String templateId) {
-        // Get the component metadata from the servletcontext and check the name is valid
-        Map<String, TempssObject> components = (Map<String, TempssObject>)_context.getAttribute("components");
+    public void getTemplatesHtmlTree(@PathParam("templateId") String templateId,
+                                     @Context final Request pRequest,
+                                     @Context final HttpHeaders pHeaders,
+                                     @Suspended AsyncResponse pResponse) {
+        // Get the component metadata from the template catalog and check the name is valid
+        Map<String, TempssObject> components = TemplateCatalog.getInstance(_context).getComponents();
 
         // If we don't have a template of this name then throw an error
         if(!components.containsKey(templateId)) {
-            return Response.status(Status.NOT_FOUND).entity("Template with ID <" + templateId + "> does not exist.").build();
+            pResponse.resume(Response.status(Status.NOT_FOUND).entity("Template with ID <" + templateId + "> does not exist.").build());
+            return;
         }
 
-        // Get the template information from the metadata map
-        // and make a call to the schema processor to transform
-        // the template schema to an HTML tree for display in
-        // a web page
+        // Getting the tree may require the template to be rendered so it is
+        // done on the render executor rather than the container's thread.
+        final TempssObject metadata = components.get(templateId);
+        RequestExecutor.getInstance(_context, RequestExecutor.RENDER).submit(pResponse, new Callable<Response>() {
+            public Response call() {
+                return treeResponse(metadata, pRequest, pHeaders);
+            }
+        });
+    }
+
+    /**
+     * Build the response containing the HTML tree for a template.
+     */
+    private Response treeResponse(TempssObject metadata, Request pRequest, HttpHeaders pHeaders) {
+        // Get the HTML tree for the template from the tree cache. The cache
+        // makes a call to the schema processor to transform the template
+        // schema to an HTML tree for display in a web page if there is no
+        // valid rendered copy of the tree available.
         SchemaProcessor proc = new SchemaProcessor(_context);
-        TempssObject metadata = components.get(templateId);
-        String htmlTree = "";
-        try {
-            htmlTree = proc.processComponentSelector(metadata);
-        } catch (FileNotFoundException e) {
-            sLog.error("File not found when trying to generate HTML tree: " + e.getMessage());
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("File not found when trying to generate HTML tree: " + e.getMessage()).build();
-        } catch (IOException e) {
-            sLog.error("IO error when trying to generate HTML tree: " + e.getMessage());
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("IO error when trying to generate HTML tree: " + e.getMessage()).build();
-        } catch (ParseException e) {
-            sLog.error("XML parse error when trying to generate HTML tree: " + e.getMessage());
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("XML parse error when trying to generate HTML tree: " + e.getMessage()).build();
-        } catch (TransformerException e) {
-            sLog.error("XSLT transform error when trying to generate HTML tree: " + e.getMessage());
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("XSLT transform error when trying to generate HTML tree: " + e.getMessage()).build();
+        RenderedTree tree = TemplateTreeCache.getInstance(_context).getTree(metadata, proc);
+        if(tree.isFailed()) {
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(tree.getErrorMessage()).build();
+        }
+
+        // Trees are held with a gzip compressed copy that can be sent as-is
+        // to clients that accept it.
+        boolean gzip = tree.getGzipHtml() != null && CompressionUtils.useGzip(pHeaders);
+
+        // The tree hash changes whenever the schema or the transform used to
+        // render it change so clients holding a copy of the tree with the
+        // same tag can continue to use it. The compressed representation
+        // has its own tag since it is not byte-identical.
+        EntityTag etag = new EntityTag(gzip ? tree.getHash() + "-gzip" : tree.getHash());
+        CacheControl cc = new CacheControl();
+        cc.setNoCache(true);
+        ResponseBuilder notModified = pRequest.evaluatePreconditions(etag);
+        if(notModified != null) {
+            return notModified.cacheControl(cc).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
         }
 
-        return Response.ok(htmlTree, MediaType.TEXT_HTML).build();
+        ResponseBuilder rb = Response.ok(gzip ? tree.getGzipHtml() : tree.getHtml(),
+                                         MediaType.TEXT_HTML + ";charset=UTF-8");
+        if(gzip) {
+            rb.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return rb.tag(etag).cacheControl(cc).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+    }
+
+    /**
+     * Build the response for a template listing, returning a 304 (not
+     * modified) response if the client already holds the current listing.
+     * The compressed copy of the listing is sent to clients that accept it.
+     */
+    private Response listingResponse(Representation pListing, String pMediaType,
+                                     Request pRequest, HttpHeaders pHeaders) {
+        boolean gzip = pListing.getGzipBody() != null && CompressionUtils.useGzip(pHeaders);
+        EntityTag etag = new EntityTag(gzip ? pListing.getETag() + "-gzip" : pListing.getETag());
+        CacheControl cc = new CacheControl();
+        cc.setNoCache(true);
+        ResponseBuilder notModified = pRequest.evaluatePreconditions(etag);
+        if(notModified != null) {
+            return notModified.cacheControl(cc).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+        }
+        ResponseBuilder rb = Response.ok(gzip ? pListing.getGzipBody() : pListing.getBody(),
+                                         pMediaType + ";charset=UTF-8");
+        if(gzip) {
+            rb.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return rb.tag(etag).cacheControl(cc).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
     }
 }
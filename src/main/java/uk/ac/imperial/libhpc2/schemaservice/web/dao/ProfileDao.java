@@ -66,4 +66,15 @@ public interface ProfileDao {
 	public List<Profile> findByTemplateId(String pTemplateId, TempssUser pUser);
 	
 	public boolean profileNameAvailable(String pName, TempssUser pUser);
+	
+	/**
+	 * Find all profiles that are publicly accessible.
+	 */
+	public List<Profile> findPublic();
+	
+	/**
+	 * Find the profiles owned by the specified user that are not publicly
+	 * accessible.
+	 */
+	public List<Profile> findPrivate(String pOwner);
 }
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice.web.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.AuthenticationException;
+
+import uk.ac.imperial.libhpc2.schemaservice.web.dao.ProfileDao;
+import uk.ac.imperial.libhpc2.schemaservice.web.db.Profile;
+import uk.ac.imperial.libhpc2.schemaservice.web.db.TempssUser;
+
+/**
+ * A read-through caching decorator for a profile data access object.
+ * 
+ * The set of public profiles and the set of private profiles for each owner 
+ * are cached as separate entries and the results of the find methods are 
+ * computed from these. Adding or deleting a profile invalidates only the 
+ * entries that contain it. Entries expire after a configurable time so that
+ * changes made to the database directly are eventually picked up, and the 
+ * least recently used entries are evicted when the total size of the cached 
+ * profile XML exceeds the configured maximum weight.
+ * 
+ * The profile objects returned from this class are shared between callers
+ * and must not be modified.
+ */
+public class CachingProfileDao implements ProfileDao {
+
+	private static final Logger sLog = LoggerFactory.getLogger(CachingProfileDao.class.getName());
+	
+	public static final long DEFAULT_TTL_MILLIS = 5L * 60L * 1000L;
+	
+	public static final long DEFAULT_MAX_WEIGHT = 16L * 1024L * 1024L;
+	
+	private static final String PUBLIC_KEY = "public";
+	private static final String PRIVATE_KEY_PREFIX = "private:";
+	
+	// Profiles are returned in database ID order, as they would be when read
+	// directly from the database.
+	private static final Comparator<Profile> ID_ORDER = new Comparator<Profile>() {
+		public int compare(Profile p1, Profile p2) {
+			return (p1.getId() < p2.getId()) ? -1 : ((p1.getId() == p2.getId()) ? 0 : 1);
+		}
+	};
+	
+	private final ProfileDao _delegate;
+	
+	private long _ttlMillis = DEFAULT_TTL_MILLIS;
+	private long _maxWeight = DEFAULT_MAX_WEIGHT;
+	
+	// Access ordered for LRU eviction. All access to the map, the weight and 
+	// the generation is synchronized on the map.
+	private final LinkedHashMap<String, CacheEntry> _entries = 
+			new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+	private long _weight = 0;
+	// Incremented on each invalidation so that a load that was started 
+	// before an invalidation does not store out of date profiles.
+	private long _generation = 0;
+	
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _expired = new AtomicLong();
+	private final AtomicLong _evictions = new AtomicLong();
+	private final AtomicLong _invalidations = new AtomicLong();
+	
+	public CachingProfileDao(ProfileDao pDelegate) {
+		this._delegate = pDelegate;
+	}
+	
+	public void setTtlMillis(long pTtlMillis) {
+		this._ttlMillis = pTtlMillis;
+	}
+	
+	public void setMaxWeight(long pMaxWeight) {
+		this._maxWeight = pMaxWeight;
+	}
+	
+	@Override
+	public int add(Profile pProfile) {
+		int id = _delegate.add(pProfile);
+		if(pProfile.getPublic()) {
+			invalidate(PUBLIC_KEY);
+		}
+		else {
+			invalidate(PRIVATE_KEY_PREFIX + pProfile.getOwner());
+		}
+		return id;
+	}
+	
+	@Override
+	public int delete(String pTemplateId, String pProfileName, 
+			          TempssUser pUser) {
+		int rowsAffected = _delegate.delete(pTemplateId, pProfileName, pUser);
+		if(rowsAffected > 0) {
+			// The deleted profile may have been public or private. The public
+			// entry only needs to be removed if it contains the profile.
+			String owner = pUser.getUsername();
+			invalidate(PRIVATE_KEY_PREFIX + owner);
+			CacheEntry publicEntry = null;
+			synchronized(_entries) {
+				publicEntry = _entries.get(PUBLIC_KEY);
+			}
+			if(publicEntry != null) {
+				for(Profile p : publicEntry.profiles) {
+					if(pTemplateId.equals(p.getTemplateId()) && 
+					   pProfileName.equals(p.getName()) && 
+					   owner.equals(p.getOwner())) {
+						invalidate(PUBLIC_KEY);
+						break;
+					}
+				}
+			}
+		}
+		return rowsAffected;
+	}
+	
+	@Override
+	public List<Profile> findAll(TempssUser pUser) {
+		return getVisibleProfiles(pUser);
+	}
+	
+	@Override
+	public Profile findByName(String pName, TempssUser pUser) {
+		Profile profile = null;
+		int matches = 0;
+		for(Profile p : getVisibleProfiles(pUser)) {
+			if(pName.equals(p.getName())) {
+				if(profile == null) {
+					profile = p;
+				}
+				matches++;
+			}
+		}
+		if(matches > 1) {
+			sLog.error("More than 1 profile with specified name <{}> found. "
+					+ "Returning first instance.", pName);
+		}
+		return profile;
+	}
+	
+	@Override
+	public List<Profile> findByTemplateId(String pTemplateId, 
+			                              TempssUser pUser) {
+		List<Profile> profiles = new ArrayList<Profile>();
+		for(Profile p : getVisibleProfiles(pUser)) {
+			if(pTemplateId.equals(p.getTemplateId())) {
+				profiles.add(p);
+			}
+		}
+		// Match the behaviour of the database implementation which returns
+		// null if no profiles are found.
+		return profiles.isEmpty() ? null : profiles;
+	}
+	
+	/**
+	 * The name availability check must consider all profiles, including 
+	 * the private profiles of other users, so it is always passed to the 
+	 * underlying data access object.
+	 */
+	@Override
+	public boolean profileNameAvailable(String pName, TempssUser pUser) 
+		throws AuthenticationException {
+		return _delegate.profileNameAvailable(pName, pUser);
+	}
+	
+	@Override
+	public List<Profile> findPublic() {
+		return getEntry(PUBLIC_KEY, null);
+	}
+	
+	@Override
+	public List<Profile> findPrivate(String pOwner) {
+		return getEntry(PRIVATE_KEY_PREFIX + pOwner, pOwner);
+	}
+	
+	/**
+	 * Remove all cached profiles.
+	 */
+	public void clear() {
+		synchronized(_entries) {
+			_entries.clear();
+			_weight = 0;
+			_generation++;
+		}
+	}
+	
+	/**
+	 * Get a snapshot of the cache statistics.
+	 * 
+	 * @return a map of statistic name to value.
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		synchronized(_entries) {
+			stats.put("entries", _entries.size());
+			stats.put("weight", _weight);
+		}
+		stats.put("maxWeight", _maxWeight);
+		stats.put("ttlMillis", _ttlMillis);
+		stats.put("hits", _hits.get());
+		stats.put("misses", _misses.get());
+		stats.put("expired", _expired.get());
+		stats.put("evictions", _evictions.get());
+		stats.put("invalidations", _invalidations.get());
+		return stats;
+	}
+	
+	/**
+	 * Get the profiles that the specified user is able to access, these are
+	 * the public profiles and the user's own private profiles.
+	 */
+	private List<Profile> getVisibleProfiles(TempssUser pUser) {
+		List<Profile> publicProfiles = findPublic();
+		if(pUser == null) {
+			return new ArrayList<Profile>(publicProfiles);
+		}
+		List<Profile> privateProfiles = findPrivate(pUser.getUsername());
+		List<Profile> profiles = new ArrayList<Profile>(
+				publicProfiles.size() + privateProfiles.size());
+		profiles.addAll(publicProfiles);
+		profiles.addAll(privateProfiles);
+		Collections.sort(profiles, ID_ORDER);
+		return profiles;
+	}
+	
+	private List<Profile> getEntry(String pKey, String pOwner) {
+		long generation;
+		synchronized(_entries) {
+			CacheEntry entry = _entries.get(pKey);
+			if(entry != null) {
+				if(entry.expiry > System.currentTimeMillis()) {
+					_hits.incrementAndGet();
+					return entry.profiles;
+				}
+				_entries.remove(pKey);
+				_weight -= entry.weight;
+				_expired.incrementAndGet();
+			}
+			generation = _generation;
+		}
+		
+		_misses.incrementAndGet();
+		List<Profile> profiles = (pOwner == null) ? 
+				_delegate.findPublic() : _delegate.findPrivate(pOwner);
+		CacheEntry entry = new CacheEntry(profiles, 
+				System.currentTimeMillis() + _ttlMillis);
+		
+		synchronized(_entries) {
+			if(generation != _generation) {
+				// Invalidated while loading, return the profiles without
+				// caching them since they may already be out of date.
+				return entry.profiles;
+			}
+			if(entry.weight > _maxWeight) {
+				sLog.debug("Profiles for cache entry <{}> are too large to cache.", pKey);
+				return entry.profiles;
+			}
+			CacheEntry previous = _entries.put(pKey, entry);
+			if(previous != null) {
+				_weight -= previous.weight;
+			}
+			_weight += entry.weight;
+			Iterator<CacheEntry> it = _entries.values().iterator();
+			while(_weight > _maxWeight && it.hasNext()) {
+				CacheEntry evicted = it.next();
+				it.remove();
+				_weight -= evicted.weight;
+				_evictions.incrementAndGet();
+			}
+		}
+		return entry.profiles;
+	}
+	
+	private void invalidate(String pKey) {
+		synchronized(_entries) {
+			CacheEntry entry = _entries.remove(pKey);
+			if(entry != null) {
+				_weight -= entry.weight;
+			}
+			_generation++;
+		}
+		_invalidations.incrementAndGet();
+		sLog.debug("Invalidated profile cache entry <{}>.", pKey);
+	}
+	
+	private static class CacheEntry {
+		final List<Profile> profiles;
+		final long weight;
+		final long expiry;
+		
+		CacheEntry(List<Profile> pProfiles, long pExpiry) {
+			this.profiles = Collections.unmodifiableList(pProfiles);
+			long weight = 0;
+			for(Profile p : pProfiles) {
+				String xml = p.getProfileXml();
+				weight += (xml == null) ? 0 : 2L * xml.length();
+			}
+			this.weight = weight;
+			this.expiry = pExpiry;
+		}
+	}
+}
@@ -67,12 +67,29 @@ public class JdbcProfileDaoImpl implements ProfileDao {
 	private static final Logger sLog = LoggerFactory.getLogger(JdbcProfileDaoImpl.class.getName());
 	
 	private JdbcTemplate _jdbcTemplate;
+	private JdbcTemplate _readJdbcTemplate;
 	private SimpleJdbcInsert _insertProfile;
 	
+	/**
+	 * Set the data source used for updates. Queries also use this data
+	 * source unless a read data source is set.
+	 */
 	public void setDataSource(DataSource dataSource) {
 		sLog.debug("Setting data source <" + dataSource + "> for profile data access object.");
 		_jdbcTemplate = new JdbcTemplate(dataSource);
 		_insertProfile = new SimpleJdbcInsert(_jdbcTemplate).withTableName("profile").usingGeneratedKeyColumns("id");
+		if(_readJdbcTemplate == null) {
+			_readJdbcTemplate = _jdbcTemplate;
+		}
+	}
+	
+	/**
+	 * Set the data source used for queries, which can provide read-only
+	 * connections.
+	 */
+	public void setReadDataSource(DataSource readDataSource) {
+		sLog.debug("Setting read data source <" + readDataSource + "> for profile data access object.");
+		_readJdbcTemplate = new JdbcTemplate(readDataSource);
 	}
 	
 	@Override
@@ -111,7 +128,7 @@ public class JdbcProfileDaoImpl implements ProfileDao {
 			params = new Object[] {"1", pUser.getUsername()};
 		}
 		
-		List<Map<String,Object>> profileList = _jdbcTemplate.queryForList(
+		List<Map<String,Object>> profileList = _readJdbcTemplate.queryForList(
 				sql, params); 
 		
 		List<Profile> profiles = new ArrayList<Profile>();
@@ -140,7 +157,7 @@ public class JdbcProfileDaoImpl implements ProfileDao {
 			params = new Object[] {pName, "1", pUser.getUsername()};
 		}
 		
-		List<Map<String,Object>> profiles = _jdbcTemplate.queryForList(
+		List<Map<String,Object>> profiles = _readJdbcTemplate.queryForList(
 				sql, params);
 		
 		Profile profile = null;
@@ -176,7 +193,7 @@ public class JdbcProfileDaoImpl implements ProfileDao {
 			params = new Object[] {pTemplateId, "1", pUser.getUsername()};
 		}
 		
-		List<Map<String,Object>> profileList = _jdbcTemplate.queryForList(
+		List<Map<String,Object>> profileList = _readJdbcTemplate.queryForList(
 				sql, params);
 		
 		if(profileList.size() == 0) {
@@ -198,6 +215,18 @@ public class JdbcProfileDaoImpl implements ProfileDao {
 		return profileResult;
 	} 
 	
+	@Override
+	public List<Profile> findPublic() {
+		return queryProfiles("select * from profile WHERE public = ?", 
+				new Object[] {"1"});
+	}
+	
+	@Override
+	public List<Profile> findPrivate(String pOwner) {
+		return queryProfiles("select * from profile WHERE public = ? AND owner = ?", 
+				new Object[] {"0", pOwner});
+	}
+	
 	/**
 	 * Check if a profile name exists. This will check all registered profiles 
 	 * to see if the specified name is available, regardless of whether the 
@@ -217,7 +246,7 @@ public class JdbcProfileDaoImpl implements ProfileDao {
 		// Lookup the profile name to see if it exists.
 		String sql = "select * from profile WHERE name = ?";
 		Object[] param = new Object[] {pName};
-		List<Map<String,Object>> profileList = _jdbcTemplate.queryForList(
+		List<Map<String,Object>> profileList = _readJdbcTemplate.queryForList(
 				sql, param);
 		
 		if(profileList.size() == 0) {
@@ -225,4 +254,14 @@ public class JdbcProfileDaoImpl implements ProfileDao {
 		}
 		return false;
 	}
+	
+	private List<Profile> queryProfiles(String pSql, Object[] pParams) {
+		List<Map<String,Object>> profileList = _readJdbcTemplate.queryForList(
+				pSql, pParams);
+		List<Profile> profiles = new ArrayList<Profile>(profileList.size());
+		for(Map<String,Object> data : profileList) {
+			profiles.add(new Profile(data));
+		}
+		return profiles;
+	}
 }
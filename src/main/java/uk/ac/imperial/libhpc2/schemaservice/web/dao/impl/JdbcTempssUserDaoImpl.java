@@ -70,15 +70,32 @@ public class JdbcTempssUserDaoImpl implements TempssUserDao {
 	private static final Logger sLog = LoggerFactory.getLogger(JdbcTempssUserDaoImpl.class.getName());
 	
 	private JdbcTemplate _jdbcTemplate;
+	private JdbcTemplate _readJdbcTemplate;
 	private SimpleJdbcInsert _insertProfile;
 
 	@Autowired
 	private PasswordEncoder passwordEncoder;
 	
+	/**
+	 * Set the data source used for updates. Queries also use this data
+	 * source unless a read data source is set.
+	 */
 	public void setDataSource(DataSource dataSource) {
 		sLog.debug("Setting data source <" + dataSource + "> for tempssuser data access object.");
 		_jdbcTemplate = new JdbcTemplate(dataSource);
 		_insertProfile = new SimpleJdbcInsert(_jdbcTemplate).withTableName("user").usingGeneratedKeyColumns("id");
+		if(_readJdbcTemplate == null) {
+			_readJdbcTemplate = _jdbcTemplate;
+		}
+	}
+	
+	/**
+	 * Set the data source used for queries, which can provide read-only
+	 * connections.
+	 */
+	public void setReadDataSource(DataSource readDataSource) {
+		sLog.debug("Setting read data source <" + readDataSource + "> for tempssuser data access object.");
+		_readJdbcTemplate = new JdbcTemplate(readDataSource);
 	}
 	
 	@Override
@@ -104,7 +121,7 @@ public class JdbcTempssUserDaoImpl implements TempssUserDao {
 	
 	@Override
 	public List<TempssUser> findAll() {
-		List<Map<String,Object>> userList = _jdbcTemplate.queryForList("select * from user");
+		List<Map<String,Object>> userList = _readJdbcTemplate.queryForList("select * from user");
 		List<TempssUser> users = new ArrayList<TempssUser>();
 		
 		for(Map<String,Object> data : userList) {
@@ -130,7 +147,7 @@ public class JdbcTempssUserDaoImpl implements TempssUserDao {
 	public TempssUser findByName(String pUsername) {
 		TempssUser user = null;
 		List<Map<String,Object>> users = 
-				_jdbcTemplate.queryForList(
+				_readJdbcTemplate.queryForList(
 						"select * from user where username = ?", pUsername);
 		
 		if(users.size() == 1) {
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2015, Imperial College London
+ * Copyright (c) 2015, The University of Edinburgh
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the names of the copyright holders nor the names of their
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * -----------------------------------------------------------------------------
+ *
+ * This file is part of the TemPSS - Templates and Profiles for Scientific 
+ * Software - service, developed as part of the libhpc projects 
+ * (http://www.imperial.ac.uk/lesc/projects/libhpc).
+ *
+ * We gratefully acknowledge the Engineering and Physical Sciences Research
+ * Council (EPSRC) for their support of the projects:
+ *   - libhpc: Intelligent Component-based Development of HPC Applications
+ *     (EP/I030239/1).
+ *   - libhpc Stage II: A Long-term Solution for the Usability, Maintainability
+ *     and Sustainability of HPC Software (EP/K038788/1).
+ */
+
+package uk.ac.imperial.libhpc2.schemaservice.web.db;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A data source that records how long callers wait to obtain connections
+ * from the connection pool it wraps.
+ * 
+ * The database is accessed through a pool of read-only connections for
+ * queries and a separate pool with a single connection for updates, so
+ * that queries are not queued behind each other or behind updates. The
+ * statistics of each pool show whether it is large enough: the time
+ * callers wait for a connection, the number of connections in use and
+ * the number of callers that gave up waiting.
+ */
+public class MeteredDataSource implements DataSource {
+
+	private static final Logger sLog = LoggerFactory.getLogger(MeteredDataSource.class.getName());
+	
+	private final String _name;
+	private final DataSource _delegate;
+	
+	private final AtomicLong _connections = new AtomicLong();
+	private final AtomicLong _failures = new AtomicLong();
+	private final AtomicLong _totalWaitNanos = new AtomicLong();
+	private final AtomicLong _maxWaitNanos = new AtomicLong();
+	private final AtomicLong _peakActive = new AtomicLong();
+	
+	/**
+	 * @param pName the name the statistics are reported under.
+	 * @param pDelegate the connection pool to obtain connections from.
+	 */
+	public MeteredDataSource(String pName, DataSource pDelegate) {
+		this._name = pName;
+		this._delegate = pDelegate;
+	}
+	
+	public String getName() {
+		return _name;
+	}
+	
+	@Override
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		try {
+			Connection connection = _delegate.getConnection();
+			recordConnection(System.nanoTime() - start);
+			return connection;
+		} catch (SQLException e) {
+			recordFailure(e);
+			throw e;
+		}
+	}
+	
+	@Override
+	public Connection getConnection(String pUsername, String pPassword) throws SQLException {
+		long start = System.nanoTime();
+		try {
+			Connection connection = _delegate.getConnection(pUsername, pPassword);
+			recordConnection(System.nanoTime() - start);
+			return connection;
+		} catch (SQLException e) {
+			recordFailure(e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Get a snapshot of the connection pool statistics.
+	 * 
+	 * @return a map of statistic name to value.
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		if(_delegate instanceof BasicDataSource) {
+			BasicDataSource pool = (BasicDataSource)_delegate;
+			int maxActive = pool.getMaxActive();
+			int active = pool.getNumActive();
+			stats.put("maxActive", maxActive);
+			stats.put("active", active);
+			stats.put("idle", pool.getNumIdle());
+			stats.put("utilization", (maxActive > 0) ? (double)active / maxActive : 0.0);
+		}
+		long connections = _connections.get();
+		stats.put("peakActive", _peakActive.get());
+		stats.put("connections", connections);
+		stats.put("failures", _failures.get());
+		stats.put("meanWaitMillis", (connections == 0) ? 0.0 
+				: _totalWaitNanos.get() / 1e6 / connections);
+		stats.put("maxWaitMillis", _maxWaitNanos.get() / 1e6);
+		return stats;
+	}
+	
+	private void recordConnection(long pWaitNanos) {
+		_connections.incrementAndGet();
+		_totalWaitNanos.addAndGet(pWaitNanos);
+		updateMax(_maxWaitNanos, pWaitNanos);
+		if(_delegate instanceof BasicDataSource) {
+			updateMax(_peakActive, ((BasicDataSource)_delegate).getNumActive());
+		}
+	}
+	
+	private void recordFailure(SQLException pException) {
+		_failures.incrementAndGet();
+		sLog.warn("Unable to get a connection from the <{}> connection pool: {}", 
+				_name, pException.getMessage());
+	}
+	
+	private static void updateMax(AtomicLong pMax, long pValue) {
+		long max = pMax.get();
+		while(pValue > max && !pMax.compareAndSet(max, pValue)) {
+			max = pMax.get();
+		}
+	}
+	
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return _delegate.getLogWriter();
+	}
+	
+	@Override
+	public void setLogWriter(PrintWriter pOut) throws SQLException {
+		_delegate.setLogWriter(pOut);
+	}
+	
+	@Override
+	public void setLoginTimeout(int pSeconds) throws SQLException {
+		_delegate.setLoginTimeout(pSeconds);
+	}
+	
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return _delegate.getLoginTimeout();
+	}
+	
+	@Override
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+	
+	@Override
+	public <T> T unwrap(Class<T> pInterface) throws SQLException {
+		if(pInterface.isInstance(this)) {
+			return pInterface.cast(this);
+		}
+		return _delegate.unwrap(pInterface);
+	}
+	
+	@Override
+	public boolean isWrapperFor(Class<?> pInterface) throws SQLException {
+		return pInterface.isInstance(this) || _delegate.isWrapperFor(pInterface);
+	}
+}
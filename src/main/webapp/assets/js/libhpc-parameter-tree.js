@@ -637,8 +637,7 @@ function processJobProfile(treeRootNode, templateId) {
         	// link to the required data.
         	log('Location of transformed XML: ' + data.TransformedXml);
         	
-        	var inputFileUrl = data.TransformedXml;
-        	var fileId = inputFileUrl.substring(inputFileUrl.lastIndexOf('_') +1, inputFileUrl.length - 4);
+        	var fileId = data.TransformedXmlId;
         	log('Using fileId <' + fileId + '>');
         	
         	// Trigger a download request to get the transformed XML